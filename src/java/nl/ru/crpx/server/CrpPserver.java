@@ -8,16 +8,24 @@
 package nl.ru.crpx.server;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -35,6 +43,9 @@ import nl.ru.crpx.search.WorkManager;
 import nl.ru.crpx.search.WorkQueueXqF;
 import nl.ru.crpx.server.crp.CrpManager;
 import nl.ru.crpx.server.requesthandlers.RequestHandler;
+import nl.ru.crpx.server.util.JobWatcher;
+import nl.ru.crpx.server.util.RenderPool;
+import nl.ru.crpx.server.util.JsonStreamWriter;
 import nl.ru.crpx.tools.ErrHandle;
 import nl.ru.crpx.tools.FileIO;
 import nl.ru.util.Json;
@@ -55,20 +66,27 @@ import org.apache.log4j.Logger;
    --------------------------------------------------------------------------- */
 @WebServlet(name = "crppw", 
   urlPatterns = {"/crpchg", "/crpdel", "/crpget", "/crpinfo", "/crpset", "/dbinfo", 
-                 "/dblist", "/dbset", "/dbupload", "/debug", "/exe", 
+                 "/dblist", "/dbset", "/dbupload", "/debug", "/exe", "/export", 
                  "/load", "/save", "/settings", "/show", "/statusxl", "/statusxq", 
-                 "/txt", "/txtlist", "/update"})
+                 "/txt", "/txtlist", "/update"},
+  asyncSupported = true)
 public class CrpPserver extends HttpServlet  {
   // The servlet contains a 'logger'
   private static final Logger logger = Logger.getLogger(CrpPserver.class);
   private static final ErrHandle errHandle = new ErrHandle(CrpPserver.class);
   private static final int maxThreadsPerUser = 20;
+  private static final int RESPONSE_BUFFER_SIZE = 65536; // Buffer between response and servlet output
+  private static final String ATTR_WAITING = "crpp.waitingHandler"; // Handler of a suspended request
+  private static final String ATTR_EVENTS = "crpp.eventWriter";     // Writer of an event stream
+  private static final long ASYNC_TIMEOUT_MARGIN_MS = 5000;        // Extra time before the container times out
   // =================== instance variables ==================================
   private static JSONObject config;             // Configuration object
   private static SearchManager searchManager;   // The search manager we make
   private static PrjTypeManager prjTypeManager; // 
   private static CrpManager crpManager;         // Link to the CRP-User list manager
   private static WorkManager workManager = null;
+  private static JobWatcher jobWatcher = null;  // Releases requests waiting for a job
+  private static RenderPool renderPool = null;  // Threads shared by requests for detail work
   // private static List<WorkQueueXqF> lWorkQueue = null; // List of user-owned work queues
   // =================== Simple getters =======================================
   public SearchManager getSearchManager() {return searchManager;}
@@ -76,6 +94,8 @@ public class CrpPserver extends HttpServlet  {
   public JSONObject getConfig() { return config;}
   public CrpManager getCrpManager() { return crpManager; }
   public WorkManager getWorkManager() { return workManager; }
+  public JobWatcher getJobWatcher() { return jobWatcher; }
+  public RenderPool getRenderPool() { return renderPool; }
 /* ---------------------------------------------------------------------------
    Name: init
    Goal: Main entry point for the CRPP-webserver
@@ -157,6 +177,16 @@ public class CrpPserver extends HttpServlet  {
         workManager = new WorkManager(errHandle);
       }
 
+      // Create a watcher for requests that wait for their job to change
+      if (jobWatcher == null) {
+        jobWatcher = new JobWatcher(config, errHandle);
+      }
+
+      // Create the threads that requests share for their detail work
+      if (renderPool == null) {
+        renderPool = new RenderPool(config, errHandle);
+      }
+
       // Show that we are ready
       logger.info("CrpPserver: server is ready.");
     } catch (Exception ex) {
@@ -185,18 +215,110 @@ public class CrpPserver extends HttpServlet  {
       // Show the number of parallel jobs
       errHandle.debug("Maxparjobs = " + prjTypeManager.getMaxParJobs());
 
-      // Try to formulate a response (call the job-related stuff)
-      DataObject response = RequestHandler.handle(this, request);
+      // Determine the requested output type and JSONP callback
+      DataFormat outputType = ServletUtil.getOutputType(request, searchManager.getDefaultOutputType());
+      boolean prettyPrint = ServletUtil.getParameter(request, "prettyprint", debugMode);
+      String callbackFunction = ServletUtil.getParameter(request, "jsonp", "");
+      boolean bCallbackOk = (callbackFunction.length() == 0 || 
+              callbackFunction.matches("[_a-zA-Z][_a-zA-Z0-9]+"));
+      
+      RequestHandler requestHandler;
+      DataObject response;
+      // Is this a request that has been waiting for its job to change?
+      Object oWaiting = request.getAttribute(ATTR_WAITING);
+      if (oWaiting != null) {
+        // Let the same handler produce the response now
+        request.removeAttribute(ATTR_WAITING);
+        requestHandler = (RequestHandler) oWaiting;
+        response = requestHandler.resume();
+        // Is this the end of a stream of progress events?
+        if (requestHandler.isEventStream()) {
+          // Write through the same writer as the progress events
+          EventWriter oEvents = (EventWriter) request.getAttribute(ATTR_EVENTS);
+          request.removeAttribute(ATTR_EVENTS);
+          if (oEvents == null) oEvents = new EventWriter(getResponseWriter(responseObject));
+          oEvents.writeLast(response);
+          return;
+        }
+      } else {
+        // Find out which handler is going to formulate a response
+        requestHandler = RequestHandler.create(this, request);
+
+        // Can the handler stream its response while producing it?
+        if (requestHandler != null && requestHandler.canStream() && 
+                outputType == DataFormat.JSON && callbackFunction.isEmpty()) {
+          // Write HTTP headers (content type and cache)
+          responseObject.setCharacterEncoding("utf-8");
+          responseObject.setContentType(ServletUtil.getContentType(outputType));
+          ServletUtil.writeCacheHeaders(responseObject, 0);
+          // Let the handler write its response
+          Writer out = getResponseWriter(responseObject);
+          JsonStreamWriter oStream = new JsonStreamWriter(out, prettyPrint);
+          response = requestHandler.handleStream(oStream);
+          // Reset the error handling
+          errHandle.clearErr();
+          // Did the handler return an object instead of streaming?
+          if (response != null && !oStream.isStarted()) {
+            response.serializeDocument("crppsResponse", out, outputType, prettyPrint, "");
+          }
+          out.flush();
+          return;
+        }
+
+        // Try to formulate a response (call the job-related stuff)
+        response = (requestHandler == null) ? 
+                DataObject.errorObject("INTERNAL_ERROR", "RequestHandler is empty. Use: /execute, /show, /statusxq") :
+                requestHandler.handleRequest();
+        
+        // Does the client want a stream of progress events?
+        if (requestHandler != null && requestHandler.isEventStream()) {
+          startEventStream(request, responseObject, requestHandler, response);
+          return;
+        }
+        
+        // Does the client want to wait until its job changes?
+        if (requestHandler != null && requestHandler.getWaitFor() != null && 
+                jobWatcher != null && request.isAsyncSupported()) {
+          // Suspend the request, freeing this thread
+          startWaiting(request, responseObject, requestHandler);
+          return;
+        }
+      }
       
       // Reset the error handling
       errHandle.clearErr();
       
+      // Does the client already have this version of the response?
+      if (requestHandler != null && requestHandler.getETag() != null) {
+        ServletUtil.writeValidatorHeaders(responseObject, requestHandler.getETag(), 
+                requestHandler.getLastModified());
+        if (requestHandler.isNotModified()) {
+          // A matching If-None-Match makes "not modified" for a GET or HEAD only,
+          // but a matching "version" argument (usually POSTed) is answered so too
+          String sMethod = request.getMethod();
+          responseObject.setStatus((sMethod.equals("GET") || sMethod.equals("HEAD") ||
+                  requestHandler.isVersionMatch()) ?
+                  HttpServletResponse.SC_NOT_MODIFIED : HttpServletResponse.SC_PRECONDITION_FAILED);
+          return;
+        }
+      }
+      
+      // Should a file be sent as it is?
+      if (requestHandler != null && requestHandler.getRawFile() != null) {
+        sendRawFile(request, responseObject, requestHandler);
+        return;
+      }
+      
+      // Does the handler write its response as a stream of bytes?
+      if (requestHandler != null && requestHandler.getStreamType() != null) {
+        sendByteStream(responseObject, requestHandler);
+        return;
+      }
+      
       // Determine response type
-      DataFormat outputType = response.getOverrideType(); // some responses override the user's request (i.e. article XML)
-      if (outputType == null) {
-        // Default output type of the Crpp-server is JSON
-        // outputType = DataFormat.JSON;
-        outputType = ServletUtil.getOutputType(request, searchManager.getDefaultOutputType());
+      if (response.getOverrideType() != null) {
+        // some responses override the user's request (i.e. article XML)
+        outputType = response.getOverrideType(); 
       }
       
       // Write HTTP headers (content type and cache)
@@ -204,14 +326,13 @@ public class CrpPserver extends HttpServlet  {
       responseObject.setContentType(ServletUtil.getContentType(outputType));
 
       // Continue...
-      int cacheTime = response.isCacheAllowed() ? searchManager.getClientCacheTimeSec() : 0;
-      ServletUtil.writeCacheHeaders(responseObject, cacheTime);
+      if (requestHandler == null || requestHandler.getETag() == null) {
+        int cacheTime = response.isCacheAllowed() ? searchManager.getClientCacheTimeSec() : 0;
+        ServletUtil.writeCacheHeaders(responseObject, cacheTime);
+      }
       
       // Write the response
-      OutputStreamWriter out = new OutputStreamWriter(responseObject.getOutputStream(), "utf-8");
-      boolean prettyPrint = ServletUtil.getParameter(request, "prettyprint", debugMode);
-      String callbackFunction = ServletUtil.getParameter(request, "jsonp", "");
-      if (callbackFunction.length() > 0 && !callbackFunction.matches("[_a-zA-Z][_a-zA-Z0-9]+")) {
+      if (!bCallbackOk) {
         response = DataObject.errorObject("JSONP_ILLEGAL_CALLBACK", 
                 "Illegal JSONP callback function name. Must be a valid Javascript name.");
         callbackFunction = "";
@@ -223,6 +344,7 @@ public class CrpPserver extends HttpServlet  {
         // full XML documents already)
         rootEl = null;
       }
+      Writer out = getResponseWriter(responseObject);
       response.serializeDocument(rootEl, out, outputType, prettyPrint, callbackFunction);
       out.flush();
       
@@ -231,6 +353,273 @@ public class CrpPserver extends HttpServlet  {
     }
       
   }
+  
+  /**
+   * getResponseWriter
+   *    Get a buffered writer straight on top of the servlet output stream
+   * 
+   * @param responseObject
+   * @return
+   * @throws IOException 
+   */
+  private Writer getResponseWriter(HttpServletResponse responseObject) throws IOException {
+    return new BufferedWriter(
+            new OutputStreamWriter(responseObject.getOutputStream(), "utf-8"), 
+            RESPONSE_BUFFER_SIZE);
+  }
+  
+  /**
+   * sendRawFile
+   *    Send the raw file of the handler straight from disk to the client.
+   *    A single byte range may be requested (header Range), so that a large
+   *    download can be resumed; an If-Range with another version than the
+   *    current one makes us send the whole file again.
+   * 
+   * @param request
+   * @param responseObject
+   * @param requestHandler
+   * @throws IOException 
+   */
+  private void sendRawFile(HttpServletRequest request, HttpServletResponse responseObject,
+          RequestHandler requestHandler) throws IOException {
+    File fRaw = requestHandler.getRawFile();
+    long lSize = fRaw.length();
+    long lStart = 0;
+    long lEnd = lSize - 1;
+    
+    // Headers that are always needed
+    responseObject.setContentType(requestHandler.getRawContentType());
+    responseObject.setHeader("Accept-Ranges", "bytes");
+    responseObject.setHeader("Content-Disposition", "attachment; filename=\"" + fRaw.getName() + "\"");
+    if (requestHandler.getETag() == null) ServletUtil.writeCacheHeaders(responseObject, 0);
+    
+    // Is only part of the file needed?
+    String sRange = request.getHeader("Range");
+    String sIfRange = request.getHeader("If-Range");
+    if (sRange != null && sIfRange != null && !sIfRange.equals(requestHandler.getETag())) {
+      // The client's part belongs to another version: send everything
+      sRange = null;
+    }
+    if (sRange != null && sRange.startsWith("bytes=") && !sRange.contains(",")) {
+      String[] arRange = sRange.substring(6).trim().split("-", -1);
+      try {
+        if (arRange[0].isEmpty()) {
+          // Suffix range: the last n bytes
+          lStart = Math.max(0, lSize - Long.parseLong(arRange[1]));
+        } else {
+          lStart = Long.parseLong(arRange[0]);
+          if (!arRange[1].isEmpty()) lEnd = Math.min(lEnd, Long.parseLong(arRange[1]));
+        }
+      } catch (NumberFormatException ex) {
+        lStart = lSize;
+      }
+      if (lStart >= lSize || lStart > lEnd) {
+        responseObject.setHeader("Content-Range", "bytes */" + lSize);
+        responseObject.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      }
+      responseObject.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      responseObject.setHeader("Content-Range", "bytes " + lStart + "-" + lEnd + "/" + lSize);
+    }
+    long lLength = lEnd - lStart + 1;
+    responseObject.setHeader("Content-Length", String.valueOf(lLength));
+    
+    // Copy the (part of the) file without passing it through our own buffers
+    try (FileInputStream fiRaw = new FileInputStream(fRaw);
+         FileChannel chIn = fiRaw.getChannel()) {
+      WritableByteChannel chOut = Channels.newChannel(responseObject.getOutputStream());
+      long lPos = lStart;
+      while (lPos <= lEnd) {
+        long lDone = chIn.transferTo(lPos, lEnd - lPos + 1, chOut);
+        if (lDone <= 0) break;
+        lPos += lDone;
+      }
+      responseObject.flushBuffer();
+    }
+  }
+  
+  /**
+   * sendByteStream
+   *    Let the handler write its response straight to the client, as it is
+   *    being produced. If the client goes away, writing fails and the 
+   *    handler stops.
+   * 
+   * @param responseObject
+   * @param requestHandler 
+   */
+  private void sendByteStream(HttpServletResponse responseObject, RequestHandler requestHandler) {
+    try {
+      responseObject.setContentType(requestHandler.getStreamType());
+      if (!requestHandler.getStreamName().isEmpty())
+        responseObject.setHeader("Content-Disposition", "attachment; filename=\"" + 
+                requestHandler.getStreamName() + "\"");
+      ServletUtil.writeCacheHeaders(responseObject, 0);
+      requestHandler.writeStream(responseObject.getOutputStream());
+      responseObject.flushBuffer();
+    } catch (IOException ex) {
+      // The client has closed the connection
+      errHandle.debug("sendByteStream: stopped (" + ex.getMessage() + ")");
+    } catch (RuntimeException ex) {
+      errHandle.DoError("sendByteStream: the handler failed", ex, CrpPserver.class);
+      // The client must not take an incomplete stream for a complete one
+      if (!responseObject.isCommitted()) {
+        responseObject.reset();
+        try {
+          responseObject.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } catch (IOException exSend) {
+          errHandle.debug("sendByteStream: could not send the error (" + exSend.getMessage() + ")");
+        }
+      } else {
+        // Part has been sent already: the container then aborts the connection
+        // (see doGet; doPost passes the exception on as it is)
+        throw ex;
+      }
+    }
+  }
+  
+  /**
+   * startWaiting
+   *    Suspend the request until the job it waits for changes state, or until
+   *    the maximum waiting time has passed. The request is then dispatched 
+   *    again, and the same handler produces the response through resume()
+   * 
+   * @param request
+   * @param responseObject
+   * @param requestHandler 
+   */
+  private void startWaiting(HttpServletRequest request, HttpServletResponse responseObject,
+          RequestHandler requestHandler) {
+    // Keep the handler, so that the dispatched request can find it
+    request.setAttribute(ATTR_WAITING, requestHandler);
+    final AsyncContext oAsync = request.startAsync(request, responseObject);
+    // Give the job watcher time to release the request itself
+    oAsync.setTimeout(jobWatcher.getMaxWaitMs() + ASYNC_TIMEOUT_MARGIN_MS);
+    // Start watching the job
+    final JobWatcher.Watch oWatch = jobWatcher.watch(requestHandler.getWaitFor(), 
+            new JobWatcher.Listener() {
+      @Override
+      public void onChange(boolean bLast, boolean bTimeout) {
+        oAsync.dispatch();
+      }
+    });
+    // Make sure the container's timeout or an error stops the watch
+    addWatchListener(oAsync, oWatch);
+  }
+  
+  /**
+   * startEventStream
+   *    Answer with a stream of Server-Sent Events: first the progress of the 
+   *    job, then only the progress values that change, and finally (when the
+   *    job has finished) the response of the handler as a "status" event
+   *    (or an "error" event if there is none). In between no request thread
+   *    is occupied. All events go through one EventWriter, so that they are
+   *    never mixed up.
+   * 
+   * @param request
+   * @param responseObject
+   * @param requestHandler
+   * @param response        - the response of the handler at this moment
+   * @throws IOException 
+   */
+  private void startEventStream(HttpServletRequest request, HttpServletResponse responseObject,
+          RequestHandler requestHandler, DataObject response) throws IOException {
+    // Write HTTP headers for an event stream
+    responseObject.setCharacterEncoding("utf-8");
+    responseObject.setContentType("text/event-stream");
+    ServletUtil.writeCacheHeaders(responseObject, 0);
+    final EventWriter oEvents = new EventWriter(getResponseWriter(responseObject));
+    final JobWatcher.Watchable oJob = requestHandler.getWaitFor();
+    // Has the job finished already? Then the status is the only event
+    if (response == null || oJob == null || jobWatcher == null || !request.isAsyncSupported()) {
+      oEvents.writeLast(response);
+      return;
+    }
+    // Start with all the progress values there are
+    final JSONObject[] arLast = { copyProgress(oJob.getProgress()) };
+    oEvents.write("progress", JobWatcher.getProgressDelta(null, arLast[0]).toString());
+    // Keep the handler and the writer, so that the dispatched request can find them
+    request.setAttribute(ATTR_WAITING, requestHandler);
+    request.setAttribute(ATTR_EVENTS, oEvents);
+    final AsyncContext oAsync = request.startAsync(request, responseObject);
+    oAsync.setTimeout(jobWatcher.getMaxStreamMs() + ASYNC_TIMEOUT_MARGIN_MS);
+    // Send each change of the job as an event
+    final JobWatcher.Watch oWatch = jobWatcher.stream(oJob, new JobWatcher.Listener() {
+      @Override
+      public void onChange(boolean bLast, boolean bTimeout) {
+        // The final status is written by the dispatched request
+        if (bLast) { oAsync.dispatch(); return; }
+        try {
+          JSONObject oNow = copyProgress(oJob.getProgress());
+          JSONObject oDelta = JobWatcher.getProgressDelta(arLast[0], oNow);
+          arLast[0] = oNow;
+          if (oDelta.length() > 0) oEvents.write("progress", oDelta.toString());
+        } catch (Exception ex) {
+          // The client has gone away: completing stops the watch too
+          oAsync.complete();
+        }
+      }
+    });
+    addWatchListener(oAsync, oWatch);
+  }
+  
+  /**
+   * EventWriter
+   *    The one writer of an event stream. The request thread, the job watcher
+   *    and the dispatched request all write to it, one event at a time; after
+   *    the last event nothing more is written.
+   */
+  private static class EventWriter {
+    private final Writer out;
+    private boolean bClosed = false;      // The last event has been written
+    EventWriter(Writer out) { this.out = out; }
+    synchronized void write(String sEvent, String sData) throws IOException {
+      if (!bClosed) ServletUtil.writeEvent(out, sEvent, sData);
+    }
+    synchronized void writeLast(DataObject response) throws IOException {
+      if (bClosed) return;
+      bClosed = true;
+      if (response == null) {
+        ServletUtil.writeEvent(out, "error", DataObject.errorObject("INTERNAL_ERROR",
+                "The request handler gave no response").toString(DataFormat.JSON));
+      } else {
+        ServletUtil.writeEvent(out, "status", response.toString(DataFormat.JSON));
+      }
+    }
+  }
+  
+  /**
+   * copyProgress
+   *    Take a copy of the progress object, since the job keeps changing it
+   * 
+   * @param oProgress
+   * @return 
+   */
+  private static JSONObject copyProgress(JSONObject oProgress) {
+    return (oProgress == null) ? null : new JSONObject(oProgress.toString());
+  }
+  
+  /**
+   * addWatchListener
+   *    Make sure the container's timeout, completion or an error stop the watch
+   * 
+   * @param oAsync
+   * @param oWatch 
+   */
+  private void addWatchListener(final AsyncContext oAsync, final JobWatcher.Watch oWatch) {
+    oAsync.addListener(new AsyncListener() {
+      @Override
+      public void onComplete(AsyncEvent event) { oWatch.finish(); }
+      @Override
+      public void onTimeout(AsyncEvent event) {
+        if (oWatch.finish()) oAsync.dispatch();
+      }
+      @Override
+      public void onError(AsyncEvent event) { oWatch.finish(); }
+      @Override
+      public void onStartAsync(AsyncEvent event) { }
+    });
+  }
+  
     /**
    * Handles the HTTP <code>GET</code> method.
    *
@@ -246,6 +635,8 @@ public class CrpPserver extends HttpServlet  {
       processRequest(request, response);
     } catch (Exception ex) {
       errHandle.DoError("CrppS: doGet failed", ex, CrpPserver.class);
+      // Part of the response has been sent: let the container abort the connection
+      if (response.isCommitted()) throw new ServletException(ex);
     }
   }
 
@@ -269,6 +660,36 @@ public class CrpPserver extends HttpServlet  {
   
   @Override
   public void destroy() {
+    // Release any requests that are still waiting
+    if (jobWatcher != null) {
+      jobWatcher.stop();
+      jobWatcher = null;
+    }
+    // Stop the shared threads
+    if (renderPool != null) {
+      renderPool.stop();
+      renderPool = null;
+    }
+    // Write any pending changes of user settings
+    if (crpManager != null) crpManager.stopUserSettings();
+    // Close the XmlAccess handles that are kept open
+    if (crpManager != null) crpManager.getXmlAccessPool().stop();
+    // Stop watching the corpus directories
+    if (crpManager != null) crpManager.getCorpusFileIndex().stop();
+    // Stop making KWIC sidecars
+    if (crpManager != null) crpManager.getKwicSidecar().stop();
+    // Write the metadata of corpus texts that has not been written yet
+    if (crpManager != null) crpManager.getMetaIndex().stop();
+    // Close the prepared result databases
+    if (crpManager != null) crpManager.getResultViewCache().clear();
+    // Stop making columnar result databases
+    if (crpManager != null) crpManager.getResultColumnStore().stop();
+    // Stop the threads that make text lists
+    if (crpManager != null) crpManager.getTextListScanner().stop();
+    // Stop watching the directories of the users
+    if (crpManager != null) crpManager.getCatalog().stop();
+    // Write the group names that have not been written yet
+    if (crpManager != null) crpManager.getGroupNameCache().stop();
     super.destroy();
   }
   /**
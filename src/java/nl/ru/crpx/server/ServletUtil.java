@@ -7,7 +7,9 @@
  */
 package nl.ru.crpx.server;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Writer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -214,6 +216,24 @@ public class ServletUtil {
     response.setHeader("Access-Control-Allow-Methods", "POST,GET");
   }
 
+  /**
+   * Write the validators of a response that may change at any moment: the
+   * client may keep it, but must check with us (If-None-Match or
+   * If-Modified-Since) before using it again.
+   * @param response the response object to write the headers to
+   * @param eTag the entity tag (version) of the response
+   * @param lastModified modification time of the response (or -1 if unknown)
+   */
+  public static void writeValidatorHeaders(HttpServletResponse response, String eTag, long lastModified) {
+    response.setHeader("ETag", eTag);
+    if (lastModified > 0) response.setDateHeader("Last-Modified", lastModified);
+    response.setHeader("Cache-Control", "private, no-cache");
+    // Make sure CORS is allowed (for everyeone), including reading the validators
+    response.setHeader("Access-Control-Allow-Origin", "*");
+    response.setHeader("Access-Control-Allow-Methods", "POST,GET");
+    response.setHeader("Access-Control-Expose-Headers", "ETag, Last-Modified");
+  }
+
   /**
    * Write the HTTP headers for the response, including caching, IE8 XSS protection (off!),
    * encoding, save as file.
@@ -247,5 +267,23 @@ public class ServletUtil {
     response.setCharacterEncoding(OUTPUT_ENCODING);
     response.setContentType(ServletUtil.getContentType(getOutputType(request, defaultFormat)));
   }
+
+  /**
+   * Write one Server-Sent Event. Every line of the data gets its own
+   * "data:" prefix, as required by the event-stream format.
+   *
+   * @param out the writer on top of the response stream
+   * @param event the name of the event (e.g. "progress")
+   * @param data the data of the event (usually JSON)
+   * @throws IOException
+   */
+  public static void writeEvent(Writer out, String event, String data) throws IOException {
+    out.write("event: " + event + "\n");
+    for (String line : data.split("\r?\n", -1)) {
+      out.write("data: " + line + "\n");
+    }
+    out.write("\n");
+    out.flush();
+  }
   
 }
@@ -0,0 +1,84 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.FileUtil;
+import nl.ru.util.json.JSONObject;
+
+/**
+ * CorpusCache
+ *    The directory where the server keeps what it derives from corpus texts
+ *    (metadata indices, line indices). It has the same layout as the corpus
+ *    directories, but lies outside of them: files written into a corpus
+ *    directory would change its modification time and number of entries,
+ *    which is how the TextListScanner notices that a directory changed.
+ *
+ * @author Erwin R. Komen
+ */
+public class CorpusCache {
+  // ================ Local variables ==========================================
+  private final Path pCorpusBase;                      // Where the corpora are
+  private final File fDir;                             // Where the derived files are stored
+
+  // ================ Class initialisation =====================================
+  /**
+   * CorpusCache
+   *    Read the directory from the "corpusCache" settings within the
+   *    "performance" part of the configuration
+   *
+   * @param sCorpusBase - base directory of the corpora
+   * @param oConfig     - server configuration (may be null)
+   * @param errHandle   - error handler
+   */
+  public CorpusCache(String sCorpusBase, JSONObject oConfig, ErrHandle errHandle) {
+    String sDir = "";
+
+    try {
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("corpusCache")) {
+          JSONObject oCache = oPerf.getJSONObject("corpusCache");
+          if (oCache.has("dir")) sDir = oCache.getString("dir");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("CorpusCache: could not read configuration", ex, CorpusCache.class);
+    }
+    this.pCorpusBase = Paths.get(FileUtil.nameNormalize(sCorpusBase)).toAbsolutePath().normalize();
+    // By default the files are stored next to the corpus directories
+    if (sDir.isEmpty()) sDir = pCorpusBase.resolve(".crppcache").toString();
+    this.fDir = new File(FileUtil.nameNormalize(sDir));
+  }
+
+  /**
+   * getFile
+   *    Get the file @sName that belongs to corpus directory @fCorpusDir
+   *    (its parent directory is made when needed)
+   *
+   * @param fCorpusDir
+   * @param sName
+   * @return
+   */
+  public File getFile(File fCorpusDir, String sName) {
+    Path pDir = fCorpusDir.toPath().toAbsolutePath().normalize();
+    String sRel;
+    if (pDir.startsWith(pCorpusBase)) {
+      sRel = pCorpusBase.relativize(pDir).toString();
+    } else {
+      // Directories elsewhere are kept apart by their full path (without a drive)
+      sRel = "abs" + File.separator + pDir.toString().replace(":", "");
+    }
+    File fCacheDir = new File(fDir, sRel);
+    if (!fCacheDir.isDirectory()) fCacheDir.mkdirs();
+    return new File(fCacheDir, sName);
+  }
+}
@@ -0,0 +1,399 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.FileUtil;
+import nl.ru.util.json.JSONObject;
+
+/**
+ * CorpusFileIndex
+ *    Index from file name to full path for the files under a corpus (part)
+ *    directory. It replaces the recursive search of findFileInDirectory():
+ *    the directory tree is walked once, on first use, and a WatchService
+ *    keeps the index up to date when files are added or removed. A name
+ *    that is not in the index is still searched for on disk, since the
+ *    watcher may not have reported it (yet), or may not be able to watch
+ *    all directories.
+ *
+ * @author Erwin R. Komen
+ */
+public class CorpusFileIndex {
+  // ================ Local variables ==========================================
+  private final ErrHandle errHandle;                   // The error handler we are using
+  private final boolean bWatch;                        // Keep the index current with a WatchService
+  private final ConcurrentMap<String, Part> mapPart = new ConcurrentHashMap<>();
+  private final ConcurrentMap<WatchKey, Watched> mapKey = new ConcurrentHashMap<>();
+  private WatchService oWatcher = null;                // Shared by all parts
+  private Thread thrWatch = null;                      // Handles the events of [oWatcher]
+  // ================ Statistics ===============================================
+  private final AtomicLong lLookups = new AtomicLong();
+  private final AtomicLong lMisses = new AtomicLong();
+  private final AtomicLong lDiskFound = new AtomicLong();
+  private final AtomicLong lBuilds = new AtomicLong();
+  private final AtomicLong lEvents = new AtomicLong();
+
+  /**
+   * Part - the index of one corpus (part) directory
+   */
+  private static class Part {
+    final Path pRoot;
+    volatile ConcurrentMap<String, String> mapName = new ConcurrentHashMap<>();
+    volatile boolean bReady = false;    // The tree has been walked
+    volatile boolean bWatched = true;   // All directories are being watched
+    Part(Path pRoot) { this.pRoot = pRoot; }
+  }
+
+  /**
+   * Watched - a directory that is being watched, and the part it belongs to
+   */
+  private static class Watched {
+    final Part oPart;
+    final Path pDir;
+    Watched(Part oPart, Path pDir) { this.oPart = oPart; this.pDir = pDir; }
+  }
+
+  // ================ Class initialisation =====================================
+  /**
+   * CorpusFileIndex
+   *    Create an (empty) index, taking its settings from the "corpusFileIndex"
+   *    section within the "performance" part of the configuration
+   *
+   * @param oConfig   - server configuration (may be null)
+   * @param errHandle - error handler
+   */
+  public CorpusFileIndex(JSONObject oConfig, ErrHandle errHandle) {
+    boolean bDoWatch = true;
+
+    this.errHandle = errHandle;
+    try {
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("corpusFileIndex")) {
+          JSONObject oIndex = oPerf.getJSONObject("corpusFileIndex");
+          if (oIndex.has("watch")) bDoWatch = oIndex.getBoolean("watch");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("CorpusFileIndex: could not read configuration", ex, CorpusFileIndex.class);
+    }
+    this.bWatch = bDoWatch;
+  }
+
+  /**
+   * find
+   *    Get the full path of the file called @sName somewhere under @sDir
+   *
+   * @param sDir
+   * @param sName
+   * @return        the full path, or an empty string if it is not there
+   */
+  public String find(String sDir, String sName) {
+    try {
+      if (sDir == null || sDir.isEmpty() || sName == null || sName.isEmpty()) return "";
+      lLookups.incrementAndGet();
+      Part oPart = getPart(sDir);
+      if (oPart == null) return FileUtil.findFileInDirectory(sDir, sName);
+      String sPath = oPart.mapName.get(sName);
+      if (sPath != null) return sPath;
+      lMisses.incrementAndGet();
+      // The index may be behind (an event not yet handled, or lost): look on disk
+      sPath = FileUtil.findFileInDirectory(sDir, sName);
+      if (!sPath.isEmpty()) {
+        lDiskFound.incrementAndGet();
+        oPart.mapName.putIfAbsent(sName, sPath);
+      }
+      return sPath;
+    } catch (Exception ex) {
+      errHandle.DoError("CorpusFileIndex/find failed", ex, CorpusFileIndex.class);
+      return "";
+    }
+  }
+
+  /**
+   * findText
+   *    Get the full path of the text @sName under @sDir, or else of its
+   *    compressed (.gz) variant
+   *
+   * @param sDir
+   * @param sName
+   * @return        the full path, or an empty string if neither is there
+   */
+  public String findText(String sDir, String sName) {
+    String sPath = find(sDir, sName);
+    if (sPath.isEmpty()) sPath = find(sDir, sName + ".gz");
+    return sPath;
+  }
+
+  /**
+   * stop
+   *    Stop watching the directories
+   */
+  public synchronized void stop() {
+    try {
+      if (oWatcher != null) oWatcher.close();
+      oWatcher = null;
+      thrWatch = null;
+      mapKey.clear();
+      mapPart.clear();
+    } catch (Exception ex) {
+      errHandle.DoError("CorpusFileIndex/stop: ", ex, CorpusFileIndex.class);
+    }
+  }
+
+  /**
+   * getStats
+   *    Statistics of this index (for /serverinfo)
+   *
+   * @return
+   */
+  public DataObjectMapElement getStats() {
+    DataObjectMapElement oStats = new DataObjectMapElement();
+    int iFiles = 0;
+    for (Part oPart : mapPart.values()) iFiles += oPart.mapName.size();
+    oStats.put("parts", mapPart.size());
+    oStats.put("files", iFiles);
+    oStats.put("directories", mapKey.size());
+    oStats.put("lookups", lLookups.get());
+    oStats.put("misses", lMisses.get());
+    oStats.put("diskFound", lDiskFound.get());
+    oStats.put("builds", lBuilds.get());
+    oStats.put("events", lEvents.get());
+    return oStats;
+  }
+
+  // ================ Private methods ==========================================
+  /**
+   * getPart
+   *    Get the index of directory @sDir, building it when needed
+   *
+   * @param sDir
+   * @return      the index, or null if @sDir is not a directory
+   */
+  private Part getPart(String sDir) {
+    Path pRoot = Paths.get(sDir).toAbsolutePath().normalize();
+    String sKey = pRoot.toString();
+    Part oPart = mapPart.get(sKey);
+    if (oPart == null) {
+      if (!Files.isDirectory(pRoot)) return null;
+      Part oNew = new Part(pRoot);
+      oPart = mapPart.putIfAbsent(sKey, oNew);
+      if (oPart == null) oPart = oNew;
+    }
+    if (!oPart.bReady) {
+      synchronized (oPart) {
+        if (!oPart.bReady) build(oPart);
+      }
+    }
+    return oPart;
+  }
+
+  /**
+   * build
+   *    Walk the directory tree of @oPart, adding all files and watching all
+   *    directories
+   *
+   * @param oPart
+   */
+  private void build(Part oPart) {
+    try {
+      lBuilds.incrementAndGet();
+      oPart.bWatched = bWatch;
+      // Build a new map, so that lookups can continue with the old one meanwhile
+      ConcurrentMap<String, String> mapNew = new ConcurrentHashMap<>();
+      addTree(oPart, mapNew, oPart.pRoot);
+      oPart.mapName = mapNew;
+      oPart.bReady = true;
+    } catch (Exception ex) {
+      errHandle.DoError("CorpusFileIndex/build failed for " + oPart.pRoot, ex, CorpusFileIndex.class);
+      // Names that are not found will be searched for on disk
+      oPart.bWatched = false;
+    }
+  }
+
+  /**
+   * addTree
+   *    Add the files under @pDir to @mapName (a file name found earlier wins,
+   *    as with a search on disk), and watch the directories for @oPart
+   *
+   * @param oPart
+   * @param mapName
+   * @param pDir
+   * @throws IOException
+   */
+  private void addTree(final Part oPart, final ConcurrentMap<String, String> mapName, 
+          Path pDir) throws IOException {
+    Files.walkFileTree(pDir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path pThis, BasicFileAttributes attrs) {
+        if (oPart.bWatched) watch(oPart, pThis);
+        return FileVisitResult.CONTINUE;
+      }
+      @Override
+      public FileVisitResult visitFile(Path pThis, BasicFileAttributes attrs) {
+        if (attrs.isRegularFile())
+          mapName.putIfAbsent(pThis.getFileName().toString(), pThis.toString());
+        return FileVisitResult.CONTINUE;
+      }
+      @Override
+      public FileVisitResult visitFileFailed(Path pThis, IOException ex) {
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * addNames
+   *    Add the files under @pDir whose name is in @setName to @mapName (a
+   *    file name found earlier wins, as in addTree)
+   *
+   * @param mapName
+   * @param pDir
+   * @param setName
+   * @throws IOException
+   */
+  private void addNames(final ConcurrentMap<String, String> mapName, Path pDir,
+          final Set<String> setName) throws IOException {
+    Files.walkFileTree(pDir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path pThis, BasicFileAttributes attrs) {
+        String sName = pThis.getFileName().toString();
+        if (attrs.isRegularFile() && setName.contains(sName))
+          mapName.putIfAbsent(sName, pThis.toString());
+        return FileVisitResult.CONTINUE;
+      }
+      @Override
+      public FileVisitResult visitFileFailed(Path pThis, IOException ex) {
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * watch
+   *    Register directory @pDir of @oPart with the watch service
+   *
+   * @param oPart
+   * @param pDir
+   */
+  private synchronized void watch(Part oPart, Path pDir) {
+    try {
+      if (oWatcher == null) {
+        oWatcher = FileSystems.getDefault().newWatchService();
+        final WatchService oService = oWatcher;
+        thrWatch = new Thread(new Runnable() {
+          @Override
+          public void run() { processEvents(oService); }
+        }, "crpp-corpuswatcher");
+        thrWatch.setDaemon(true);
+        thrWatch.start();
+      }
+      WatchKey oKey = pDir.register(oWatcher, StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_DELETE);
+      mapKey.put(oKey, new Watched(oPart, pDir));
+    } catch (Exception ex) {
+      // E.g. too many directories: this part can no longer rely on the index alone
+      oPart.bWatched = false;
+      errHandle.debug("CorpusFileIndex: cannot watch " + pDir + ": " + ex.getMessage());
+    }
+  }
+
+  /**
+   * processEvents
+   *    Keep the indices up to date with the changes reported by @oService
+   *
+   * @param oService
+   */
+  private void processEvents(WatchService oService) {
+    try {
+      while (true) {
+        WatchKey oKey = oService.take();
+        Watched oWatched = mapKey.get(oKey);
+        if (oWatched != null) {
+          for (WatchEvent<?> oEvent : oKey.pollEvents()) {
+            lEvents.incrementAndGet();
+            processEvent(oWatched, oEvent);
+          }
+        }
+        // A key that is no longer valid belongs to a directory that is gone
+        if (!oKey.reset()) mapKey.remove(oKey);
+      }
+    } catch (ClosedWatchServiceException | InterruptedException ex) {
+      // The index has been stopped
+    }
+  }
+
+  /**
+   * processEvent
+   *    Process one change in the directory @oWatched
+   *
+   * @param oWatched
+   * @param oEvent
+   */
+  private void processEvent(Watched oWatched, WatchEvent<?> oEvent) {
+    Part oPart = oWatched.oPart;
+    try {
+      if (oEvent.kind() == StandardWatchEventKinds.OVERFLOW) {
+        // Events have been lost: build this part again on next use
+        oPart.bReady = false;
+        return;
+      }
+      Path pThis = oWatched.pDir.resolve((Path) oEvent.context());
+      String sPath = pThis.toString();
+      if (oEvent.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+        if (Files.isDirectory(pThis)) {
+          synchronized (oPart) { addTree(oPart, oPart.mapName, pThis); }
+        } else {
+          oPart.mapName.putIfAbsent(pThis.getFileName().toString(), sPath);
+        }
+      } else if (oEvent.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+        // Remove the file, or everything that was under the directory
+        String sUnder = sPath + pThis.getFileSystem().getSeparator();
+        Set<String> setGone = new HashSet<>();
+        Iterator<Map.Entry<String, String>> it = oPart.mapName.entrySet().iterator();
+        while (it.hasNext()) {
+          Map.Entry<String, String> oEntry = it.next();
+          String sValue = oEntry.getValue();
+          if (sValue.equals(sPath) || sValue.startsWith(sUnder)) {
+            setGone.add(oEntry.getKey());
+            it.remove();
+          }
+        }
+        // A file with the same name may be elsewhere in the tree too
+        if (!setGone.isEmpty()) {
+          synchronized (oPart) { addNames(oPart.mapName, oPart.pRoot, setGone); }
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("CorpusFileIndex/processEvent failed", ex, CorpusFileIndex.class);
+      // Make sure the index is not left behind
+      oPart.bReady = false;
+    }
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.File;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.crpx.project.CorpusResearchProject;
+import nl.ru.crpx.project.CorpusResearchProject.ProjType;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.FileUtil;
+import nl.ru.util.Json;
+import nl.ru.util.json.JSONObject;
+import nl.ru.xmltools.Parse;
+import nl.ru.xmltools.XmlForest;
+
+/**
+ * CorpusMetaIndex
+ *    The metadata (title, genre, author, date, subtype, size) of the texts
+ *    of each corpus part. Getting the metadata of a text means parsing its
+ *    header, so it is done once per version (modification time and size) of
+ *    a text. The index of a part is kept in memory, and is written to the
+ *    cache directory of that part ("metaindex.json", see CorpusCache), so
+ *    that it survives a restart. Texts that are new or have changed are added as they are met.
+ *
+ * @author Erwin R. Komen
+ */
+public class CorpusMetaIndex {
+  // ================ Constants ================================================
+  private static final String INDEX_NAME = "metaindex.json";
+  private static final int DEFAULT_SAVE_EVERY = 100;   // Changes before writing
+  // ================ Local variables ==========================================
+  private final ErrHandle errHandle;                   // The error handler we are using
+  private final String sCorpusBase;                    // Where the corpora are
+  private final CorpusCache oCache;                    // Where the indices are stored
+  private final int iSaveEvery;                        // Changes after which a part is written
+  private final ConcurrentMap<String, Part> mapPart = new ConcurrentHashMap<>();
+  // ================ Statistics ===============================================
+  private final AtomicLong lHits = new AtomicLong();
+  private final AtomicLong lMisses = new AtomicLong();
+  private final AtomicLong lLoads = new AtomicLong();
+  private final AtomicLong lWrites = new AtomicLong();
+
+  /**
+   * Part - the metadata of the texts of one corpus part
+   *    All fields are guarded by the Part itself
+   */
+  public static class Part {
+    final File fDir;                                   // Directory of the part
+    final Map<String, Value> mapFile = new HashMap<>();
+    int iUnsaved = 0;                                  // Changes since the last write
+    boolean bLoaded = false;
+    Part(File fDir) { this.fDir = fDir; }
+  }
+
+  private static class Value {
+    final long lMtime;              // Modification time of the text
+    final long lLength;             // Size of the text in bytes
+    final JSONObject oMeta;         // Its metadata
+    Value(long lMtime, long lLength, JSONObject oMeta) {
+      this.lMtime = lMtime; this.lLength = lLength; this.oMeta = oMeta;
+    }
+  }
+
+  // ================ Class initialisation =====================================
+  /**
+   * CorpusMetaIndex
+   *    Create the index, taking its settings from the "metaIndex" section
+   *    within the "performance" part of the configuration
+   *
+   * @param sCorpusBase - base directory of the corpora
+   * @param oCache      - where the indices are stored
+   * @param oConfig     - server configuration (may be null)
+   * @param errHandle   - error handler
+   */
+  public CorpusMetaIndex(String sCorpusBase, CorpusCache oCache, JSONObject oConfig, ErrHandle errHandle) {
+    int iEvery = DEFAULT_SAVE_EVERY;
+
+    this.errHandle = errHandle;
+    this.sCorpusBase = sCorpusBase;
+    this.oCache = oCache;
+    try {
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("metaIndex")) {
+          JSONObject oIndex = oPerf.getJSONObject("metaIndex");
+          if (oIndex.has("saveEvery")) iEvery = oIndex.getInt("saveEvery");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("CorpusMetaIndex: could not read configuration", ex, CorpusMetaIndex.class);
+    }
+    this.iSaveEvery = Math.max(1, iEvery);
+  }
+
+  /**
+   * getPart
+   *    Get the index of part @sPart of corpus @sLng (loading it from disk
+   *    the first time)
+   *
+   * @param sLng
+   * @param sPart   - may be empty (the whole corpus)
+   * @return        the part, or null if its directory does not exist
+   */
+  public Part getPart(String sLng, String sPart) {
+    String sKey = sLng + "/" + sPart;
+    Part oPart = mapPart.get(sKey);
+    if (oPart == null) {
+      // Find the directory of this part
+      String sDir = Paths.get(FileUtil.nameNormalize(sCorpusBase), sLng).toString();
+      if (!sPart.isEmpty()) sDir = FileUtil.findFileInDirectory(sDir, sPart);
+      if (sDir == null || sDir.isEmpty() || !new File(sDir).isDirectory()) return null;
+      Part oNew = new Part(new File(sDir));
+      oPart = mapPart.putIfAbsent(sKey, oNew);
+      if (oPart == null) oPart = oNew;
+    }
+    synchronized (oPart) {
+      if (!oPart.bLoaded) {
+        oPart.bLoaded = true;
+        load(oPart);
+      }
+    }
+    return oPart;
+  }
+
+  /**
+   * get
+   *    Get the metadata of text @sFile (a full path) within @oPart. If it is
+   *    not known (for this version of the text), then its header is parsed,
+   *    using @prsThis (or a new parser, if that is null)
+   *    NOTE: the returned object is shared, and must not be changed
+   *
+   * @param oPart
+   * @param sFile
+   * @param prsThis
+   * @return        the metadata, or null if it cannot be determined
+   */
+  public JSONObject get(Part oPart, String sFile, Parse prsThis) {
+    try {
+      File fText = new File(sFile);
+      long lMtime = fText.lastModified();
+      long lLength = fText.length();
+      if (oPart != null) {
+        synchronized (oPart) {
+          Value oValue = oPart.mapFile.get(sFile);
+          if (oValue != null && oValue.lMtime == lMtime && oValue.lLength == lLength) {
+            lHits.incrementAndGet();
+            return oValue.oMeta;
+          }
+        }
+      }
+      lMisses.incrementAndGet();
+      // Parse the header of the text
+      if (prsThis == null) prsThis = getParser(sFile);
+      if (prsThis == null) return null;
+      JSONObject oMeta = prsThis.getMetaInfo(sFile);
+      if (oMeta == null || oPart == null) return oMeta;
+      boolean bSave;
+      synchronized (oPart) {
+        oPart.mapFile.put(sFile, new Value(lMtime, lLength, oMeta));
+        oPart.iUnsaved++;
+        bSave = (oPart.iUnsaved >= iSaveEvery);
+      }
+      if (bSave) save(oPart);
+      return oMeta;
+    } catch (Exception ex) {
+      errHandle.DoError("CorpusMetaIndex: could not get metadata of " + sFile, ex, CorpusMetaIndex.class);
+      return null;
+    }
+  }
+
+  /**
+   * get
+   *    Get the metadata of text @sFile (a full path) in part @sPart of
+   *    corpus @sLng
+   *
+   * @param sLng
+   * @param sPart
+   * @param sFile
+   * @return
+   */
+  public JSONObject get(String sLng, String sPart, String sFile) {
+    return get(getPart(sLng, sPart), sFile, null);
+  }
+
+  /**
+   * save
+   *    Write the index of @oPart if it has changed: first to a temporary
+   *    file, which then replaces the old one
+   *
+   * @param oPart
+   */
+  public void save(Part oPart) {
+    if (oPart == null) return;
+    synchronized (oPart) {
+      if (oPart.iUnsaved == 0) return;
+      try {
+        JSONObject oFiles = new JSONObject();
+        for (Map.Entry<String, Value> oEntry : oPart.mapFile.entrySet()) {
+          Value oValue = oEntry.getValue();
+          JSONObject oStore = new JSONObject();
+          oStore.put("mtime", Long.toHexString(oValue.lMtime));
+          oStore.put("length", Long.toHexString(oValue.lLength));
+          oStore.put("meta", oValue.oMeta);
+          oFiles.put(oEntry.getKey(), oStore);
+        }
+        JSONObject oIndex = new JSONObject();
+        oIndex.put("files", oFiles);
+        File fIndex = oCache.getFile(oPart.fDir, INDEX_NAME);
+        File fTemp = new File(fIndex.getPath() + ".tmp");
+        Json.write(oIndex, fTemp);
+        try {
+          Files.move(fTemp.toPath(), fIndex.toPath(),
+                  StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+          Files.move(fTemp.toPath(), fIndex.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        oPart.iUnsaved = 0;
+        lWrites.incrementAndGet();
+      } catch (Exception ex) {
+        errHandle.DoError("CorpusMetaIndex: could not save " + oPart.fDir, ex, CorpusMetaIndex.class);
+      }
+    }
+  }
+
+  /**
+   * stop
+   *    Write all parts that have changed
+   */
+  public void stop() {
+    for (Part oPart : mapPart.values()) save(oPart);
+  }
+
+  /**
+   * getStats
+   *    Statistics of this index (for /serverinfo)
+   *
+   * @return
+   */
+  public DataObjectMapElement getStats() {
+    DataObjectMapElement oStats = new DataObjectMapElement();
+    int iTexts = 0;
+    for (Part oPart : mapPart.values()) {
+      synchronized (oPart) { iTexts += oPart.mapFile.size(); }
+    }
+    oStats.put("parts", mapPart.size());
+    oStats.put("texts", iTexts);
+    oStats.put("hits", lHits.get());
+    oStats.put("misses", lMisses.get());
+    oStats.put("loads", lLoads.get());
+    oStats.put("writes", lWrites.get());
+    return oStats;
+  }
+
+  /**
+   * getParser
+   *    Make a parser that can read the metadata of text @sFile
+   *    (a parser must not be used by more than one thread at a time)
+   *
+   * @param sFile
+   * @return        the parser, or null if the kind of text is unknown
+   */
+  Parse getParser(String sFile) {
+    // We need to have an (empty) corpus research project to continue...
+    CorpusResearchProject crpThis = new CorpusResearchProject(true);
+    // And the one thing that needs to be set in the project is the type
+    if (sFile.endsWith(".folia.xml") || sFile.endsWith(".folia.xml.gz")) {
+      crpThis.setForType(XmlForest.ForType.FoliaIndex);
+      crpThis.setTextExt(ProjType.ProjFolia);
+    } else if (sFile.endsWith(".psdx") || sFile.endsWith(".psdx.gz")) {
+      crpThis.setForType(XmlForest.ForType.PsdxIndex);
+      crpThis.setTextExt(ProjType.ProjPsdx);
+    } else {
+      errHandle.DoError("CorpusMetaIndex: unknown file extension in [" + sFile + "]");
+      return null;
+    }
+    return new Parse(crpThis, this.errHandle);
+  }
+
+  // ================ Private methods ==========================================
+  /**
+   * load
+   *    Read the index of @oPart from disk (if it is there)
+   *
+   * @param oPart
+   */
+  private void load(Part oPart) {
+    try {
+      File fIndex = oCache.getFile(oPart.fDir, INDEX_NAME);
+      if (!fIndex.exists()) return;
+      JSONObject oFiles = Json.read(fIndex).getJSONObject("files");
+      Iterator keys = oFiles.keys();
+      while (keys.hasNext()) {
+        String sFile = keys.next().toString();
+        JSONObject oStore = oFiles.getJSONObject(sFile);
+        oPart.mapFile.put(sFile, new Value(Long.parseLong(oStore.getString("mtime"), 16),
+                Long.parseLong(oStore.getString("length"), 16), oStore.getJSONObject("meta")));
+      }
+      lLoads.incrementAndGet();
+    } catch (Exception ex) {
+      errHandle.DoError("CorpusMetaIndex: could not load " + oPart.fDir, ex, CorpusMetaIndex.class);
+    }
+  }
+}
@@ -0,0 +1,593 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.FileUtil;
+import nl.ru.util.json.JSONObject;
+
+/**
+ * CrpCatalog
+ *    The users, their CRPs ("<user>/*.crpx") and their result databases
+ *    ("<user>/dbase/*.xml") under the project base directory, kept in memory.
+ *    The directories are read once, on first use. After that a WatchService
+ *    keeps the catalog up to date, and the request handlers that write or
+ *    remove such files tell the catalog directly ([refresh]), so that their
+ *    next request already sees the change.
+ *    Should a directory not be watchable, then the directories of a user
+ *    are read again whenever that user is asked for.
+ *
+ * @author Erwin R. Komen
+ */
+public class CrpCatalog {
+  // ================ Constants ================================================
+  private static final String DBASE_DIR = "dbase";
+  private static final String CRP_EXT = ".crpx";
+  private static final String DB_EXT = ".xml";
+  // ================ Local variables ==========================================
+  private final ErrHandle errHandle;                   // The error handler we are using
+  private final String sUserPath;                      // Where the users are stored
+  private final boolean bWatch;                        // Keep the catalog current with a WatchService
+  private volatile ConcurrentMap<String, User> mapUser = new ConcurrentHashMap<>();
+  private volatile boolean bReady = false;             // The directories have been read
+  private volatile boolean bWatched = true;            // All directories are being watched
+  private final ConcurrentMap<WatchKey, Watched> mapKey = new ConcurrentHashMap<>();
+  private WatchService oWatcher = null;
+  private Thread thrWatch = null;                      // Handles the events of [oWatcher]
+  // ================ Statistics ===============================================
+  private final AtomicLong lQueries = new AtomicLong();
+  private final AtomicLong lBuilds = new AtomicLong();
+  private final AtomicLong lEvents = new AtomicLong();
+  private final AtomicLong lRefreshes = new AtomicLong();
+  private final AtomicLong lDiskFound = new AtomicLong();
+
+  /**
+   * Entry - one CRP or result database
+   *    The language and part of a database are filled in by the caller the
+   *    first time they are needed (they come from the header of the database)
+   */
+  public static class Entry {
+    public final String sUser;      // The user it belongs to
+    public final String sName;      // File name, e.g. "abc.crpx"
+    public final String sFile;      // Full path
+    public final long lSize;        // Size in bytes
+    public final long lMtime;       // Modification time
+    volatile String sLng = null;    // Language (databases only)
+    volatile String sPart = null;   // Part (databases only)
+    Entry(String sUser, String sName, String sFile, long lSize, long lMtime) {
+      this.sUser = sUser; this.sName = sName; this.sFile = sFile; this.lSize = lSize; this.lMtime = lMtime;
+    }
+    public String getLng() { return sLng; }
+    public String getPart() { return sPart; }
+    /**
+     * setLanguage
+     *    Keep the language and part of this database version
+     *
+     * @param sLng
+     * @param sPart
+     */
+    public void setLanguage(String sLng, String sPart) {
+      this.sPart = sPart;
+      this.sLng = sLng;
+    }
+  }
+
+  /**
+   * User - the CRPs and databases of one user, sorted by name
+   */
+  private static class User {
+    final String sName;
+    final Path pDir;
+    final ConcurrentSkipListMap<String, Entry> mapCrp = new ConcurrentSkipListMap<>();
+    final ConcurrentSkipListMap<String, Entry> mapDb = new ConcurrentSkipListMap<>();
+    User(String sName, Path pDir) { this.sName = sName; this.pDir = pDir; }
+  }
+
+  /**
+   * Watched - a directory that is being watched: the project base (null
+   *    user), the directory of a user, or its "dbase" directory
+   */
+  private static class Watched {
+    final String sUser;
+    final boolean bDbase;
+    final Path pDir;
+    Watched(String sUser, boolean bDbase, Path pDir) {
+      this.sUser = sUser; this.bDbase = bDbase; this.pDir = pDir;
+    }
+  }
+
+  // ================ Class initialisation =====================================
+  /**
+   * CrpCatalog
+   *    Create an (empty) catalog, taking its settings from the "catalog"
+   *    section within the "performance" part of the configuration
+   *
+   * @param sProjectBase  - directory with one sub directory per user
+   * @param oConfig       - server configuration (may be null)
+   * @param errHandle     - error handler
+   */
+  public CrpCatalog(String sProjectBase, JSONObject oConfig, ErrHandle errHandle) {
+    boolean bDoWatch = true;
+
+    this.errHandle = errHandle;
+    this.sUserPath = FileUtil.nameNormalize(sProjectBase);
+    try {
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("catalog")) {
+          JSONObject oCatalog = oPerf.getJSONObject("catalog");
+          if (oCatalog.has("watch")) bDoWatch = oCatalog.getBoolean("watch");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("CrpCatalog: could not read configuration", ex, CrpCatalog.class);
+    }
+    this.bWatch = bDoWatch;
+  }
+
+  /**
+   * getCrps
+   *    Get the CRPs of user @sUserId (or of all users if that is empty) whose
+   *    name matches the glob pattern @sPattern (e.g. "*.crpx")
+   *
+   * @param sUserId
+   * @param sPattern
+   * @return          the entries, sorted by user and name
+   */
+  public List<Entry> getCrps(String sUserId, String sPattern) {
+    return getList(sUserId, sPattern, false);
+  }
+
+  /**
+   * getDbs
+   *    Get the result databases of user @sUserId (or of all users if that is
+   *    empty) whose name matches the glob pattern @sPattern (e.g. "*.xml")
+   *
+   * @param sUserId
+   * @param sPattern
+   * @return          the entries, sorted by user and name
+   */
+  public List<Entry> getDbs(String sUserId, String sPattern) {
+    return getList(sUserId, sPattern, true);
+  }
+
+  /**
+   * exists
+   *    True if the CRP or database @sFile (a full path) exists. Files that
+   *    are not a CRP or database of a user are looked for on disk
+   *
+   * @param sFile
+   * @return
+   */
+  public boolean exists(String sFile) {
+    try {
+      lQueries.incrementAndGet();
+      String[] arWhere = locate(sFile);
+      if (arWhere == null) return new File(sFile).exists();
+      User oUser = getUser(arWhere[0]);
+      if (oUser != null && ((arWhere[1] == null) ? oUser.mapCrp.containsKey(arWhere[2]) :
+              oUser.mapDb.containsKey(arWhere[2]))) return true;
+      // The watcher may not have reported the file yet: only disk can tell it is absent
+      if (!new File(sFile).isFile()) return false;
+      lDiskFound.incrementAndGet();
+      refresh(sFile);
+      return true;
+    } catch (Exception ex) {
+      errHandle.DoError("CrpCatalog/exists failed", ex, CrpCatalog.class);
+      return new File(sFile).exists();
+    }
+  }
+
+  /**
+   * refresh
+   *    The CRP or database @sFile (a full path) has been written or removed
+   *    by us: bring its entry up to date right away
+   *
+   * @param sFile
+   */
+  public void refresh(String sFile) {
+    try {
+      String[] arWhere = locate(sFile);
+      if (arWhere == null) return;
+      // Wait for a build that is going on, so that its new map gets the change
+      synchronized (this) {
+        if (!bReady) return;
+        lRefreshes.incrementAndGet();
+        User oUser = mapUser.get(arWhere[0]);
+        if (oUser == null) {
+          // A new user: read all of its directories
+          addUser(mapUser, Paths.get(sUserPath).resolve(arWhere[0]));
+          return;
+        }
+        Path pDir = (arWhere[1] == null) ? oUser.pDir : oUser.pDir.resolve(DBASE_DIR);
+        update(oUser, arWhere[1] != null, pDir.resolve(arWhere[2]));
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("CrpCatalog/refresh failed", ex, CrpCatalog.class);
+    }
+  }
+
+  /**
+   * stop
+   *    Stop watching the directories
+   */
+  public synchronized void stop() {
+    try {
+      if (oWatcher != null) oWatcher.close();
+      oWatcher = null;
+      thrWatch = null;
+      mapKey.clear();
+      mapUser = new ConcurrentHashMap<>();
+      bReady = false;
+    } catch (Exception ex) {
+      errHandle.DoError("CrpCatalog/stop: ", ex, CrpCatalog.class);
+    }
+  }
+
+  /**
+   * getStats
+   *    Statistics of the catalog (for /serverinfo)
+   *
+   * @return
+   */
+  public DataObjectMapElement getStats() {
+    DataObjectMapElement oStats = new DataObjectMapElement();
+    int iCrps = 0;
+    int iDbs = 0;
+    for (User oUser : mapUser.values()) {
+      iCrps += oUser.mapCrp.size();
+      iDbs += oUser.mapDb.size();
+    }
+    oStats.put("users", mapUser.size());
+    oStats.put("crps", iCrps);
+    oStats.put("dbases", iDbs);
+    oStats.put("watched", bWatched);
+    oStats.put("directories", mapKey.size());
+    oStats.put("queries", lQueries.get());
+    oStats.put("builds", lBuilds.get());
+    oStats.put("events", lEvents.get());
+    oStats.put("refreshes", lRefreshes.get());
+    oStats.put("diskFound", lDiskFound.get());
+    return oStats;
+  }
+
+  // ================ Private methods ==========================================
+  /**
+   * getList
+   *    Get the CRPs (or databases if @bDbase) of user @sUserId (or of all
+   *    users) matching @sPattern
+   *
+   * @param sUserId
+   * @param sPattern
+   * @param bDbase
+   * @return
+   */
+  private List<Entry> getList(String sUserId, String sPattern, boolean bDbase) {
+    List<Entry> lBack = new ArrayList<>();
+    try {
+      lQueries.incrementAndGet();
+      List<User> lUser = new ArrayList<>();
+      if (sUserId.isEmpty()) {
+        // Without a complete watch, all users are read again
+        if (!bWatched) bReady = false;
+        ensureReady();
+        lUser.addAll(new ConcurrentSkipListMap<>(mapUser).values());
+      } else {
+        User oUser = getUser(sUserId);
+        if (oUser != null) lUser.add(oUser);
+      }
+      // A name without wildcards can be looked up directly
+      boolean bGlob = (sPattern.indexOf('*') >= 0 || sPattern.indexOf('?') >= 0 ||
+              sPattern.indexOf('[') >= 0 || sPattern.indexOf('{') >= 0);
+      PathMatcher oMatch = (bGlob) ? FileSystems.getDefault().getPathMatcher("glob:" + sPattern) : null;
+      for (User oUser : lUser) {
+        ConcurrentSkipListMap<String, Entry> mapEntry = (bDbase) ? oUser.mapDb : oUser.mapCrp;
+        if (!bGlob) {
+          Entry oEntry = mapEntry.get(sPattern);
+          if (oEntry == null) oEntry = findOnDisk(oUser, bDbase, sPattern);
+          if (oEntry != null) lBack.add(oEntry);
+          continue;
+        }
+        for (Entry oEntry : mapEntry.values()) {
+          if (oMatch.matches(Paths.get(oEntry.sName))) lBack.add(oEntry);
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("CrpCatalog/getList failed", ex, CrpCatalog.class);
+    }
+    return lBack;
+  }
+
+  /**
+   * getUser
+   *    Get user @sUserId from the catalog (reading its directories again if
+   *    they cannot be watched)
+   *
+   * @param sUserId
+   * @return          the user, or null if there is no such user
+   */
+  private User getUser(String sUserId) {
+    ensureReady();
+    if (!bWatched) {
+      Path pDir = Paths.get(sUserPath).resolve(sUserId);
+      if (!Files.isDirectory(pDir)) {
+        mapUser.remove(sUserId);
+        return null;
+      }
+      return addUser(mapUser, pDir);
+    }
+    return mapUser.get(sUserId);
+  }
+
+  /**
+   * findOnDisk
+   *    Look on disk for the CRP (or database if @bDbase) @sName of @oUser
+   *    that is not in the catalog: the watcher may not have reported it yet
+   *
+   * @param oUser
+   * @param bDbase
+   * @param sName
+   * @return          the entry, or null if there is no such file
+   */
+  private Entry findOnDisk(User oUser, boolean bDbase, String sName) {
+    if (!sName.endsWith((bDbase) ? DB_EXT : CRP_EXT) || sName.indexOf('/') >= 0 ||
+            sName.indexOf('\\') >= 0) return null;
+    File fThis = ((bDbase) ? oUser.pDir.resolve(DBASE_DIR) : oUser.pDir).resolve(sName).toFile();
+    if (!fThis.isFile()) return null;
+    lDiskFound.incrementAndGet();
+    refresh(fThis.getPath());
+    return new Entry(oUser.sName, sName, fThis.getPath(), fThis.length(), fThis.lastModified());
+  }
+
+  /**
+   * ensureReady
+   *    Read all directories if that has not been done (or must be done again)
+   */
+  private void ensureReady() {
+    if (bReady) return;
+    synchronized (this) {
+      if (bReady) return;
+      try {
+        lBuilds.incrementAndGet();
+        bWatched = bWatch;
+        if (sUserPath.isEmpty()) { bReady = true; return; }
+        Path pBase = Paths.get(sUserPath);
+        if (bWatched) watch(null, false, pBase);
+        // Build a new map, so that lookups can continue with the old one meanwhile.
+        // Changes reported meanwhile wait for this lock, and then go to the new map
+        ConcurrentMap<String, User> mapNew = new ConcurrentHashMap<>();
+        try (DirectoryStream<Path> streamUser = Files.newDirectoryStream(pBase)) {
+          for (Path pathUser : streamUser) {
+            if (Files.isDirectory(pathUser)) addUser(mapNew, pathUser);
+          }
+        }
+        mapUser = mapNew;
+        bReady = true;
+      } catch (Exception ex) {
+        errHandle.DoError("CrpCatalog: could not read " + sUserPath, ex, CrpCatalog.class);
+        // Users will be read from disk when asked for
+        bWatched = false;
+        bReady = true;
+      }
+    }
+  }
+
+  /**
+   * addUser
+   *    Read the CRPs and databases of the user in @pDir into @mapTarget
+   *
+   * @param mapTarget
+   * @param pDir
+   * @return
+   */
+  private User addUser(ConcurrentMap<String, User> mapTarget, Path pDir) {
+    String sName = pDir.getFileName().toString();
+    User oUser = new User(sName, pDir);
+    try {
+      if (bWatched) watch(sName, false, pDir);
+      readDir(oUser.mapCrp, sName, pDir, CRP_EXT);
+      Path pDbase = pDir.resolve(DBASE_DIR);
+      if (Files.isDirectory(pDbase)) {
+        if (bWatched) watch(sName, true, pDbase);
+        readDir(oUser.mapDb, sName, pDbase, DB_EXT);
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("CrpCatalog: could not read user " + pDir, ex, CrpCatalog.class);
+    }
+    // Keep what we knew of the language of databases that did not change
+    User oOld = mapTarget.put(sName, oUser);
+    if (oOld != null) {
+      for (Entry oEntry : oUser.mapDb.values()) {
+        Entry oPrev = oOld.mapDb.get(oEntry.sName);
+        if (oPrev != null && oPrev.lMtime == oEntry.lMtime && oPrev.lSize == oEntry.lSize)
+          oEntry.setLanguage(oPrev.sLng, oPrev.sPart);
+      }
+    }
+    return oUser;
+  }
+
+  private static void readDir(ConcurrentSkipListMap<String, Entry> mapEntry, String sUser,
+          Path pDir, String sExt) throws IOException {
+    try (DirectoryStream<Path> streamFile = Files.newDirectoryStream(pDir, "*" + sExt)) {
+      for (Path pathFile : streamFile) {
+        File fThis = pathFile.toFile();
+        if (!fThis.isFile()) continue;
+        String sName = pathFile.getFileName().toString();
+        mapEntry.put(sName, new Entry(sUser, sName, pathFile.toString(), fThis.length(), fThis.lastModified()));
+      }
+    }
+  }
+
+  /**
+   * update
+   *    Bring the entry of @pFile (a CRP or, if @bDbase, a database) of
+   *    @oUser up to date with what is on disk
+   *
+   * @param oUser
+   * @param bDbase
+   * @param pFile
+   */
+  private void update(User oUser, boolean bDbase, Path pFile) {
+    String sName = pFile.getFileName().toString();
+    if (!sName.endsWith((bDbase) ? DB_EXT : CRP_EXT)) return;
+    ConcurrentSkipListMap<String, Entry> mapEntry = (bDbase) ? oUser.mapDb : oUser.mapCrp;
+    File fThis = pFile.toFile();
+    if (!fThis.isFile()) {
+      mapEntry.remove(sName);
+      return;
+    }
+    Entry oNew = new Entry(oUser.sName, sName, pFile.toString(), fThis.length(), fThis.lastModified());
+    Entry oOld = mapEntry.get(sName);
+    if (oOld != null && oOld.lMtime == oNew.lMtime && oOld.lSize == oNew.lSize) return;
+    mapEntry.put(sName, oNew);
+  }
+
+  /**
+   * locate
+   *    Find out which file @sFile is within the project base
+   *
+   * @param sFile
+   * @return        [user, "dbase" or null, file name], or null if @sFile is
+   *                not a CRP or database of a user
+   */
+  private String[] locate(String sFile) {
+    if (sUserPath.isEmpty()) return null;
+    Path pBase = Paths.get(sUserPath).toAbsolutePath().normalize();
+    Path pFile = Paths.get(sFile).toAbsolutePath().normalize();
+    if (!pFile.startsWith(pBase)) return null;
+    Path pRel = pBase.relativize(pFile);
+    String sName = pFile.getFileName().toString();
+    if (pRel.getNameCount() == 2 && sName.endsWith(CRP_EXT))
+      return new String[]{pRel.getName(0).toString(), null, sName};
+    if (pRel.getNameCount() == 3 && pRel.getName(1).toString().equals(DBASE_DIR) &&
+            sName.endsWith(DB_EXT))
+      return new String[]{pRel.getName(0).toString(), DBASE_DIR, sName};
+    return null;
+  }
+
+  /**
+   * watch
+   *    Register directory @pDir with the watch service
+   *
+   * @param sUser   - the user of the directory (null for the project base)
+   * @param bDbase  - this is the "dbase" directory of the user
+   * @param pDir
+   */
+  private synchronized void watch(String sUser, boolean bDbase, Path pDir) {
+    try {
+      if (oWatcher == null) {
+        oWatcher = FileSystems.getDefault().newWatchService();
+        final WatchService oService = oWatcher;
+        thrWatch = new Thread(new Runnable() {
+          @Override
+          public void run() { processEvents(oService); }
+        }, "crpp-catalogwatcher");
+        thrWatch.setDaemon(true);
+        thrWatch.start();
+      }
+      WatchKey oKey = pDir.register(oWatcher, StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+      mapKey.put(oKey, new Watched(sUser, bDbase, pDir));
+    } catch (Exception ex) {
+      // E.g. too many directories: the catalog can no longer rely on events alone
+      bWatched = false;
+      errHandle.debug("CrpCatalog: cannot watch " + pDir + ": " + ex.getMessage());
+    }
+  }
+
+  /**
+   * processEvents
+   *    Keep the catalog up to date with the changes reported by @oService
+   *
+   * @param oService
+   */
+  private void processEvents(WatchService oService) {
+    try {
+      while (true) {
+        WatchKey oKey = oService.take();
+        Watched oWatched = mapKey.get(oKey);
+        if (oWatched != null) {
+          for (WatchEvent<?> oEvent : oKey.pollEvents()) {
+            lEvents.incrementAndGet();
+            // Not while the directories are being read (see [ensureReady])
+            synchronized (this) {
+              processEvent(oWatched, oEvent);
+            }
+          }
+        }
+        // A key that is no longer valid belongs to a directory that is gone
+        if (!oKey.reset()) mapKey.remove(oKey);
+      }
+    } catch (ClosedWatchServiceException | InterruptedException ex) {
+      // The catalog has been stopped
+    }
+  }
+
+  /**
+   * processEvent
+   *    Process one change in the directory @oWatched
+   *
+   * @param oWatched
+   * @param oEvent
+   */
+  private void processEvent(Watched oWatched, WatchEvent<?> oEvent) {
+    try {
+      if (oEvent.kind() == StandardWatchEventKinds.OVERFLOW) {
+        // Events have been lost: read everything again on next use
+        bReady = false;
+        return;
+      }
+      Path pThis = oWatched.pDir.resolve((Path) oEvent.context());
+      if (oWatched.sUser == null) {
+        // A user directory has been added or removed
+        String sName = pThis.getFileName().toString();
+        if (Files.isDirectory(pThis))
+          addUser(mapUser, pThis);
+        else if (oEvent.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+          mapUser.remove(sName);
+        return;
+      }
+      User oUser = mapUser.get(oWatched.sUser);
+      if (oUser == null) return;
+      if (!oWatched.bDbase && pThis.getFileName().toString().equals(DBASE_DIR)) {
+        // The "dbase" directory of the user has been made (or removed)
+        if (oEvent.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+          addUser(mapUser, oUser.pDir);
+        } else if (oEvent.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+          oUser.mapDb.clear();
+        }
+        return;
+      }
+      update(oUser, oWatched.bDbase, pThis);
+    } catch (Exception ex) {
+      errHandle.DoError("CrpCatalog/processEvent failed", ex, CrpCatalog.class);
+      // Make sure the catalog is not left behind
+      bReady = false;
+    }
+  }
+}
@@ -8,17 +8,12 @@
 package nl.ru.crpx.server.crp;
 
 import java.io.File;
-import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayDeque;
-import java.util.ArrayList;
-import java.util.Deque;
 import java.util.Iterator;
-import java.util.List;
+import java.util.concurrent.Callable;
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
@@ -39,8 +34,6 @@ import nl.ru.util.json.JSONArray;
 import nl.ru.util.json.JSONObject;
 import nl.ru.xmltools.Parse;
 import nl.ru.xmltools.XmlAccess;
-import nl.ru.xmltools.XmlAccessFolia;
-import nl.ru.xmltools.XmlAccessPsdx;
 import nl.ru.xmltools.XmlDocument;
 import nl.ru.xmltools.XmlForest;
 import nl.ru.xmltools.XmlIndexRaReader;
@@ -60,11 +53,26 @@ public class CrpManager {
   protected static final String loc_path_Result = "./descendant-or-self::Result[1]";
   protected static final String loc_path_General = "./descendant-or-self::General[1]";
   // ================ Static variables =========================================
-  static List<CrpUser> loc_crpUserList; // List of CrpUser elements
+  static CrpUserCache loc_crpUserCache;  // Cache of CrpUser elements
+  static UserSettingsStore loc_userSettings; // The settings.json of each user, in memory
+  static HitsFileCache loc_hitsCache;   // Parsed .hits files of all projects
+  static XmlAccessPool loc_xmlAccessPool; // Open XmlAccess handles to corpus files
+  static CorpusFileIndex loc_corpusFiles; // Where each file of a corpus (part) is located
+  static GroupNameCache loc_groupNames; // Group names of files per grouping Xquery
+  static XQueryCache loc_xqCache;       // Compiled ad-hoc Xqueries
+  static KwicSidecar loc_kwicSidecar;   // KWIC lines of result databases
+  static CorpusMetaIndex loc_metaIndex; // Metadata of the texts per corpus part
+  static ResultViewCache loc_resultViews; // Sorted and filtered result databases
+  static ResultColumnStore loc_resultColumns; // Columnar form of result databases
+  static TextListScanner loc_textLists; // Keeps the textlist-*.json files up to date
+  static TextLineIndex loc_textLines;   // Paged access to the surface text of texts
+  static CrpCatalog loc_catalog;        // Users with their CRPs and databases
   static int loc_id;                    // the Id of each CrpUser element
   static CrpPserver servlet;            // My own link to the search manager
   private Processor objSaxon;           // NOTE: this was 'static'
   private DocumentBuilder objSaxDoc;    // NOTE: this was 'static'
+  private CorpusResearchProject crpSentPsdx = null;   // (Empty) project for /txt on psdx
+  private CorpusResearchProject crpSentFolia = null;  // (Empty) project for /txt on folia
   // ================ Class initialisation =====================================
   public CrpManager(CrpPserver servlet, ErrHandle errHandle) {
     // Initialize the id
@@ -77,8 +85,35 @@ public class CrpManager {
     this.objSaxon = new Processor(false);
     // Create a document builder
     this.objSaxDoc = this.objSaxon.newDocumentBuilder();
-    // Initialise the list
-    loc_crpUserList = new ArrayList<>();
+    // Initialise the cache of loaded projects
+    loc_crpUserCache = new CrpUserCache(servlet.getConfig(), errHandle);
+    // Initialise the in-memory user settings
+    loc_userSettings = new UserSettingsStore(sProjectBase, servlet.getConfig(), errHandle);
+    // Initialise the cache of parsed .hits files
+    loc_hitsCache = new HitsFileCache(servlet.getConfig(), errHandle);
+    // Initialise the pool of XmlAccess handles
+    loc_xmlAccessPool = new XmlAccessPool(servlet.getConfig(), errHandle);
+    // Initialise the (lazily built) index of corpus files
+    loc_corpusFiles = new CorpusFileIndex(servlet.getConfig(), errHandle);
+    // Initialise the (persistent) group names of files
+    loc_groupNames = new GroupNameCache(sProjectBase, servlet.getConfig(), errHandle);
+    // Initialise the cache of compiled Xqueries
+    loc_xqCache = new XQueryCache(servlet.getConfig(), errHandle);
+    // Initialise the (background) maker of KWIC sidecars
+    loc_kwicSidecar = new KwicSidecar(servlet, this, errHandle);
+    // Initialise the (persistent) metadata of corpus texts, kept outside the corpus directories
+    CorpusCache oCorpusCache = new CorpusCache(sCorpusBase, servlet.getConfig(), errHandle);
+    loc_metaIndex = new CorpusMetaIndex(sCorpusBase, oCorpusCache, servlet.getConfig(), errHandle);
+    // Initialise the cache of prepared result databases
+    loc_resultViews = new ResultViewCache(servlet.getConfig(), errHandle);
+    // Initialise the columnar form of result databases
+    loc_resultColumns = new ResultColumnStore(servlet.getConfig(), errHandle);
+    // Initialise the (incremental) maker of text lists
+    loc_textLists = new TextListScanner(loc_metaIndex, servlet.getConfig(), errHandle);
+    // Initialise the line indices of surface texts
+    loc_textLines = new TextLineIndex(oCorpusCache, errHandle);
+    // Initialise the (watched) catalog of CRPs and databases
+    loc_catalog = new CrpCatalog(sProjectBase, servlet.getConfig(), errHandle);
   }
   
   /**
@@ -102,19 +137,48 @@ public class CrpManager {
           sProjectPath += ".crpx";
         }
       }
-      // Create a file handle to it
-      File fPrj = new File(sProjectPath);
-      if (!fPrj.exists()) {
+      // Look it up in the catalog
+      boolean bExists = loc_catalog.exists(sProjectPath);
+      if (!bExists) {
           errHandle.debug("existsCrp: cannot find project at: " + sProjectPath);
       }
       // Return the existence of this file
-      return fPrj.exists();
+      return bExists;
     } catch (Exception ex) {
       errHandle.DoError("Problem in existsCrp", ex, CrpManager.class);
       return false;
     }
   }
   
+  /**
+   * existsDb
+   *    True if the result database with the indicated name exists for that user
+   * 
+   * @param sDbName
+   * @param sUserId
+   * @return 
+   */
+  public boolean existsDb(String sDbName, String sUserId) {
+    try {
+      String sDbPath = sDbName;
+      
+      // Set the database path straight
+      if (!sDbPath.contains("/")) {
+        String sProjStart = (sProjectBase.endsWith("/")) ? sProjectBase :
+                sProjectBase + "/";
+        sDbPath = FileUtil.nameNormalize(sProjStart + sUserId + "/dbase/" + sDbPath);
+        if (!sDbPath.endsWith(".xml")) {
+          sDbPath += ".xml";
+        }
+      }
+      // Look it up in the catalog
+      return loc_catalog.exists(sDbPath);
+    } catch (Exception ex) {
+      errHandle.DoError("Problem in existsDb", ex, CrpManager.class);
+      return false;
+    }
+  }
+  
   /**
    * getCrpUser
    * Either create a new CrpUser object, or get an already existing one
@@ -125,53 +189,63 @@ public class CrpManager {
    * @return 
    */
   public CrpUser getCrpUser(String sProjectName, String sUserId, String sAction) {
-    int iIndex = -1;  // Index where we find the object
-    
     try {
       // Make sure anything is set without the .crpx extension
       if (sProjectName.endsWith(".crpx")) sProjectName = sProjectName.replace(".crpx", "");
-      // Check if this combination already exists in the list
-      for (Iterator<CrpUser> iter = loc_crpUserList.listIterator(); iter.hasNext();) {
-        // for (CrpUser oCrpUser : loc_crpUserList) {
-        CrpUser oCrpUser = iter.next();
-        // Check if this has the correct project name, language index and user id
-        if (oCrpUser.prjName.equals(sProjectName) && oCrpUser.userId.equals(sUserId)) {
-          // Look at the action
-          if (sAction.equals("load-nocache")) {
-            // Remove the entry
-            iter.remove();
-            // Now exit the loop
-            break;
-          } else {
-            errHandle.debug("getCrpUser - reusing: [" + sProjectName + 
+      // Look at the action
+      switch (sAction) {
+        case "load-nocache":
+          // Remove any cached entry, and then load it anew
+          if (loc_crpUserCache.remove(sProjectName, sUserId)) {
+            errHandle.debug("getCrpUser - not using cache: [" + sProjectName + 
                     ", " + sUserId + "]", CrpManager.class);
-            // Return this object
-            return oCrpUser;
           }
-        }
-      } 
-      if (sAction.equals("load-nocache")) { sAction = "load"; }
-      // Getting here means that we need to create a new entry
-      CrpUser oNewCrpUser = new CrpUser(servlet, sProjectName, sAction, sUserId, errHandle);
-      // Have we succeeded?
-      if (errHandle.bInterrupt || errHandle.hasErr()) {
-        // There have been errors
-        errHandle.bInterrupt = true;
-        return null;
+          sAction = "load";
+          break;
+        case "create":
+          // A newly created project replaces any cached one
+          loc_crpUserCache.remove(sProjectName, sUserId);
+          break;
       }
-      // Add this to the list
-      loc_crpUserList.add(oNewCrpUser);
-      String sChanged = DateUtil.dateToString(oNewCrpUser.prjThis.getDateChanged());
-      errHandle.debug("getCrpUser - adding: [" + sProjectName + 
-              ", " + sUserId + ", " + sChanged + "]", CrpManager.class);
-      // Return this newly created one
-      return oNewCrpUser;
+      // Get the entry from the cache, or have it loaded (only once per key)
+      final String sPrjName = sProjectName;
+      final String sUser = sUserId;
+      final String sAct = sAction;
+      CrpUser oCrpUser = loc_crpUserCache.get(sProjectName, sUserId, new Callable<CrpUser>() {
+        @Override
+        public CrpUser call() {
+          // Getting here means that we need to create a new entry
+          CrpUser oNewCrpUser = new CrpUser(servlet, sPrjName, sAct, sUser, errHandle);
+          // Have we succeeded?
+          if (errHandle.bInterrupt || errHandle.hasErr()) {
+            // There have been errors
+            errHandle.bInterrupt = true;
+            return null;
+          }
+          String sChanged = DateUtil.dateToString(oNewCrpUser.prjThis.getDateChanged());
+          errHandle.debug("getCrpUser - adding: [" + sPrjName + 
+                  ", " + sUser + ", " + sChanged + "]", CrpManager.class);
+          return oNewCrpUser;
+        }
+      });
+      // Return what we found or created
+      return oCrpUser;
     } catch (Exception ex) {
       errHandle.DoError("Could not load or retrieve CRP", ex, CrpManager.class);
       return null;
     }
   }
   
+  /**
+   * getCrpCacheStats
+   *    Provide the hit/miss/eviction statistics of the CRP cache
+   * 
+   * @return 
+   */
+  public DataObjectMapElement getCrpCacheStats() {
+    return loc_crpUserCache.getStats();
+  }
+  
   /**
    * getCrp
    * Retrieve (or load) the CRP belonging to the indicated project name, language and user
@@ -260,34 +334,152 @@ public class CrpManager {
    * @return 
    */
   public JSONObject getUserSettings(String sUserId) {
-    JSONObject oSettings ;
     try {
-      String sFile = FileUtil.nameNormalize(sProjectBase+sUserId+"/settings.json");
-      File fSettings = new File(sFile);
-      // Check existence
-      if (!fSettings.exists()) {
-        // Create a default one
-        oSettings = new JSONObject();
-        oSettings.put("userid", sUserId);
-        oSettings.put("links", new JSONArray());
-        oSettings.put("dbases", new JSONArray());
-        // Write the default settings
-        setUserSettings(sUserId, oSettings);
-      }
-      // Double check existence (should have been created in the previous step)
-      if (fSettings.exists()) {
-        // Read the contents
-        oSettings = new JSONObject((new FileUtil()).readFile(fSettings));
-        // Return what we found
-        return oSettings;
-      } else {
-        return null;
+      // The settings are kept in memory; return a copy
+      synchronized (loc_userSettings.getLock(sUserId)) {
+        JSONObject oSettings = loc_userSettings.get(sUserId);
+        return (oSettings == null) ? null : new JSONObject(oSettings.toString());
       }
     } catch (Exception ex) {
       errHandle.DoError("Could not load user settings", ex, CrpManager.class);
       return null;
     }
   }
+
+  /**
+   * getUserSettingsETag
+   *    Version of the user's settings (changes whenever they are changed)
+   * 
+   * @param sUserId
+   * @return 
+   */
+  public String getUserSettingsETag(String sUserId) {
+    return loc_userSettings.getETag(sUserId);
+  }
+  /**
+   * getSettingsStats
+   *    Statistics of the in-memory user settings
+   * 
+   * @return 
+   */
+  public DataObjectMapElement getSettingsStats() {
+    return loc_userSettings.getStats();
+  }
+  /**
+   * getHitsCache
+   *    The process-wide cache of parsed .hits files
+   * 
+   * @return 
+   */
+  public HitsFileCache getHitsCache() {
+    return loc_hitsCache;
+  }
+  /**
+   * getXmlAccessPool
+   *    The process-wide pool of open XmlAccess handles
+   * 
+   * @return 
+   */
+  public XmlAccessPool getXmlAccessPool() {
+    return loc_xmlAccessPool;
+  }
+  /**
+   * getCorpusFileIndex
+   *    The process-wide index from file name to location within the corpora
+   * 
+   * @return 
+   */
+  public CorpusFileIndex getCorpusFileIndex() {
+    return loc_corpusFiles;
+  }
+  /**
+   * getGroupNameCache
+   *    The group names that grouping Xqueries give to corpus files
+   * 
+   * @return 
+   */
+  public GroupNameCache getGroupNameCache() {
+    return loc_groupNames;
+  }
+  /**
+   * getXQueryCache
+   *    The compiled ad-hoc Xqueries (e.g. for grouping)
+   * 
+   * @return 
+   */
+  public XQueryCache getXQueryCache() {
+    return loc_xqCache;
+  }
+  /**
+   * getKwicSidecar
+   *    The precomputed KWIC lines of result databases
+   * 
+   * @return 
+   */
+  public KwicSidecar getKwicSidecar() {
+    return loc_kwicSidecar;
+  }
+  /**
+   * getMetaIndex
+   *    The metadata of the texts of each corpus part
+   * 
+   * @return 
+   */
+  public CorpusMetaIndex getMetaIndex() {
+    return loc_metaIndex;
+  }
+  /**
+   * getResultViewCache
+   *    The prepared (sorted and filtered) result databases
+   * 
+   * @return 
+   */
+  public ResultViewCache getResultViewCache() {
+    return loc_resultViews;
+  }
+  /**
+   * getResultColumnStore
+   *    The columnar form of result databases
+   * 
+   * @return 
+   */
+  public ResultColumnStore getResultColumnStore() {
+    return loc_resultColumns;
+  }
+  /**
+   * getTextListScanner
+   *    The maker of the textlist-*.json files of corpus parts
+   * 
+   * @return 
+   */
+  public TextListScanner getTextListScanner() {
+    return loc_textLists;
+  }
+  /**
+   * getTextLineIndex
+   *    Paged access to the surface text of corpus texts
+   * 
+   * @return 
+   */
+  public TextLineIndex getTextLineIndex() {
+    return loc_textLines;
+  }
+  /**
+   * getCatalog
+   *    The catalog of the CRPs and result databases of all users
+   * 
+   * @return 
+   */
+  public CrpCatalog getCatalog() {
+    return loc_catalog;
+  }
+  /**
+   * stopUserSettings
+   *    Write any pending changes of the user settings to disk
+   */
+  public void stopUserSettings() {
+    loc_userSettings.stop();
+  }
   /**
    * getUserSettingsObject
    *    Read the user's "settings.json", if it is available
@@ -301,13 +493,10 @@ public class CrpManager {
       // Default initialisations
       DataObjectList arLinksList = new DataObjectList("links");
       DataObjectList arDbaseList = new DataObjectList("dbases");
-      // Try get settings file
-      String sFile = FileUtil.nameNormalize(sProjectBase+sUserId+"/settings.json");
-      File fSettings = new File(sFile);
+      // Get (a copy of) the settings from memory
+      JSONObject oJsonSet = getUserSettings(sUserId);
       // Check existence
-      if (fSettings.exists()) {
-        // Read the settings as JSON object
-        JSONObject oJsonSet = new JSONObject((new FileUtil()).readFile(fSettings));
+      if (oJsonSet != null) {
         // Copy known key/value pairs
         Iterator keys = oJsonSet.keys();
         while (keys.hasNext()) {
@@ -395,14 +584,13 @@ public class CrpManager {
     try {
       // Validate
       if (sUserId.isEmpty() || oSettings == null) return;
-      String sFile = FileUtil.nameNormalize(sProjectBase+sUserId+"/settings.json");
-      File fSettings = new File(sFile);
-      // Save the settings
-      FileUtil.writeFile(fSettings, oSettings.toString(1));
+      // Keep the settings; they are saved shortly
+      loc_userSettings.put(sUserId, oSettings);
     } catch (Exception ex) {
       errHandle.DoError("Could not set user settings", ex, CrpManager.class);
     }
   }
+
   /**
    * addUserSettings
    *    Add a key/value pair to the user settings
@@ -413,17 +601,20 @@ public class CrpManager {
    */
   public void addUserSettings(String sUserId, String sKey, String sValue) {
     try {
-      // Read the current settings
-      JSONObject oSettings = getUserSettings(sUserId);
-      // Validate
-      if (oSettings==null) {
-        errHandle.DoError("Could not add to user settings");
-        return;
+      // Read and change the settings of this user without interference
+      synchronized (loc_userSettings.getLock(sUserId)) {
+        // Get the current settings
+        JSONObject oSettings = loc_userSettings.get(sUserId);
+        // Validate
+        if (oSettings==null) {
+          errHandle.DoError("Could not add to user settings");
+          return;
+        }
+        // Add the key/value pair
+        oSettings.put(sKey, sValue);
+        // The adapted settings will be saved
+        loc_userSettings.changed(sUserId);
       }
-      // Add the key/value pair
-      oSettings.put(sKey, sValue);
-      // Save the adapted settings
-      setUserSettings(sUserId, oSettings);
     } catch (Exception ex) {
       errHandle.DoError("Could not add to user settings", ex, CrpManager.class);
     }
@@ -441,39 +632,42 @@ public class CrpManager {
     JSONArray arDbases; // Array of dbase objects
     
     try {
-      // Read the current settings
-      JSONObject oSettings = getUserSettings(sUserId);
-      // Validate
-      if (oSettings==null) {
-        errHandle.DoError("Could not add to user settings");
-        return;
-      }
-      // Get the JSON databases array
-      if (oSettings.has("dbases")) 
-        arDbases = oSettings.getJSONArray("dbases");
-      else
-        arDbases = new JSONArray();
+      // Read and change the settings of this user without interference
+      synchronized (loc_userSettings.getLock(sUserId)) {
+        // Get the current settings
+        JSONObject oSettings = loc_userSettings.get(sUserId);
+        // Validate
+        if (oSettings==null) {
+          errHandle.DoError("Could not add to user settings");
+          return;
+        }
+        // Get the JSON databases array
+        if (oSettings.has("dbases")) 
+          arDbases = oSettings.getJSONArray("dbases");
+        else
+          arDbases = new JSONArray();
       
-      // Find the correct entry
-      for (int i=0;i<arDbases.length();i++) {
-        JSONObject oDbase = arDbases.getJSONObject(i);
-        if (oDbase.getString("dbase").equals(sDbName)) {
-          // CHeck which information should be updated
-          if (oUpdate.has("lng"))   oDbase.put("lng",   oUpdate.getString("lng"));
-          if (oUpdate.has("dir"))   oDbase.put("dir",   oUpdate.getString("dir"));
-          if (oUpdate.has("sort"))  oDbase.put("sort",  oUpdate.getString("sort"));
-          if (oUpdate.has("start")) oDbase.put("start", oUpdate.getInt("start"));
-          if (oUpdate.has("count")) oDbase.put("count", oUpdate.getInt("count"));
-          if (oUpdate.has("columns")) oDbase.put("columns", oUpdate.getJSONArray("columns"));
-          // Replace it
-          arDbases.put(i, oDbase);
-          break;
+        // Find the correct entry
+        for (int i=0;i<arDbases.length();i++) {
+          JSONObject oDbase = arDbases.getJSONObject(i);
+          if (oDbase.getString("dbase").equals(sDbName)) {
+            // CHeck which information should be updated
+            if (oUpdate.has("lng"))   oDbase.put("lng",   oUpdate.getString("lng"));
+            if (oUpdate.has("dir"))   oDbase.put("dir",   oUpdate.getString("dir"));
+            if (oUpdate.has("sort"))  oDbase.put("sort",  oUpdate.getString("sort"));
+            if (oUpdate.has("start")) oDbase.put("start", oUpdate.getInt("start"));
+            if (oUpdate.has("count")) oDbase.put("count", oUpdate.getInt("count"));
+            if (oUpdate.has("columns")) oDbase.put("columns", oUpdate.getJSONArray("columns"));
+            // Replace it
+            arDbases.put(i, oDbase);
+            break;
+          }
         }
+        // Add or replace the information
+        oSettings.put("dbases", arDbases);
+        // The adapted settings will be saved
+        loc_userSettings.changed(sUserId);
       }
-      // Add or replace the information
-      oSettings.put("dbases", arDbases);
-      // Save the adapted settings
-      setUserSettings(sUserId, oSettings);
     } catch (Exception ex) {
       errHandle.DoError("Could not add to user settings", ex, CrpManager.class);
     }
@@ -492,47 +686,50 @@ public class CrpManager {
     JSONArray arDbases; // Array of dbase objects
     
     try {
-      // Read the current settings
-      JSONObject oSettings = getUserSettings(sUserId);
-      // Validate
-      if (oSettings==null) {
-        errHandle.DoError("Could not add to user settings");
-        return;
-      }
-      // Get the JSON databases array
-      if (oSettings.has("dbases")) 
-        arDbases = oSettings.getJSONArray("dbases");
-      else
-        arDbases = new JSONArray();
+      // Read and change the settings of this user without interference
+      synchronized (loc_userSettings.getLock(sUserId)) {
+        // Get the current settings
+        JSONObject oSettings = loc_userSettings.get(sUserId);
+        // Validate
+        if (oSettings==null) {
+          errHandle.DoError("Could not add to user settings");
+          return;
+        }
+        // Get the JSON databases array
+        if (oSettings.has("dbases")) 
+          arDbases = oSettings.getJSONArray("dbases");
+        else
+          arDbases = new JSONArray();
       
-      // Does the link exist already?
-      boolean bExists = false;
-      JSONObject oDbase = null;
-      for (int i=0;i<arDbases.length();i++) {
-        oDbase = arDbases.getJSONObject(i);
-        if (oDbase.getString("dbase").equals(sDbName)) {
-          bExists = true;
-          // Adapt the information
+        // Does the link exist already?
+        boolean bExists = false;
+        JSONObject oDbase = null;
+        for (int i=0;i<arDbases.length();i++) {
+          oDbase = arDbases.getJSONObject(i);
+          if (oDbase.getString("dbase").equals(sDbName)) {
+            bExists = true;
+            // Adapt the information
+            oDbase.put("lng", sLng);
+            oDbase.put("dir", sDir);
+            // Replace it
+            arDbases.put(i, oDbase);
+            break;
+          }
+        }
+        // Do we have it?
+        if (!bExists) {
+          // Add the link
+          oDbase = new JSONObject();
+          oDbase.put("dbase", sDbName);
           oDbase.put("lng", sLng);
           oDbase.put("dir", sDir);
-          // Replace it
-          arDbases.put(i, oDbase);
-          break;
+          arDbases.put(oDbase);
         }
+        // Add or replace the information
+        oSettings.put("dbases", arDbases);
+        // The adapted settings will be saved
+        loc_userSettings.changed(sUserId);
       }
-      // Do we have it?
-      if (!bExists) {
-        // Add the link
-        oDbase = new JSONObject();
-        oDbase.put("dbase", sDbName);
-        oDbase.put("lng", sLng);
-        oDbase.put("dir", sDir);
-        arDbases.put(oDbase);
-      }
-      // Add or replace the information
-      oSettings.put("dbases", arDbases);
-      // Save the adapted settings
-      setUserSettings(sUserId, oSettings);
     } catch (Exception ex) {
       errHandle.DoError("Could not add to user settings", ex, CrpManager.class);
     }
@@ -549,47 +746,50 @@ public class CrpManager {
   public void addUserSettingsCrpLng(String sUserId, String sCrpName, 
           String sLng, String sDir) {
     try {
-      // Read the current settings
-      JSONObject oSettings = getUserSettings(sUserId);
-      // Validate
-      if (oSettings==null) {
-        errHandle.DoError("Could not add to user settings");
-        return;
-      }
-      // Get the JSON linking array
-      JSONArray arLinks = oSettings.getJSONArray("links");
-      // Does the link exist already?
-      boolean bExists = false;
-      JSONObject oLink = null;
-      for (int i=0;i<arLinks.length();i++) {
-        oLink = arLinks.getJSONObject(i);
-        if (oLink.getString("crp").equals(sCrpName)) {
-          bExists = true;
-          // Adapt the information
+      // Read and change the settings of this user without interference
+      synchronized (loc_userSettings.getLock(sUserId)) {
+        // Get the current settings
+        JSONObject oSettings = loc_userSettings.get(sUserId);
+        // Validate
+        if (oSettings==null) {
+          errHandle.DoError("Could not add to user settings");
+          return;
+        }
+        // Get the JSON linking array
+        JSONArray arLinks = oSettings.getJSONArray("links");
+        // Does the link exist already?
+        boolean bExists = false;
+        JSONObject oLink = null;
+        for (int i=0;i<arLinks.length();i++) {
+          oLink = arLinks.getJSONObject(i);
+          if (oLink.getString("crp").equals(sCrpName)) {
+            bExists = true;
+            // Adapt the information
+            oLink.put("lng", sLng);
+            oLink.put("dir", sDir);
+            // Replace it
+            arLinks.put(i, oLink);
+            break;
+          }
+        }
+        // Do we have it?
+        if (!bExists) {
+          // Add the link
+          oLink = new JSONObject();
+          oLink.put("crp", sCrpName);
           oLink.put("lng", sLng);
           oLink.put("dir", sDir);
-          // Replace it
-          arLinks.put(i, oLink);
-          break;
+          oLink.put("sort", "");
+          oLink.put("start", 0);
+          oLink.put("count", 0);
+          oLink.put("columns", new JSONArray());
+          arLinks.put(oLink);
         }
+        // Add or replace the information
+        oSettings.put("links", arLinks);
+        // The adapted settings will be saved
+        loc_userSettings.changed(sUserId);
       }
-      // Do we have it?
-      if (!bExists) {
-        // Add the link
-        oLink = new JSONObject();
-        oLink.put("crp", sCrpName);
-        oLink.put("lng", sLng);
-        oLink.put("dir", sDir);
-        oLink.put("sort", "");
-        oLink.put("start", 0);
-        oLink.put("count", 0);
-        oLink.put("columns", new JSONArray());
-        arLinks.put(oLink);
-      }
-      // Add or replace the information
-      oSettings.put("links", arLinks);
-      // Save the adapted settings
-      setUserSettings(sUserId, oSettings);
     } catch (Exception ex) {
       errHandle.DoError("Could not add to user settings", ex, CrpManager.class);
     }
@@ -605,26 +805,29 @@ public class CrpManager {
    */
   public JSONObject getUserLinkCrp(String sUserId, String sCrpName) {
     try {
-            // Read the current settings
-      JSONObject oSettings = getUserSettings(sUserId);
-      // Validate
-      if (oSettings==null) {
-        errHandle.DoError("Could not add to user settings");
-        return null;
-      }
-      // Get the JSON linking array
-      JSONArray arLinks = oSettings.getJSONArray("links");
-      // Does the link exist?
-      JSONObject oLink = null;
-      for (int i=0;i<arLinks.length();i++) {
-        oLink = arLinks.getJSONObject(i);
-        if (oLink.getString("crp").equals(sCrpName)) {
-          // Return the link object
-          return oLink;
+      // Read and change the settings of this user without interference
+      synchronized (loc_userSettings.getLock(sUserId)) {
+        // Get the current settings
+        JSONObject oSettings = loc_userSettings.get(sUserId);
+        // Validate
+        if (oSettings==null) {
+          errHandle.DoError("Could not add to user settings");
+          return null;
+        }
+        // Get the JSON linking array
+        JSONArray arLinks = oSettings.getJSONArray("links");
+        // Does the link exist?
+        JSONObject oLink = null;
+        for (int i=0;i<arLinks.length();i++) {
+          oLink = arLinks.getJSONObject(i);
+          if (oLink.getString("crp").equals(sCrpName)) {
+            // Return a copy of the link object
+            return new JSONObject(oLink.toString());
+          }
         }
+        // Getting here means: no result
+        return null;
       }
-      // Getting here means: no result
-      return null;
     } catch (Exception ex) {
       errHandle.DoError("Could not get user link crp info", ex, CrpManager.class);
       return null;
@@ -642,29 +845,32 @@ public class CrpManager {
   public JSONObject getUserLinkDb(String sUserId, String sDbName) {
     JSONArray arDbases;
     try {
-      // Read the current settings
-      JSONObject oSettings = getUserSettings(sUserId);
-      // Validate
-      if (oSettings==null) {
-        errHandle.DoError("Could not get user settings");
-        return null;
-      }
-      // Get the JSON linking array for databases
-      if (oSettings.has("dbases"))
-        arDbases = oSettings.getJSONArray("dbases");
-      else
-        arDbases = new JSONArray();
-      // Does the database link exist?
-      JSONObject oDbase = null;
-      for (int i=0;i<arDbases.length();i++) {
-        oDbase = arDbases.getJSONObject(i);
-        if (oDbase.getString("dbase").equals(sDbName)) {
-          // Return the link object
-          return oDbase;
+      // Read and change the settings of this user without interference
+      synchronized (loc_userSettings.getLock(sUserId)) {
+        // Get the current settings
+        JSONObject oSettings = loc_userSettings.get(sUserId);
+        // Validate
+        if (oSettings==null) {
+          errHandle.DoError("Could not get user settings");
+          return null;
         }
+        // Get the JSON linking array for databases
+        if (oSettings.has("dbases"))
+          arDbases = oSettings.getJSONArray("dbases");
+        else
+          arDbases = new JSONArray();
+        // Does the database link exist?
+        JSONObject oDbase = null;
+        for (int i=0;i<arDbases.length();i++) {
+          oDbase = arDbases.getJSONObject(i);
+          if (oDbase.getString("dbase").equals(sDbName)) {
+            // Return a copy of the link object
+            return new JSONObject(oDbase.toString());
+          }
+        }
+        // Getting here means: no result
+        return null;
       }
-      // Getting here means: no result
-      return null;
     } catch (Exception ex) {
       errHandle.DoError("Could not get user link dbase info", ex, CrpManager.class);
       return null;
@@ -683,73 +889,48 @@ public class CrpManager {
     return getCrpList(sUserId, sFilter, "*.crpx");
   }
   public DataObject getCrpList(String sUserId, String sFilter, String sFileName) {
-    String sUserPath;     // Where the users are stored
-    List<String> lUsers;  // List of crpx
     int iCrpId = 0;       // Identifier of CRP on the list
     
     try {
       // Create a list to reply
       DataObjectList arList = new DataObjectList("crplist");
       
-      // Get a path to the users
-      sUserPath = FileUtil.nameNormalize(sProjectBase);
-      if (sUserPath.isEmpty()) return arList;
-      // Initialise
-      lUsers = new ArrayList<>();
-      Path dir = Paths.get(sUserPath);
-      // Get all the items inside "dir"
-      try(DirectoryStream<Path> streamUser = Files.newDirectoryStream(dir)) {
-        // Walk all these items
-        for (Path pathUser : streamUser) {
-          // Add the directory to the list of users
-          lUsers.add(pathUser.toAbsolutePath().toString());
-          // Get the user
-          String sUser = pathUser.getFileName().toString();
-          // Is this the user we are looking for?
-          if (sUserId.isEmpty() || sUser.equals(sUserId)) {
-            // Get all the CRP files in the user's directory
-            DirectoryStream<Path> streamCrp = Files.newDirectoryStream(pathUser, sFileName);
-            for (Path pathCrp : streamCrp) {
-              // Get the name of this crp
-              String sCrp = pathCrp.getFileName().toString();
-              // Check its status
-              boolean bLoaded = hasCrpUser(sCrp, sUser);
-              boolean bInclude;
-              switch (sFilter) {
-                case "loaded":
-                  bInclude = bLoaded; break;
-                case "not loaded": case "notloaded":
-                  bInclude = !bLoaded; break;
-                default:
-                  bInclude = true; break;
-              }
-              if (bInclude) {
-                // Okay, create a reply object
-                DataObjectMapElement oData = new DataObjectMapElement();
-                iCrpId++;
-                oData.put("CrpId", iCrpId);
-                oData.put("userid", sUser);
-                oData.put("crp", sCrp);
-                oData.put("loaded", bLoaded);
-                oData.put("size", pathCrp.toFile().length() );
-                String sCrpPath = pathCrp.toString();
-                oData.put("file", sCrpPath);
-                // Get any lng/dir info
-                JSONObject oLink = getUserLinkCrp(sUserId, sCrp);
-                if (oLink != null) {
-                  // Add the lng and dir info
-                  oData.put("lng", oLink.getString("lng"));
-                  oData.put("dir", oLink.getString("dir"));
-                }
-                // Include the object here
-                arList.add(oData);
-                // lSorted.add(oData);
-              }
-            }
+      // Walk all the CRP files of the user(s) in the catalog
+      for (CrpCatalog.Entry oCrp : loc_catalog.getCrps(sUserId, sFileName)) {
+        // Get the name of this crp
+        String sCrp = oCrp.sName;
+        String sUser = oCrp.sUser;
+        // Check its status
+        boolean bLoaded = hasCrpUser(sCrp, sUser);
+        boolean bInclude;
+        switch (sFilter) {
+          case "loaded":
+            bInclude = bLoaded; break;
+          case "not loaded": case "notloaded":
+            bInclude = !bLoaded; break;
+          default:
+            bInclude = true; break;
+        }
+        if (bInclude) {
+          // Okay, create a reply object
+          DataObjectMapElement oData = new DataObjectMapElement();
+          iCrpId++;
+          oData.put("CrpId", iCrpId);
+          oData.put("userid", sUser);
+          oData.put("crp", sCrp);
+          oData.put("loaded", bLoaded);
+          oData.put("size", oCrp.lSize );
+          oData.put("file", oCrp.sFile);
+          // Get any lng/dir info
+          JSONObject oLink = getUserLinkCrp(sUserId, sCrp);
+          if (oLink != null) {
+            // Add the lng and dir info
+            oData.put("lng", oLink.getString("lng"));
+            oData.put("dir", oLink.getString("dir"));
           }
+          // Include the object here
+          arList.add(oData);
         }
-      } catch(IOException ex) {
-        errHandle.DoError("Could not get a list of CRP-User objects", ex, CrpManager.class);
       }
       // Sort the result
       arList.sort("crp");
@@ -796,26 +977,25 @@ public class CrpManager {
       sFileName = sTextName;
       // Determine file name
       if (!sFileName.endsWith(sExtFind)) sFileName += sExtFind;
-       // We need to have an (empty) corpus research project to continue...
-      CorpusResearchProject crpThis = new CorpusResearchProject(true);
+      // We need to have an (empty) corpus research project to continue...
+      // (the same one each time, so that pooled XML handles can be reused)
+      CorpusResearchProject crpThis = getSentCrp(sExtType);
+      if (crpThis == null)
+        return DataObject.errorObject("INTERNAL_ERROR", 
+                "/txt - getText: unknown extension type ["+sExtType+"]");
       // Initialize access to ANY document associated with this CRP
       // NOTE: the Saxon processor must be taken from the [crpThis]
       XmlDocument pdxThis = new XmlDocument(crpThis);
       // Get the directory where corpus files must be found
       String sCrpLngDir = servlet.getSearchManager().getCorpusPartDir(sLng, sPart);
       // Construct the target file name
-      String sOneSrcFilePart = FileUtil.findFileInDirectory(sCrpLngDir, sFileName);
-      // If this returns nothing then try adding .gz
-      if (sOneSrcFilePart.isEmpty()) {
-        sOneSrcFilePart = FileUtil.findFileInDirectory(sCrpLngDir, sFileName + ".gz");
-      }
+      // (If this file is not there, then try adding .gz)
+      String sOneSrcFilePart = loc_corpusFiles.findText(sCrpLngDir, sFileName);
       
-      // And the one thing that needs to be set in the project is the type
+      // Open the file according to its type
       switch (sExtType) {
         case "psdx":
-          crpThis.setForType(XmlForest.ForType.PsdxIndex);
-          crpThis.setTextExt(ProjType.ProjPsdx);
-          objXmlAcc = new XmlAccessPsdx(crpThis, pdxThis, sOneSrcFilePart);
+          objXmlAcc = loc_xmlAccessPool.acquire(crpThis, pdxThis, ProjType.ProjPsdx, sOneSrcFilePart);
           // Get the top node if that is needed
           if (sLocw.isEmpty()) {
             XmlNode ndxTop = objXmlAcc.getTopNode(sLocs);
@@ -823,9 +1003,7 @@ public class CrpManager {
           }
           break;
         case "folia":
-          crpThis.setForType(XmlForest.ForType.FoliaIndex);
-          crpThis.setTextExt(ProjType.ProjFolia);
-          objXmlAcc = new XmlAccessFolia(crpThis, pdxThis, sOneSrcFilePart);
+          objXmlAcc = loc_xmlAccessPool.acquire(crpThis, pdxThis, ProjType.ProjFolia, sOneSrcFilePart);
           // Get the top node if that is needed
           if (sLocw.isEmpty()) {
             XmlNode ndxTop = objXmlAcc.getTopNode(sLocs);
@@ -897,38 +1075,56 @@ public class CrpManager {
     } catch (Exception ex) {
       return DataObject.errorObject("INTERNAL_ERROR", 
               "/txt - getText error: ["+ex.getMessage()+"]");
+    } finally {
+      // Give the XML access back to the pool, so that it can be reused
+      loc_xmlAccessPool.release(objXmlAcc);
+    }
+  }
+  
+  /**
+   * getSentCrp
+   *    The (empty) corpus research project used by getSentInfo for texts of
+   *    type [sExtType]: the one thing that is set in it is the type
+   * 
+   * @param sExtType
+   * @return          the project, or null for an unknown type
+   */
+  private synchronized CorpusResearchProject getSentCrp(String sExtType) {
+    switch (sExtType) {
+      case "psdx":
+        if (crpSentPsdx == null) {
+          crpSentPsdx = new CorpusResearchProject(true);
+          crpSentPsdx.setForType(XmlForest.ForType.PsdxIndex);
+          crpSentPsdx.setTextExt(ProjType.ProjPsdx);
+        }
+        return crpSentPsdx;
+      case "folia":
+        if (crpSentFolia == null) {
+          crpSentFolia = new CorpusResearchProject(true);
+          crpSentFolia.setForType(XmlForest.ForType.FoliaIndex);
+          crpSentFolia.setTextExt(ProjType.ProjFolia);
+        }
+        return crpSentFolia;
+      default:
+        return null;
     }
   }
   
+  /**
+   * getMetaInfo
+   *    Get the metadata of text [sFileName] in part [sPart] of corpus [sLng]
+   *    from the metadata index (which reads the text only if needed)
+   * 
+   * @param sLng
+   * @param sPart
+   * @param sFileName
+   * @return 
+   */
   public JSONObject getMetaInfo(String sLng, String sPart, String sFileName) {
-    String sExtType = "";
     String sFile = "";
     boolean bCalcPath = false;
     
     try {
-      // We need to have an (empty) corpus research project to continue...
-      CorpusResearchProject crpThis = new CorpusResearchProject(true);
-      // Determine the file extension
-      if (sFileName.endsWith(".folia.xml")) {
-        sExtType = "folia";
-      } else if (sFileName.endsWith(".psdx")) {
-        sExtType = "psdx";
-      }
-      // And the one thing that needs to be set in the project is the type
-      switch (sExtType) {
-        case "psdx":
-          crpThis.setForType(XmlForest.ForType.PsdxIndex);
-          crpThis.setTextExt(ProjType.ProjPsdx);
-          break;
-        case "folia":
-          crpThis.setForType(XmlForest.ForType.FoliaIndex);
-          crpThis.setTextExt(ProjType.ProjFolia);
-          break;
-        default:
-        errHandle.DoError("getMetaInfo: unknown file extension in ["+sFileName+"]");
-          return null;
-      }
-
       if (bCalcPath) {
         // Find out where the file is located
         // Get the directory from where to search
@@ -939,7 +1135,7 @@ public class CrpManager {
           pRoot =Paths.get(FileUtil.findFileInDirectory(pRoot.toString(), sPart));
         }
         // And then WITHIN this path, we need to get the specified file name
-        Path pFile =Paths.get(FileUtil.findFileInDirectory(pRoot.toString(), sFileName));
+        Path pFile =Paths.get(loc_corpusFiles.find(pRoot.toString(), sFileName));
         sFile = pFile.toString();
 
         // Validate what gets returned
@@ -951,16 +1147,46 @@ public class CrpManager {
         sFile = sFileName;
       }
       
-      // Get a Parse object
-      Parse prsThis = new Parse(crpThis, this.errHandle);
-      JSONObject oMetaInfo = prsThis.getMetaInfo(sFile);
-      return oMetaInfo;
+      // Get the metadata from the index
+      return loc_metaIndex.get(sLng, sPart, sFile);
     } catch (Exception ex) {
       errHandle.DoError("getMetaInfo", ex, CrpManager.class);
       return null;
     }
   }
 
+  /**
+   * getTextFile
+   *    Locate the file of the text called [sTextName], without reading it
+   * 
+   * @param sLng
+   * @param sPart
+   * @param sExtType
+   * @param sTextName
+   * @return          the file, or null if it cannot be found
+   */
+  public File getTextFile(String sLng, String sPart, String sExtType, String sTextName) {
+    try {
+      // Validate
+      if (sTextName.isEmpty() || sExtType.isEmpty()) return null;
+      // Get the extension type correctly
+      String sExtFind = CorpusResearchProject.getTextExt(sExtType);  
+      String sFileName = sTextName;
+      // Determine file name
+      if (!sFileName.endsWith(sExtFind)) sFileName += sExtFind;
+      // Get the directory where corpus files must be found
+      String sCrpLngDir = servlet.getSearchManager().getCorpusPartDir(sLng, sPart);
+      // Look for the file or else its .gz variant
+      String sFound = loc_corpusFiles.findText(sCrpLngDir, sFileName);
+      if (sFound.isEmpty()) return null;
+      File fText = new File(sFound);
+      return (fText.exists()) ? fText : null;
+    } catch (Exception ex) {
+      errHandle.DoError("getTextFile failed", ex, CrpManager.class);
+      return null;
+    }
+  }
+  
   /**
    * getText
    *    REtrieve the text called [sTextName] and return it as a DataObject
@@ -969,12 +1195,30 @@ public class CrpManager {
    * @param sPart
    * @param sExtType
    * @param sTextName
-   * @param iStart      - Starting sentence
-   * @param iPageSize   - Number of sentences to fetch
+   * @param iStart      - Starting sentence (from zero)
+   * @param iPageSize   - Number of sentences to fetch (zero: all sentences)
    * @return 
    */
   public DataObject getText(String sLng, String sPart, String sExtType, 
           String sTextName, int iStart, int iPageSize) {
+    return getText(sLng, sPart, sExtType, sTextName, null, iStart, iPageSize);
+  }
+  /**
+   * getText
+   *    Idem, for a text whose file [fText] has been located already (with
+   *    getTextFile), so that it need not be looked for again
+   * 
+   * @param sLng
+   * @param sPart
+   * @param sExtType
+   * @param sTextName
+   * @param fText       - the file of the text (null: look for it)
+   * @param iStart      - Starting sentence (from zero)
+   * @param iPageSize   - Number of sentences to fetch (zero: all sentences)
+   * @return 
+   */
+  public DataObject getText(String sLng, String sPart, String sExtType, 
+          String sTextName, File fText, int iStart, int iPageSize) {
     String sExtFind = "";         // The actual extension we need to find
     String sFileName = "";        // The xml FILE containing the text
     String sFileJson = "";        // THe zipped json file containing the surface text
@@ -1039,11 +1283,14 @@ public class CrpManager {
       }*/
       
       // And then WITHIN this path, we need to get the specified file name
-      Path pFile =Paths.get(FileUtil.findFileInDirectory(pRoot.toString(), sFileName));
-      // Validate what gets returned
-      if (pFile.toString().isEmpty() || !Files.exists(pFile)) {
+      Path pFile = (fText == null) ? Paths.get(loc_corpusFiles.find(pRoot.toString(), sFileName)) : 
+              fText.toPath();
+      if (fText != null && fText.getName().endsWith(sExtFind + ".gz")) {
+        // The caller has found the .gz variant
+        sExtFind += ".gz";
+      } else if (pFile.toString().isEmpty() || !Files.exists(pFile)) {
         // Alternative try find .gz variant of FileName
-        pFile =Paths.get(FileUtil.findFileInDirectory(pRoot.toString(), sFileName+".gz"));
+        pFile =Paths.get(loc_corpusFiles.find(pRoot.toString(), sFileName+".gz"));
         if (pFile.toString().isEmpty() || !Files.exists(pFile)) {
           return DataObject.errorObject("INTERNAL_ERROR", 
                   "/txt - getText: cannot find text in ["+sFileName+"]");
@@ -1056,24 +1303,33 @@ public class CrpManager {
       // ==========================
       
       // Also try and find the JSON file
-      Path pJson =Paths.get(FileUtil.findFileInDirectory(pRoot.toString(), sFileJson));
+      Path pJson =Paths.get(loc_corpusFiles.find(pRoot.toString(), sFileJson));
       if (!pJson.toString().isEmpty() && Files.exists(pJson)) {
-        // THere is a zipped JSON file: read and unzip it
-        oText = new JSONObject(FileUtil.decompressGzipString(pJson.toString()));
+        // Read the requested lines through the line index
+        oText = loc_textLines.getPage(pJson.toFile(), iStart, iPageSize);
+        if (oText == null) {
+          // There is no (up to date) line index: read and unzip the JSON file
+          JSONObject oAll = new JSONObject(FileUtil.decompressGzipString(pJson.toString()));
+          // Make the line index, so that this is not needed next time
+          loc_textLines.write(pJson.toFile(), oAll);
+          oText = TextLineIndex.cutPage(oAll, iStart, iPageSize);
+        }
       } else {
         // Create the correct path for the JSON
         pJson = Paths.get(pFile.toAbsolutePath().toString().replace(sExtFind, sExtJsonZip));
         // ================= DEBUG ==
         if (bDebug) this.errHandle.debug("crpManager/getText: start making JSON at: "+pJson.toString());
         // ==========================
-        // TODO: create the [oText]
-        oText  = prsThis.getSurfaceText(pFile.toAbsolutePath().toString(), iStart, iPageSize);
+        // Create the JSON of the whole text; paging is done on what is stored
+        JSONObject oAll  = prsThis.getSurfaceText(pFile.toAbsolutePath().toString(), 0, Integer.MAX_VALUE);
         // Save the oText compressed
-        if (oText != null) {
+        if (oAll != null) {
           // ================= DEBUG ==
           if (bDebug) this.errHandle.debug("crpManager/getText: compressing text to JSON at: "+pJson.toString());
           // ==========================
-          FileUtil.compressGzipString(oText.toString(2), pJson.toAbsolutePath().toString());
+          FileUtil.compressGzipString(oAll.toString(2), pJson.toAbsolutePath().toString());
+          loc_textLines.write(pJson.toFile(), oAll);
+          if (oAll.has("line")) oText = TextLineIndex.cutPage(oAll, iStart, iPageSize);
         }
       }
       // ================= DEBUG ==
@@ -1084,6 +1340,7 @@ public class CrpManager {
       if (oText != null && oText.has("count") && oText.has("line")) {
         // Seems to be valid
         oBack.put("count", oText.getInt("count"));
+        oBack.put("start", oText.getInt("start"));
         JSONArray arLine = oText.getJSONArray("line");
         DataObjectList doLine = new DataObjectList("line");
         for (int i=0;i<arLine.length();i++) {
@@ -1117,11 +1374,9 @@ public class CrpManager {
   }  
   public DataObject getTextList(String sLng, String sPart, String sExtType, String sSearch) {
     String sPartPath = "";  // Path to the Lng/Part
-    Deque<Path> stack = new ArrayDeque<>();
     JSONObject oTextList = null;
     DataObjectMapElement oBack = new DataObjectMapElement();
     String sExtFind = "";
-    int iTexts = 0;     // Total number of texts found
     
     try {
       // Make sure we look for what is needed
@@ -1144,9 +1399,6 @@ public class CrpManager {
           errHandle.DoError("getTextList: unknown extension type ["+sExtType+"]");
           return null;
       }
-      // Get a Parse object
-      Parse prsThis = new Parse(crpThis, this.errHandle);
-      
       // Get the directory from where to search
       Path pRoot = Paths.get(FileUtil.nameNormalize(sCorpusBase), sLng);
       // If [part] is specified, then we need to get a sub directory
@@ -1156,95 +1408,14 @@ public class CrpManager {
       }
       
       errHandle.debug("crpManager/getTextList is looking in dir: " + pRoot.toString());
+      // The metadata of the texts in this part
+      CorpusMetaIndex.Part oMetaPart = loc_metaIndex.getPart(sLng, sPart);
       
-      // Check to see if a file-list .json file already exists
+      // Get the file-list .json file, after bringing it up to date
       String sTextListName = (sExtType.isEmpty()) ? "textlist-all" : "textlist-" + sExtType;
       Path pJsonTextList = Paths.get(pRoot.toString(), sTextListName+".json");
-      if (!Files.exists(pJsonTextList)) {
-        // Create an array that will hold all
-        JSONArray arDir = new JSONArray();
-        // We need to have an idea of the file extensions that are possible
-        // (this is needed when sExtType or sExtFind is empty)
-        List<String> lExtList = CorpusResearchProject.getTextExtList();
-        // Start creating this list
-        stack.push(pRoot);
-        while (!stack.isEmpty()) {
-          // Get all the items inside "dir"
-          Path pThis = stack.pop();
-          try(DirectoryStream<Path> streamSub = Files.newDirectoryStream(pThis, sSearch)) {
-            // Create an object for this directory
-            JSONObject oDirContent = new JSONObject();
-            JSONArray arContent = new JSONArray();
-            int iDirCount = 0;
-            oDirContent.put("count", iDirCount);
-            oDirContent.put("path", pThis.toAbsolutePath().toString());
-            oDirContent.put("list", arContent);
-            // FInd the correct extension for this sub directory
-            String sExt;
-            // Walk all these items
-            for (Path pathSub : streamSub) {
-              if (Files.isDirectory(pathSub)) {
-                stack.push(pathSub);
-              } else {
-                String sFile = pathSub.getFileName().toString();
-                // Check if the file has an extension in the list of allowed ones
-                if (sExtType.isEmpty() || sExtFind.isEmpty()) 
-                  sExt = getExtensionInList(lExtList, sFile);
-                else
-                  sExt = (sFile.endsWith(sExtFind)) ? sExtFind : "";
-                if (!sExt.isEmpty()) {
-                  // We found a match -- get the complete path
-                  String sSubThis = pathSub.toAbsolutePath().toString();
-                  String sName = sFile.substring(0, sFile.length() - sExt.length());
-                  // Add this to the list
-                  JSONObject oFile = new JSONObject();
-                  oFile.put("name", sName);
-                  oFile.put("ext", sExt);
-                  // Get the metadata information from this file
-                  JSONObject oMeta = prsThis.getMetaInfo(sSubThis);
-                  // Add all the metadata to [oFile]
-                  Iterator keys = oMeta.keys();
-                  while (keys.hasNext()) {
-                    String sKey = keys.next().toString();
-                    switch(sKey) {
-                      case "size":
-                        oFile.put(sKey, oMeta.getInt(sKey));
-                        break;
-                      default:
-                        oFile.put(sKey, oMeta.getString(sKey));
-                        break;
-                    }
-                  }
-                  
-                  // Global text counter
-                  iTexts++;                  
-                  // Add this item to the array
-                  arContent.put(oFile);
-                  iDirCount++;
-                }
-              }
-            }
-            // CHeck if anything has been added in this directory
-            if (iDirCount > 0) {
-              // Then adapt this object
-              oDirContent.put("count", iDirCount);
-              oDirContent.put("list", arContent);
-              // Add this object to the list
-              arDir.put(oDirContent);
-            }
-          }
-        }
-        // Create a json object with the contents
-        JSONObject oTotal = new JSONObject();
-        oTotal.put("paths", arDir.length());
-        oTotal.put("texts", iTexts);
-        oTotal.put("list", arDir);
-        // Store this object into a file
-        Json.write(oTotal, pJsonTextList.toFile());
-        
-      }
-      // We now should have the correct file stored -- load it
-      oTextList = Json.read(pJsonTextList.toFile());
+      oTextList = loc_textLists.getTextList(pRoot, pJsonTextList.toFile(), sSearch, sExtFind, oMetaPart);
+      if (oTextList == null) return null;
       
       // Transform this list into a DataObject
       int iPaths = oTextList.getInt("paths");
@@ -1299,36 +1470,6 @@ public class CrpManager {
     }
   }
   
-  /**
-   * getExtensionInList -- 
-   *    Check if [sName] has an extension in the list [lExtList]
-   *    If this is so, then return that extension
-   *    Otherwise return ""
-   * 
-   * @param lExtList
-   * @param sName
-   * @return 
-   */
-  private String getExtensionInList(List<String> lExtList, String sName)  {
-    boolean bMatch = false;
-    String sFound = "";
-    
-    try {
-      // Check if the file extension matches
-      for (String sExt : lExtList) {
-        if (sName.endsWith(sExt)) {
-          bMatch = true; 
-          sFound = sExt;
-          break;
-        }
-      }   
-      return sFound;      
-    } catch (Exception ex) {
-      errHandle.DoError("Could not determine the extension", ex, CrpManager.class);
-      return sFound;
-    }
-  }
-  
   /**
    * getDbList -- get a list of the corpus research databases (.xml) for the
    *              indicated user
@@ -1340,8 +1481,6 @@ public class CrpManager {
     return getDbList(sUserId, "*.xml");
   }
   public DataObject getDbList(String sUserId, String sFileName) {
-    String sUserPath;     // Where the users are stored
-    List<String> lUsers;  // List of crpx
     
     try {
       // Adapt the filter [sFileName] if required
@@ -1356,72 +1495,50 @@ public class CrpManager {
       }
       // Create a list to reply
       DataObjectList arList = new DataObjectList("dblist");
-      // Get a path to the users
-      sUserPath = FileUtil.nameNormalize(sProjectBase);
-      if (sUserPath.isEmpty()) return arList;
-      // Initialise
-      lUsers = new ArrayList<>();
-      Path dir = Paths.get(sUserPath);
-      // Get all the items inside "dir"
-      try(DirectoryStream<Path> streamUser = Files.newDirectoryStream(dir)) {
-        // Walk all these items
-        for (Path pathUser : streamUser) {
-          // Add the directory to the list of users
-          lUsers.add(pathUser.toAbsolutePath().toString());
-          // Get the user
-          String sUser = pathUser.getFileName().toString();
-          // Is this the user we are looking for?
-          if (sUserId.isEmpty() || sUser.equals(sUserId)) {
-            // Get to the "dbase" directory of this user
-            String sUserDb = pathUser.toString() + "/dbase";
-            File fUserDb = new File(sUserDb);
-            // Does this file exist?
-            if (fUserDb.exists()) {
-              Path pathUserDb = fUserDb.toPath();
-              // Get all the Database .xml files in the user's directory
-              DirectoryStream<Path> streamDb = Files.newDirectoryStream(pathUserDb, sFileName);
-              for (Path pathDb : streamDb) {
-                // Get the name of this database
-                String sDbase = pathDb.getFileName().toString();
-                // Okay, create a reply object
-                DataObjectMapElement oData = new DataObjectMapElement();
-                oData.put("userid", sUser);
-                oData.put("dbase", sDbase);
-                String sDbPath = pathDb.toString();
-                oData.put("file", sDbPath);
-                // Get any lng/dir info
-                JSONObject oDbase = getUserLinkDb(sUserId, sDbase);
-                if (oDbase == null) {
-                  String sLng = "";
-                  String sDir = "";
-                  // Make sure the User/dbase combination is stored
-                  XmlNode ndxHeader = getDbaseHeader(pathDb.toString());
-                  if (ndxHeader != null) {
-                    XmlNode ndxLang = ndxHeader.SelectSingleNode("./descendant::Language");
-                    if (ndxLang != null) {
-                      sLng = ndxLang.getNodeValue();
-                    }
-                    XmlNode ndxDir = ndxHeader.SelectSingleNode("./descendant::Part");
-                    if (ndxDir != null) {
-                      sDir = ndxDir.getNodeValue();
-                    }
-                  }
-                  addUserSettingsDbLng(sUserId, sDbase, sLng, sDir);
-                  // Try get the link once more
-                  oDbase = getUserLinkDb(sUserId, sDbase);
-                } 
-                // Do we have some kind of linking information?
-                if (oDbase != null) {
-                  // Add the lng and dir info
-                  oData.put("lng", oDbase.getString("lng"));
-                  oData.put("dir", oDbase.getString("dir"));
-                }
-                // Include the object here
-                arList.add(oData);
-              }
+      // Walk all the Database .xml files of the user(s) in the catalog
+      for (CrpCatalog.Entry oDb : loc_catalog.getDbs(sUserId, sFileName)) {
+        // Get the name of this database
+        String sDbase = oDb.sName;
+        // Okay, create a reply object
+        DataObjectMapElement oData = new DataObjectMapElement();
+        oData.put("userid", oDb.sUser);
+        oData.put("dbase", sDbase);
+        oData.put("file", oDb.sFile);
+        // Get any lng/dir info
+        JSONObject oDbase = getUserLinkDb(sUserId, sDbase);
+        if (oDbase == null && oDb.getLng() == null) {
+          String sLng = "";
+          String sDir = "";
+          // Read the header (once for this version of the database)
+          XmlNode ndxHeader = getDbaseHeader(oDb.sFile);
+          if (ndxHeader != null) {
+            XmlNode ndxLang = ndxHeader.SelectSingleNode("./descendant::Language");
+            if (ndxLang != null) {
+              sLng = ndxLang.getNodeValue();
+            }
+            XmlNode ndxDir = ndxHeader.SelectSingleNode("./descendant::Part");
+            if (ndxDir != null) {
+              sDir = ndxDir.getNodeValue();
             }
           }
-        }        
+          oDb.setLanguage(sLng, sDir);
+          // Make sure the User/dbase combination is stored
+          addUserSettingsDbLng(sUserId, sDbase, sLng, sDir);
+          // Try get the link once more
+          oDbase = getUserLinkDb(sUserId, sDbase);
+        } 
+        // Do we have some kind of linking information?
+        if (oDbase != null) {
+          // Add the lng and dir info
+          oData.put("lng", oDbase.getString("lng"));
+          oData.put("dir", oDbase.getString("dir"));
+        } else if (oDb.getLng() != null) {
+          // Use what the header of the database says
+          oData.put("lng", oDb.getLng());
+          oData.put("dir", oDb.getPart());
+        }
+        // Include the object here
+        arList.add(oData);
       }
       
       // Sort the result
@@ -1498,19 +1615,8 @@ public class CrpManager {
    */
   public boolean hasCrpUser(String sProjectFile, String sUserId) {
     try {
-      // Walk the list
-      for (CrpUser oCrpUser : loc_crpUserList) {
-        // Does this belong to the indecated user?
-        if (sUserId.isEmpty() || sUserId.equals(oCrpUser.userId)) {
-          // Is this the correct project?
-          if (oCrpUser.prjName.equals(sProjectFile)) {
-            // Yes, return positively
-            return true;
-          }
-        }
-      }
-      // Failure
-      return false;
+      // Consult the cache (an empty user id matches any user)
+      return loc_crpUserCache.contains(sProjectFile, sUserId);
     } catch (Exception ex) {
       errHandle.DoError("Could not check existence of Crp/User combination", ex, CrpManager.class);
       return false;
@@ -1529,26 +1635,13 @@ public class CrpManager {
   public boolean removeCrpUser(String sProjectName, /* String sLngIndex, */ 
           String sUserId) {
     try {
-      // Check if this combination already exists in the list
-      for (CrpUser oCrpUser : loc_crpUserList) {
-        // Check if this has the correct project name, language index and user id
-        if (oCrpUser.prjName.equals(sProjectName) && oCrpUser.userId.equals(sUserId)) {
-          // We found it: now remove it
-          int iCount = loc_crpUserList.size();
-          loc_crpUserList.remove(oCrpUser);
-          int iAfter = loc_crpUserList.size();
-          // Give a report to the user
-          errHandle.debug("removing CrpUser[1]: [" + sProjectName + 
-              ", " + sUserId + "] (before="+iCount+", after="+iAfter+")", CrpManager.class);
-          /*
-          // Show the contents
-          for (int i=0;i<loc_crpUserList.size();i++) {
-            CrpUser oThis = loc_crpUserList.get(i);
-            errHandle.debug("  AFTER  "+(i+1)+"="+oThis.prjName+"/"+oThis.userId);
-          }*/
-          // Return positively
-          return true;
-        } 
+      // Remove this combination from the cache
+      if (loc_crpUserCache.remove(sProjectName, sUserId)) {
+        // Give a report to the user
+        errHandle.debug("removing CrpUser[1]: [" + sProjectName + 
+            ", " + sUserId + "] (after="+loc_crpUserCache.size()+")", CrpManager.class);
+        // Return positively
+        return true;
       } 
       // Return failure: we didn't find it
       return false;
@@ -1568,17 +1661,12 @@ public class CrpManager {
    */
   public boolean removeDbUser(String sProjectName, String sUserId) {
     try {
-      // Check if this combination already exists in the list
-      for (CrpUser oCrpUser : loc_crpUserList) {
-        // Check if this has the correct project name, language index and user id
-        if (oCrpUser.prjName.equals(sProjectName) && oCrpUser.userId.equals(sUserId)) {
-          // We found it: now remove it
-          errHandle.debug("removeDbUser/removing CrpUser[db]: [" + sProjectName + 
-              ", " + /* sLngIndex + ", " + */  sUserId + "]", CrpManager.class);
-          loc_crpUserList.remove(oCrpUser);
-          // Return positively
-          return true;
-        } 
+      // Remove this combination from the cache
+      if (loc_crpUserCache.remove(sProjectName, sUserId)) {
+        errHandle.debug("removeDbUser/removing CrpUser[db]: [" + sProjectName + 
+            ", " + /* sLngIndex + ", " + */  sUserId + "]", CrpManager.class);
+        // Return positively
+        return true;
       } 
       // Return failure: we didn't find it
       return false;
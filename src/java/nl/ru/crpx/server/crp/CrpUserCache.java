@@ -0,0 +1,342 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.json.JSONObject;
+
+/**
+ * CrpUserCache
+ *    Concurrent cache of loaded CrpUser objects, keyed on (userId, prjName).
+ *    Lookup is O(1); concurrent requests for the same key share one load.
+ *    Entries are evicted when they have been idle for too long, or when the
+ *    estimated heap usage of all loaded projects exceeds the budget.
+ *
+ * @author Erwin R. Komen
+ */
+public class CrpUserCache {
+  // ================ Constants ================================================
+  private static final long DEFAULT_MAX_IDLE_SEC = 3600;   // One hour
+  private static final long DEFAULT_MAX_SIZE_MEGS = 512;   // Heap budget
+  private static final int DEFAULT_SIZE_FACTOR = 20;       // Heap bytes per .crpx byte
+  private static final long MIN_SWEEP_INTERVAL_MS = 10000; // Sweep at most every 10 seconds
+  // ================ Local variables ==========================================
+  private final ErrHandle errHandle;                   // The error handler we are using
+  private final ConcurrentHashMap<String, Entry> mapCrp = new ConcurrentHashMap<>();
+  private final long lMaxIdleMs;                       // Maximum idle time of one entry
+  private final long lMaxBytes;                        // Maximum estimated size of all entries
+  private final int iSizeFactor;                       // Estimate: heap bytes per file byte
+  private final AtomicLong lLastSweep = new AtomicLong(); // Time of the last idle sweep
+  // ================ Statistics ===============================================
+  private final AtomicLong lHits = new AtomicLong();
+  private final AtomicLong lMisses = new AtomicLong();
+  private final AtomicLong lLoads = new AtomicLong();
+  private final AtomicLong lLoadFailures = new AtomicLong();
+  private final AtomicLong lEvictIdle = new AtomicLong();
+  private final AtomicLong lEvictSize = new AtomicLong();
+  private final AtomicLong lBytes = new AtomicLong();
+
+  /**
+   * Entry - one (userId, prjName) slot in the cache
+   *    The [task] is shared by all threads asking for the same key while it
+   *    is being loaded, so that the CRP is only loaded once.
+   *    [lSize] is guarded by the Entry: it is counted in [lBytes] only while
+   *    the entry is in the map (see [unlink])
+   */
+  private static class Entry {
+    final String sKey;
+    final FutureTask<CrpUser> task;
+    volatile long lLastAccess;
+    volatile long lSize = 0;
+    Entry(String sKey, FutureTask<CrpUser> task) {
+      this.sKey = sKey;
+      this.task = task;
+      this.lLastAccess = System.currentTimeMillis();
+    }
+  }
+
+  // ================ Class initialisation =====================================
+  /**
+   * CrpUserCache
+   *    Create a cache, taking the limits from the "crpCache" section within
+   *    the "performance" part of the configuration (if available)
+   *
+   * @param oConfig   - server configuration (may be null)
+   * @param errHandle - error handler
+   */
+  public CrpUserCache(JSONObject oConfig, ErrHandle errHandle) {
+    long lIdleSec = DEFAULT_MAX_IDLE_SEC;
+    long lSizeMegs = DEFAULT_MAX_SIZE_MEGS;
+    int iFactor = DEFAULT_SIZE_FACTOR;
+
+    this.errHandle = errHandle;
+    try {
+      // Look for the cache settings in the configuration
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("crpCache")) {
+          JSONObject oCache = oPerf.getJSONObject("crpCache");
+          if (oCache.has("maxIdleSec")) lIdleSec = oCache.getInt("maxIdleSec");
+          if (oCache.has("maxSizeMegs")) lSizeMegs = oCache.getInt("maxSizeMegs");
+          if (oCache.has("sizeFactor")) iFactor = oCache.getInt("sizeFactor");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("CrpUserCache: could not read configuration", ex, CrpUserCache.class);
+    }
+    // A value below zero means: no limit
+    this.lMaxIdleMs = (lIdleSec < 0) ? Long.MAX_VALUE : lIdleSec * 1000;
+    this.lMaxBytes = (lSizeMegs < 0) ? Long.MAX_VALUE : lSizeMegs * 1024 * 1024;
+    this.iSizeFactor = (iFactor <= 0) ? DEFAULT_SIZE_FACTOR : iFactor;
+  }
+
+  /**
+   * getKey
+   *    Combine user and project into one key. The project name is used
+   *    without the .crpx extension
+   *
+   * @param sPrjName
+   * @param sUserId
+   * @return
+   */
+  public static String getKey(String sPrjName, String sUserId) {
+    if (sPrjName.endsWith(".crpx")) sPrjName = sPrjName.substring(0, sPrjName.length() - 5);
+    return sUserId + "\t" + sPrjName;
+  }
+
+  /**
+   * get
+   *    Get the CrpUser for this combination, or load it using @loader.
+   *    Only one thread performs the load for one key; others wait for it.
+   *    A failed load (null or exception) is not cached.
+   *
+   * @param sPrjName  - name of the project (without .crpx)
+   * @param sUserId   - user id
+   * @param loader    - creates a new CrpUser if it is not in the cache
+   * @return          - the CrpUser or null on failure
+   */
+  public CrpUser get(String sPrjName, String sUserId, Callable<CrpUser> loader) {
+    String sKey = getKey(sPrjName, sUserId);
+    Entry oEntry = null;
+
+    try {
+      // Try to find an existing entry
+      oEntry = mapCrp.get(sKey);
+      if (oEntry == null) {
+        // Create a new entry; only one thread will succeed in adding it
+        Entry oNew = new Entry(sKey, new FutureTask<>(loader));
+        oEntry = mapCrp.putIfAbsent(sKey, oNew);
+        if (oEntry == null) {
+          // We have won the race: perform the load in this thread
+          lMisses.incrementAndGet();
+          lLoads.incrementAndGet();
+          oEntry = oNew;
+          oEntry.task.run();
+          CrpUser oLoaded = oEntry.task.get();
+          if (oLoaded == null) {
+            // Loading failed: do not keep this entry
+            lLoadFailures.incrementAndGet();
+            unlink(sKey, oEntry);
+            return null;
+          }
+          // Estimate the heap size of this project (unless removed meanwhile)
+          long lSize = estimateSize(oLoaded);
+          synchronized (oEntry) {
+            if (mapCrp.get(sKey) == oEntry) {
+              oEntry.lSize = lSize;
+              lBytes.addAndGet(lSize);
+            }
+          }
+          // Make sure the cache stays within its limits
+          sweep(oEntry);
+          return oLoaded;
+        }
+      }
+      // Getting here means an existing (or concurrently loading) entry
+      lHits.incrementAndGet();
+      oEntry.lLastAccess = System.currentTimeMillis();
+      // Idle entries are also removed when nothing new is loaded
+      sweep(oEntry);
+      return oEntry.task.get();
+    } catch (ExecutionException ex) {
+      // The loader failed: make sure a next request tries again
+      lLoadFailures.incrementAndGet();
+      if (oEntry != null) unlink(sKey, oEntry);
+      errHandle.DoError("CrpUserCache: could not load [" + sKey + "]", ex, CrpUserCache.class);
+      return null;
+    } catch (Exception ex) {
+      errHandle.DoError("CrpUserCache: could not get [" + sKey + "]", ex, CrpUserCache.class);
+      return null;
+    }
+  }
+
+  /**
+   * contains
+   *    Check if the combination is available (and loaded) in the cache.
+   *    An empty @sUserId matches any user.
+   *
+   * @param sPrjName
+   * @param sUserId
+   * @return
+   */
+  public boolean contains(String sPrjName, String sUserId) {
+    try {
+      if (!sUserId.isEmpty()) {
+        Entry oEntry = mapCrp.get(getKey(sPrjName, sUserId));
+        return (oEntry != null && oEntry.task.isDone());
+      }
+      // Any user will do: check all entries for this project
+      String sSuffix = getKey(sPrjName, "");
+      for (Entry oEntry : mapCrp.values()) {
+        if (oEntry.sKey.endsWith(sSuffix) && oEntry.task.isDone()) return true;
+      }
+      return false;
+    } catch (Exception ex) {
+      errHandle.DoError("CrpUserCache: contains failed", ex, CrpUserCache.class);
+      return false;
+    }
+  }
+
+  /**
+   * remove
+   *    Remove the combination from the cache
+   *
+   * @param sPrjName
+   * @param sUserId
+   * @return          - true if there was something to remove
+   */
+  public boolean remove(String sPrjName, String sUserId) {
+    String sKey = getKey(sPrjName, sUserId);
+    Entry oEntry = mapCrp.get(sKey);
+    return (oEntry != null && unlink(sKey, oEntry));
+  }
+
+  /**
+   * size - the number of loaded or loading entries
+   *
+   * @return
+   */
+  public int size() { return mapCrp.size(); }
+
+  /**
+   * sweep
+   *    Remove entries that have been idle too long, and then remove the
+   *    least recently used entries until the size budget is met.
+   *    The entry @oKeep (the one just used) is never removed.
+   *
+   * @param oKeep
+   */
+  private void sweep(Entry oKeep) {
+    long lNow = System.currentTimeMillis();
+    try {
+      // Remove idle entries, but not too often (and by one thread at a time)
+      long lLast = lLastSweep.get();
+      if (lNow - lLast > MIN_SWEEP_INTERVAL_MS && lLastSweep.compareAndSet(lLast, lNow)) {
+        for (Map.Entry<String, Entry> oThis : mapCrp.entrySet()) {
+          Entry oEntry = oThis.getValue();
+          if (oEntry != oKeep && oEntry.task.isDone() &&
+                  lNow - oEntry.lLastAccess > lMaxIdleMs) {
+            if (unlink(oThis.getKey(), oEntry)) {
+              lEvictIdle.incrementAndGet();
+              errHandle.debug("CrpUserCache - idle eviction: [" + oEntry.sKey + "]");
+            }
+          }
+        }
+      }
+      // Check the size budget
+      if (lBytes.get() <= lMaxBytes) return;
+      List<Entry> lEntries = new ArrayList<>();
+      for (Entry oEntry : mapCrp.values()) {
+        if (oEntry != oKeep && oEntry.task.isDone()) lEntries.add(oEntry);
+      }
+      // Least recently used first
+      Collections.sort(lEntries, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+          return Long.compare(o1.lLastAccess, o2.lLastAccess);
+        }
+      });
+      for (Entry oEntry : lEntries) {
+        if (lBytes.get() <= lMaxBytes) break;
+        if (unlink(oEntry.sKey, oEntry)) {
+          lEvictSize.incrementAndGet();
+          errHandle.debug("CrpUserCache - size eviction: [" + oEntry.sKey + "]");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("CrpUserCache: sweep failed", ex, CrpUserCache.class);
+    }
+  }
+
+  /**
+   * unlink
+   *    Remove @oEntry (if it is still there) from the map, and no longer
+   *    count its size
+   *
+   * @param sKey
+   * @param oEntry
+   * @return          true if it has been removed
+   */
+  private boolean unlink(String sKey, Entry oEntry) {
+    if (!mapCrp.remove(sKey, oEntry)) return false;
+    // The size may be being filled in right now: wait for that
+    synchronized (oEntry) {
+      lBytes.addAndGet(-oEntry.lSize);
+      oEntry.lSize = 0;
+    }
+    return true;
+  }
+
+  /**
+   * estimateSize
+   *    Estimate the heap size of a loaded CRP from the size of its .crpx file
+   *
+   * @param oCrpUser
+   * @return
+   */
+  private long estimateSize(CrpUser oCrpUser) {
+    try {
+      File fCrp = new File(oCrpUser.getCrpPath(oCrpUser.prjName));
+      long lFile = (fCrp.exists()) ? fCrp.length() : 0;
+      return Math.max(lFile, 1024) * iSizeFactor;
+    } catch (Exception ex) {
+      return 1024L * iSizeFactor;
+    }
+  }
+
+  /**
+   * getStats
+   *    Provide the cache statistics
+   *
+   * @return
+   */
+  public DataObjectMapElement getStats() {
+    DataObjectMapElement oStats = new DataObjectMapElement();
+    oStats.put("entries", mapCrp.size());
+    oStats.put("estimatedBytes", lBytes.get());
+    oStats.put("hits", lHits.get());
+    oStats.put("misses", lMisses.get());
+    oStats.put("loads", lLoads.get());
+    oStats.put("loadFailures", lLoadFailures.get());
+    oStats.put("evictionsIdle", lEvictIdle.get());
+    oStats.put("evictionsSize", lEvictSize.get());
+    return oStats;
+  }
+}
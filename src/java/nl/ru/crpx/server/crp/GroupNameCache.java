@@ -0,0 +1,351 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.FileUtil;
+import nl.ru.util.json.JSONObject;
+
+/**
+ * GroupNameCache
+ *    The group names that a grouping Xquery (the "div" of /update) gives to
+ *    corpus files. Computing a group name means running the Xquery on the
+ *    metadata of the file, so the outcome is kept per Xquery (identified by
+ *    a hash of its code) and per file, together with the modification time
+ *    of the file. The names are shared by all users, and are written to disk
+ *    (in the background) so that they survive a restart.
+ *
+ * @author Erwin R. Komen
+ */
+public class GroupNameCache {
+  // ================ Constants ================================================
+  private static final int DEFAULT_MAX_QUERIES = 64;   // Xqueries kept in memory
+  // ================ Local variables ==========================================
+  private final ErrHandle errHandle;                   // The error handler we are using
+  private final File fDir;                             // Where the group names are stored
+  private final int iMaxQueries;                       // Maximum number of Xqueries in memory
+  private final LinkedHashMap<String, Query> mapQuery = new LinkedHashMap<>(16, 0.75f, true);
+  private final ThreadPoolExecutor oExecutor;          // Writes the group names
+  private final Set<Query> setPending =                // Xqueries waiting to be written
+          Collections.newSetFromMap(new ConcurrentHashMap<Query, Boolean>());
+  // ================ Statistics ===============================================
+  private final AtomicLong lHits = new AtomicLong();
+  private final AtomicLong lMisses = new AtomicLong();
+  private final AtomicLong lLoads = new AtomicLong();
+  private final AtomicLong lWrites = new AtomicLong();
+
+  /**
+   * Query - the group names given by one Xquery
+   *    All fields are guarded by the Query itself
+   */
+  public static class Query {
+    final String sHash;
+    final Map<String, Value> mapFile = new HashMap<>();
+    boolean bDirty = false;         // Changed since the last write
+    Query(String sHash) { this.sHash = sHash; }
+  }
+
+  private static class Value {
+    final long lMtime;              // Modification time of the file
+    final String sGroup;            // Group name of the file
+    Value(long lMtime, String sGroup) { this.lMtime = lMtime; this.sGroup = sGroup; }
+  }
+
+  // ================ Class initialisation =====================================
+  /**
+   * GroupNameCache
+   *    Create the cache, taking its settings from the "groupNameCache" section
+   *    within the "performance" part of the configuration
+   *
+   * @param sProjectBase - base directory of the user directories
+   * @param oConfig      - server configuration (may be null)
+   * @param errHandle    - error handler
+   */
+  public GroupNameCache(String sProjectBase, JSONObject oConfig, ErrHandle errHandle) {
+    int iMax = DEFAULT_MAX_QUERIES;
+    String sDir = "";
+
+    this.errHandle = errHandle;
+    try {
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("groupNameCache")) {
+          JSONObject oCache = oPerf.getJSONObject("groupNameCache");
+          if (oCache.has("maxQueries")) iMax = oCache.getInt("maxQueries");
+          if (oCache.has("dir")) sDir = oCache.getString("dir");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("GroupNameCache: could not read configuration", ex, GroupNameCache.class);
+    }
+    this.iMaxQueries = Math.max(1, iMax);
+    // By default the names are stored next to the user directories
+    if (sDir.isEmpty()) sDir = sProjectBase + "/.groupnames";
+    this.fDir = new File(FileUtil.nameNormalize(sDir));
+    this.oExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thr = new Thread(r, "crpp-groupnames");
+        thr.setDaemon(true);
+        return thr;
+      }
+    });
+    this.oExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * getQuery
+   *    Get the group names of the Xquery with code @sCode (loading them
+   *    from disk if they are there)
+   *
+   * @param sCode
+   * @return
+   */
+  public Query getQuery(String sCode) {
+    String sHash = getHash(sCode);
+    Query oQuery;
+    List<Query> lstOld = new ArrayList<>();
+    synchronized (mapQuery) {
+      oQuery = mapQuery.get(sHash);
+      if (oQuery != null) return oQuery;
+      oQuery = new Query(sHash);
+      mapQuery.put(sHash, oQuery);
+      // Forget the least recently used Xqueries (they remain on disk)
+      Iterator<Query> it = mapQuery.values().iterator();
+      while (mapQuery.size() > iMaxQueries && it.hasNext()) {
+        Query oOld = it.next();
+        if (oOld == oQuery) continue;
+        lstOld.add(oOld);
+        it.remove();
+      }
+    }
+    // Reading and writing is done without holding up the other Xqueries
+    for (Query oOld : lstOld) save(oOld);
+    load(oQuery);
+    return oQuery;
+  }
+
+  /**
+   * get
+   *    The group name of file @sFile (full path) with modification time @lMtime
+   *
+   * @param oQuery
+   * @param sFile
+   * @param lMtime
+   * @return        the group name, or null if it is not known (for this version)
+   */
+  public String get(Query oQuery, String sFile, long lMtime) {
+    synchronized (oQuery) {
+      Value oValue = oQuery.mapFile.get(sFile);
+      if (oValue != null && oValue.lMtime == lMtime) {
+        lHits.incrementAndGet();
+        return oValue.sGroup;
+      }
+    }
+    lMisses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * put
+   *    Keep the group name @sGroup of file @sFile (full path)
+   *
+   * @param oQuery
+   * @param sFile
+   * @param lMtime
+   * @param sGroup
+   */
+  public void put(Query oQuery, String sFile, long lMtime, String sGroup) {
+    // Without a modification time there is no way to tell whether it is still valid
+    if (lMtime <= 0) return;
+    synchronized (oQuery) {
+      oQuery.mapFile.put(sFile, new Value(lMtime, sGroup));
+      oQuery.bDirty = true;
+    }
+  }
+
+  /**
+   * saveLater
+   *    Write the group names of @oQuery in the background, if they have
+   *    changed (and no write of them is waiting already)
+   *
+   * @param oQuery
+   */
+  public void saveLater(final Query oQuery) {
+    synchronized (oQuery) {
+      if (!oQuery.bDirty) return;
+    }
+    if (!setPending.add(oQuery)) return;
+    try {
+      oExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          // Changes made from now on need another write
+          setPending.remove(oQuery);
+          save(oQuery);
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      setPending.remove(oQuery);
+      save(oQuery);
+    }
+  }
+
+  /**
+   * stop
+   *    Stop writing in the background, and write what has not been written
+   */
+  public void stop() {
+    try {
+      oExecutor.shutdown();
+      oExecutor.awaitTermination(10, TimeUnit.SECONDS);
+      List<Query> lstQuery;
+      synchronized (mapQuery) {
+        lstQuery = new ArrayList<>(mapQuery.values());
+      }
+      for (Query oQuery : lstQuery) save(oQuery);
+    } catch (Exception ex) {
+      errHandle.DoError("GroupNameCache/stop: ", ex, GroupNameCache.class);
+    }
+  }
+
+  /**
+   * save
+   *    Write the group names of @oQuery if they have changed: first to a
+   *    temporary file, which then replaces the old one
+   *
+   * @param oQuery
+   */
+  public void save(Query oQuery) {
+    synchronized (oQuery) {
+      if (!oQuery.bDirty) return;
+      try {
+        if (!fDir.exists()) fDir.mkdirs();
+        JSONObject oFiles = new JSONObject();
+        for (Map.Entry<String, Value> oEntry : oQuery.mapFile.entrySet()) {
+          JSONObject oValue = new JSONObject();
+          oValue.put("mtime", Long.toHexString(oEntry.getValue().lMtime));
+          oValue.put("group", oEntry.getValue().sGroup);
+          oFiles.put(oEntry.getKey(), oValue);
+        }
+        JSONObject oStore = new JSONObject();
+        oStore.put("query", oQuery.sHash);
+        oStore.put("files", oFiles);
+        File fStore = getFile(oQuery.sHash);
+        File fTemp = new File(fStore.getPath() + ".tmp");
+        FileUtil.writeFile(fTemp, oStore.toString());
+        try {
+          Files.move(fTemp.toPath(), fStore.toPath(),
+                  StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+          Files.move(fTemp.toPath(), fStore.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        oQuery.bDirty = false;
+        lWrites.incrementAndGet();
+      } catch (Exception ex) {
+        errHandle.DoError("GroupNameCache: could not save group names", ex, GroupNameCache.class);
+      }
+    }
+  }
+
+  /**
+   * getStats
+   *    Statistics of this cache (for /serverinfo)
+   *
+   * @return
+   */
+  public DataObjectMapElement getStats() {
+    DataObjectMapElement oStats = new DataObjectMapElement();
+    synchronized (mapQuery) {
+      oStats.put("queries", mapQuery.size());
+    }
+    oStats.put("hits", lHits.get());
+    oStats.put("misses", lMisses.get());
+    oStats.put("loads", lLoads.get());
+    oStats.put("writes", lWrites.get());
+    oStats.put("pending", setPending.size());
+    return oStats;
+  }
+
+  // ================ Private methods ==========================================
+  private File getFile(String sHash) {
+    return new File(fDir, sHash + ".json");
+  }
+
+  /**
+   * getHash
+   *    Identification of the Xquery with code @sCode
+   *
+   * @param sCode
+   * @return
+   */
+  private String getHash(String sCode) {
+    try {
+      MessageDigest oDigest = MessageDigest.getInstance("SHA-1");
+      byte[] arHash = oDigest.digest(sCode.getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb = new StringBuilder();
+      for (byte bThis : arHash) sb.append(String.format("%02x", bThis & 0xff));
+      return sb.toString();
+    } catch (Exception ex) {
+      // SHA-1 is always available, but just in case
+      return Integer.toHexString(sCode.hashCode()) + "-" + Integer.toHexString(sCode.length());
+    }
+  }
+
+  /**
+   * load
+   *    Read the group names of @oQuery from disk (if they are there). Names
+   *    that have been found in the meantime are kept.
+   *
+   * @param oQuery
+   */
+  private void load(Query oQuery) {
+    synchronized (oQuery) {
+      try {
+        File fStore = getFile(oQuery.sHash);
+        if (!fStore.exists()) return;
+        JSONObject oStore = new JSONObject((new FileUtil()).readFile(fStore));
+        JSONObject oFiles = oStore.getJSONObject("files");
+        Iterator keys = oFiles.keys();
+        while (keys.hasNext()) {
+          String sFile = keys.next().toString();
+          JSONObject oValue = oFiles.getJSONObject(sFile);
+          if (oQuery.mapFile.containsKey(sFile)) continue;
+          oQuery.mapFile.put(sFile, new Value(Long.parseLong(oValue.getString("mtime"), 16),
+                  oValue.getString("group")));
+        }
+        lLoads.incrementAndGet();
+      } catch (Exception ex) {
+        errHandle.DoError("GroupNameCache: could not load group names", ex, GroupNameCache.class);
+      }
+    }
+  }
+}
@@ -0,0 +1,383 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.FileUtil;
+import nl.ru.util.json.JSONArray;
+import nl.ru.util.json.JSONObject;
+
+/**
+ * HitIndex
+ *    Compact index on the <name>.table.json of a CRP that has been executed.
+ *    For each QC it holds the hit files and the cumulative number of hits
+ *    (in total and per sub-category) up to each file, so that the file and
+ *    the offset within that file of hit number N are found with a binary
+ *    search, without parsing the table.
+ *    The index is written once next to the table (<name>.hitidx), and
+ *    memory-mapped when it is used. It is rebuilt when the table changes.
+ *    Only one thread opens (or builds) the index of one table; threads that
+ *    need the same table wait for it, other tables are not held up.
+ *
+ *    Layout (big-endian):
+ *      header:   MAGIC, VERSION, table mtime (long), table size (long), #QC
+ *      per QC:   qc, #files, #subs, position of the QC block
+ *      QC block: per file: position + length of its name
+ *                per sub:  position + length of its name
+ *                cumulative counts: (#subs+1) rows of (#files+1) ints;
+ *                row 0 is the total, row k+1 is sub-category k
+ *      names:    UTF-8 bytes
+ *
+ * @author Erwin R. Komen
+ */
+public class HitIndex {
+  // ================ Constants ================================================
+  private static final int MAGIC = 0x48495831;         // "HIX1"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+  private static final int QC_ENTRY_SIZE = 4 * 4;
+  private static final int MAX_OPEN = 64;              // Maximum number of mapped indexes we keep
+  // ================ Static variables =========================================
+  // The indexes that are open, least recently used first (guarded by itself)
+  private static final LinkedHashMap<String, HitIndex> mapOpen = new LinkedHashMap<>(16, 0.75f, true);
+  // The indexes that are being opened or built
+  private static final ConcurrentHashMap<String, FutureTask<HitIndex>> mapLoading = new ConcurrentHashMap<>();
+  // ================ Local variables ==========================================
+  private final MappedByteBuffer buf;   // The mapped index file
+  private final long lTableMtime;       // Modification time of the table it was made from
+  private final long lTableSize;        // Size of the table it was made from
+  private final int iQcCount;           // Number of QCs
+
+  /**
+   * Hit - the location of one hit: the file and the offset within that file
+   */
+  public static class Hit {
+    public final String sFile;
+    public final int iOffset;
+    Hit(String sFile, int iOffset) {
+      this.sFile = sFile;
+      this.iOffset = iOffset;
+    }
+  }
+
+  // ================ Class initialisation =====================================
+  private HitIndex(MappedByteBuffer buf) {
+    this.buf = buf;
+    this.lTableMtime = buf.getLong(8);
+    this.lTableSize = buf.getLong(16);
+    this.iQcCount = buf.getInt(24);
+  }
+
+  /**
+   * get
+   *    Get the index on table file @fTable, building it if it does not exist
+   *    yet or if the table has changed since it was built
+   *
+   * @param fTable
+   * @param errHandle
+   * @return          the index, or null if the table is not there or cannot be indexed
+   */
+  public static HitIndex get(final File fTable, ErrHandle errHandle) {
+    try {
+      if (!fTable.exists()) return null;
+      final String sKey = fTable.getAbsolutePath();
+      // Do we have an up-to-date index open already?
+      HitIndex oIndex = getOpen(sKey, fTable);
+      if (oIndex != null) return oIndex;
+      // Open (or build) it, unless another thread is doing that already
+      FutureTask<HitIndex> oTask = new FutureTask<>(new Callable<HitIndex>() {
+        @Override
+        public HitIndex call() throws Exception { return load(sKey, fTable); }
+      });
+      FutureTask<HitIndex> oRunning = mapLoading.putIfAbsent(sKey, oTask);
+      if (oRunning == null) {
+        try {
+          oTask.run();
+        } finally {
+          mapLoading.remove(sKey, oTask);
+        }
+        oRunning = oTask;
+      }
+      return oRunning.get();
+    } catch (Exception ex) {
+      errHandle.DoError("HitIndex/get failed", ex, HitIndex.class);
+      return null;
+    }
+  }
+
+  /**
+   * getIndexFile
+   *    The index belonging to table "<name>.table.json" is "<name>.hitidx"
+   *
+   * @param fTable
+   * @return
+   */
+  public static File getIndexFile(File fTable) {
+    String sTable = fTable.getPath();
+    if (sTable.endsWith(".table.json"))
+      sTable = sTable.substring(0, sTable.length() - ".table.json".length());
+    return new File(sTable + ".hitidx");
+  }
+
+  /**
+   * getTotal
+   *    Number of hits of the QC at position @iQcIdx (zero-based), in total
+   *    or for sub-category @iSubCat (-1 for the total)
+   *
+   * @param iQcIdx
+   * @param iSubCat
+   * @return
+   */
+  public int getTotal(int iQcIdx, int iSubCat) {
+    int iBlock = getBlock(iQcIdx);
+    int iFiles = getFileCount(iQcIdx);
+    return buf.getInt(getCumPos(iQcIdx, iBlock, iSubCat, iFiles));
+  }
+
+  /**
+   * getSubCat
+   *    Index of the sub-category called @sSub within the QC at position
+   *    @iQcIdx (zero-based), or -1 if it does not exist
+   *
+   * @param iQcIdx
+   * @param sSub
+   * @return
+   */
+  public int getSubCat(int iQcIdx, String sSub) {
+    int iBlock = getBlock(iQcIdx);
+    int iFiles = getFileCount(iQcIdx);
+    int iSubs = getSubCount(iQcIdx);
+    for (int k=0;k<iSubs;k++) {
+      int iPos = iBlock + (iFiles * 2 + k * 2) * 4;
+      if (getString(buf.getInt(iPos), buf.getInt(iPos + 4)).equals(sSub)) return k;
+    }
+    return -1;
+  }
+
+  /**
+   * find
+   *    Find hit number @iHit (zero-based) of the QC at position @iQcIdx,
+   *    counting all hits or only those of sub-category @iSubCat (-1: all)
+   *
+   * @param iQcIdx
+   * @param iSubCat
+   * @param iHit
+   * @return        the location, or null if there is no such hit
+   */
+  public Hit find(int iQcIdx, int iSubCat, int iHit) {
+    if (iQcIdx < 0 || iQcIdx >= iQcCount) return null;
+    int iBlock = getBlock(iQcIdx);
+    int iFiles = getFileCount(iQcIdx);
+    int iRow = getCumPos(iQcIdx, iBlock, iSubCat, 0);
+    if (iHit < 0 || iHit >= buf.getInt(iRow + iFiles * 4)) return null;
+    // Binary search: the file j for which cum[j] <= iHit < cum[j+1]
+    int iLow = 0;
+    int iHigh = iFiles - 1;
+    while (iLow < iHigh) {
+      int iMid = (iLow + iHigh + 1) >>> 1;
+      if (buf.getInt(iRow + iMid * 4) <= iHit) iLow = iMid; else iHigh = iMid - 1;
+    }
+    int iNamePos = iBlock + iLow * 2 * 4;
+    String sFile = getString(buf.getInt(iNamePos), buf.getInt(iNamePos + 4));
+    return new Hit(sFile, iHit - buf.getInt(iRow + iLow * 4));
+  }
+
+  // ================ Private methods ==========================================
+  private boolean isCurrent(File fTable) {
+    return (fTable.lastModified() == lTableMtime && fTable.length() == lTableSize);
+  }
+  private int getBlock(int iQcIdx) {
+    return buf.getInt(HEADER_SIZE + iQcIdx * QC_ENTRY_SIZE + 12);
+  }
+  private int getFileCount(int iQcIdx) {
+    return buf.getInt(HEADER_SIZE + iQcIdx * QC_ENTRY_SIZE + 4);
+  }
+  private int getSubCount(int iQcIdx) {
+    return buf.getInt(HEADER_SIZE + iQcIdx * QC_ENTRY_SIZE + 8);
+  }
+  /** Position of cumulative count @iFile in the row of @iSubCat (-1: total) */
+  private int getCumPos(int iQcIdx, int iBlock, int iSubCat, int iFile) {
+    int iFiles = getFileCount(iQcIdx);
+    int iSubs = getSubCount(iQcIdx);
+    int iStart = iBlock + (iFiles * 2 + iSubs * 2) * 4;
+    return iStart + ((iSubCat + 1) * (iFiles + 1) + iFile) * 4;
+  }
+  private String getString(int iPos, int iLen) {
+    byte[] arBytes = new byte[iLen];
+    ByteBuffer bufDup = buf.duplicate();
+    bufDup.position(iPos);
+    bufDup.get(arBytes);
+    return new String(arBytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * getOpen
+   *    The open index @sKey on table @fTable, if it is still up to date
+   *
+   * @param sKey
+   * @param fTable
+   * @return
+   */
+  private static HitIndex getOpen(String sKey, File fTable) {
+    HitIndex oIndex;
+    synchronized (mapOpen) {
+      oIndex = mapOpen.get(sKey);
+    }
+    return (oIndex != null && oIndex.isCurrent(fTable)) ? oIndex : null;
+  }
+
+  /**
+   * load
+   *    Open the index on table @fTable, building it when needed, and keep
+   *    it open under @sKey
+   *
+   * @param sKey
+   * @param fTable
+   * @return        the index, or null if it cannot be made
+   * @throws Exception
+   */
+  private static HitIndex load(String sKey, File fTable) throws Exception {
+    // It may have been opened while we were waiting
+    HitIndex oIndex = getOpen(sKey, fTable);
+    if (oIndex != null) return oIndex;
+    File fIndex = getIndexFile(fTable);
+    // Try the index file on disk; (re-)build it when needed
+    oIndex = (fIndex.exists()) ? open(fIndex) : null;
+    if (oIndex == null || !oIndex.isCurrent(fTable)) {
+      build(fTable, fIndex);
+      oIndex = open(fIndex);
+    }
+    if (oIndex == null) return null;
+    // Keep it for the next request, forgetting the least recently used ones
+    synchronized (mapOpen) {
+      mapOpen.put(sKey, oIndex);
+      Iterator<String> it = mapOpen.keySet().iterator();
+      while (mapOpen.size() > MAX_OPEN && it.hasNext()) { it.next(); it.remove(); }
+    }
+    return oIndex;
+  }
+
+  /**
+   * open
+   *    Map the index file @fIndex into memory
+   *
+   * @param fIndex
+   * @return        the index, or null if it is not a valid index file
+   * @throws Exception
+   */
+  private static HitIndex open(File fIndex) throws Exception {
+    try (RandomAccessFile raf = new RandomAccessFile(fIndex, "r");
+         FileChannel chIndex = raf.getChannel()) {
+      if (chIndex.size() < HEADER_SIZE) return null;
+      MappedByteBuffer buf = chIndex.map(FileChannel.MapMode.READ_ONLY, 0, chIndex.size());
+      if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) return null;
+      return new HitIndex(buf);
+    }
+  }
+
+  /**
+   * build
+   *    Read the table @fTable once, and write the index to @fIndex
+   *
+   * @param fTable
+   * @param fIndex
+   * @throws Exception
+   */
+  private static void build(File fTable, File fIndex) throws Exception {
+    long lMtime = fTable.lastModified();
+    long lSize = fTable.length();
+    JSONArray arTable = new JSONArray((new FileUtil()).readFile(fTable));
+    int iQcCount = arTable.length();
+    // Collect the names and counts of all QCs
+    List<byte[]> lNames = new ArrayList<>();
+    int[][] arNamePos = new int[iQcCount][];    // Per QC: name number of each file and sub
+    int[][] arCum = new int[iQcCount][];        // Per QC: cumulative counts
+    int[] arFiles = new int[iQcCount];
+    int[] arSubs = new int[iQcCount];
+    int[] arQc = new int[iQcCount];
+    for (int i=0;i<iQcCount;i++) {
+      JSONObject oQC = arTable.getJSONObject(i);
+      arQc[i] = oQC.has("qc") ? oQC.getInt("qc") : i + 1;
+      JSONArray arSubCat = oQC.has("subcats") ? oQC.getJSONArray("subcats") : new JSONArray();
+      JSONArray arHits = oQC.has("hits") ? oQC.getJSONArray("hits") : new JSONArray();
+      int iFiles = arHits.length();
+      int iSubs = arSubCat.length();
+      arFiles[i] = iFiles;
+      arSubs[i] = iSubs;
+      arNamePos[i] = new int[iFiles + iSubs];
+      arCum[i] = new int[(iSubs + 1) * (iFiles + 1)];
+      for (int j=0;j<iFiles;j++) {
+        JSONObject oHit = arHits.getJSONObject(j);
+        arNamePos[i][j] = lNames.size();
+        lNames.add(oHit.getString("file").getBytes(StandardCharsets.UTF_8));
+        // Cumulative count of all hits
+        arCum[i][j + 1] = arCum[i][j] + oHit.getInt("count");
+        // Cumulative counts per sub-category
+        JSONArray arSubCount = oHit.has("subs") ? oHit.getJSONArray("subs") : new JSONArray();
+        for (int k=0;k<iSubs;k++) {
+          int iRow = (k + 1) * (iFiles + 1);
+          int iAdd = (k < arSubCount.length()) ? arSubCount.getInt(k) : 0;
+          arCum[i][iRow + j + 1] = arCum[i][iRow + j] + iAdd;
+        }
+      }
+      for (int k=0;k<iSubs;k++) {
+        arNamePos[i][iFiles + k] = lNames.size();
+        lNames.add(arSubCat.getString(k).getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    // Determine the layout
+    int iPos = HEADER_SIZE + iQcCount * QC_ENTRY_SIZE;
+    int[] arBlock = new int[iQcCount];
+    for (int i=0;i<iQcCount;i++) {
+      arBlock[i] = iPos;
+      iPos += (arNamePos[i].length * 2 + arCum[i].length) * 4;
+    }
+    int[] arStrPos = new int[lNames.size()];
+    for (int n=0;n<lNames.size();n++) {
+      arStrPos[n] = iPos;
+      iPos += lNames.get(n).length;
+    }
+    // Fill the buffer
+    ByteBuffer bufOut = ByteBuffer.allocate(iPos);
+    bufOut.putInt(MAGIC).putInt(VERSION).putLong(lMtime).putLong(lSize).putInt(iQcCount);
+    for (int i=0;i<iQcCount;i++) {
+      bufOut.putInt(arQc[i]).putInt(arFiles[i]).putInt(arSubs[i]).putInt(arBlock[i]);
+    }
+    for (int i=0;i<iQcCount;i++) {
+      for (int n : arNamePos[i]) {
+        bufOut.putInt(arStrPos[n]).putInt(lNames.get(n).length);
+      }
+      for (int c : arCum[i]) bufOut.putInt(c);
+    }
+    for (byte[] arName : lNames) bufOut.put(arName);
+    bufOut.flip();
+    // Write it to a temporary file, which then replaces the index
+    File fTemp = new File(fIndex.getPath() + ".tmp");
+    try (RandomAccessFile raf = new RandomAccessFile(fTemp, "rw");
+         FileChannel chOut = raf.getChannel()) {
+      chOut.truncate(0);
+      while (bufOut.hasRemaining()) chOut.write(bufOut);
+    }
+    Files.move(fTemp.toPath(), fIndex.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+}
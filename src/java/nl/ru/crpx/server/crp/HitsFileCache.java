@@ -0,0 +1,225 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.FileUtil;
+import nl.ru.util.json.JSONArray;
+import nl.ru.util.json.JSONObject;
+
+/**
+ * HitsFileCache
+ *    Process-wide cache of the hit locations in the .hits files of executed
+ *    CRPs. A .hits file is parsed once; its locations are kept as plain
+ *    string arrays per QC (and per sub-category). An entry is only used as
+ *    long as the modification time and size of the file are unchanged, so a
+ *    re-run of the job automatically replaces it. The least recently used
+ *    entries are removed when the estimated size exceeds the budget.
+ *
+ * @author Erwin R. Komen
+ */
+public class HitsFileCache {
+  // ================ Constants ================================================
+  private static final long DEFAULT_MAX_SIZE_MEGS = 64;   // Heap budget
+  // ================ Local variables ==========================================
+  private final ErrHandle errHandle;                   // The error handler we are using
+  private final long lMaxBytes;                        // Maximum estimated size of all entries
+  private long lBytes = 0;                             // Estimated size of all entries
+  private final LinkedHashMap<String, HitsFile> mapHits = new LinkedHashMap<>(64, 0.75f, true);
+  // ================ Statistics ===============================================
+  private final AtomicLong lHits = new AtomicLong();
+  private final AtomicLong lMisses = new AtomicLong();
+  private final AtomicLong lStale = new AtomicLong();
+  private final AtomicLong lEvictions = new AtomicLong();
+
+  /**
+   * HitLocations - the locations of the hits of one QC (or one sub-category)
+   */
+  public static class HitLocations {
+    public final String[] arLocs;
+    public final String[] arLocw;
+    public final String[] arMsg;      // Entries are null when there is no message
+    HitLocations(JSONArray arResults) {
+      int iSize = arResults.length();
+      arLocs = new String[iSize];
+      arLocw = new String[iSize];
+      arMsg = new String[iSize];
+      for (int i=0;i<iSize;i++) {
+        JSONObject oRes = arResults.getJSONObject(i);
+        arLocs[i] = oRes.getString("locs");
+        arLocw[i] = oRes.getString("locw");
+        arMsg[i] = (oRes.has("msg")) ? oRes.getString("msg") : null;
+      }
+    }
+    public int size() { return arLocs.length; }
+    long getSize() {
+      long lSize = 64 + arLocs.length * 3 * 8;
+      for (int i=0;i<arLocs.length;i++) {
+        lSize += 2 * (arLocs[i].length() + arLocw[i].length() + 40) +
+                ((arMsg[i] == null) ? 0 : 2 * arMsg[i].length() + 40);
+      }
+      return lSize;
+    }
+  }
+
+  /**
+   * HitsFile - the parsed contents of one .hits file
+   */
+  private static class HitsFile {
+    final long lMtime;                    // Version of the file we parsed
+    final long lLength;
+    final HitLocations[] arQc;            // Per QC: all results
+    final Map<String, HitLocations>[] arPerCat; // Per QC: results per sub-category
+    long lSize = 0;                       // Estimated heap size
+    @SuppressWarnings("unchecked")
+    HitsFile(File fHits, JSONArray arHitF) {
+      this.lMtime = fHits.lastModified();
+      this.lLength = fHits.length();
+      this.arQc = new HitLocations[arHitF.length()];
+      this.arPerCat = new Map[arHitF.length()];
+      for (int i=0;i<arHitF.length();i++) {
+        JSONObject oQC = arHitF.getJSONObject(i);
+        if (oQC.has("results")) {
+          arQc[i] = new HitLocations(oQC.getJSONArray("results"));
+          lSize += arQc[i].getSize();
+        }
+        arPerCat[i] = new HashMap<>();
+        if (oQC.has("percat")) {
+          JSONArray arCat = oQC.getJSONArray("percat");
+          for (int k=0;k<arCat.length();k++) {
+            JSONObject oPerCat = arCat.getJSONObject(k);
+            HitLocations oLoc = new HitLocations(oPerCat.getJSONArray("results"));
+            arPerCat[i].put(oPerCat.getString("cat"), oLoc);
+            lSize += oLoc.getSize();
+          }
+        }
+      }
+    }
+  }
+
+  // ================ Class initialisation =====================================
+  /**
+   * HitsFileCache
+   *    Create a cache, taking its size from the "hitsCache" section within
+   *    the "performance" part of the configuration (if available)
+   *
+   * @param oConfig   - server configuration (may be null)
+   * @param errHandle - error handler
+   */
+  public HitsFileCache(JSONObject oConfig, ErrHandle errHandle) {
+    long lSizeMegs = DEFAULT_MAX_SIZE_MEGS;
+
+    this.errHandle = errHandle;
+    try {
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("hitsCache")) {
+          JSONObject oCache = oPerf.getJSONObject("hitsCache");
+          if (oCache.has("maxSizeMegs")) lSizeMegs = oCache.getInt("maxSizeMegs");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("HitsFileCache: could not read configuration", ex, HitsFileCache.class);
+    }
+    this.lMaxBytes = (lSizeMegs < 0) ? Long.MAX_VALUE : lSizeMegs * 1024 * 1024;
+  }
+
+  /**
+   * get
+   *    Get the hit locations of QC @iQC (starting with 1) and sub-category
+   *    @sSub (empty for all) from the .hits file @fHits
+   *
+   * @param fHits
+   * @param iQC
+   * @param sSub
+   * @return        the locations, or null if there are none
+   */
+  public HitLocations get(File fHits, int iQC, String sSub) {
+    try {
+      // If there is no .hits file, then there are no hits in this file
+      if (!fHits.exists()) return null;
+      HitsFile oFile = getFile(fHits);
+      if (oFile == null || iQC < 1 || iQC > oFile.arQc.length) return null;
+      return (sSub.isEmpty()) ? oFile.arQc[iQC-1] : oFile.arPerCat[iQC-1].get(sSub);
+    } catch (Exception ex) {
+      errHandle.DoError("HitsFileCache/get failed", ex, HitsFileCache.class);
+      return null;
+    }
+  }
+
+  /**
+   * getStats
+   *    Statistics of this cache (for /serverinfo)
+   *
+   * @return
+   */
+  public DataObjectMapElement getStats() {
+    DataObjectMapElement oStats = new DataObjectMapElement();
+    synchronized (mapHits) {
+      oStats.put("entries", mapHits.size());
+      oStats.put("estimatedBytes", lBytes);
+    }
+    oStats.put("hits", lHits.get());
+    oStats.put("misses", lMisses.get());
+    oStats.put("stale", lStale.get());
+    oStats.put("evictions", lEvictions.get());
+    return oStats;
+  }
+
+  // ================ Private methods ==========================================
+  /**
+   * getFile
+   *    Get the parsed .hits file from the cache, or parse it and add it
+   *
+   * @param fHits
+   * @return
+   * @throws Exception
+   */
+  private HitsFile getFile(File fHits) throws Exception {
+    String sKey = fHits.getAbsolutePath();
+    synchronized (mapHits) {
+      HitsFile oFile = mapHits.get(sKey);
+      if (oFile != null) {
+        // Is this still the same version of the file?
+        if (oFile.lMtime == fHits.lastModified() && oFile.lLength == fHits.length()) {
+          lHits.incrementAndGet();
+          return oFile;
+        }
+        lStale.incrementAndGet();
+        mapHits.remove(sKey);
+        lBytes -= oFile.lSize;
+      }
+    }
+    // Parse the file outside of the lock
+    lMisses.incrementAndGet();
+    JSONObject oHitF = new JSONObject((new FileUtil()).readFile(fHits));
+    HitsFile oFile = new HitsFile(fHits, oHitF.getJSONArray("hits"));
+    synchronized (mapHits) {
+      HitsFile oOld = mapHits.put(sKey, oFile);
+      if (oOld != null) lBytes -= oOld.lSize;
+      lBytes += oFile.lSize;
+      // Remove the least recently used entries when over budget
+      Iterator<HitsFile> it = mapHits.values().iterator();
+      while (lBytes > lMaxBytes && mapHits.size() > 1 && it.hasNext()) {
+        HitsFile oEvict = it.next();
+        if (oEvict == oFile) continue;
+        it.remove();
+        lBytes -= oEvict.lSize;
+        lEvictions.incrementAndGet();
+      }
+    }
+    return oFile;
+  }
+}
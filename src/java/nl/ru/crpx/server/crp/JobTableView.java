@@ -0,0 +1,209 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import nl.ru.crpx.project.CorpusResearchProject;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.FileUtil;
+import nl.ru.util.json.JSONArray;
+import nl.ru.util.json.JSONObject;
+
+/**
+ * JobTableView
+ *    Access to the results table (<name>.table.json) of a CRP that has been
+ *    executed. The table can be requested per QC, and per range of the
+ *    hit-file entries of a QC, so that clients need not fetch the whole table.
+ *    The version (ETag) of the table is derived from the job id and the
+ *    modification time and size of the table file.
+ *    The table file of a job is registered when the job is started, so that
+ *    the CRP need not be loaded again to find it. The most recently used
+ *    tables are kept parsed, as long as their file does not change.
+ *
+ * @author Erwin R. Komen
+ */
+public class JobTableView {
+  // ================ Constants ================================================
+  private static final int MAX_JOBS = 1024;       // Jobs whose table file is known
+  private static final int MAX_TABLES = 8;        // Tables kept parsed
+  // ================ Static variables =========================================
+  private static final LinkedHashMap<String, File> mapJob = new LinkedHashMap<>(16, 0.75f, true);
+  private static final LinkedHashMap<String, Parsed> mapParsed = new LinkedHashMap<>(16, 0.75f, true);
+  // ================ Local variables ==========================================
+  private final ErrHandle errHandle;    // The error handler we are using
+  private final File fTable;            // Location of the table.json file
+  private final String sJobId;          // The job that produced the table
+
+  /**
+   * Parsed - a table as read from its file, with the version of the file
+   */
+  private static class Parsed {
+    final long lMtime;
+    final long lLength;
+    final JSONArray arTable;
+    Parsed(long lMtime, long lLength, JSONArray arTable) {
+      this.lMtime = lMtime; this.lLength = lLength; this.arTable = arTable;
+    }
+  }
+
+  // ================ Class initialisation =====================================
+  public JobTableView(File fTable, String sJobId, ErrHandle errHandle) {
+    this.fTable = fTable;
+    this.sJobId = sJobId;
+    this.errHandle = errHandle;
+  }
+
+  /**
+   * forCrp
+   *    Get the view on the table of the indicated CRP
+   *
+   * @param crpThis
+   * @param sJobId
+   * @param errHandle
+   * @return
+   */
+  public static JobTableView forCrp(CorpusResearchProject crpThis, String sJobId, ErrHandle errHandle) {
+    String sTableLoc = crpThis.getDstDir() + "/" + crpThis.getName() + ".table.json";
+    return new JobTableView(new File(sTableLoc), sJobId, errHandle);
+  }
+
+  /**
+   * register
+   *    Remember where the table of job @sJobId, which executes @crpThis,
+   *    is going to be
+   *
+   * @param crpThis
+   * @param sJobId
+   */
+  public static void register(CorpusResearchProject crpThis, String sJobId) {
+    File fTable = forCrp(crpThis, sJobId, null).getTableFile();
+    synchronized (mapJob) {
+      mapJob.put(sJobId, fTable);
+      Iterator<String> it = mapJob.keySet().iterator();
+      while (mapJob.size() > MAX_JOBS && it.hasNext()) { it.next(); it.remove(); }
+    }
+  }
+
+  /**
+   * forJob
+   *    Get the view on the table of job @sJobId
+   *
+   * @param sJobId
+   * @param errHandle
+   * @return          the view, or null if the job has not been registered
+   */
+  public static JobTableView forJob(String sJobId, ErrHandle errHandle) {
+    File fTable;
+    synchronized (mapJob) {
+      fTable = mapJob.get(sJobId);
+    }
+    return (fTable == null) ? null : new JobTableView(fTable, sJobId, errHandle);
+  }
+
+  public boolean exists() { return fTable.exists(); }
+  public File getTableFile() { return fTable; }
+  public long getLastModified() { return fTable.lastModified(); }
+
+  /**
+   * getETag
+   *    The version of the table: changes when the job or the file changes
+   *
+   * @return
+   */
+  public String getETag() {
+    return "\"" + sJobId + "-" + Long.toHexString(fTable.lastModified()) +
+            "-" + Long.toHexString(fTable.length()) + "\"";
+  }
+
+  /**
+   * getSlice
+   *    Get part of the table:
+   *    - only the QC with index @iQc (zero-based), or all if @iQc is negative
+   *    - per QC only the hit-file entries from @iHitStart, at most @iHitCount
+   *      (all if @iHitCount is negative)
+   *    - with @bSummary no hit-file entries at all
+   *    Each QC gets "hitstotal" (number of hit-file entries in the full table)
+   *    and "hitstart" (index of the first entry that is returned)
+   *
+   * @param iQc
+   * @param iHitStart
+   * @param iHitCount
+   * @param bSummary
+   * @return            part of the table, or null on failure
+   */
+  public JSONArray getSlice(int iQc, int iHitStart, int iHitCount, boolean bSummary) {
+    JSONArray arBack = new JSONArray();
+
+    try {
+      // Load the table (or take the one that has been read already)
+      JSONArray arTable = getTable();
+      // Walk all QCs
+      for (int i=0;i<arTable.length();i++) {
+        JSONObject oQC = arTable.getJSONObject(i);
+        // Is this the QC we need? (Note: "qc" in the table is one-based)
+        if (iQc >= 0 && oQC.getInt("qc") != iQc + 1) continue;
+        // Copy everything except the hits
+        JSONObject oSlice = new JSONObject();
+        Iterator keys = oQC.keys();
+        while (keys.hasNext()) {
+          String sKey = keys.next().toString();
+          if (!sKey.equals("hits")) oSlice.put(sKey, oQC.get(sKey));
+        }
+        // Take the requested part of the hits
+        JSONArray arHits = (oQC.has("hits")) ? oQC.getJSONArray("hits") : new JSONArray();
+        oSlice.put("hitstotal", arHits.length());
+        if (!bSummary) {
+          int iFirst = Math.max(0, iHitStart);
+          int iLast = (iHitCount < 0) ? arHits.length() :
+                  Math.min(arHits.length(), iFirst + iHitCount);
+          JSONArray arPart = new JSONArray();
+          for (int j=iFirst;j<iLast;j++) {
+            arPart.put(arHits.get(j));
+          }
+          oSlice.put("hitstart", iFirst);
+          oSlice.put("hits", arPart);
+        }
+        arBack.put(oSlice);
+      }
+      // Return what we found
+      return arBack;
+    } catch (Exception ex) {
+      errHandle.DoError("JobTableView/getSlice failed", ex, JobTableView.class);
+      return null;
+    }
+  }
+
+  // ================ Private methods ==========================================
+  /**
+   * getTable
+   *    The parsed table, read again only if the file has changed. The table
+   *    is shared, so it must not be changed.
+   *
+   * @return
+   * @throws Exception
+   */
+  private JSONArray getTable() throws Exception {
+    String sKey = fTable.getAbsolutePath();
+    long lMtime = fTable.lastModified();
+    long lLength = fTable.length();
+    synchronized (mapParsed) {
+      Parsed oParsed = mapParsed.get(sKey);
+      if (oParsed != null && oParsed.lMtime == lMtime && oParsed.lLength == lLength)
+        return oParsed.arTable;
+    }
+    JSONArray arTable = new JSONArray((new FileUtil()).readFile(fTable));
+    synchronized (mapParsed) {
+      mapParsed.put(sKey, new Parsed(lMtime, lLength, arTable));
+      Iterator<String> it = mapParsed.keySet().iterator();
+      while (mapParsed.size() > MAX_TABLES && it.hasNext()) { it.next(); it.remove(); }
+    }
+    return arTable;
+  }
+}
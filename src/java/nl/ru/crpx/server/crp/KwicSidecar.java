@@ -0,0 +1,436 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sf.saxon.s9api.Processor;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.crpx.project.CorpusResearchProject;
+import nl.ru.crpx.server.CrpPserver;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.ByRef;
+import nl.ru.util.json.JSONArray;
+import nl.ru.util.json.JSONObject;
+import nl.ru.xmltools.XmlAccess;
+import nl.ru.xmltools.XmlDocument;
+import nl.ru.xmltools.XmlResultDbase;
+
+/**
+ * KwicSidecar
+ *    The KWIC (pre/hit/fol) lines of all results of a result database,
+ *    computed once and stored in a file next to the database ("<db>.kwic").
+ *    The sidecar is made in the background (after an upload, or the first
+ *    time /dbinfo needs a database that does not have one yet), and is only
+ *    used as long as the database has the same modification time and size.
+ *    A database whose sidecar could not be made is only tried again when it
+ *    changes, or after a while.
+ *
+ *    Layout of the file:
+ *      int   MAGIC, int VERSION
+ *      long  modification time and long size of the database
+ *      long  position of the index, int number of index slots
+ *      per result: pre, hit and fol, each as int length and UTF-8 bytes
+ *      index: per ResId the position of its result (-1 if there is none)
+ *
+ * @author Erwin R. Komen
+ */
+public class KwicSidecar {
+  // ================ Constants ================================================
+  private static final int MAGIC = 0x4B574943;        // "KWIC"
+  private static final int VERSION = 2;
+  private static final long HEADER_INDEX_POS = 24;     // Where the index position is kept
+  private static final int CHUNK = 500;                // Results read at once
+  private static final long RETRY_MS = 600000;         // Wait before trying a failed database again
+  // ================ Local variables ==========================================
+  private final ErrHandle errHandle;                   // The error handler we are using
+  private final CrpPserver servlet;                    // Access to the corpus directories
+  private final CrpManager crpManager;                 // Access to projects and corpus files
+  private final boolean bBuild;                        // Make sidecars at all
+  private final ThreadPoolExecutor oExecutor;          // Background builder
+  private final Set<String> setPending =               // Databases being (or to be) built
+          Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final ConcurrentHashMap<String, Failure> mapFailed = new ConcurrentHashMap<>();
+  // ================ Statistics ===============================================
+  private final AtomicLong lHits = new AtomicLong();
+  private final AtomicLong lMisses = new AtomicLong();
+  private final AtomicLong lBuilds = new AtomicLong();
+  private final AtomicLong lBuildMs = new AtomicLong();
+  private final AtomicLong lFailed = new AtomicLong();
+
+  /**
+   * Failure - the version of a database for which no sidecar could be made
+   */
+  private static class Failure {
+    final long lMtime;
+    final long lLength;
+    final long lTime;               // When it failed
+    Failure(long lMtime, long lLength, long lTime) {
+      this.lMtime = lMtime; this.lLength = lLength; this.lTime = lTime;
+    }
+  }
+
+  /**
+   * Reader - access to the sidecar of one database (for one request)
+   */
+  public class Reader implements Closeable {
+    private final RandomAccessFile fRead;
+    private final long lIndexPos;
+    private final int iSlots;
+    Reader(RandomAccessFile fRead, long lIndexPos, int iSlots) {
+      this.fRead = fRead; this.lIndexPos = lIndexPos; this.iSlots = iSlots;
+    }
+    /**
+     * get
+     *    The KWIC of result @iResId
+     *
+     * @param iResId
+     * @return        JSON object with "pre", "hit" and "fol", or null
+     */
+    public JSONObject get(int iResId) {
+      try {
+        if (iResId < 0 || iResId >= iSlots) { lMisses.incrementAndGet(); return null; }
+        fRead.seek(lIndexPos + 8L * iResId);
+        long lPos = fRead.readLong();
+        if (lPos < 0) { lMisses.incrementAndGet(); return null; }
+        fRead.seek(lPos);
+        JSONObject oBack = new JSONObject();
+        oBack.put("pre", readLine(fRead));
+        oBack.put("hit", readLine(fRead));
+        oBack.put("fol", readLine(fRead));
+        lHits.incrementAndGet();
+        return oBack;
+      } catch (Exception ex) {
+        errHandle.DoError("KwicSidecar: could not read result " + iResId, ex, KwicSidecar.class);
+        return null;
+      }
+    }
+    @Override
+    public void close() {
+      try { fRead.close(); } catch (IOException ex) { /* nothing to do */ }
+    }
+  }
+
+  // ================ Class initialisation =====================================
+  /**
+   * KwicSidecar
+   *    Create the builder, taking its settings from the "kwicSidecar" section
+   *    within the "performance" part of the configuration
+   *
+   * @param servlet    - the servlet (for the configuration and corpus directories)
+   * @param crpManager - access to projects and corpus files
+   * @param errHandle  - error handler
+   */
+  public KwicSidecar(CrpPserver servlet, CrpManager crpManager, ErrHandle errHandle) {
+    boolean bMake = true;
+    int iThreads = 1;
+
+    this.errHandle = errHandle;
+    this.servlet = servlet;
+    this.crpManager = crpManager;
+    try {
+      JSONObject oConfig = servlet.getConfig();
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("kwicSidecar")) {
+          JSONObject oKwic = oPerf.getJSONObject("kwicSidecar");
+          if (oKwic.has("build")) bMake = oKwic.getBoolean("build");
+          if (oKwic.has("threads")) iThreads = oKwic.getInt("threads");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("KwicSidecar: could not read configuration", ex, KwicSidecar.class);
+    }
+    this.bBuild = bMake;
+    iThreads = Math.max(1, iThreads);
+    this.oExecutor = new ThreadPoolExecutor(iThreads, iThreads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thr = new Thread(r, "crpp-kwic");
+        thr.setDaemon(true);
+        thr.setPriority(Thread.MIN_PRIORITY);
+        return thr;
+      }
+    });
+    this.oExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * open
+   *    Open the sidecar of database @sDbFile. If there is none (or it is out
+   *    of date), then a new one is made in the background for user @sUserId
+   *
+   * @param sDbFile
+   * @param sUserId
+   * @return          reader to be closed by the caller, or null
+   */
+  public Reader open(String sDbFile, String sUserId) {
+    RandomAccessFile fRead = null;
+    try {
+      File fDb = new File(sDbFile);
+      File fKwic = getFile(fDb);
+      if (fKwic.exists()) {
+        fRead = new RandomAccessFile(fKwic, "r");
+        if (fRead.readInt() == MAGIC && fRead.readInt() == VERSION &&
+                fRead.readLong() == fDb.lastModified() && fRead.readLong() == fDb.length()) {
+          long lIndexPos = fRead.readLong();
+          int iSlots = fRead.readInt();
+          // A position of zero means that the sidecar was not completed
+          if (lIndexPos > 0) return new Reader(fRead, lIndexPos, iSlots);
+        }
+        fRead.close();
+      }
+      // There is no (up to date) sidecar
+      schedule(sDbFile, sUserId);
+      return null;
+    } catch (Exception ex) {
+      errHandle.DoError("KwicSidecar: could not open sidecar of " + sDbFile, ex, KwicSidecar.class);
+      if (fRead != null) try { fRead.close(); } catch (IOException e) { /* ignore */ }
+      return null;
+    }
+  }
+
+  /**
+   * schedule
+   *    Make the sidecar of database @sDbFile in the background (unless that
+   *    is already being done)
+   *
+   * @param sDbFile
+   * @param sUserId   - the user owning the database (and its project)
+   */
+  public void schedule(final String sDbFile, final String sUserId) {
+    if (!bBuild) return;
+    final File fDb = new File(sDbFile).getAbsoluteFile();
+    final String sKey = fDb.getPath();
+    // Do not try again and again for a database that failed
+    Failure oFailed = mapFailed.get(sKey);
+    if (oFailed != null && oFailed.lMtime == fDb.lastModified() && oFailed.lLength == fDb.length() &&
+            System.currentTimeMillis() - oFailed.lTime < RETRY_MS) return;
+    if (!setPending.add(sKey)) return;
+    try {
+      oExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            long lMtime = fDb.lastModified();
+            long lLength = fDb.length();
+            if (build(fDb, sUserId))
+              mapFailed.remove(sKey);
+            else if (!Thread.currentThread().isInterrupted())
+              mapFailed.put(sKey, new Failure(lMtime, lLength, System.currentTimeMillis()));
+          } finally {
+            setPending.remove(sKey);
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      setPending.remove(sKey);
+    }
+  }
+
+  /**
+   * getStats
+   *    Statistics of the sidecars (for /serverinfo)
+   *
+   * @return
+   */
+  public DataObjectMapElement getStats() {
+    DataObjectMapElement oStats = new DataObjectMapElement();
+    long lCount = lBuilds.get();
+    oStats.put("hits", lHits.get());
+    oStats.put("misses", lMisses.get());
+    oStats.put("pending", setPending.size());
+    oStats.put("builds", lCount);
+    oStats.put("buildMs", lBuildMs.get());
+    oStats.put("buildAvgMs", (lCount == 0) ? 0 : lBuildMs.get() / lCount);
+    oStats.put("failed", lFailed.get());
+    oStats.put("waiting", mapFailed.size());
+    return oStats;
+  }
+
+  /**
+   * stop
+   *    Stop making sidecars
+   */
+  public void stop() {
+    try {
+      oExecutor.shutdownNow();
+    } catch (Exception ex) {
+      errHandle.DoError("KwicSidecar/stop: ", ex, KwicSidecar.class);
+    }
+  }
+
+  // ================ Private methods ==========================================
+  private static File getFile(File fDb) {
+    return new File(fDb.getPath() + ".kwic");
+  }
+
+  /**
+   * build
+   *    Compute the KWIC lines of all results of database @fDb, and write
+   *    them to its sidecar: first to a temporary file, which then replaces
+   *    the old one
+   *
+   * @param fDb
+   * @param sUserId
+   * @return
+   */
+  private boolean build(File fDb, String sUserId) {
+    XmlResultDbase oDbIndex = null;
+    XmlAccess objXmlAcc = null;
+    File fTemp = null;
+    long lStart = System.currentTimeMillis();
+
+    try {
+      if (!fDb.exists()) return false;
+      // Remember the version of the database we start with
+      long lMtime = fDb.lastModified();
+      long lLength = fDb.length();
+      // Gain access to the database
+      oDbIndex = new XmlResultDbase(new CorpusResearchProject(true), null, errHandle);
+      if (!oDbIndex.Prepare(fDb.getAbsolutePath())) { lFailed.incrementAndGet(); return false; }
+      JSONObject oHdr = oDbIndex.headerInfo();
+      String sLngName = oHdr.getString("Language");
+      String sLngPart = oHdr.getString("Part");
+      String sCrpLngDir = servlet.getSearchManager().getCorpusPartDir(sLngName, sLngPart);
+      // The project that made the database tells how to read the corpus files
+      CorpusResearchProject crpThis = crpManager.getCrp(oHdr.getString("ProjectName"), sUserId);
+      if (crpThis == null) { lFailed.incrementAndGet(); return false; }
+      Processor objSaxon = crpThis.getSaxProc();
+      XmlDocument pdxThis = new XmlDocument(objSaxon.newDocumentBuilder(), objSaxon);
+      XmlAccessPool oXmlPool = crpManager.getXmlAccessPool();
+      CorpusFileIndex oFiles = crpManager.getCorpusFileIndex();
+
+      // Write the results to a temporary file
+      fTemp = new File(getFile(fDb).getPath() + ".tmp");
+      long[] arIndex = new long[64];
+      Arrays.fill(arIndex, -1);
+      int iSlots = 0;
+      long lIndexPos;
+      try (DataOutputStream fOut = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(fTemp), 65536))) {
+        fOut.writeInt(MAGIC);
+        fOut.writeInt(VERSION);
+        fOut.writeLong(lMtime);
+        fOut.writeLong(lLength);
+        fOut.writeLong(0);          // Position of the index: filled in at the end
+        fOut.writeInt(0);
+        long lPos = HEADER_INDEX_POS + 12;
+        String sCurrentFile = "";
+        int iSize = oDbIndex.Size();
+        for (int iFirst = 0; iFirst < iSize; iFirst += CHUNK) {
+          if (Thread.currentThread().isInterrupted()) return false;
+          ByRef<JSONArray> arResults = new ByRef(null);
+          arResults.argValue = new JSONArray();
+          if (!oDbIndex.getResults(arResults, iFirst, CHUNK)) break;
+          for (int i = 0; i < arResults.argValue.length(); i++) {
+            JSONObject oRes = arResults.argValue.getJSONObject(i);
+            int iResId = oRes.getInt("ResId");
+            if (iResId < 0) continue;
+            String sFile = oRes.getString("File");
+            // Get a handle to the file of this result
+            if (!sFile.equals(sCurrentFile)) {
+              sCurrentFile = sFile;
+              oXmlPool.release(objXmlAcc);
+              objXmlAcc = oXmlPool.acquire(crpThis, pdxThis, crpThis.intProjType,
+                      oFiles.find(sCrpLngDir, sFile));
+            }
+            if (objXmlAcc == null) continue;
+            JSONObject oKwic = objXmlAcc.getHitLine(sLngName, oRes.getString("Locs"),
+                    oRes.getString("Locw"));
+            if (oKwic == null) continue;
+            // Keep the position of this result
+            if (iResId >= arIndex.length) {
+              int iOld = arIndex.length;
+              arIndex = Arrays.copyOf(arIndex, Math.max(iResId + 1, iOld * 2));
+              Arrays.fill(arIndex, iOld, arIndex.length, -1);
+            }
+            arIndex[iResId] = lPos;
+            iSlots = Math.max(iSlots, iResId + 1);
+            lPos += writeLine(fOut, oKwic.getString("pre"));
+            lPos += writeLine(fOut, oKwic.getString("hit"));
+            lPos += writeLine(fOut, oKwic.getString("fol"));
+          }
+        }
+        // Add the index
+        lIndexPos = lPos;
+        for (int i = 0; i < iSlots; i++) fOut.writeLong(arIndex[i]);
+      }
+      // Now that the index is there, the header can point to it
+      try (RandomAccessFile fHdr = new RandomAccessFile(fTemp, "rw")) {
+        fHdr.seek(HEADER_INDEX_POS);
+        fHdr.writeLong(lIndexPos);
+        fHdr.writeInt(iSlots);
+      }
+      // Only use the sidecar if the database did not change in the meantime
+      if (fDb.lastModified() != lMtime || fDb.length() != lLength) return false;
+      File fKwic = getFile(fDb);
+      try {
+        Files.move(fTemp.toPath(), fKwic.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(fTemp.toPath(), fKwic.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      lBuilds.incrementAndGet();
+      lBuildMs.addAndGet(System.currentTimeMillis() - lStart);
+      errHandle.debug("KwicSidecar: made " + fKwic.getPath() + " (" + iSlots + " results)");
+      return true;
+    } catch (Exception ex) {
+      lFailed.incrementAndGet();
+      errHandle.DoError("KwicSidecar: could not make sidecar of " + fDb.getPath(), ex, KwicSidecar.class);
+      return false;
+    } finally {
+      crpManager.getXmlAccessPool().release(objXmlAcc);
+      if (oDbIndex != null) try { oDbIndex.close(); } catch (Exception ex) { /* ignore */ }
+      if (fTemp != null && fTemp.exists()) fTemp.delete();
+    }
+  }
+
+  /**
+   * writeLine
+   *    Write one KWIC line (of any length), and return the number of bytes
+   *    it took
+   *
+   * @param fOut
+   * @param sLine
+   * @return
+   * @throws IOException
+   */
+  private static long writeLine(DataOutputStream fOut, String sLine) throws IOException {
+    byte[] arLine = ((sLine == null) ? "" : sLine).getBytes(StandardCharsets.UTF_8);
+    fOut.writeInt(arLine.length);
+    fOut.write(arLine);
+    return 4L + arLine.length;
+  }
+
+  private static String readLine(RandomAccessFile fRead) throws IOException {
+    byte[] arLine = new byte[fRead.readInt()];
+    fRead.readFully(arLine);
+    return new String(arLine, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,304 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.File;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.crpx.project.CorpusResearchProject;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.json.JSONObject;
+import nl.ru.xmltools.XmlResultDbase;
+
+/**
+ * ResultColumnStore
+ *    The columnar companions ("<db>.cols") of result databases. A companion
+ *    is made in the background from the XML database (after an upload, or
+ *    the first time /dbinfo asks for a database that has none), and is then
+ *    kept in memory while it is used. The least recently used ones are
+ *    dropped from memory when their estimated size exceeds the budget.
+ *    A database for which no companion could be made is only tried again
+ *    when it has changed, or after a while.
+ *
+ * @author Erwin R. Komen
+ */
+public class ResultColumnStore {
+  // ================ Constants ================================================
+  private static final long DEFAULT_MAX_SIZE_MEGS = 256;  // Heap budget
+  private static final long RETRY_MS = 600000;         // Wait before trying a failed database again
+  // ================ Local variables ==========================================
+  private final ErrHandle errHandle;                   // The error handler we are using
+  private final boolean bBuild;                        // Make companions at all
+  private final long lMaxBytes;                        // Maximum estimated size in memory
+  private final LinkedHashMap<String, ResultColumns> mapCols = new LinkedHashMap<>(16, 0.75f, true);
+  private final ThreadPoolExecutor oExecutor;          // Background builder
+  private final Set<String> setPending =               // Databases being (or to be) built
+          Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final ConcurrentHashMap<String, Failure> mapFailed = new ConcurrentHashMap<>();
+  // ================ Statistics ===============================================
+  private final AtomicLong lHits = new AtomicLong();
+  private final AtomicLong lLoads = new AtomicLong();
+  private final AtomicLong lMisses = new AtomicLong();
+  private final AtomicLong lBuilds = new AtomicLong();
+  private final AtomicLong lBuildMs = new AtomicLong();
+  private final AtomicLong lFailed = new AtomicLong();
+
+  /**
+   * Failure - the version of a database for which no companion could be made
+   */
+  private static class Failure {
+    final long lMtime;
+    final long lLength;
+    final long lTime;               // When it failed
+    Failure(long lMtime, long lLength, long lTime) {
+      this.lMtime = lMtime; this.lLength = lLength; this.lTime = lTime;
+    }
+  }
+
+  // ================ Class initialisation =====================================
+  /**
+   * ResultColumnStore
+   *    Create the store, taking its settings from the "resultColumns" section
+   *    within the "performance" part of the configuration
+   *
+   * @param oConfig   - server configuration (may be null)
+   * @param errHandle - error handler
+   */
+  public ResultColumnStore(JSONObject oConfig, ErrHandle errHandle) {
+    boolean bMake = true;
+    long lSizeMegs = DEFAULT_MAX_SIZE_MEGS;
+
+    this.errHandle = errHandle;
+    try {
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("resultColumns")) {
+          JSONObject oCols = oPerf.getJSONObject("resultColumns");
+          if (oCols.has("build")) bMake = oCols.getBoolean("build");
+          if (oCols.has("maxSizeMegs")) lSizeMegs = oCols.getInt("maxSizeMegs");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("ResultColumnStore: could not read configuration", ex, ResultColumnStore.class);
+    }
+    this.bBuild = bMake;
+    this.lMaxBytes = (lSizeMegs < 0) ? Long.MAX_VALUE : lSizeMegs * 1024 * 1024;
+    this.oExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thr = new Thread(r, "crpp-columns");
+        thr.setDaemon(true);
+        thr.setPriority(Thread.MIN_PRIORITY);
+        return thr;
+      }
+    });
+    this.oExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * get
+   *    Get the columns of result database @sDbFile. If it has no (up to
+   *    date) companion yet, then one is made in the background
+   *
+   * @param sDbFile
+   * @return          the columns, or null if they are not available (yet)
+   */
+  public ResultColumns get(String sDbFile) {
+    if (!bBuild) return null;
+    try {
+      File fDb = new File(sDbFile);
+      String sKey = fDb.getAbsolutePath();
+      long lMtime = fDb.lastModified();
+      long lLength = fDb.length();
+      synchronized (mapCols) {
+        ResultColumns oCols = mapCols.get(sKey);
+        if (oCols != null && oCols.lMtime == lMtime && oCols.lLength == lLength) {
+          lHits.incrementAndGet();
+          return oCols;
+        }
+      }
+      // Read the companion, if it is there
+      File fCols = getFile(fDb);
+      ResultColumns oCols = (fCols.exists()) ? ResultColumns.read(fCols, lMtime, lLength) : null;
+      if (oCols == null) {
+        lMisses.incrementAndGet();
+        schedule(sDbFile);
+        return null;
+      }
+      lLoads.incrementAndGet();
+      keep(sKey, oCols);
+      return oCols;
+    } catch (Exception ex) {
+      errHandle.DoError("ResultColumnStore: could not load columns of " + sDbFile, ex, ResultColumnStore.class);
+      return null;
+    }
+  }
+
+  /**
+   * schedule
+   *    Make the columnar companion of database @sDbFile in the background
+   *    (unless that is already being done)
+   *
+   * @param sDbFile
+   */
+  public void schedule(String sDbFile) {
+    if (!bBuild) return;
+    final File fDb = new File(sDbFile).getAbsoluteFile();
+    final String sKey = fDb.getPath();
+    // Do not try again and again for a database that failed
+    Failure oFailed = mapFailed.get(sKey);
+    if (oFailed != null && oFailed.lMtime == fDb.lastModified() && oFailed.lLength == fDb.length() &&
+            System.currentTimeMillis() - oFailed.lTime < RETRY_MS) return;
+    if (!setPending.add(sKey)) return;
+    try {
+      oExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            long lMtime = fDb.lastModified();
+            long lLength = fDb.length();
+            if (build(fDb))
+              mapFailed.remove(sKey);
+            else if (!Thread.currentThread().isInterrupted())
+              mapFailed.put(sKey, new Failure(lMtime, lLength, System.currentTimeMillis()));
+          } finally {
+            setPending.remove(sKey);
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      setPending.remove(sKey);
+    }
+  }
+
+  /**
+   * getStats
+   *    Statistics of the columnar companions (for /serverinfo)
+   *
+   * @return
+   */
+  public DataObjectMapElement getStats() {
+    DataObjectMapElement oStats = new DataObjectMapElement();
+    synchronized (mapCols) {
+      oStats.put("entries", mapCols.size());
+    }
+    long lCount = lBuilds.get();
+    oStats.put("hits", lHits.get());
+    oStats.put("loads", lLoads.get());
+    oStats.put("misses", lMisses.get());
+    oStats.put("pending", setPending.size());
+    oStats.put("builds", lCount);
+    oStats.put("buildAvgMs", (lCount == 0) ? 0 : lBuildMs.get() / lCount);
+    oStats.put("failed", lFailed.get());
+    oStats.put("waiting", mapFailed.size());
+    return oStats;
+  }
+
+  /**
+   * stop
+   *    Stop making companions, and forget the ones in memory
+   */
+  public void stop() {
+    try {
+      oExecutor.shutdownNow();
+      synchronized (mapCols) { mapCols.clear(); }
+    } catch (Exception ex) {
+      errHandle.DoError("ResultColumnStore/stop: ", ex, ResultColumnStore.class);
+    }
+  }
+
+  // ================ Private methods ==========================================
+  private static File getFile(File fDb) {
+    return new File(fDb.getPath() + ".cols");
+  }
+
+  /**
+   * keep
+   *    Keep @oCols in memory, removing the least recently used columns while
+   *    the total size is too large (the newest always stays)
+   *
+   * @param sKey
+   * @param oCols
+   */
+  private void keep(String sKey, ResultColumns oCols) {
+    synchronized (mapCols) {
+      mapCols.put(sKey, oCols);
+      long lTotal = 0;
+      for (ResultColumns oThis : mapCols.values()) lTotal += oThis.getSize();
+      Iterator<Map.Entry<String, ResultColumns>> it = mapCols.entrySet().iterator();
+      while (lTotal > lMaxBytes && it.hasNext()) {
+        Map.Entry<String, ResultColumns> oEntry = it.next();
+        if (oEntry.getValue() == oCols) continue;
+        lTotal -= oEntry.getValue().getSize();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * build
+   *    Make the columns of database @fDb, and write them to its companion:
+   *    first to a temporary file, which then replaces the old one
+   *
+   * @param fDb
+   * @return
+   */
+  private boolean build(File fDb) {
+    XmlResultDbase oDbase = null;
+    File fTemp = null;
+    long lStart = System.currentTimeMillis();
+
+    try {
+      if (!fDb.exists()) return false;
+      // Remember the version of the database we start with
+      long lMtime = fDb.lastModified();
+      long lLength = fDb.length();
+      oDbase = new XmlResultDbase(new CorpusResearchProject(true), null, errHandle);
+      if (!oDbase.Prepare(fDb.getAbsolutePath())) { lFailed.incrementAndGet(); return false; }
+      ResultColumns oCols = ResultColumns.build(oDbase, lMtime, lLength);
+      if (oCols == null) { lFailed.incrementAndGet(); return false; }
+      fTemp = new File(getFile(fDb).getPath() + ".tmp");
+      oCols.write(fTemp);
+      // Only use the companion if the database did not change in the meantime
+      if (fDb.lastModified() != lMtime || fDb.length() != lLength) return false;
+      File fCols = getFile(fDb);
+      try {
+        Files.move(fTemp.toPath(), fCols.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(fTemp.toPath(), fCols.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      lBuilds.incrementAndGet();
+      lBuildMs.addAndGet(System.currentTimeMillis() - lStart);
+      errHandle.debug("ResultColumnStore: made " + fCols.getPath() + " (" + oCols.size() + " results)");
+      return true;
+    } catch (Exception ex) {
+      lFailed.incrementAndGet();
+      errHandle.DoError("ResultColumnStore: could not make columns of " + fDb.getPath(), ex, ResultColumnStore.class);
+      return false;
+    } finally {
+      if (oDbase != null) try { oDbase.close(); } catch (Exception ex) { /* ignore */ }
+      if (fTemp != null && fTemp.exists()) fTemp.delete();
+    }
+  }
+}
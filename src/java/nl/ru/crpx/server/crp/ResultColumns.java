@@ -0,0 +1,319 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import nl.ru.util.ByRef;
+import nl.ru.util.json.JSONArray;
+import nl.ru.util.json.JSONObject;
+import nl.ru.xmltools.XmlResultDbase;
+
+/**
+ * ResultColumns
+ *    A result database in columnar form ("<db>.cols"): one column per field
+ *    of a result (ResId, File, Locs, Cat, the metadata...) and one per
+ *    feature, in the order of the database. A page of results is read from
+ *    the columns without parsing the XML. Sorting and filtering are not done
+ *    here: their outcome must be exactly that of XmlResultDbase, so a sorted
+ *    or filtered page is left to the database itself (see isPlain).
+ *
+ *    Layout of the file:
+ *      int   MAGIC, int VERSION
+ *      long  modification time and long size of the XML database
+ *      int   length and UTF-8 bytes of the header of the database (JSON)
+ *      int   number of features, text name per feature
+ *      int   number of rows, int number of columns
+ *      per column: text name, boolean text; then per row a text or an int
+ *      (each text is an int length and UTF-8 bytes)
+ *
+ * @author Erwin R. Komen
+ */
+public class ResultColumns {
+  // ================ Constants ================================================
+  private static final int MAGIC = 0x434F4C53;        // "COLS"
+  private static final int VERSION = 3;
+  private static final int CHUNK = 1000;               // Results read at once
+  // Columns every result has: the first two are numbers, the others texts
+  private static final String[] FIXED = {"ResId", "Size", "File", "TextId", "Locs", "Locw",
+    "Cat", "SubType", "Title", "Genre", "Author", "Date"};
+  private static final int NUMBERS = 2;
+  // ================ Local variables ==========================================
+  final long lMtime;                        // Version of the XML database
+  final long lLength;
+  private final String sHeader;             // The <General> part as JSON
+  private final List<String> lstFeature;    // Names of the features
+  private final int iRows;
+  private final String[] arName;            // Per column: its name
+  private final int[][] arNumber;           // Per number column, per row: the value
+  private final String[][] arText;          // Per text column, per row: the value
+  private final long lSize;                 // Estimated number of bytes in memory
+
+  // ================ Class initialisation =====================================
+  private ResultColumns(long lMtime, long lLength, String sHeader, List<String> lstFeature,
+          int iRows, String[] arName, int[][] arNumber, String[][] arText) {
+    this.lMtime = lMtime;
+    this.lLength = lLength;
+    this.sHeader = sHeader;
+    this.lstFeature = Collections.unmodifiableList(lstFeature);
+    this.iRows = iRows;
+    this.arName = arName;
+    this.arNumber = arNumber;
+    this.arText = arText;
+    // Rows with the same text share one copy of it
+    long lBytes = 256 + (long) arName.length * iRows * 4;
+    Set<String> setSeen = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+    for (String[] arCol : arText) {
+      if (arCol == null) continue;
+      for (String sThis : arCol) {
+        if (setSeen.add(sThis)) lBytes += 40 + 2 * sThis.length();
+      }
+      setSeen.clear();
+    }
+    this.lSize = lBytes;
+  }
+
+  // ================ Public methods ===========================================
+  public JSONObject headerInfo() { return new JSONObject(sHeader); }
+  public List<String> featureList() { return lstFeature; }
+  public int size() { return iRows; }
+
+  /**
+   * isPlain
+   *    Does a request with sort @sSort and filter @oFilter ask for the results
+   *    in the order of the database (so that the columns can give them)?
+   *
+   * @param sSort
+   * @param oFilter   - may be null
+   * @return
+   */
+  public static boolean isPlain(String sSort, JSONObject oFilter) {
+    return (sSort == null || sSort.isEmpty()) && (oFilter == null || !oFilter.keys().hasNext());
+  }
+
+  /**
+   * getResults
+   *    The results from row @iStart on (at most @iCount), in the same form as
+   *    XmlResultDbase.getResults() gives them
+   *
+   * @param iStart
+   * @param iCount
+   * @return
+   */
+  public JSONArray getResults(int iStart, int iCount) {
+    JSONArray arBack = new JSONArray();
+    int iEnd = (int) Math.min((long) iStart + iCount, iRows);
+    for (int iRow = Math.max(0, iStart); iRow < iEnd; iRow++) {
+      JSONObject oRes = new JSONObject();
+      for (int c = 0; c < FIXED.length; c++) {
+        if (arText[c] == null)
+          oRes.put(arName[c], arNumber[c][iRow]);
+        else
+          oRes.put(arName[c], arText[c][iRow]);
+      }
+      JSONArray arFeat = new JSONArray();
+      for (int c = FIXED.length; c < arName.length; c++) {
+        JSONObject oFeat = new JSONObject();
+        oFeat.put("Name", arName[c]);
+        oFeat.put("Value", arText[c][iRow]);
+        arFeat.put(oFeat);
+      }
+      oRes.put("Features", arFeat);
+      arBack.put(oRes);
+    }
+    return arBack;
+  }
+
+  /**
+   * getSize
+   *    Estimated number of bytes taken by these columns
+   *
+   * @return
+   */
+  public long getSize() { return lSize; }
+
+  // ================ Making, reading and writing ==============================
+  /**
+   * build
+   *    Read all results of @oDbase (prepared, but not sorted or filtered)
+   *    into columns
+   *
+   * @param oDbase
+   * @param lMtime    - modification time of the XML database
+   * @param lLength   - size of the XML database
+   * @return          the columns, or null if the results cannot be read
+   */
+  static ResultColumns build(XmlResultDbase oDbase, long lMtime, long lLength) {
+    List<String> lstFeature = new ArrayList<>(oDbase.featureList());
+    int iSize = oDbase.Size();
+    int iCols = FIXED.length + lstFeature.size();
+    String[] arName = new String[iCols];
+    int[][] arNumber = new int[iCols][];
+    String[][] arText = new String[iCols][];
+    List<Map<String, String>> lstSame = new ArrayList<>();
+    for (int c = 0; c < iCols; c++) {
+      arName[c] = (c < FIXED.length) ? FIXED[c] : lstFeature.get(c - FIXED.length);
+      if (c < NUMBERS) arNumber[c] = new int[iSize]; else arText[c] = new String[iSize];
+      lstSame.add((c < NUMBERS) ? null : new HashMap<String, String>());
+    }
+    Map<String, Integer> mapFeat = new HashMap<>();
+    for (int f = 0; f < lstFeature.size(); f++) mapFeat.put(lstFeature.get(f), FIXED.length + f);
+    // Read the results chunk by chunk
+    int iRow = 0;
+    for (int iFirst = 0; iFirst < iSize && iRow < iSize; iFirst += CHUNK) {
+      ByRef<JSONArray> arResults = new ByRef(null);
+      arResults.argValue = new JSONArray();
+      if (!oDbase.getResults(arResults, iFirst, CHUNK)) return null;
+      for (int i = 0; i < arResults.argValue.length() && iRow < iSize; i++, iRow++) {
+        JSONObject oRes = arResults.argValue.getJSONObject(i);
+        arNumber[0][iRow] = oRes.getInt("ResId");
+        arNumber[1][iRow] = (oRes.has("Size")) ? oRes.getInt("Size") : 0;
+        for (int c = NUMBERS; c < FIXED.length; c++) {
+          String sValue = (oRes.has(FIXED[c])) ? oRes.getString(FIXED[c]) : "";
+          arText[c][iRow] = getSame(lstSame.get(c), sValue);
+        }
+        // Features that a result does not have are empty
+        for (int c = FIXED.length; c < iCols; c++) arText[c][iRow] = "";
+        if (oRes.has("Features")) {
+          JSONArray arFeat = oRes.getJSONArray("Features");
+          for (int k = 0; k < arFeat.length(); k++) {
+            JSONObject oFeat = arFeat.getJSONObject(k);
+            Integer iCol = mapFeat.get(oFeat.getString("Name"));
+            if (iCol != null) arText[iCol][iRow] = getSame(lstSame.get(iCol), oFeat.getString("Value"));
+          }
+        }
+      }
+    }
+    if (iRow < iSize) {
+      for (int c = 0; c < iCols; c++) {
+        if (arNumber[c] != null) arNumber[c] = Arrays.copyOf(arNumber[c], iRow);
+        if (arText[c] != null) arText[c] = Arrays.copyOf(arText[c], iRow);
+      }
+    }
+    return new ResultColumns(lMtime, lLength, oDbase.headerInfo().toString(), lstFeature,
+            iRow, arName, arNumber, arText);
+  }
+
+  /**
+   * write
+   *    Write the columns to file @fCols
+   *
+   * @param fCols
+   * @throws IOException
+   */
+  void write(File fCols) throws IOException {
+    try (DataOutputStream fOut = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(fCols), 65536))) {
+      fOut.writeInt(MAGIC);
+      fOut.writeInt(VERSION);
+      fOut.writeLong(lMtime);
+      fOut.writeLong(lLength);
+      byte[] arHeader = sHeader.getBytes(StandardCharsets.UTF_8);
+      fOut.writeInt(arHeader.length);
+      fOut.write(arHeader);
+      fOut.writeInt(lstFeature.size());
+      for (String sFeat : lstFeature) writeText(fOut, sFeat);
+      fOut.writeInt(iRows);
+      fOut.writeInt(arName.length);
+      for (int c = 0; c < arName.length; c++) {
+        writeText(fOut, arName[c]);
+        fOut.writeBoolean(arText[c] != null);
+        if (arText[c] != null) {
+          for (int r = 0; r < iRows; r++) writeText(fOut, arText[c][r]);
+        } else {
+          for (int r = 0; r < iRows; r++) fOut.writeInt(arNumber[c][r]);
+        }
+      }
+    }
+  }
+
+  /**
+   * read
+   *    Read the columns from file @fCols, provided they were made from the
+   *    XML database with modification time @lMtime and size @lLength
+   *
+   * @param fCols
+   * @param lMtime
+   * @param lLength
+   * @return          the columns, or null if the file is of another version
+   * @throws IOException
+   */
+  static ResultColumns read(File fCols, long lMtime, long lLength) throws IOException {
+    try (DataInputStream fIn = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(fCols), 65536))) {
+      if (fIn.readInt() != MAGIC || fIn.readInt() != VERSION) return null;
+      long lColsMtime = fIn.readLong();
+      long lColsLength = fIn.readLong();
+      if (lColsMtime != lMtime || lColsLength != lLength) return null;
+      byte[] arHeader = new byte[fIn.readInt()];
+      fIn.readFully(arHeader);
+      String sHeader = new String(arHeader, StandardCharsets.UTF_8);
+      int iFeats = fIn.readInt();
+      List<String> lstFeature = new ArrayList<>(iFeats);
+      for (int f = 0; f < iFeats; f++) lstFeature.add(readText(fIn));
+      int iRows = fIn.readInt();
+      int iCols = fIn.readInt();
+      String[] arName = new String[iCols];
+      int[][] arNumber = new int[iCols][];
+      String[][] arText = new String[iCols][];
+      for (int c = 0; c < iCols; c++) {
+        arName[c] = readText(fIn);
+        if (fIn.readBoolean()) {
+          // Keep one copy of a text that occurs in many rows
+          Map<String, String> mapSame = new HashMap<>();
+          String[] arCol = new String[iRows];
+          for (int r = 0; r < iRows; r++) arCol[r] = getSame(mapSame, readText(fIn));
+          arText[c] = arCol;
+        } else {
+          int[] arCol = new int[iRows];
+          for (int r = 0; r < iRows; r++) arCol[r] = fIn.readInt();
+          arNumber[c] = arCol;
+        }
+      }
+      return new ResultColumns(lColsMtime, lColsLength, sHeader, lstFeature, iRows,
+              arName, arNumber, arText);
+    }
+  }
+
+  // ================ Private methods ==========================================
+  private static String getSame(Map<String, String> mapSame, String sValue) {
+    String sSame = mapSame.get(sValue);
+    if (sSame == null) {
+      mapSame.put(sValue, sValue);
+      sSame = sValue;
+    }
+    return sSame;
+  }
+
+  private static void writeText(DataOutputStream fOut, String sText) throws IOException {
+    byte[] arText = sText.getBytes(StandardCharsets.UTF_8);
+    fOut.writeInt(arText.length);
+    fOut.write(arText);
+  }
+
+  private static String readText(DataInputStream fIn) throws IOException {
+    byte[] arText = new byte[fIn.readInt()];
+    fIn.readFully(arText);
+    return new String(arText, StandardCharsets.UTF_8);
+  }
+}
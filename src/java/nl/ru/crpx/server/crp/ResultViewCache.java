@@ -0,0 +1,281 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.crpx.project.CorpusResearchProject;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.json.JSONObject;
+import nl.ru.xmltools.XmlResultDbase;
+
+/**
+ * ResultViewCache
+ *    Prepared result databases, already sorted and filtered, so that paging
+ *    through a view with /dbinfo only needs to get the results of the page.
+ *    A view is identified by the database (path, modification time and size),
+ *    the sort key and the filter. A view is used by one request at a time:
+ *    it is taken out of the cache by [acquire] and given back by [release].
+ *    Views that are not in use are closed when there are too many of them,
+ *    or when they hold too many results together; the least recently used
+ *    ones go first.
+ *
+ * @author Erwin R. Komen
+ */
+public class ResultViewCache {
+  // ================ Constants ================================================
+  private static final int DEFAULT_MAX_IDLE = 16;          // Idle views kept
+  private static final int DEFAULT_MAX_RESULTS = 1000000;  // Results in all idle views
+  // ================ Local variables ==========================================
+  private final ErrHandle errHandle;                   // The error handler we are using
+  private final int iMaxIdle;                          // Maximum number of idle views
+  private final long lMaxResults;                      // Maximum results of all idle views
+  private long lIdleResults = 0;                       // Results of all idle views
+  private final Map<String, ArrayDeque<View>> mapIdle = new HashMap<>();
+  private final LinkedHashMap<View, Boolean> lruIdle = new LinkedHashMap<>(16, 0.75f, true);
+  private final IdentityHashMap<XmlResultDbase, View> mapLeased = new IdentityHashMap<>();
+  // ================ Statistics ===============================================
+  private final AtomicLong lHits = new AtomicLong();
+  private final AtomicLong lMisses = new AtomicLong();
+  private final AtomicLong lPrepareMs = new AtomicLong();
+  private final AtomicLong lEvictions = new AtomicLong();
+
+  /**
+   * View - one prepared, sorted and filtered database
+   */
+  private static class View {
+    final String sKey;
+    final XmlResultDbase oDbase;
+    final long lWeight;             // Number of results in the view
+    View(String sKey, XmlResultDbase oDbase, long lWeight) {
+      this.sKey = sKey; this.oDbase = oDbase; this.lWeight = lWeight;
+    }
+  }
+
+  // ================ Class initialisation =====================================
+  /**
+   * ResultViewCache
+   *    Create the cache, taking its size from the "resultViewCache" section
+   *    within the "performance" part of the configuration
+   *
+   * @param oConfig   - server configuration (may be null)
+   * @param errHandle - error handler
+   */
+  public ResultViewCache(JSONObject oConfig, ErrHandle errHandle) {
+    int iIdle = DEFAULT_MAX_IDLE;
+    int iResults = DEFAULT_MAX_RESULTS;
+
+    this.errHandle = errHandle;
+    try {
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("resultViewCache")) {
+          JSONObject oCache = oPerf.getJSONObject("resultViewCache");
+          if (oCache.has("maxIdle")) iIdle = oCache.getInt("maxIdle");
+          if (oCache.has("maxResults")) iResults = oCache.getInt("maxResults");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("ResultViewCache: could not read configuration", ex, ResultViewCache.class);
+    }
+    this.iMaxIdle = Math.max(0, iIdle);
+    this.lMaxResults = Math.max(0, iResults);
+  }
+
+  /**
+   * acquire
+   *    Get the view on database @sDbFile sorted by @sSort and filtered by
+   *    @oFilter: a cached one if there is one, or else a new one
+   *
+   * @param sDbFile
+   * @param sSort     - sort key (may be empty)
+   * @param oFilter   - filter (may be null)
+   * @return          the prepared database, or null if it cannot be loaded
+   */
+  public XmlResultDbase acquire(String sDbFile, String sSort, JSONObject oFilter) {
+    try {
+      File fDb = new File(sDbFile);
+      String sKey = fDb.getAbsolutePath() + "|" + fDb.lastModified() + "|" + fDb.length() +
+              "|" + getViewKey(sSort, oFilter);
+      synchronized (this) {
+        ArrayDeque<View> qIdle = mapIdle.get(sKey);
+        if (qIdle != null && !qIdle.isEmpty()) {
+          View oView = qIdle.pop();
+          if (qIdle.isEmpty()) mapIdle.remove(sKey);
+          lruIdle.remove(oView);
+          lIdleResults -= oView.lWeight;
+          mapLeased.put(oView.oDbase, oView);
+          lHits.incrementAndGet();
+          return oView.oDbase;
+        }
+      }
+      lMisses.incrementAndGet();
+      // Prepare a new view (outside of the lock, since this takes time)
+      long lStart = System.currentTimeMillis();
+      CorpusResearchProject oCrpx = new CorpusResearchProject(true);
+      XmlResultDbase oDbase = new XmlResultDbase(oCrpx, null, errHandle);
+      boolean bLeased = false;
+      try {
+        if (!oDbase.Prepare(sDbFile)) return null;
+        // Possibly perform sorting
+        oDbase.Sort(sSort);
+        // Possibly perform filtering
+        oDbase.Filter(oFilter);
+        lPrepareMs.addAndGet(System.currentTimeMillis() - lStart);
+        synchronized (this) {
+          mapLeased.put(oDbase, new View(sKey, oDbase, oDbase.Size() + 1));
+        }
+        bLeased = true;
+        return oDbase;
+      } finally {
+        // A view that could not be prepared is not handed out: close it
+        if (!bLeased) close(new View(sKey, oDbase, 0));
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("ResultViewCache: could not prepare " + sDbFile, ex, ResultViewCache.class);
+      return null;
+    }
+  }
+
+  /**
+   * release
+   *    Give a view obtained with [acquire] back, so that it can be reused
+   *
+   * @param oDbase  - may be null
+   */
+  public void release(XmlResultDbase oDbase) {
+    if (oDbase == null) return;
+    List<View> lstClose = new ArrayList<>();
+    synchronized (this) {
+      View oView = mapLeased.remove(oDbase);
+      if (oView == null || oView.lWeight > lMaxResults || iMaxIdle == 0) {
+        // Not one of ours, or too large to keep
+        lstClose.add((oView == null) ? new View("", oDbase, 0) : oView);
+      } else {
+        ArrayDeque<View> qIdle = mapIdle.get(oView.sKey);
+        if (qIdle == null) {
+          qIdle = new ArrayDeque<>();
+          mapIdle.put(oView.sKey, qIdle);
+        }
+        qIdle.push(oView);
+        lruIdle.put(oView, Boolean.TRUE);
+        lIdleResults += oView.lWeight;
+        // Remove the least recently used views while there are too many
+        Iterator<View> it = lruIdle.keySet().iterator();
+        while ((lruIdle.size() > iMaxIdle || lIdleResults > lMaxResults) && it.hasNext()) {
+          View oOld = it.next();
+          it.remove();
+          ArrayDeque<View> qOld = mapIdle.get(oOld.sKey);
+          if (qOld != null) {
+            qOld.remove(oOld);
+            if (qOld.isEmpty()) mapIdle.remove(oOld.sKey);
+          }
+          lIdleResults -= oOld.lWeight;
+          lEvictions.incrementAndGet();
+          lstClose.add(oOld);
+        }
+      }
+    }
+    for (View oView : lstClose) close(oView);
+  }
+
+  /**
+   * clear
+   *    Close all views that are not in use
+   */
+  public void clear() {
+    List<View> lstClose;
+    synchronized (this) {
+      lstClose = new ArrayList<>(lruIdle.keySet());
+      lruIdle.clear();
+      mapIdle.clear();
+      lIdleResults = 0;
+    }
+    for (View oView : lstClose) close(oView);
+  }
+
+  /**
+   * getStats
+   *    Statistics of this cache (for /serverinfo)
+   *
+   * @return
+   */
+  public DataObjectMapElement getStats() {
+    DataObjectMapElement oStats = new DataObjectMapElement();
+    synchronized (this) {
+      oStats.put("idle", lruIdle.size());
+      oStats.put("leased", mapLeased.size());
+      oStats.put("idleResults", lIdleResults);
+    }
+    oStats.put("hits", lHits.get());
+    oStats.put("misses", lMisses.get());
+    oStats.put("prepareMs", lPrepareMs.get());
+    oStats.put("evictions", lEvictions.get());
+    return oStats;
+  }
+
+  // ================ Private methods ==========================================
+  /**
+   * getViewKey
+   *    The sort key @sSort and filter @oFilter in a fixed form, in which
+   *    the order of the filter fields does not matter. Each string is
+   *    preceded by its length, so that no two different views can get the
+   *    same key, whatever characters the strings contain.
+   *
+   * @param sSort
+   * @param oFilter
+   * @return
+   */
+  private static String getViewKey(String sSort, JSONObject oFilter) {
+    StringBuilder sb = new StringBuilder();
+    addKeyPart(sb, sSort);
+    if (oFilter == null) return sb.append('-').toString();
+    try {
+      TreeMap<String, String> mapSorted = new TreeMap<>();
+      Iterator keys = oFilter.keys();
+      while (keys.hasNext()) {
+        String sKey = keys.next().toString();
+        mapSorted.put(sKey, oFilter.getString(sKey));
+      }
+      sb.append('f');
+      for (Map.Entry<String, String> oEntry : mapSorted.entrySet()) {
+        addKeyPart(sb, oEntry.getKey());
+        addKeyPart(sb, oEntry.getValue());
+      }
+      return sb.toString();
+    } catch (Exception ex) {
+      // Not a simple filter: use it as it is
+      sb.append('j');
+      addKeyPart(sb, oFilter.toString());
+      return sb.toString();
+    }
+  }
+
+  private static void addKeyPart(StringBuilder sb, String sPart) {
+    if (sPart == null) sPart = "";
+    sb.append(sPart.length()).append(':').append(sPart);
+  }
+
+  private void close(View oView) {
+    try {
+      oView.oDbase.close();
+    } catch (Exception ex) {
+      errHandle.DoError("ResultViewCache: could not close view", ex, ResultViewCache.class);
+    }
+  }
+}
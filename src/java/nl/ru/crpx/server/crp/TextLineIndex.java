@@ -0,0 +1,240 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.json.JSONArray;
+import nl.ru.util.json.JSONObject;
+
+/**
+ * TextLineIndex
+ *    The surface text of a corpus text (the "<name>.<ext>.json.gz" file) in
+ *    a form that allows reading any page of lines without reading the rest
+ *    ("<name>.<ext>.lines" in the cache directory of its directory, see
+ *    CorpusCache). The file is made from the .json.gz
+ *    the first time a text is asked for, and is only used as long as that
+ *    .json.gz has the same modification time and size.
+ *
+ *    Layout of the file:
+ *      int   MAGIC, int VERSION
+ *      long  modification time and long size of the .json.gz
+ *      long  position of the index, int number of lines
+ *      per line: UTF id, int length and UTF-8 bytes of the text
+ *      index: per line the position of its record
+ *
+ * @author Erwin R. Komen
+ */
+public class TextLineIndex {
+  // ================ Constants ================================================
+  private static final int MAGIC = 0x5458544C;        // "TXTL"
+  private static final int VERSION = 1;
+  private static final long HEADER_INDEX_POS = 24;     // Where the index position is kept
+  private static final String EXT_JSON = ".json.gz";
+  private static final String EXT_LINES = ".lines";
+  // ================ Local variables ==========================================
+  private final ErrHandle errHandle;                   // The error handler we are using
+  private final CorpusCache oCache;                    // Where the line indices are stored
+  // ================ Statistics ===============================================
+  private final AtomicLong lHits = new AtomicLong();
+  private final AtomicLong lMisses = new AtomicLong();
+  private final AtomicLong lBuilds = new AtomicLong();
+  private final AtomicLong lLinesRead = new AtomicLong();
+
+  // ================ Class initialisation =====================================
+  public TextLineIndex(CorpusCache oCache, ErrHandle errHandle) {
+    this.errHandle = errHandle;
+    this.oCache = oCache;
+  }
+
+  /**
+   * getPage
+   *    Read @iCount lines starting at line @iStart of the text whose surface
+   *    text is in @fJson
+   *
+   * @param fJson   - the .json.gz file of the text
+   * @param iStart  - first line (from zero)
+   * @param iCount  - number of lines (zero or less: all lines from iStart)
+   * @return        object with "count" (all lines of the text), "start" and
+   *                "line", or null if there is no (up to date) index
+   */
+  public JSONObject getPage(File fJson, int iStart, int iCount) {
+    File fLines = getFile(fJson);
+    if (!fLines.exists()) { lMisses.incrementAndGet(); return null; }
+    try (RandomAccessFile fRead = new RandomAccessFile(fLines, "r")) {
+      if (fRead.readInt() != MAGIC || fRead.readInt() != VERSION ||
+              fRead.readLong() != fJson.lastModified() || fRead.readLong() != fJson.length()) {
+        lMisses.incrementAndGet();
+        return null;
+      }
+      long lIndexPos = fRead.readLong();
+      int iLines = fRead.readInt();
+      // A position of zero means that the file was not completed
+      if (lIndexPos <= 0) { lMisses.incrementAndGet(); return null; }
+      // Determine the range of lines
+      int iFirst = Math.max(0, iStart);
+      int iLast = (iCount <= 0) ? iLines : (int) Math.min((long) iFirst + iCount, iLines);
+      JSONArray arLine = new JSONArray();
+      if (iFirst < iLast) {
+        // The records of a range of lines follow each other: seek once, then
+        // read them through a buffer (not with a system call per field)
+        fRead.seek(lIndexPos + 8L * iFirst);
+        fRead.seek(fRead.readLong());
+        DataInputStream fIn = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(fRead.getChannel()), 65536));
+        for (int i = iFirst; i < iLast; i++) {
+          JSONObject oLine = new JSONObject();
+          oLine.put("id", fIn.readUTF());
+          byte[] arText = new byte[fIn.readInt()];
+          fIn.readFully(arText);
+          oLine.put("text", new String(arText, StandardCharsets.UTF_8));
+          arLine.put(oLine);
+        }
+        lLinesRead.addAndGet(iLast - iFirst);
+      }
+      lHits.incrementAndGet();
+      return getResult(iLines, iFirst, arLine);
+    } catch (Exception ex) {
+      errHandle.DoError("TextLineIndex: could not read " + fLines.getPath(), ex, TextLineIndex.class);
+      return null;
+    }
+  }
+
+  /**
+   * cutPage
+   *    Take @iCount lines starting at line @iStart from the complete surface
+   *    text @oText (as read from a .json.gz file)
+   *
+   * @param oText
+   * @param iStart
+   * @param iCount  - number of lines (zero or less: all lines from iStart)
+   * @return        object with "count", "start" and "line"
+   */
+  public static JSONObject cutPage(JSONObject oText, int iStart, int iCount) {
+    JSONArray arAll = oText.getJSONArray("line");
+    int iLines = arAll.length();
+    int iFirst = Math.max(0, iStart);
+    int iLast = (iCount <= 0) ? iLines : (int) Math.min((long) iFirst + iCount, iLines);
+    JSONArray arLine = new JSONArray();
+    for (int i = iFirst; i < iLast; i++) arLine.put(arAll.getJSONObject(i));
+    return getResult(iLines, iFirst, arLine);
+  }
+
+  /**
+   * write
+   *    Make the line index of @fJson from its complete surface text @oText:
+   *    first to a temporary file, which then replaces the old one
+   *
+   * @param fJson
+   * @param oText
+   * @return        true if the index has been made
+   */
+  public boolean write(File fJson, JSONObject oText) {
+    File fTemp = null;
+    try {
+      if (!fJson.exists() || !oText.has("line")) return false;
+      long lMtime = fJson.lastModified();
+      long lLength = fJson.length();
+      JSONArray arLine = oText.getJSONArray("line");
+      int iLines = arLine.length();
+      long[] arIndex = new long[iLines];
+      long lIndexPos;
+      // Each request making the index has its own temporary file
+      File fLines = getFile(fJson);
+      fTemp = File.createTempFile(fLines.getName(), ".tmp", fLines.getParentFile());
+      try (DataOutputStream fOut = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(fTemp), 65536))) {
+        fOut.writeInt(MAGIC);
+        fOut.writeInt(VERSION);
+        fOut.writeLong(lMtime);
+        fOut.writeLong(lLength);
+        fOut.writeLong(0);          // Position of the index: filled in at the end
+        fOut.writeInt(0);
+        long lPos = HEADER_INDEX_POS + 12;
+        for (int i = 0; i < iLines; i++) {
+          JSONObject oLine = arLine.getJSONObject(i);
+          arIndex[i] = lPos;
+          int iBefore = fOut.size();
+          fOut.writeUTF(oLine.getString("id"));
+          byte[] arText = oLine.getString("text").getBytes(StandardCharsets.UTF_8);
+          fOut.writeInt(arText.length);
+          fOut.write(arText);
+          lPos += fOut.size() - iBefore;
+        }
+        // Add the index
+        lIndexPos = lPos;
+        for (int i = 0; i < iLines; i++) fOut.writeLong(arIndex[i]);
+      }
+      // Now that the index is there, the header can point to it
+      try (RandomAccessFile fHdr = new RandomAccessFile(fTemp, "rw")) {
+        fHdr.seek(HEADER_INDEX_POS);
+        fHdr.writeLong(lIndexPos);
+        fHdr.writeInt(iLines);
+      }
+      // Only use the index if the text did not change in the meantime
+      if (fJson.lastModified() != lMtime || fJson.length() != lLength) return false;
+      try {
+        Files.move(fTemp.toPath(), fLines.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(fTemp.toPath(), fLines.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      lBuilds.incrementAndGet();
+      return true;
+    } catch (Exception ex) {
+      errHandle.DoError("TextLineIndex: could not make the line index of " + fJson.getPath(), ex, TextLineIndex.class);
+      return false;
+    } finally {
+      if (fTemp != null && fTemp.exists()) fTemp.delete();
+    }
+  }
+
+  /**
+   * getStats
+   *    Statistics of the line indices (for /serverinfo)
+   *
+   * @return
+   */
+  public DataObjectMapElement getStats() {
+    DataObjectMapElement oStats = new DataObjectMapElement();
+    oStats.put("hits", lHits.get());
+    oStats.put("misses", lMisses.get());
+    oStats.put("builds", lBuilds.get());
+    oStats.put("linesRead", lLinesRead.get());
+    return oStats;
+  }
+
+  // ================ Private methods ==========================================
+  private File getFile(File fJson) {
+    File fAbs = fJson.getAbsoluteFile();
+    String sName = fAbs.getName();
+    if (sName.endsWith(EXT_JSON)) sName = sName.substring(0, sName.length() - EXT_JSON.length());
+    return oCache.getFile(fAbs.getParentFile(), sName + EXT_LINES);
+  }
+
+  private static JSONObject getResult(int iLines, int iStart, JSONArray arLine) {
+    JSONObject oBack = new JSONObject();
+    oBack.put("count", iLines);
+    oBack.put("start", iStart);
+    oBack.put("line", arLine);
+    return oBack;
+  }
+}
@@ -0,0 +1,370 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.File;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.Json;
+import nl.ru.util.json.JSONArray;
+import nl.ru.util.json.JSONObject;
+import nl.ru.xmltools.Parse;
+
+/**
+ * TextListScanner
+ *    Keeps the "textlist-<ext>.json" files of the corpus parts up to date.
+ *    Each directory in such a list has a fingerprint: its modification time
+ *    and the number of entries in it. When the list is asked for, the
+ *    directories are walked again (not more than once every so many seconds),
+ *    and only the directories whose fingerprint changed are looked into.
+ *    The metadata of the texts in there is taken from the CorpusMetaIndex,
+ *    whose headers are parsed in parallel on a fork-join pool.
+ *
+ * @author Erwin R. Komen
+ */
+public class TextListScanner {
+  // ================ Constants ================================================
+  private static final int DEFAULT_RECHECK_SECONDS = 30;  // Time between walks
+  private static final int LEAF_SIZE = 32;                // Texts per parallel task
+  // ================ Local variables ==========================================
+  private final ErrHandle errHandle;                   // The error handler we are using
+  private final CorpusMetaIndex oMetaIndex;            // Metadata of the texts
+  private final ForkJoinPool oPool;                    // Parses the headers of texts
+  private final long lRecheckMs;                       // Minimum time between walks
+  private final ConcurrentMap<String, Long> mapChecked = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Object> mapLock = new ConcurrentHashMap<>();
+  // ================ Statistics ===============================================
+  private final AtomicLong lScans = new AtomicLong();
+  private final AtomicLong lScanMs = new AtomicLong();
+  private final AtomicLong lDirsRead = new AtomicLong();
+  private final AtomicLong lDirsKept = new AtomicLong();
+  private final AtomicLong lTexts = new AtomicLong();
+  private final AtomicLong lWrites = new AtomicLong();
+
+  /**
+   * Item - one text whose metadata needs to be added to its entry
+   */
+  private static class Item {
+    final String sFile;             // Full path of the text
+    final JSONObject oFile;         // Its entry in the list
+    Item(String sFile, JSONObject oFile) { this.sFile = sFile; this.oFile = oFile; }
+  }
+
+  // ================ Class initialisation =====================================
+  /**
+   * TextListScanner
+   *    Create the scanner, taking its settings from the "textList" section
+   *    within the "performance" part of the configuration
+   *
+   * @param oMetaIndex  - metadata of the corpus texts
+   * @param oConfig     - server configuration (may be null)
+   * @param errHandle   - error handler
+   */
+  public TextListScanner(CorpusMetaIndex oMetaIndex, JSONObject oConfig, ErrHandle errHandle) {
+    int iThreads = 0;
+    int iRecheck = DEFAULT_RECHECK_SECONDS;
+
+    this.errHandle = errHandle;
+    this.oMetaIndex = oMetaIndex;
+    try {
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("textList")) {
+          JSONObject oList = oPerf.getJSONObject("textList");
+          if (oList.has("threads")) iThreads = oList.getInt("threads");
+          if (oList.has("recheckSeconds")) iRecheck = oList.getInt("recheckSeconds");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("TextListScanner: could not read configuration", ex, TextListScanner.class);
+    }
+    // Zero threads means: one per processor
+    if (iThreads <= 0) iThreads = Runtime.getRuntime().availableProcessors();
+    this.oPool = new ForkJoinPool(iThreads);
+    this.lRecheckMs = Math.max(0, iRecheck) * 1000L;
+  }
+
+  /**
+   * getTextList
+   *    Get the list of texts under @pRoot, as stored in @fList. The list is
+   *    brought up to date first, unless that was done shortly before
+   *
+   * @param pRoot     - directory of the corpus part
+   * @param fList     - the textlist-<ext>.json file of this part
+   * @param sSearch   - pattern the names of texts and directories must match
+   * @param sExtFind  - extension of the texts
+   * @param oMetaPart - the metadata index of this part (may be null)
+   * @return          the list, or null if it cannot be made
+   */
+  public JSONObject getTextList(Path pRoot, File fList, String sSearch, String sExtFind,
+          CorpusMetaIndex.Part oMetaPart) {
+    String sKey = fList.getAbsolutePath();
+    Object oLock = mapLock.get(sKey);
+    if (oLock == null) {
+      Object oNew = new Object();
+      oLock = mapLock.putIfAbsent(sKey, oNew);
+      if (oLock == null) oLock = oNew;
+    }
+    try {
+      synchronized (oLock) {
+        Long lChecked = mapChecked.get(sKey);
+        if (lChecked != null && fList.exists() &&
+                System.currentTimeMillis() - lChecked < lRecheckMs) {
+          return Json.read(fList);
+        }
+        JSONObject oList = scan(pRoot, fList, sSearch, sExtFind, oMetaPart);
+        if (oList != null) mapChecked.put(sKey, System.currentTimeMillis());
+        return oList;
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("TextListScanner: could not get " + sKey, ex, TextListScanner.class);
+      return null;
+    }
+  }
+
+  /**
+   * getStats
+   *    Statistics of the scanner (for /serverinfo)
+   *
+   * @return
+   */
+  public DataObjectMapElement getStats() {
+    DataObjectMapElement oStats = new DataObjectMapElement();
+    long lCount = lScans.get();
+    oStats.put("threads", oPool.getParallelism());
+    oStats.put("scans", lCount);
+    oStats.put("scanAvgMs", (lCount == 0) ? 0 : lScanMs.get() / lCount);
+    oStats.put("dirsRead", lDirsRead.get());
+    oStats.put("dirsKept", lDirsKept.get());
+    oStats.put("texts", lTexts.get());
+    oStats.put("writes", lWrites.get());
+    return oStats;
+  }
+
+  /**
+   * stop
+   *    Stop the threads that parse texts
+   */
+  public void stop() {
+    try {
+      oPool.shutdownNow();
+    } catch (Exception ex) {
+      errHandle.DoError("TextListScanner/stop: ", ex, TextListScanner.class);
+    }
+  }
+
+  // ================ Private methods ==========================================
+  /**
+   * scan
+   *    Walk the directories under @pRoot, re-use the part of the existing
+   *    list @fList of directories that did not change, and make the entries
+   *    of the ones that did. The list is only written if anything changed
+   *
+   * @param pRoot
+   * @param fList
+   * @param sSearch
+   * @param sExtFind
+   * @param oMetaPart
+   * @return
+   * @throws Exception
+   */
+  private JSONObject scan(Path pRoot, File fList, String sSearch, String sExtFind,
+          CorpusMetaIndex.Part oMetaPart) throws Exception {
+    long lStart = System.currentTimeMillis();
+    Deque<Path> stack = new ArrayDeque<>();
+    Map<String, JSONObject> mapOldDir = new HashMap<>();
+    JSONObject oOldPrint = null;
+    JSONObject oOld = null;
+
+    lScans.incrementAndGet();
+    // Get what we had before
+    if (fList.exists()) {
+      try {
+        oOld = Json.read(fList);
+        JSONArray arOld = oOld.getJSONArray("list");
+        for (int i = 0; i < arOld.length(); i++) {
+          JSONObject oDir = arOld.getJSONObject(i);
+          mapOldDir.put(oDir.getString("path"), oDir);
+        }
+        // Lists made before there were fingerprints are made again
+        if (oOld.has("dirs")) oOldPrint = oOld.getJSONObject("dirs");
+      } catch (Exception ex) {
+        errHandle.DoError("TextListScanner: could not read " + fList.getPath(), ex, TextListScanner.class);
+        oOldPrint = null;
+      }
+    }
+    int iOldDirs = 0;
+    if (oOldPrint != null) {
+      Iterator keys = oOldPrint.keys();
+      while (keys.hasNext()) { keys.next(); iOldDirs++; }
+    }
+
+    // Walk all directories in the same order as always
+    JSONArray arDir = new JSONArray();
+    JSONObject oPrint = new JSONObject();
+    List<Item> lstItem = new ArrayList<>();
+    int iKept = 0;
+    int iRead = 0;
+    int iTexts = 0;
+    stack.push(pRoot);
+    while (!stack.isEmpty()) {
+      Path pThis = stack.pop();
+      String sPath = pThis.toAbsolutePath().toString();
+      long lMtime = Files.getLastModifiedTime(pThis).toMillis();
+      List<Path> lstFile = new ArrayList<>();
+      int iEntries = 0;
+      try(DirectoryStream<Path> streamSub = Files.newDirectoryStream(pThis, sSearch)) {
+        for (Path pathSub : streamSub) {
+          iEntries++;
+          if (Files.isDirectory(pathSub)) {
+            stack.push(pathSub);
+          } else if (pathSub.getFileName().toString().endsWith(sExtFind)) {
+            lstFile.add(pathSub);
+          }
+        }
+      }
+      // Keep the fingerprint of this directory
+      JSONObject oDirPrint = new JSONObject();
+      oDirPrint.put("mtime", Long.toHexString(lMtime));
+      oDirPrint.put("entries", iEntries);
+      oPrint.put(sPath, oDirPrint);
+      // Can we use what we had?
+      if (oOldPrint != null && oOldPrint.has(sPath)) {
+        JSONObject oOldDir = oOldPrint.getJSONObject(sPath);
+        if (oOldDir.getString("mtime").equals(Long.toHexString(lMtime)) &&
+                oOldDir.getInt("entries") == iEntries) {
+          iKept++;
+          JSONObject oDirContent = mapOldDir.get(sPath);
+          if (oDirContent != null) {
+            arDir.put(oDirContent);
+            iTexts += oDirContent.getInt("count");
+          }
+          continue;
+        }
+      }
+      // This directory needs to be looked into
+      iRead++;
+      if (lstFile.isEmpty()) continue;
+      JSONArray arContent = new JSONArray();
+      for (Path pathSub : lstFile) {
+        String sFile = pathSub.getFileName().toString();
+        JSONObject oFile = new JSONObject();
+        oFile.put("name", sFile.substring(0, sFile.length() - sExtFind.length()));
+        oFile.put("ext", sExtFind);
+        arContent.put(oFile);
+        // The metadata is added later on
+        lstItem.add(new Item(pathSub.toAbsolutePath().toString(), oFile));
+      }
+      JSONObject oDirContent = new JSONObject();
+      oDirContent.put("count", lstFile.size());
+      oDirContent.put("path", sPath);
+      oDirContent.put("list", arContent);
+      arDir.put(oDirContent);
+      iTexts += lstFile.size();
+    }
+    lDirsKept.addAndGet(iKept);
+    lDirsRead.addAndGet(iRead);
+
+    // Nothing changed: keep the list we have
+    if (oOld != null && iRead == 0 && iKept == iOldDirs) {
+      lScanMs.addAndGet(System.currentTimeMillis() - lStart);
+      return oOld;
+    }
+
+    // Get the metadata of the texts in the directories that changed
+    if (!lstItem.isEmpty()) {
+      oPool.invoke(new MetaTask(lstItem, 0, lstItem.size(), oMetaPart));
+      lTexts.addAndGet(lstItem.size());
+      oMetaIndex.save(oMetaPart);
+    }
+
+    // Create a json object with the contents
+    JSONObject oTotal = new JSONObject();
+    oTotal.put("paths", arDir.length());
+    oTotal.put("texts", iTexts);
+    oTotal.put("list", arDir);
+    oTotal.put("dirs", oPrint);
+    // Store this object: first to a temporary file, which then replaces the old one
+    File fTemp = new File(fList.getPath() + ".tmp");
+    Json.write(oTotal, fTemp);
+    try {
+      Files.move(fTemp.toPath(), fList.toPath(),
+              StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException ex) {
+      Files.move(fTemp.toPath(), fList.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    lWrites.incrementAndGet();
+    lScanMs.addAndGet(System.currentTimeMillis() - lStart);
+    errHandle.debug("TextListScanner: " + fList.getPath() + " - read " + iRead +
+            " directories, kept " + iKept + ", parsed " + lstItem.size() + " texts");
+    return oTotal;
+  }
+
+  /**
+   * MetaTask - add the metadata to the entries of a range of texts
+   *    Ranges are split until they are small enough for one parser
+   */
+  private class MetaTask extends RecursiveAction {
+    private final List<Item> lstItem;
+    private final int iFrom;
+    private final int iTo;
+    private final CorpusMetaIndex.Part oMetaPart;
+
+    MetaTask(List<Item> lstItem, int iFrom, int iTo, CorpusMetaIndex.Part oMetaPart) {
+      this.lstItem = lstItem; this.iFrom = iFrom; this.iTo = iTo; this.oMetaPart = oMetaPart;
+    }
+
+    @Override
+    protected void compute() {
+      if (iTo - iFrom > LEAF_SIZE) {
+        int iMid = (iFrom + iTo) >>> 1;
+        invokeAll(new MetaTask(lstItem, iFrom, iMid, oMetaPart),
+                new MetaTask(lstItem, iMid, iTo, oMetaPart));
+        return;
+      }
+      // A parser is not shared between threads
+      Parse prsThis = oMetaIndex.getParser(lstItem.get(iFrom).sFile);
+      if (prsThis == null) return;
+      for (int i = iFrom; i < iTo; i++) {
+        Item oItem = lstItem.get(i);
+        JSONObject oMeta = oMetaIndex.get(oMetaPart, oItem.sFile, prsThis);
+        if (oMeta == null) continue;
+        // Add all the metadata to the entry of the text
+        Iterator keys = oMeta.keys();
+        while (keys.hasNext()) {
+          String sKey = keys.next().toString();
+          switch(sKey) {
+            case "size":
+              oItem.oFile.put(sKey, oMeta.getInt(sKey));
+              break;
+            default:
+              oItem.oFile.put(sKey, oMeta.getString(sKey));
+              break;
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,331 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.File;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.FileUtil;
+import nl.ru.util.json.JSONArray;
+import nl.ru.util.json.JSONObject;
+
+/**
+ * UserSettingsStore
+ *    The "settings.json" of each user, kept in memory once it has been read.
+ *    Callers read and change the settings of one user while holding the lock
+ *    of that user (getLock), and call changed() after a change. Changes are
+ *    written to disk later (write-behind), so that several changes in a row
+ *    lead to one write. The file is replaced atomically.
+ *
+ * @author Erwin R. Komen
+ */
+public class UserSettingsStore {
+  // ================ Constants ================================================
+  private static final long DEFAULT_WRITE_DELAY_MS = 2000;  // Delay before writing changes
+  private static final long MAX_RETRY_DELAY_MS = 300000;    // Longest wait before writing again
+  // ================ Local variables ==========================================
+  private final ErrHandle errHandle;                   // The error handler we are using
+  private final String sProjectBase;                   // Where the user directories are
+  private final long lWriteDelayMs;                    // Delay before writing changes
+  private final String sStoreId;                       // Distinguishes versions of different runs
+  private final ConcurrentHashMap<String, Entry> mapUser = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService oWriter;
+  // ================ Statistics ===============================================
+  private final AtomicLong lLoads = new AtomicLong();
+  private final AtomicLong lChanges = new AtomicLong();
+  private final AtomicLong lWrites = new AtomicLong();
+
+  /**
+   * Entry - the settings of one user
+   *    All fields are guarded by the Entry itself
+   */
+  private static class Entry {
+    final String sUserId;
+    JSONObject oSettings = null;    // The settings (null until loaded)
+    boolean bDirty = false;         // Changed since the last write
+    boolean bScheduled = false;     // A write has been scheduled
+    int iFailures = 0;              // Writes that failed in a row
+    long lVersion = 0;              // Incremented on every change
+    Entry(String sUserId) { this.sUserId = sUserId; }
+  }
+
+  // ================ Class initialisation =====================================
+  /**
+   * UserSettingsStore
+   *    Create the store, taking the write delay from the "settingsStore"
+   *    section within the "performance" part of the configuration
+   *
+   * @param sProjectBase - base directory of the user directories
+   * @param oConfig      - server configuration (may be null)
+   * @param errHandle    - error handler
+   */
+  public UserSettingsStore(String sProjectBase, JSONObject oConfig, ErrHandle errHandle) {
+    long lDelay = DEFAULT_WRITE_DELAY_MS;
+
+    this.errHandle = errHandle;
+    this.sProjectBase = sProjectBase;
+    this.sStoreId = Long.toHexString(System.currentTimeMillis());
+    try {
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("settingsStore")) {
+          JSONObject oStore = oPerf.getJSONObject("settingsStore");
+          if (oStore.has("writeDelayMs")) lDelay = oStore.getInt("writeDelayMs");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("UserSettingsStore: could not read configuration", ex, UserSettingsStore.class);
+    }
+    this.lWriteDelayMs = Math.max(0, lDelay);
+    // One daemon thread does all the writing
+    this.oWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thr = new Thread(r, "crpp-settingswriter");
+        thr.setDaemon(true);
+        return thr;
+      }
+    });
+  }
+
+  /**
+   * getLock
+   *    The object to synchronize on while reading or changing the settings
+   *    of user @sUserId
+   *
+   * @param sUserId
+   * @return
+   */
+  public Object getLock(String sUserId) {
+    return getEntry(sUserId);
+  }
+
+  /**
+   * get
+   *    The settings of user @sUserId. If there is no "settings.json" yet,
+   *    default settings are made (and written).
+   *    NOTE: the caller must hold getLock(sUserId)
+   *
+   * @param sUserId
+   * @return        the settings (the object itself, not a copy), or null
+   */
+  public JSONObject get(String sUserId) {
+    Entry oEntry = getEntry(sUserId);
+    synchronized (oEntry) {
+      if (oEntry.oSettings == null) load(oEntry);
+      return oEntry.oSettings;
+    }
+  }
+
+  /**
+   * put
+   *    Replace the settings of user @sUserId
+   *
+   * @param sUserId
+   * @param oSettings
+   */
+  public void put(String sUserId, JSONObject oSettings) {
+    Entry oEntry = getEntry(sUserId);
+    synchronized (oEntry) {
+      oEntry.oSettings = oSettings;
+      changed(oEntry);
+    }
+  }
+
+  /**
+   * changed
+   *    The settings of user @sUserId have been changed: write them later
+   *
+   * @param sUserId
+   */
+  public void changed(String sUserId) {
+    Entry oEntry = getEntry(sUserId);
+    synchronized (oEntry) {
+      changed(oEntry);
+    }
+  }
+
+  /**
+   * getETag
+   *    Version of the settings of user @sUserId, to be used as entity tag
+   *
+   * @param sUserId
+   * @return
+   */
+  public String getETag(String sUserId) {
+    Entry oEntry = getEntry(sUserId);
+    synchronized (oEntry) {
+      return "\"settings-" + sStoreId + "-" + oEntry.lVersion + "\"";
+    }
+  }
+
+  /**
+   * flush
+   *    Write all settings that have been changed
+   */
+  public void flush() {
+    for (Entry oEntry : mapUser.values()) {
+      write(oEntry);
+    }
+  }
+
+  /**
+   * stop
+   *    Write all pending changes and stop the writer thread
+   */
+  public void stop() {
+    try {
+      oWriter.shutdownNow();
+      flush();
+    } catch (Exception ex) {
+      errHandle.DoError("UserSettingsStore/stop: ", ex, UserSettingsStore.class);
+    }
+  }
+
+  /**
+   * getStats
+   *    Statistics of this store (for /serverinfo)
+   *
+   * @return
+   */
+  public DataObjectMapElement getStats() {
+    DataObjectMapElement oStats = new DataObjectMapElement();
+    oStats.put("users", mapUser.size());
+    oStats.put("loads", lLoads.get());
+    oStats.put("changes", lChanges.get());
+    oStats.put("writes", lWrites.get());
+    return oStats;
+  }
+
+  // ================ Private methods ==========================================
+  private Entry getEntry(String sUserId) {
+    Entry oEntry = mapUser.get(sUserId);
+    if (oEntry == null) {
+      Entry oNew = new Entry(sUserId);
+      oEntry = mapUser.putIfAbsent(sUserId, oNew);
+      if (oEntry == null) oEntry = oNew;
+    }
+    return oEntry;
+  }
+
+  private File getFile(String sUserId) {
+    return new File(FileUtil.nameNormalize(sProjectBase+sUserId+"/settings.json"));
+  }
+
+  /**
+   * load
+   *    Read the settings of @oEntry from disk, or make default ones
+   *    NOTE: the caller holds the lock on @oEntry
+   *
+   * @param oEntry
+   */
+  private void load(Entry oEntry) {
+    try {
+      File fSettings = getFile(oEntry.sUserId);
+      lLoads.incrementAndGet();
+      if (fSettings.exists()) {
+        oEntry.oSettings = new JSONObject((new FileUtil()).readFile(fSettings));
+      } else {
+        // Create a default one
+        JSONObject oSettings = new JSONObject();
+        oSettings.put("userid", oEntry.sUserId);
+        oSettings.put("links", new JSONArray());
+        oSettings.put("dbases", new JSONArray());
+        oEntry.oSettings = oSettings;
+        // Make sure the default settings are written
+        changed(oEntry);
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("Could not load user settings", ex, UserSettingsStore.class);
+      oEntry.oSettings = null;
+    }
+  }
+
+  /**
+   * changed
+   *    Mark @oEntry as changed, and schedule a write if none is pending
+   *    NOTE: the caller holds the lock on @oEntry
+   *
+   * @param oEntry
+   */
+  private void changed(final Entry oEntry) {
+    lChanges.incrementAndGet();
+    oEntry.lVersion++;
+    oEntry.bDirty = true;
+    if (oEntry.bScheduled) return;
+    // If the writer has stopped, then write right away
+    if (!schedule(oEntry, lWriteDelayMs)) write(oEntry);
+  }
+
+  /**
+   * schedule
+   *    Let the writer write @oEntry after @lDelayMs
+   *    NOTE: the caller holds the lock on @oEntry
+   *
+   * @param oEntry
+   * @param lDelayMs
+   * @return          false if the writer has stopped
+   */
+  private boolean schedule(final Entry oEntry, long lDelayMs) {
+    try {
+      oWriter.schedule(new Runnable() {
+        @Override
+        public void run() { write(oEntry); }
+      }, lDelayMs, TimeUnit.MILLISECONDS);
+      oEntry.bScheduled = true;
+      return true;
+    } catch (RejectedExecutionException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * write
+   *    Write the settings of @oEntry if they have changed: first to a
+   *    temporary file, which then replaces "settings.json"
+   *
+   * @param oEntry
+   */
+  private void write(Entry oEntry) {
+    synchronized (oEntry) {
+      oEntry.bScheduled = false;
+      if (!oEntry.bDirty || oEntry.oSettings == null || oEntry.sUserId.isEmpty()) return;
+      try {
+        File fSettings = getFile(oEntry.sUserId);
+        File fTemp = new File(fSettings.getPath() + ".tmp");
+        FileUtil.writeFile(fTemp, oEntry.oSettings.toString(1));
+        try {
+          Files.move(fTemp.toPath(), fSettings.toPath(),
+                  StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+          Files.move(fTemp.toPath(), fSettings.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        oEntry.bDirty = false;
+        oEntry.iFailures = 0;
+        lWrites.incrementAndGet();
+      } catch (Exception ex) {
+        errHandle.DoError("Could not set user settings", ex, UserSettingsStore.class);
+        // Try again later, waiting longer after each failure (the changes
+        // are kept; stop() makes a last attempt)
+        oEntry.iFailures++;
+        long lDelay = Math.max(lWriteDelayMs, 1000) << Math.min(oEntry.iFailures, 8);
+        schedule(oEntry, Math.min(lDelay, MAX_RETRY_DELAY_MS));
+      }
+    }
+  }
+}
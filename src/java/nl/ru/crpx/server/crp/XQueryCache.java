@@ -0,0 +1,175 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XQueryEvaluator;
+import net.sf.saxon.s9api.XQueryExecutable;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.crpx.project.CorpusResearchProject;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.crpx.xq.Extensions;
+import nl.ru.util.json.JSONObject;
+
+/**
+ * XQueryCache
+ *    Compiled versions of ad-hoc Xqueries (such as the grouping code of
+ *    /update), per Saxon processor. A compiled Xquery can be used by several
+ *    threads at the same time: each gets its own (cheap) evaluator from it.
+ *    The least recently used Xqueries are removed when there are too many.
+ *    The "ru:" extension functions are made known to each processor once.
+ *
+ * @author Erwin R. Komen
+ */
+public class XQueryCache {
+  // ================ Constants ================================================
+  private static final int DEFAULT_MAX_ENTRIES = 128;  // Compiled Xqueries kept
+  // ================ Local variables ==========================================
+  private final ErrHandle errHandle;                   // The error handler we are using
+  private final int iMaxEntries;                       // Maximum number of compiled Xqueries
+  private final LinkedHashMap<Key, XQueryExecutable> mapExe;
+  private final Set<Processor> setExt =                // Processors that know the extensions
+          Collections.newSetFromMap(new WeakHashMap<Processor, Boolean>());
+  // ================ Statistics ===============================================
+  private final AtomicLong lHits = new AtomicLong();
+  private final AtomicLong lCompiles = new AtomicLong();
+  private final AtomicLong lCompileMs = new AtomicLong();
+  private final AtomicLong lCompileMaxMs = new AtomicLong();
+  private final AtomicLong lEvictions = new AtomicLong();
+
+  /**
+   * Key - Xquery code for one particular processor
+   */
+  private static class Key {
+    final Processor objProc;
+    final String sCode;
+    Key(Processor objProc, String sCode) { this.objProc = objProc; this.sCode = sCode; }
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key oKey = (Key) o;
+      return oKey.objProc == objProc && oKey.sCode.equals(sCode);
+    }
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(objProc) + sCode.hashCode();
+    }
+  }
+
+  // ================ Class initialisation =====================================
+  /**
+   * XQueryCache
+   *    Create the cache, taking its size from the "xqueryCache" section
+   *    within the "performance" part of the configuration
+   *
+   * @param oConfig   - server configuration (may be null)
+   * @param errHandle - error handler
+   */
+  public XQueryCache(JSONObject oConfig, ErrHandle errHandle) {
+    int iMax = DEFAULT_MAX_ENTRIES;
+
+    this.errHandle = errHandle;
+    try {
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("xqueryCache")) {
+          JSONObject oCache = oPerf.getJSONObject("xqueryCache");
+          if (oCache.has("maxEntries")) iMax = oCache.getInt("maxEntries");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("XQueryCache: could not read configuration", ex, XQueryCache.class);
+    }
+    this.iMaxEntries = Math.max(1, iMax);
+    this.mapExe = new LinkedHashMap<Key, XQueryExecutable>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, XQueryExecutable> eldest) {
+        if (size() <= iMaxEntries) return false;
+        lEvictions.incrementAndGet();
+        return true;
+      }
+    };
+  }
+
+  /**
+   * getEvaluator
+   *    Get an evaluator for Xquery @sCode, to be used with the processor of
+   *    @crpThis. The Xquery is only compiled if it is not in the cache yet.
+   *    NOTE: an evaluator may only be used by one thread
+   *
+   * @param crpThis
+   * @param sCode
+   * @return
+   * @throws Exception  when the Xquery cannot be compiled
+   */
+  public XQueryEvaluator getEvaluator(CorpusResearchProject crpThis, String sCode) throws Exception {
+    Processor objProc = crpThis.getSaxProc();
+    Key oKey = new Key(objProc, normalize(sCode));
+    XQueryExecutable objExe;
+    synchronized (this) {
+      // Make sure the extension functions are known to this processor
+      if (setExt.add(objProc)) new Extensions(crpThis);
+      objExe = mapExe.get(oKey);
+    }
+    if (objExe == null) {
+      // Compile it (outside of the lock, since this takes time)
+      long lStart = System.currentTimeMillis();
+      objExe = objProc.newXQueryCompiler().compile(oKey.sCode);
+      long lTook = System.currentTimeMillis() - lStart;
+      lCompiles.incrementAndGet();
+      lCompileMs.addAndGet(lTook);
+      synchronized (this) {
+        if (lTook > lCompileMaxMs.get()) lCompileMaxMs.set(lTook);
+        mapExe.put(oKey, objExe);
+      }
+    } else {
+      lHits.incrementAndGet();
+    }
+    return objExe.load();
+  }
+
+  /**
+   * getStats
+   *    Statistics of this cache (for /serverinfo)
+   *
+   * @return
+   */
+  public DataObjectMapElement getStats() {
+    DataObjectMapElement oStats = new DataObjectMapElement();
+    synchronized (this) {
+      oStats.put("entries", mapExe.size());
+    }
+    long lCount = lCompiles.get();
+    oStats.put("hits", lHits.get());
+    oStats.put("compiles", lCount);
+    oStats.put("compileMs", lCompileMs.get());
+    oStats.put("compileAvgMs", (lCount == 0) ? 0 : lCompileMs.get() / lCount);
+    oStats.put("compileMaxMs", lCompileMaxMs.get());
+    oStats.put("evictions", lEvictions.get());
+    return oStats;
+  }
+
+  // ================ Private methods ==========================================
+  /**
+   * normalize
+   *    Xquery code that only differs in line endings or surrounding white
+   *    space is the same Xquery
+   *
+   * @param sCode
+   * @return
+   */
+  private static String normalize(String sCode) {
+    return sCode.replace("\r\n", "\n").replace('\r', '\n').trim();
+  }
+}
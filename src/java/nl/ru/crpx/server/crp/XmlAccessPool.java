@@ -0,0 +1,332 @@
+/*
+ * This software has been developed at the "Meertens Instituut"
+ *    for the CLARIN project "CorpusStudio-WebApplication".
+ *  The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *    while working for the Radboud University Nijmegen.
+ *  The program and the source can be freely used and re-distributed.
+ */
+package nl.ru.crpx.server.crp;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sf.saxon.s9api.Processor;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.crpx.project.CorpusResearchProject;
+import nl.ru.crpx.project.CorpusResearchProject.ProjType;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.json.JSONObject;
+import nl.ru.xmltools.XmlAccess;
+import nl.ru.xmltools.XmlAccessFolia;
+import nl.ru.xmltools.XmlAccessPsdx;
+import nl.ru.xmltools.XmlDocument;
+
+/**
+ * XmlAccessPool
+ *    Pool of open XmlAccess handles, keyed by the source file and the project
+ *    type. Opening a handle means opening and indexing the file, so handles
+ *    are given back to the pool after use (release) and handed out again to
+ *    the next request on the same file (acquire). A handle keeps the project
+ *    (and Saxon processor) it was opened with, so it is only handed out to a
+ *    request with that same project. A handle is used by one request at a
+ *    time; the pool counts how many handles of each file are out. Idle
+ *    handles are closed when they have not been used for a while (checked
+ *    regularly), when their file has changed, or when there are too many of
+ *    them: then the handles of files that are not in use go first.
+ *
+ * @author Erwin R. Komen
+ */
+public class XmlAccessPool {
+  // ================ Constants ================================================
+  private static final int DEFAULT_MAX_IDLE = 32;            // Idle handles kept open
+  private static final long DEFAULT_IDLE_MS = 5 * 60 * 1000; // Time an idle handle is kept
+  // ================ Local variables ==========================================
+  private final ErrHandle errHandle;                   // The error handler we are using
+  private final int iMaxIdle;                          // Maximum number of idle handles
+  private final long lIdleMs;                          // Maximum time a handle stays idle
+  private final ArrayDeque<Handle> lstIdle = new ArrayDeque<>();  // Idle handles, oldest first
+  private final IdentityHashMap<XmlAccess, Handle> mapLeased = new IdentityHashMap<>();
+  private final Map<String, Integer> mapRefCount = new HashMap<>(); // Handles out per key
+  private final ScheduledExecutorService oSweeper;     // Closes handles that are idle too long
+  // ================ Statistics ===============================================
+  private final AtomicLong lOpens = new AtomicLong();
+  private final AtomicLong lReuses = new AtomicLong();
+  private final AtomicLong lEvictions = new AtomicLong();
+
+  /**
+   * Handle - one open XmlAccess
+   */
+  private static class Handle {
+    final String sKey;          // Source file + project type
+    final File fSrc;            // Source file
+    final XmlAccess objAcc;     // The open handle
+    final long lMtime;          // Modification time of the file when it was opened
+    final CorpusResearchProject crpThis;  // Project the handle was opened with
+    final Processor objProc;    // ... and its Saxon processor
+    long lSince = 0;            // Time it was given back to the pool
+    Handle(String sKey, File fSrc, XmlAccess objAcc, long lMtime, CorpusResearchProject crpThis) {
+      this.sKey = sKey; this.fSrc = fSrc; this.objAcc = objAcc; this.lMtime = lMtime;
+      this.crpThis = crpThis; this.objProc = crpThis.getSaxProc();
+    }
+    boolean isFor(CorpusResearchProject crpOther) {
+      return crpThis == crpOther && objProc == crpOther.getSaxProc();
+    }
+  }
+
+  // ================ Class initialisation =====================================
+  /**
+   * XmlAccessPool
+   *    Create a pool, taking its limits from the "xmlAccessPool" section
+   *    within the "performance" part of the configuration (if available)
+   *
+   * @param oConfig   - server configuration (may be null)
+   * @param errHandle - error handler
+   */
+  public XmlAccessPool(JSONObject oConfig, ErrHandle errHandle) {
+    int iMax = DEFAULT_MAX_IDLE;
+    long lIdle = DEFAULT_IDLE_MS;
+
+    this.errHandle = errHandle;
+    try {
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("xmlAccessPool")) {
+          JSONObject oPool = oPerf.getJSONObject("xmlAccessPool");
+          if (oPool.has("maxIdle")) iMax = oPool.getInt("maxIdle");
+          if (oPool.has("idleMs")) lIdle = oPool.getInt("idleMs");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("XmlAccessPool: could not read configuration", ex, XmlAccessPool.class);
+    }
+    this.iMaxIdle = Math.max(0, iMax);
+    this.lIdleMs = lIdle;
+    this.oSweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thr = new Thread(r, "crpp-xmlaccess");
+        thr.setDaemon(true);
+        return thr;
+      }
+    });
+    if (lIdle > 0) {
+      long lPeriod = Math.max(1000, lIdle / 2);
+      this.oSweeper.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() { sweep(); }
+      }, lPeriod, lPeriod, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * acquire
+   *    Get an XmlAccess handle of type @iType to the file @sPath: an idle
+   *    one from the pool that was opened with @crpThis, or a newly opened
+   *    one. The handle must be given back with release() when it is no
+   *    longer needed.
+   *
+   * @param crpThis   - project the handle is used with
+   * @param pdxThis   - document used to open a new handle
+   * @param iType     - type of the file (psdx, folia)
+   * @param sPath     - full path of the source file
+   * @return          the handle, or null if this type is not supported
+   * @throws Exception
+   */
+  public XmlAccess acquire(CorpusResearchProject crpThis, XmlDocument pdxThis,
+          ProjType iType, String sPath) throws Exception {
+    File fSrc = new File(sPath);
+    String sKey = fSrc.getAbsolutePath() + "\t" + iType.toString();
+    long lMtime = fSrc.lastModified();
+    List<Handle> lstClose = new ArrayList<>();
+    Handle oHandle = null;
+
+    synchronized (this) {
+      // Look for the most recently used idle handle of this file and project
+      Iterator<Handle> it = lstIdle.descendingIterator();
+      while (it.hasNext()) {
+        Handle oIdle = it.next();
+        if (!oIdle.sKey.equals(sKey)) continue;
+        if (oIdle.lMtime != lMtime) {
+          // The file has changed since this handle was opened
+          it.remove();
+          lstClose.add(oIdle);
+        } else if (oIdle.isFor(crpThis)) {
+          it.remove();
+          oHandle = oIdle; break;
+        }
+      }
+      evict(System.currentTimeMillis(), lstClose);
+      if (oHandle != null) {
+        lReuses.incrementAndGet();
+        lease(oHandle);
+      }
+    }
+    closeAll(lstClose);
+    if (oHandle != null) return oHandle.objAcc;
+
+    // Open a new handle (outside of the lock, since this takes time)
+    XmlAccess objAcc = null;
+    switch (iType) {
+      case ProjPsdx:
+        objAcc = new XmlAccessPsdx(crpThis, pdxThis, sPath); break;
+      case ProjFolia:
+        objAcc = new XmlAccessFolia(crpThis, pdxThis, sPath); break;
+      default:
+        return null;
+    }
+    lOpens.incrementAndGet();
+    synchronized (this) {
+      lease(new Handle(sKey, fSrc, objAcc, lMtime, crpThis));
+    }
+    return objAcc;
+  }
+
+  /**
+   * release
+   *    Give the handle @objAcc back to the pool
+   *
+   * @param objAcc
+   */
+  public void release(XmlAccess objAcc) {
+    if (objAcc == null) return;
+    List<Handle> lstClose = new ArrayList<>();
+    synchronized (this) {
+      Handle oHandle = mapLeased.remove(objAcc);
+      if (oHandle == null) return;
+      Integer iCount = mapRefCount.get(oHandle.sKey);
+      if (iCount == null || iCount <= 1) mapRefCount.remove(oHandle.sKey);
+      else mapRefCount.put(oHandle.sKey, iCount - 1);
+      oHandle.lSince = System.currentTimeMillis();
+      // A handle to a file that has changed is of no use anymore
+      if (oHandle.fSrc.lastModified() == oHandle.lMtime)
+        lstIdle.addLast(oHandle);
+      else
+        lstClose.add(oHandle);
+      evict(oHandle.lSince, lstClose);
+    }
+    closeAll(lstClose);
+  }
+
+  /**
+   * clear
+   *    Close all idle handles
+   */
+  public void clear() {
+    List<Handle> lstClose;
+    synchronized (this) {
+      lstClose = new ArrayList<>(lstIdle);
+      lstIdle.clear();
+    }
+    closeAll(lstClose);
+  }
+
+  /**
+   * stop
+   *    Stop checking for idle handles, and close the ones there are
+   */
+  public void stop() {
+    try {
+      oSweeper.shutdownNow();
+      clear();
+    } catch (Exception ex) {
+      errHandle.DoError("XmlAccessPool/stop: ", ex, XmlAccessPool.class);
+    }
+  }
+
+  /**
+   * getStats
+   *    Statistics of this pool (for /serverinfo)
+   *
+   * @return
+   */
+  public DataObjectMapElement getStats() {
+    DataObjectMapElement oStats = new DataObjectMapElement();
+    synchronized (this) {
+      oStats.put("idle", lstIdle.size());
+      oStats.put("leased", mapLeased.size());
+      oStats.put("files", mapRefCount.size());
+    }
+    oStats.put("opens", lOpens.get());
+    oStats.put("reuses", lReuses.get());
+    oStats.put("evictions", lEvictions.get());
+    return oStats;
+  }
+
+  // ================ Private methods ==========================================
+  /**
+   * sweep
+   *    Close the handles that have been idle too long (run regularly, so
+   *    that they do not stay open, holding their project, while the pool is
+   *    not used)
+   */
+  private void sweep() {
+    List<Handle> lstClose = new ArrayList<>();
+    synchronized (this) {
+      evict(System.currentTimeMillis(), lstClose);
+    }
+    closeAll(lstClose);
+  }
+
+  /**
+   * lease
+   *    Register @oHandle as being in use
+   *    NOTE: the caller holds the lock on this pool
+   *
+   * @param oHandle
+   */
+  private void lease(Handle oHandle) {
+    mapLeased.put(oHandle.objAcc, oHandle);
+    Integer iCount = mapRefCount.get(oHandle.sKey);
+    mapRefCount.put(oHandle.sKey, (iCount == null) ? 1 : iCount + 1);
+  }
+
+  /**
+   * evict
+   *    Take the handles that have been idle too long out of the pool, and
+   *    then the oldest ones while there are too many: first those of files
+   *    that have no handles in use, since these are the least likely to be
+   *    asked for again soon
+   *    NOTE: the caller holds the lock on this pool
+   *
+   * @param lNow
+   * @param lstClose  - the handles taken out are added to this list
+   */
+  private void evict(long lNow, List<Handle> lstClose) {
+    while (!lstIdle.isEmpty() && lNow - lstIdle.peekFirst().lSince > lIdleMs) {
+      lstClose.add(lstIdle.pollFirst());
+      lEvictions.incrementAndGet();
+    }
+    Iterator<Handle> it = lstIdle.iterator();
+    while (lstIdle.size() > iMaxIdle && it.hasNext()) {
+      Handle oIdle = it.next();
+      if (mapRefCount.containsKey(oIdle.sKey)) continue;
+      it.remove();
+      lstClose.add(oIdle);
+      lEvictions.incrementAndGet();
+    }
+    while (lstIdle.size() > iMaxIdle) {
+      lstClose.add(lstIdle.pollFirst());
+      lEvictions.incrementAndGet();
+    }
+  }
+
+  private void closeAll(List<Handle> lstClose) {
+    for (Handle oHandle : lstClose) {
+      try {
+        oHandle.objAcc.close();
+      } catch (Exception ex) {
+        errHandle.DoError("XmlAccessPool: could not close handle", ex, XmlAccessPool.class);
+      }
+    }
+  }
+}
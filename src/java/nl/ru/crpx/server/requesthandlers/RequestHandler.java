@@ -14,15 +14,18 @@ package nl.ru.crpx.server.requesthandlers;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.servlet.http.HttpServletRequest;
 import nl.ru.crpx.dataobject.DataObject;
 import nl.ru.crpx.dataobject.DataObjectMapElement;
@@ -34,10 +37,16 @@ import nl.ru.crpx.search.SearchManager;
 import nl.ru.crpx.search.SearchParameters;
 import nl.ru.crpx.search.WorkQueueXqF;
 import nl.ru.crpx.server.CrpPserver;
+import nl.ru.crpx.server.crp.HitIndex;
+import nl.ru.crpx.server.crp.JobTableView;
+import nl.ru.crpx.server.util.JobWatcher;
+import nl.ru.crpx.server.util.JsonConvert;
+import nl.ru.crpx.server.util.JsonStreamWriter;
 import nl.ru.crpx.server.util.UserFile;
 import nl.ru.crpx.tools.ErrHandle;
 import nl.ru.crpx.tools.General;
 import nl.ru.util.FileUtil;
+import nl.ru.util.json.JSONArray;
 import nl.ru.util.json.JSONObject;
 //import java.util.logging.Logger;
 import java.util.logging.Level;
@@ -54,6 +63,10 @@ import java.util.logging.Logger;
 public abstract class RequestHandler {
   // ============== My own error handler =======================================
   static final ErrHandle errHandle = new ErrHandle(RequestHandler.class);
+  // ============== Request attribute that keeps the request string ============
+  private static final String ATTR_REQ_STRING = "crpp.reqString";
+  // ============== Format version of file-based responses (part of their ETag) =
+  static final String CONTENT_VERSION = "1";
 
   // ============== Variables belonging to the request handler ================
   /** The available request handlers by name */
@@ -70,7 +83,7 @@ public abstract class RequestHandler {
   static String lastIP = "";                    /** IP address of last request */
   static String sProjectBase = CrpInfo.sEtcProject + "/"; // "/etc/project/"; // Base directory where user-spaces are stored
   static String sCorpusBase = CrpInfo.sEtcCorpora + "/";  // "/etc/corpora/";  // Base directory where corpora are stored
-  static List<UserFile> lUserFile = new ArrayList<>();
+  static ConcurrentMap<String, UserFile> mUserFile = new ConcurrentHashMap<>(); // Uploads in progress (per user+file)
   /** The work queue to handle XqF jobs */
   WorkQueueXqF workQueue;
   
@@ -86,6 +99,16 @@ public abstract class RequestHandler {
   CrpPserver servlet;           // The servlet 
   HttpServletRequest request;   // The HTTP request object 
   CorpusResearchProject prjThis;// The corpus research project we are processing 
+  JobWatcher.Watchable waitFor = null;  // Job the client wants to wait for (long-poll)
+  boolean bEventStream = false;         // Answer with a stream of progress events
+  String sETag = null;                  // Version (entity tag) of the response, if any
+  long lLastModified = -1;              // Modification time of the response, if known
+  boolean bNotModified = false;         // The client already has this version
+  boolean bVersionMatch = false;        // ... as it says in its "version" argument
+  File fRawFile = null;                 // File to be sent as it is (raw download)
+  String sRawType = "";                 // Content type of the raw file
+  String sStreamType = null;            // Content type of a byte stream response (if any)
+  String sStreamName = "";              // File name the client may save the byte stream as
   // ============== Class initiator ============================================
   RequestHandler(CrpPserver servlet, HttpServletRequest request, String indexName) {
     try {
@@ -210,6 +233,28 @@ public abstract class RequestHandler {
    * @throws java.io.UnsupportedEncodingException
    */
   public static DataObject handle(CrpPserver servlet, HttpServletRequest request) throws UnsupportedEncodingException {
+    try {
+      // Choose the RequestHandler subclass
+      RequestHandler requestHandler = create(servlet, request);
+      // Make sure we catch empty requesthandlers
+      if (requestHandler == null)
+        return DataObject.errorObject("INTERNAL_ERROR", "RequestHandler is empty. Use: /execute, /show, /statusxq");
+      // Handle the request
+      return requestHandler.handleRequest();
+    } catch (RuntimeException ex) {
+      errHandle.DoError("Handle error", ex, RequestHandler.class);
+      return null;
+    }
+  }
+  
+  /**
+   * Create the subclass that corresponds with the request, without handling it yet.
+   *
+   * @param servlet the servlet object
+   * @param request the actual request as passed on by the caller
+   * @return the request handler, or null if the request is not recognized
+   */
+  public static RequestHandler create(CrpPserver servlet, HttpServletRequest request) {
     try {
       // Reset the error handling
       errHandle.clearErr();
@@ -262,6 +307,9 @@ public abstract class RequestHandler {
         case "crpset":    // Requester sends a CRP to the /crpp
           requestHandler = new RequestHandlerCrpSet(servlet, request, indexName);
           break;
+        case "dbexport":  // Stream all results of a database as CSV or NDJSON
+          requestHandler = new RequestHandlerDbExport(servlet, request, indexName);
+          break;
         case "dbget":     // Send Database from /crpp to requester
           requestHandler = new RequestHandlerDbGet(servlet, request, indexName);
           break;
@@ -283,6 +331,9 @@ public abstract class RequestHandler {
         case "execute": case "exe": // Uitvoeren van een CRP
           requestHandler = new RequestHandlerExecute(servlet, request, indexName);
           break;
+        case "export":  // Results table of a finished XqJob (or part of it)
+          requestHandler = new RequestHandlerExport(servlet, request, indexName);
+          break;
         case "load":    // Laden van een CRP voor een gebruiker
           requestHandler = new RequestHandlerLoad(servlet, request, indexName);
           break;
@@ -323,23 +374,360 @@ public abstract class RequestHandler {
           break;
       }
 
-      // Make sure we catch empty requesthandlers
-      if (requestHandler == null)
-        return DataObject.errorObject("INTERNAL_ERROR", "RequestHandler is empty. Use: /execute, /show, /statusxq");
-
-      // Handle the request
-      try {
-        return requestHandler.handle();
-      } catch (InterruptedException e) {
-        return DataObject.errorObject("INTERNAL_ERROR", internalErrorMessage(e, false, 8));
-      }
-      
+      // Return the handler (which may be null)
+      return requestHandler;
     } catch (RuntimeException ex) {
       errHandle.DoError("Handle error", ex, RequestHandler.class);
       return null;
     }
   }
   
+  /**
+   * handleRequest - handle the request, turning an interrupt into an error object
+   * 
+   * @return the response data
+   */
+  public DataObject handleRequest() {
+    try {
+      return handle();
+    } catch (InterruptedException e) {
+      return DataObject.errorObject("INTERNAL_ERROR", internalErrorMessage(e, false, 8));
+    }
+  }
+  
+  /**
+   * getWaitFor - the job this request wants to wait for (or null)
+   *              If set after handle(), the servlet may suspend the request 
+   *              until the job changes state, and then call resume()
+   * 
+   * @return 
+   */
+  public JobWatcher.Watchable getWaitFor() { return waitFor; }
+  
+  /**
+   * resume - produce the response for a request that has been waiting for 
+   *          its job to change. By default the request is handled anew.
+   * 
+   * @return the response data
+   */
+  public DataObject resume() {
+    return handleRequest();
+  }
+  
+  /**
+   * isWaitRequested - has the client asked to wait for a change of the job?
+   *                   (parameter "wait": true)
+   * 
+   * @param jReq
+   * @return 
+   */
+  static boolean isWaitRequested(JSONObject jReq) {
+    try {
+      return (jReq.has("wait") && jReq.getBoolean("wait"));
+    } catch (Exception ex) {
+      return false;
+    }
+  }
+  
+  /**
+   * isEventStream - should the response be a stream of Server-Sent Events?
+   *                 The progress of job getWaitFor() is then sent as events, 
+   *                 followed by the response of resume() once it has finished
+   * 
+   * @return 
+   */
+  public boolean isEventStream() { return bEventStream; }
+  
+  /**
+   * isStreamRequested - has the client asked for a stream of progress events?
+   *                     (parameter "stream": 1 or true, in the JSON request
+   *                     or as a separate URL parameter)
+   * 
+   * @param jReq
+   * @return 
+   */
+  boolean isStreamRequested(JSONObject jReq) {
+    try {
+      String sStream = (jReq.has("stream")) ? jReq.get("stream").toString() : 
+              request.getParameter("stream");
+      return (sStream != null && (sStream.equals("1") || sStream.equalsIgnoreCase("true")));
+    } catch (Exception ex) {
+      return false;
+    }
+  }
+  
+  /**
+   * getETag, getLastModified, isNotModified - validators of the response
+   *    If getETag() is not null, the servlet sends it along as header, and
+   *    answers "304 Not Modified" when isNotModified() is true
+   *    (isVersionMatch: the request argument "version" said so, not a header)
+   *
+   * @return
+   */
+  public String getETag() { return sETag; }
+  public long getLastModified() { return lLastModified; }
+  public boolean isNotModified() { return bNotModified; }
+  public boolean isVersionMatch() { return bVersionMatch; }
+
+  /**
+   * checkNotModified - set the validators of this response, and check
+   *                    whether the client already has this version:
+   *                    header If-None-Match (or else If-Modified-Since),
+   *                    or the "version" the client passes in @sVersion
+   *
+   * @param sTag      - entity tag of the current version
+   * @param lModified - modification time of the current version (or -1)
+   * @param sVersion  - version the client says it has (may be empty)
+   * @return          true if the client's version is still current
+   */
+  boolean checkNotModified(String sTag, long lModified, String sVersion) {
+    this.sETag = sTag;
+    this.lLastModified = lModified;
+    this.bNotModified = false;
+    this.bVersionMatch = false;
+    try {
+      // A version passed as request argument
+      if (sVersion != null && sVersion.equals(sTag)) {
+        bNotModified = true;
+        bVersionMatch = true;
+      } else {
+        String sIfNoneMatch = request.getHeader("If-None-Match");
+        if (sIfNoneMatch != null) {
+          // This header takes precedence over If-Modified-Since
+          for (String sOne : sIfNoneMatch.split(",")) {
+            sOne = sOne.trim();
+            if (sOne.startsWith("W/")) sOne = sOne.substring(2);
+            if (sOne.equals("*") || sOne.equals(sTag)) { bNotModified = true; break; }
+          }
+        } else if (lModified > 0) {
+          // HTTP dates have a resolution of one second
+          long lSince = request.getDateHeader("If-Modified-Since");
+          if (lSince >= 0 && lModified / 1000 <= lSince / 1000) bNotModified = true;
+        }
+      }
+    } catch (Exception ex) {
+      // Malformed header: just send the whole response
+      bNotModified = false;
+    }
+    return bNotModified;
+  }
+
+  /**
+   * getRawFile, getRawContentType - file to be sent to the client as it is,
+   *    instead of the serialized response (or null)
+   * 
+   * @return 
+   */
+  public File getRawFile() { return fRawFile; }
+  public String getRawContentType() { return sRawType; }
+  
+  /**
+   * isRawRequested - has the client asked for the file itself, rather than 
+   *                  for its contents inside a JSON response?
+   *                  (parameter "raw": true, in the JSON request or as URL 
+   *                  parameter)
+   * 
+   * @param jReq
+   * @return 
+   */
+  boolean isRawRequested(JSONObject jReq) {
+    try {
+      String sRaw = (jReq.has("raw")) ? jReq.get("raw").toString() : request.getParameter("raw");
+      return (sRaw != null && (sRaw.equals("1") || sRaw.equalsIgnoreCase("true")));
+    } catch (Exception ex) {
+      return false;
+    }
+  }
+  
+  /**
+   * rawFile - let the servlet send @fFile to the client as it is
+   * 
+   * @param fFile
+   * @param sContentType
+   * @return            status object (which is not sent along)
+   */
+  DataObject rawFile(File fFile, String sContentType) {
+    this.fRawFile = fFile;
+    this.sRawType = sContentType;
+    DataObjectMapElement objStatus = new DataObjectMapElement();
+    objStatus.put("code", "completed");
+    objStatus.put("message", "The file is sent as it is");
+    objStatus.put("userid", sCurrentUserId);
+    DataObjectMapElement response = new DataObjectMapElement();
+    response.put("indexName", indexName);
+    response.put("status", objStatus);
+    return response;
+  }
+  
+  /**
+   * getStreamType, getStreamName - content type and file name of a response
+   *    that the handler writes as a stream of bytes in writeStream(), 
+   *    instead of the serialized response (type is null if there is none)
+   * 
+   * @return 
+   */
+  public String getStreamType() { return sStreamType; }
+  public String getStreamName() { return sStreamName; }
+  
+  /**
+   * byteStream - let the servlet call writeStream() to send the response
+   * 
+   * @param sContentType
+   * @param sFileName
+   * @return            status object (which is not sent along)
+   */
+  DataObject byteStream(String sContentType, String sFileName) {
+    this.sStreamType = sContentType;
+    this.sStreamName = sFileName;
+    DataObjectMapElement objStatus = new DataObjectMapElement();
+    objStatus.put("code", "completed");
+    objStatus.put("message", "The response is sent as a stream");
+    objStatus.put("userid", sCurrentUserId);
+    DataObjectMapElement response = new DataObjectMapElement();
+    response.put("indexName", indexName);
+    response.put("status", objStatus);
+    return response;
+  }
+  
+  /**
+   * writeStream - write the byte stream response to @out 
+   *               (handlers that call byteStream() override this)
+   *               An IOException means that the client has gone away.
+   * 
+   * @param out
+   * @throws IOException 
+   */
+  public void writeStream(OutputStream out) throws IOException { }
+  
+  /**
+   * getFileETag - strong entity tag for a response that is built from the 
+   *               files @arFile only: it changes when one of the files changes
+   *               (modification time or size), when the @sVariant of the 
+   *               request changes, or when the response format changes
+   *               (CONTENT_VERSION)
+   * 
+   * @param sVariant  - the request arguments that influence the response
+   * @param arFile    - the files the response is built from
+   * @return 
+   */
+  static String getFileETag(String sVariant, File... arFile) {
+    StringBuilder sb = new StringBuilder();
+    sb.append('"').append(CONTENT_VERSION).append('-');
+    sb.append(Integer.toHexString(sVariant.hashCode()));
+    for (File fThis : arFile) {
+      sb.append('-').append(Long.toHexString(fThis.lastModified()));
+      sb.append('-').append(Long.toHexString(fThis.length()));
+    }
+    sb.append('"');
+    return sb.toString();
+  }
+  
+  /**
+   * checkFileNotModified - set the validators of a response that is built 
+   *                        from the files @arFile, and check if the client 
+   *                        already has this version. This is to be called 
+   *                        before any of the files is read.
+   * 
+   * @param sVariant  - the request arguments that influence the response
+   * @param arFile    - the files the response is built from
+   * @return          true if the client's version is still current
+   */
+  boolean checkFileNotModified(String sVariant, File... arFile) {
+    long lModified = -1;
+    // Only existing files can be validated
+    for (File fThis : arFile) {
+      if (fThis == null || !fThis.exists()) return false;
+      lModified = Math.max(lModified, fThis.lastModified());
+    }
+    // The URL parameters (e.g. output format or jsonp) also make a difference
+    String sQuery = request.getQueryString();
+    if (sQuery != null) sVariant += "?" + sQuery;
+    if (sVariant.isEmpty()) return checkNotModified(getFileETag(sVariant, arFile), lModified, "");
+    // Other variants have the same modification time: only the ETag can tell
+    // them apart, so If-Modified-Since is not looked at
+    boolean bBack = checkNotModified(getFileETag(sVariant, arFile), -1, "");
+    this.lLastModified = lModified;
+    return bBack;
+  }
+
+  /**
+   * putJobTable - add the results table of the finished Xq job @search to
+   *               @objContent as "table", together with its "version"
+   *    The client may restrict the table with these request arguments:
+   *      qc        - only the QC with this (zero-based) index
+   *      hitstart  - per QC the first hit-file entry to return
+   *      hitcount  - per QC the maximum number of hit-file entries
+   *      summary   - true: no hit-file entries at all, only the totals
+   *      version   - the version the client already has (as If-None-Match)
+   *    Without any of these, the full table is returned as before.
+   *
+   * @param objContent
+   * @param search
+   * @param jReq
+   * @return          false if the client already has this version of the table
+   */
+  boolean putJobTable(DataObjectMapElement objContent, Job search, JSONObject jReq) {
+    try {
+      // Find the table file of the CRP this job has executed (registered by /exe)
+      JobTableView oView = JobTableView.forJob(search.getJobId(), errHandle);
+      // Without the file we can only pass on the whole table
+      if (oView == null || !oView.exists()) {
+        objContent.put("table", search.getJobTable());
+        return true;
+      }
+      // The job has finished: make sure the index on its table is there for /update
+      HitIndex.get(oView.getTableFile(), errHandle);
+      // Does the client have this version already?
+      String sVersion = (jReq.has("version")) ? jReq.getString("version") : "";
+      // (An event stream always ends with the full response)
+      if (!bEventStream && checkNotModified(oView.getETag(), oView.getLastModified(), sVersion)) return false;
+      objContent.put("version", oView.getETag());
+      // Check which part of the table is needed
+      int iQc = (jReq.has("qc")) ? jReq.getInt("qc") : -1;
+      int iHitStart = (jReq.has("hitstart")) ? jReq.getInt("hitstart") : 0;
+      int iHitCount = (jReq.has("hitcount")) ? jReq.getInt("hitcount") : -1;
+      boolean bSummary = (jReq.has("summary") && jReq.getBoolean("summary"));
+      if (iQc < 0 && iHitStart == 0 && iHitCount < 0 && !bSummary) {
+        objContent.put("table", search.getJobTable());
+      } else {
+        JSONArray arSlice = oView.getSlice(iQc, iHitStart, iHitCount, bSummary);
+        if (arSlice == null) {
+          objContent.put("table", search.getJobTable());
+        } else {
+          objContent.put("table", JsonConvert.toDataObject(arSlice, "qc"));
+        }
+      }
+      return true;
+    } catch (Exception ex) {
+      errHandle.DoError("putJobTable failed", ex, RequestHandler.class);
+      objContent.put("table", search.getJobTable());
+      return true;
+    }
+  }
+
+  /**
+   * canStream - can this handler write its (JSON) response directly to the
+   *             output, while producing it?
+   *             Handlers that support this override handleStream()
+   * 
+   * @return 
+   */
+  public boolean canStream() { return false; }
+  
+  /**
+   * handleStream - handle the request, writing the JSON response to @out 
+   *                as its elements are being produced
+   * 
+   * @param out - stream writer on top of the buffered servlet output
+   * @return      null if the response has been written to @out, or else the 
+   *              DataObject to be serialized in the normal way (e.g. an error
+   *              detected before anything was written)
+   * @throws java.io.IOException
+   */
+  public DataObject handleStream(JsonStreamWriter out) throws IOException {
+    return handleRequest();
+  }
+  
   /**
    * Get the user id.
    *
@@ -368,6 +756,10 @@ public abstract class RequestHandler {
     String sJsonPart = "";
     
     try {
+      // A request that is resumed (after waiting) has been read before
+      Object oPrevious = request.getAttribute(ATTR_REQ_STRING);
+      if (oPrevious != null) return oPrevious.toString();
+
       // Check if this is a json
       String sContentType = request.getHeader("content-type");
       if (sContentType != null && sContentType.equals("application/json")) {
@@ -400,6 +792,9 @@ public abstract class RequestHandler {
       sJsonPart = sJsonPart.replace("\"True\"", "true");
       sJsonPart = sJsonPart.replace("\"False\"", "false");
       
+      // Keep it, since the request body can only be read once
+      request.setAttribute(ATTR_REQ_STRING, sJsonPart);
+      
       // Return the JSON query part
       return sJsonPart;
     } catch (Exception ex) {
@@ -615,18 +1010,24 @@ public abstract class RequestHandler {
   public UserFile getUserFile(String sUserId, String sFilename, int iTotal, ErrHandle oErr) {
     UserFile oThis = null;
     try {
-      // Walk the list
-      for (int i=0;i<lUserFile.size();i++) {
-        if (lUserFile.get(i).name.equals(sFilename)) {
-          // Found it!
-          oThis = lUserFile.get(i);
-          return oThis;
+      // Remove uploads that have been abandoned
+      long lNow = System.currentTimeMillis();
+      for (Iterator<Map.Entry<String, UserFile>> it = mUserFile.entrySet().iterator(); it.hasNext();) {
+        UserFile oOld = it.next().getValue();
+        if (oOld.isExpired(lNow)) {
+          errHandle.debug("getUserFile: removing abandoned upload of " + oOld.name);
+          it.remove();
+          oOld.Clear();
         }
       }
-      // Haven't found it: add it
-      oThis = new UserFile(sUserId, sFilename, iTotal, oErr);
-      synchronized(lUserFile) {
-        lUserFile.add(oThis);
+      // Look for this user's file
+      String sKey = sUserId + "\t" + sFilename;
+      oThis = mUserFile.get(sKey);
+      if (oThis == null) {
+        // Haven't found it: add it
+        UserFile oNew = new UserFile(sUserId, sFilename, iTotal, oErr);
+        oThis = mUserFile.putIfAbsent(sKey, oNew);
+        if (oThis == null) oThis = oNew;
       }
       // Return what we found
       return oThis;
@@ -165,6 +165,7 @@ public class RequestHandlerCrpChg extends RequestHandler {
       if (bChanged) {
         // Save the changes
         crpChg.Save();
+        crpManager.getCatalog().refresh(RequestHandler.getCrpPath(sCrpName, sCurrentUserId));
         // Remove the combination CRP/user from the crp manager, so that the fresh CRP will be loaded next time
         crpManager.removeCrpUser(sCrpName, sCurrentUserId);
       }
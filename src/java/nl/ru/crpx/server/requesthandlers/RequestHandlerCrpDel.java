@@ -88,9 +88,10 @@ public class RequestHandlerCrpDel extends RequestHandler {
 
       // Remove the file from the server
       fCrpPath.delete();
+      crpManager.getCatalog().refresh(sCrpPath);
       
       // Also remove the CRP from the CrpManager
-      crpManager.removeCrpUser(sProjectBase, userId);
+      crpManager.removeCrpUser(sCrpName, sCurrentUserId);
       
       // Prepare the content: full file path + name
       DataObjectMapElement objContent = new DataObjectMapElement();
@@ -80,6 +80,11 @@ public class RequestHandlerCrpGet extends RequestHandler {
       File fCrpPath = new File(sCrpPath);
       if (!fCrpPath.exists()) return DataObject.errorObject("not_found",
               "Could not find the .crpx file at: ["+sCrpPath+"].");
+      // The client may want the file as it is, instead of inside JSON
+      boolean bRaw = isRawRequested(jReq);
+      // Does the client have this version (in this form) already? Then don't read the file
+      if (checkFileNotModified(sCrpName + ((bRaw) ? "/raw" : "/json"), fCrpPath)) return null;
+      if (bRaw) return rawFile(fCrpPath, "application/xml");
 
       // Load and prepare the content
       DataObjectMapElement objContent = new DataObjectMapElement();
@@ -15,7 +15,6 @@ package nl.ru.crpx.server.requesthandlers;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.Part;
 import nl.ru.crpx.dataobject.DataObject;
-import nl.ru.crpx.dataobject.DataObjectList;
 import nl.ru.crpx.dataobject.DataObjectMapElement;
 import nl.ru.crpx.server.CrpPserver;
 import nl.ru.crpx.server.crp.CrpManager;
@@ -104,10 +103,8 @@ public class RequestHandlerCrpSet extends RequestHandler {
       // Check if this has the .crpx ending
       if (!sCrpName.endsWith(".crpx")) sCrpName += ".crpx";
       if (!bOverwrite) {
-        // Get a list of all this user's CRPs satisfying the name condition
-        DataObjectList arCrpList = (DataObjectList) crpManager.getCrpList( sCurrentUserId, "", sCrpName);
-        // Check if
-        if (!arCrpList.isEmpty()) {
+        // Check if this user already has a CRP with this name
+        if (crpManager.existsCrp(sCrpName, sCurrentUserId)) {
           return DataObject.errorObject("overwrite", 
             "A .crpx file called ["+sCrpName+"] is already present, and would be overwritten.");
         } 
@@ -116,6 +113,7 @@ public class RequestHandlerCrpSet extends RequestHandler {
       // Save the CRP to an appropriate location
       String sProjectPath = RequestHandler.getCrpPath(sCrpName, sCurrentUserId);
       FileUtil.writeFile(sProjectPath, sCrpText, "utf-8");
+      crpManager.getCatalog().refresh(sProjectPath);
       
       // Content part
       DataObjectMapElement objContent = new DataObjectMapElement();
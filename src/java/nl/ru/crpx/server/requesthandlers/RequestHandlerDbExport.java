@@ -0,0 +1,317 @@
+/**
+ * Copyright (c) 2015 CLARIN-NL, (c) 2016 Radboud University Nijmegen
+ * All rights reserved.
+ *
+ * This software has been developed at the "Meertens Instituut"
+ *   for the CLARIN project "CorpusStudio-WebApplication".
+ *   Additions have been made in 2016 while working at the Radboud University Nijmegen
+ * The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *   while working for the Radboud University Nijmegen.
+ * The program and the source can be freely used and re-distributed.
+ *
+ * @author Erwin R. Komen
+ */
+package nl.ru.crpx.server.requesthandlers;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import nl.ru.crpx.dataobject.DataObject;
+import nl.ru.crpx.project.CrpInfo;
+import nl.ru.crpx.server.CrpPserver;
+import nl.ru.crpx.server.crp.CrpManager;
+import nl.ru.crpx.server.crp.KwicSidecar;
+import nl.ru.crpx.server.crp.ResultColumns;
+import nl.ru.util.ByRef;
+import nl.ru.util.json.JSONArray;
+import nl.ru.util.json.JSONObject;
+import nl.ru.xmltools.XmlResultDbase;
+import java.util.logging.Logger;
+
+/**
+ * RequestHandlerDbExport
+ *    Send all results of a result database to the client as CSV or as
+ *    NDJSON (one JSON object per line), sorted and filtered as with /dbinfo.
+ *    The rows are written while they are read, so the export of a large
+ *    database takes no more memory than that of a small one.
+ * Params:
+ *    userid  - name of the user under which the dbase is stored
+ *    name    - name of the dbase (with or without postfix .xml)
+ * Optional:
+ *    part    - corpus part (sub directory) of the dbase
+ *    format  - "csv" (default) or "ndjson"
+ *    gzip    - true: compress the stream with gzip
+ *    sort    - column name that needs sorting + minus sign if descending
+ *    filter  - object with per column a pattern (e.g. "Genre": "c*")
+ *    kwic    - true: add the pre/hit/fol context (if it has been computed)
+ *
+ * @author Erwin R. Komen
+ */
+public class RequestHandlerDbExport extends RequestHandler {
+  @SuppressWarnings("hiding")
+  // =================== Static variables =======================================
+  private static final Logger logger = Logger.getLogger(RequestHandlerDbExport.class.getName());
+  private static final int CHUNK = 1000;          // Results read at once
+  // Fields of each result, in the order of the columns
+  private static final String[] FIELDS = {"ResId", "File", "TextId", "Locs", "Locw", "Cat",
+    "SubType", "Title", "Genre", "Author", "Date", "Size"};
+  // =================== Local variables =======================================
+  private CrpManager crpManager;
+  private String sDbFile = "";
+  private String sFormat = "csv";
+  private boolean bGzip = false;
+  private boolean bKwic = false;
+  private String sSort = "";
+  private JSONObject oFilter = null;
+  // The results to be written: the columnar form, or else the XML database
+  private ResultColumns oCols = null;
+  private XmlResultDbase oDbIndex = null;
+
+  // =================== Initialisation of this class ==========================
+  public RequestHandlerDbExport(CrpPserver servlet, HttpServletRequest request, String indexName) {
+    super(servlet, request, indexName);
+    // Get my local access to the Crp-User list manager
+    this.crpManager = servlet.getCrpManager();
+  }
+
+  @Override
+  public DataObject handle() {
+    String sPart = "";    // Optional part
+
+    try {
+      debug(logger, "REQ dbexport");
+      // Get the JSON string argument we need to process, e.g:
+      //   {  "userid": "erkomen",  // user
+      //      "name": "bladi.xml",  // name of database
+      //      "part": "lModE",      // OPTIONAL: corpus part
+      //      "format": "ndjson",   // OPTIONAL: csv (default) or ndjson
+      //      "gzip": true,         // OPTIONAL: compress the output
+      //      "filter": {           // OPTIONAL: List of STRING filter expressions
+      //         "Title": "ab*",
+      //         "Genre": "c*" },
+      //      "sort": "-Cat",       // OPTIONAL: Column name that needs sorting + minus sign if descending order
+      //      "kwic": true          // OPTIONAL: add the context of each result
+      //   }
+      sReqArgument = getReqString(request);
+      debug(logger, "Considering request /dbexport: " + sReqArgument);
+      // Take apart the request object
+      JSONObject jReq = new JSONObject(sReqArgument);
+      // Validate obligatory parameters
+      if (!jReq.has("userid") || !jReq.has("name"))
+        return DataObject.errorObject("dbexport syntax",
+              "One of the parameters is missing: userid, name");
+
+      // Now extract the obligatory parameters
+      sCurrentUserId = jReq.getString("userid");
+      String sDbName = jReq.getString("name");
+      if (!sDbName.endsWith(".xml")) sDbName += ".xml";
+
+      // Deal with optional parameters
+      if (jReq.has("part")) { sPart = jReq.getString("part"); }
+      if (jReq.has("format")) { sFormat = jReq.getString("format"); }
+      if (jReq.has("gzip")) { bGzip = jReq.getBoolean("gzip"); }
+      if (jReq.has("kwic")) { bKwic = jReq.getBoolean("kwic"); }
+      if (jReq.has("sort")) { sSort = jReq.getString("sort"); }
+      if (jReq.has("filter")) { oFilter = jReq.getJSONObject("filter"); }
+      if (!sFormat.equals("csv") && !sFormat.equals("ndjson"))
+        return DataObject.errorObject("dbexport syntax", "The format must be: csv or ndjson");
+
+      // Locate the database (in the same way as /dbinfo)
+      sDbFile = CrpInfo.sEtcProject + "/" + sCurrentUserId + "/dbase/";
+      if (!sPart.isEmpty()) {
+        sDbFile += sPart + "/";
+      }
+      sDbFile += sDbName;
+      if (!new File(sDbFile).exists()) return DataObject.errorObject("availability",
+              "The database with the indicated name cannot be loaded for this user");
+
+      // Get access to the results, sorted and filtered, while an error can still be sent
+      // (the columns only give the results in the order of the database)
+      if (ResultColumns.isPlain(sSort, oFilter)) oCols = crpManager.getResultColumnStore().get(sDbFile);
+      if (oCols == null) {
+        oDbIndex = crpManager.getResultViewCache().acquire(sDbFile, sSort, oFilter);
+        if (oDbIndex == null) return DataObject.errorObject("availability",
+                "The database could not be opened: " + sDbName);
+      }
+
+      // The rows are written by writeStream()
+      String sName = sDbName.substring(0, sDbName.length() - 4) + "." + sFormat;
+      if (bGzip) return byteStream("application/gzip", sName + ".gz");
+      return byteStream((sFormat.equals("csv")) ? "text/csv; charset=utf-8" :
+              "application/x-ndjson; charset=utf-8", sName);
+    } catch (Exception ex) {
+      errHandle.DoError("Providing /dbexport failed", ex, RequestHandlerDbExport.class);
+      crpManager.getResultViewCache().release(oDbIndex);
+      oDbIndex = null;
+      return null;
+    }
+  }
+
+  /**
+   * writeStream
+   *    Write all results to @out, chunk by chunk, from the columnar form of
+   *    the database or the XML database itself, as taken by [handle]
+   *
+   * @param out
+   * @throws IOException  when the client has gone away
+   */
+  @Override
+  public void writeStream(OutputStream out) throws IOException {
+    KwicSidecar.Reader oKwicReader = null;
+
+    try {
+      // The gzip header is written at once: the client may be gone already
+      GZIPOutputStream gzOut = (bGzip) ? new GZIPOutputStream(out, 65536) : null;
+      Writer wOut = new BufferedWriter(new OutputStreamWriter(
+              (bGzip) ? gzOut : out, StandardCharsets.UTF_8), 65536);
+      List<String> lFeatures;
+      int iSize;
+      if (oCols != null) {
+        lFeatures = oCols.featureList();
+        iSize = oCols.size();
+      } else {
+        lFeatures = oDbIndex.featureList();
+        iSize = oDbIndex.Size();
+      }
+      if (bKwic) oKwicReader = crpManager.getKwicSidecar().open(sDbFile, sCurrentUserId);
+
+      // CSV starts with the names of the columns
+      if (sFormat.equals("csv")) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < FIELDS.length; i++) addCsv(sb, FIELDS[i], i == 0);
+        for (String sFeat : lFeatures) addCsv(sb, sFeat, false);
+        if (bKwic) { addCsv(sb, "kwic_pre", false); addCsv(sb, "kwic_hit", false); addCsv(sb, "kwic_fol", false); }
+        wOut.write(sb.append("\r\n").toString());
+      }
+
+      // Walk the results chunk by chunk
+      for (int iStart = 0; iStart < iSize; iStart += CHUNK) {
+        JSONArray arResults;
+        if (oCols != null) {
+          arResults = oCols.getResults(iStart, CHUNK);
+        } else {
+          ByRef<JSONArray> arChunk = new ByRef(null);
+          arChunk.argValue = new JSONArray();
+          if (!oDbIndex.getResults(arChunk, iStart, CHUNK)) break;
+          arResults = arChunk.argValue;
+        }
+        if (arResults.length() == 0) break;
+        for (int i = 0; i < arResults.length(); i++) {
+          JSONObject oRes = arResults.getJSONObject(i);
+          JSONObject oKwic = (oKwicReader == null) ? null : oKwicReader.get(oRes.getInt("ResId"));
+          if (sFormat.equals("csv"))
+            writeCsv(wOut, oRes, lFeatures, oKwic);
+          else
+            writeNdjson(wOut, oRes, oKwic);
+        }
+        // Let the client have this chunk (this fails if the client is gone)
+        wOut.flush();
+      }
+      wOut.flush();
+      if (gzOut != null) gzOut.finish();
+    } finally {
+      crpManager.getResultViewCache().release(oDbIndex);
+      oDbIndex = null;
+      if (oKwicReader != null) oKwicReader.close();
+    }
+  }
+
+  /**
+   * writeCsv
+   *    Write result @oRes as one CSV line
+   *
+   * @param wOut
+   * @param oRes
+   * @param lFeatures - names of the features, in the order of the columns
+   * @param oKwic     - the context of the result (or null)
+   * @throws IOException
+   */
+  private void writeCsv(Writer wOut, JSONObject oRes, List<String> lFeatures,
+          JSONObject oKwic) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < FIELDS.length; i++) addCsv(sb, getField(oRes, FIELDS[i]), i == 0);
+    // The features of a result need not be in the order of the columns
+    JSONArray arFeat = (oRes.has("Features")) ? oRes.getJSONArray("Features") : new JSONArray();
+    for (String sFeat : lFeatures) {
+      String sValue = "";
+      for (int k = 0; k < arFeat.length(); k++) {
+        JSONObject oFeat = arFeat.getJSONObject(k);
+        if (oFeat.getString("Name").equals(sFeat)) { sValue = oFeat.getString("Value"); break; }
+      }
+      addCsv(sb, sValue, false);
+    }
+    if (bKwic) {
+      addCsv(sb, (oKwic == null) ? "" : oKwic.getString("pre"), false);
+      addCsv(sb, (oKwic == null) ? "" : oKwic.getString("hit"), false);
+      addCsv(sb, (oKwic == null) ? "" : oKwic.getString("fol"), false);
+    }
+    wOut.write(sb.append("\r\n").toString());
+  }
+
+  /**
+   * writeNdjson
+   *    Write result @oRes as one line of JSON, with its features as object
+   *
+   * @param wOut
+   * @param oRes
+   * @param oKwic     - the context of the result (or null)
+   * @throws IOException
+   */
+  private void writeNdjson(Writer wOut, JSONObject oRes, JSONObject oKwic) throws IOException {
+    JSONObject oLine = new JSONObject();
+    for (String sField : FIELDS) {
+      if (sField.equals("ResId") || sField.equals("Size"))
+        oLine.put(sField, (oRes.has(sField)) ? oRes.getInt(sField) : 0);
+      else
+        oLine.put(sField, getField(oRes, sField));
+    }
+    JSONObject oFeats = new JSONObject();
+    if (oRes.has("Features")) {
+      JSONArray arFeat = oRes.getJSONArray("Features");
+      for (int k = 0; k < arFeat.length(); k++) {
+        JSONObject oFeat = arFeat.getJSONObject(k);
+        oFeats.put(oFeat.getString("Name"), oFeat.getString("Value"));
+      }
+    }
+    oLine.put("Features", oFeats);
+    if (bKwic && oKwic != null) {
+      oLine.put("kwic_pre", oKwic.getString("pre"));
+      oLine.put("kwic_hit", oKwic.getString("hit"));
+      oLine.put("kwic_fol", oKwic.getString("fol"));
+    }
+    wOut.write(oLine.toString());
+    wOut.write("\n");
+  }
+
+  private static String getField(JSONObject oRes, String sField) {
+    if (!oRes.has(sField)) return "";
+    if (sField.equals("ResId") || sField.equals("Size")) return String.valueOf(oRes.getInt(sField));
+    return oRes.getString(sField);
+  }
+
+  /**
+   * addCsv
+   *    Add @sValue as next CSV field to @sb, quoted where needed
+   *
+   * @param sb
+   * @param sValue
+   * @param bFirst  - this is the first field of the line (an empty first
+   *                  field still needs a separator after it)
+   */
+  private static void addCsv(StringBuilder sb, String sValue, boolean bFirst) {
+    if (!bFirst) sb.append(',');
+    if (sValue.indexOf(',') < 0 && sValue.indexOf('"') < 0 &&
+            sValue.indexOf('\n') < 0 && sValue.indexOf('\r') < 0) {
+      sb.append(sValue);
+    } else {
+      sb.append('"').append(sValue.replace("\"", "\"\"")).append('"');
+    }
+  }
+}
@@ -66,6 +66,7 @@ public class RequestHandlerDbGet extends RequestHandler {
       //      "name":   "ParticleA_dbase.xml"   
       //      "part":   "lModE"                 OPTIONAL: the `dir` of the corpus part
       //      "type":   "xml"                   OR: "csv", "db"
+      //      "raw":    true                    OPTIONAL: send the file itself (supports Range)
       //    }
       // Note: if no user is given, then we should give all users and all crp's
       sReqArgument = getReqString(request);
@@ -103,6 +104,10 @@ public class RequestHandlerDbGet extends RequestHandler {
         fDbPath = new File(sDbPath);
         sDbPath = Paths.get(fDbPath.getParent(), sPart, fDbPath.getName()).toString();
       }
+      // The client may want the file as it is, instead of inside JSON
+      boolean bRaw = isRawRequested(jReq);
+      // The type, part and form of the request determine the response, besides the file
+      String sVariant = sGetType + "/" + sPart + ((bRaw) ? "/raw" : "/json");
       // Possibly adapt for which file we are looking
       switch(sGetType) {
         case "csv":
@@ -110,6 +115,9 @@ public class RequestHandlerDbGet extends RequestHandler {
           fDbPath = new File(sDbPath);
           if (!fDbPath.exists()) return DataObject.errorObject("not_found",
                   "Could not find the .csv.gz file at: ["+sDbPath+"].");
+          // Does the client have this version already? Then don't read the file
+          if (checkFileNotModified(sVariant, fDbPath)) return null;
+          if (bRaw) return rawFile(fDbPath, "application/gzip");
           // Load and prepare the content
           objContent.put("db", StringUtil.compressSafe(FileUtil.decompressGzipString(sDbPath)));
           break;
@@ -119,6 +127,8 @@ public class RequestHandlerDbGet extends RequestHandler {
             fDbPath = new File(sDbPath);
             if (!fDbPath.exists()) return DataObject.errorObject("not_found",
                     "Could not find the .xml file at: ["+sDbPath+"].");
+            if (checkFileNotModified(sVariant, fDbPath)) return null;
+            if (bRaw) return rawFile(fDbPath, "application/xml");
             // Load and prepare the content
             objContent.put("db", StringUtil.compressSafe((new FileUtil()).readFile(fDbPath)));
           } else {
@@ -126,6 +136,8 @@ public class RequestHandlerDbGet extends RequestHandler {
             fDbPath = new File(sDbPath);
             if (!fDbPath.exists()) return DataObject.errorObject("not_found",
                     "Could not find the .db.gz file at: ["+sDbPath+"].");
+            if (checkFileNotModified(sVariant, fDbPath)) return null;
+            if (bRaw) return rawFile(fDbPath, "application/gzip");
             // Read the binary file as a byte array
             byte[] arBytes = Files.readAllBytes(fDbPath.toPath());
             // Load and prepare the content
@@ -137,6 +149,8 @@ public class RequestHandlerDbGet extends RequestHandler {
           fDbPath = new File(sDbPath);
           if (!fDbPath.exists()) return DataObject.errorObject("not_found",
                   "Could not find the .db.gz file at: ["+sDbPath+"].");
+          if (checkFileNotModified(sVariant, fDbPath)) return null;
+          if (bRaw) return rawFile(fDbPath, "application/gzip");
           // Read the binary file as a byte array
           byte[] arBytes = Files.readAllBytes(fDbPath.toPath());
           // Load and prepare the content
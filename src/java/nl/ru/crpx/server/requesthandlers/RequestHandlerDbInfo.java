@@ -25,14 +25,13 @@ import nl.ru.crpx.project.CorpusResearchProject;
 import nl.ru.crpx.project.CrpInfo;
 import nl.ru.crpx.server.CrpPserver;
 import nl.ru.crpx.server.crp.CrpManager;
+import nl.ru.crpx.server.crp.KwicSidecar;
+import nl.ru.crpx.server.crp.ResultColumns;
 import nl.ru.crpx.xq.Extensions;
 import nl.ru.util.ByRef;
-import nl.ru.util.FileUtil;
 import nl.ru.util.json.JSONArray;
 import nl.ru.util.json.JSONObject;
 import nl.ru.xmltools.XmlAccess;
-import nl.ru.xmltools.XmlAccessFolia;
-import nl.ru.xmltools.XmlAccessPsdx;
 import nl.ru.xmltools.XmlDocument;
 import nl.ru.xmltools.XmlIndexTgReader;
 import nl.ru.xmltools.XmlNode;
@@ -78,9 +77,10 @@ public class RequestHandlerDbInfo extends RequestHandler {
   private JSONObject oCurrentMetaInfo = null; // Metadata of the current file
   private CorpusResearchProject.ProjType iPrjType;  // Type of current project (psdx/folia...)
   private CorpusResearchProject crpThis = null;
+  private KwicSidecar.Reader oKwicReader = null;  // Precomputed KWIC lines of the database
   // =================== Final Locals ==========================================
   private static final QName loc_attr_LeafText = new QName("", "", "Text");
-  private final String sKwicMethod = "calculate";
+  private final String sKwicMethod = "sidecar";
   private final String sMetaMethod = "dbase";
 
   // =================== Initialisation of this class ==========================
@@ -93,6 +93,7 @@ public class RequestHandlerDbInfo extends RequestHandler {
   @Override
   public DataObject handle() {
     String sPart = "";    // Optional part
+    XmlResultDbase oDbIndex = null;
     
     try {
       debug(logger, "REQ dbinfo");
@@ -132,8 +133,6 @@ public class RequestHandlerDbInfo extends RequestHandler {
       if (jReq.has("part")) {sPart = jReq.getString("part");}
       
       // Gain access to the database through a reader
-      CorpusResearchProject oCrpx = new CorpusResearchProject(true);
-      XmlResultDbase oDbIndex = new XmlResultDbase(oCrpx, null, errHandle);
       // XmlResultPsdxIndex oDbIndex = new XmlResultPsdxIndex(oCrpx, null, errHandle);
       // String sDbFile = "/etc/project/" + sCurrentUserId + "/dbase/";
       String sDbFile = CrpInfo.sEtcProject + "/" + sCurrentUserId + "/dbase/";
@@ -141,24 +140,40 @@ public class RequestHandlerDbInfo extends RequestHandler {
         sDbFile += sPart + "/";
       }
       sDbFile += sDbName;
-      if (!oDbIndex.Prepare(sDbFile)) return DataObject.errorObject("availability", 
-              "The database with the indicated name cannot be loaded for this user");
-      
-      // Possibly perform sorting
-      oDbIndex.Sort(sSort);
-      
-      // Possibly perform filtering
-      oDbIndex.Filter(oFilter);
+      // Use the columnar form of the database if it is there already (only
+      // for results in database order: sorting and filtering is left to the database)
+      ResultColumns oCols = crpManager.getResultColumnStore().get(sDbFile);
+      if (!ResultColumns.isPlain(sSort, oFilter)) oCols = null;
+      JSONObject oHdr;
+      List<String> lFeatures;
+      int iSize;
+      if (oCols != null) {
+        oHdr = oCols.headerInfo();
+        lFeatures = oCols.featureList();
+        iSize = oCols.size();
+      } else {
+        // Get the database sorted and filtered (possibly prepared earlier)
+        oDbIndex = crpManager.getResultViewCache().acquire(sDbFile, sSort, oFilter);
+        if (oDbIndex == null) return DataObject.errorObject("availability", 
+                "The database with the indicated name cannot be loaded for this user");
+        oHdr = oDbIndex.headerInfo();
+        lFeatures = oDbIndex.featureList();
+        iSize = oDbIndex.Size();
+      }
       
       // Start a content object
       DataObjectMapElement objContent = new DataObjectMapElement();
       
       // The general information of the database must be added at any rate (no matter the value of iUpdStart)
-      DataObjectMapElement objGeneral = (DataObjectMapElement) getGeneralPart(oDbIndex);
+      DataObjectMapElement objGeneral = (DataObjectMapElement) getGeneralPart(oHdr, lFeatures);
       objContent.put("General", objGeneral);
       
       // Prepare getting KIWC results
-      this.kwicPrepare(oDbIndex);
+      this.kwicPrepare(oHdr);
+      // Use the precomputed KWIC lines, if the database has them already
+      if (sKwicMethod.equals("sidecar")) {
+        oKwicReader = crpManager.getKwicSidecar().open(sDbFile, sCurrentUserId);
+      }
       
       // Start an array with the required results
       DataObjectList arHitDetails = new DataObjectList("results");
@@ -169,7 +184,10 @@ public class RequestHandlerDbInfo extends RequestHandler {
         // Call the routine to get a number of results
         ByRef<JSONArray> arResults = new ByRef(null);
         arResults.argValue = new JSONArray();
-        if (!oDbIndex.getResults(arResults, iUpdStart, iUpdCount)) return DataObject.errorObject("runtime", 
+        if (oCols != null) {
+          // The page is read from the columns
+          arResults.argValue = oCols.getResults(iUpdStart, iUpdCount);
+        } else if (!oDbIndex.getResults(arResults, iUpdStart, iUpdCount)) return DataObject.errorObject("runtime", 
                 "Could not retrieve the requested results");
         // Copy the results to the dataobject map element
         for (int i=0;i<arResults.argValue.length();i++) {
@@ -233,6 +251,19 @@ public class RequestHandlerDbInfo extends RequestHandler {
           }
           // Add sentence-context information
           switch (sKwicMethod) {
+            case "sidecar":
+              startTime = System.nanoTime();
+              JSONObject oKwicDone = (oKwicReader == null) ? null : 
+                      oKwicReader.get(oResSource.getInt("ResId"));
+              // Calculate it if the sidecar is not (yet) there
+              if (oKwicDone == null) oKwicDone = getResultKwic(sFile, sLocs, sLocw);
+              this.tmeKwic += System.nanoTime() - startTime;
+              if (oKwicDone != null) {
+                oResTarget.put("kwic_pre", oKwicDone.getString("pre"));
+                oResTarget.put("kwic_hit", oKwicDone.getString("hit"));
+                oResTarget.put("kwic_fol", oKwicDone.getString("fol"));
+              }
+              break;
             case "calculate":
               startTime = System.nanoTime();
               // Calculate and copy the Kwic for this hit
@@ -271,21 +302,18 @@ public class RequestHandlerDbInfo extends RequestHandler {
       // Add the number of results actually given
       objContent.put("Count", iCount);
       // Add the total number of results
-      objContent.put("Size", oDbIndex.Size());
+      objContent.put("Size", iSize);
       // Add the array of results
       objContent.put("Results", arHitDetails);
       // Add the array of feature names
       DataObjectList arFtNames = new DataObjectList("features");
-      for (String sFtName : oDbIndex.featureList()) {arFtNames.add(sFtName);}
+      for (String sFtName : lFeatures) {arFtNames.add(sFtName);}
       objContent.put("Features", arFtNames);
       
       // ============= TIMING
       objContent.put("TimeMeta", this.tmeMeta);
       objContent.put("TimeKwic", this.tmeKwic);
       
-      // Make sure the database connection is closed again
-      oDbIndex.close();
- 
       
       // Prepare a status object to return
       DataObjectMapElement objStatus = new DataObjectMapElement();
@@ -301,6 +329,15 @@ public class RequestHandlerDbInfo extends RequestHandler {
     } catch (Exception ex) {
       errHandle.DoError("Providing /dbinfo information failed", ex, RequestHandlerDbInfo.class);
       return null;
+    } finally {
+      // Give the XML access back to the pool, so that it can be reused
+      crpManager.getXmlAccessPool().release(objXmlAcc);
+      objXmlAcc = null;
+      // Give the database back, so that the next page can use it
+      crpManager.getResultViewCache().release(oDbIndex);
+      // Close the KWIC sidecar
+      if (oKwicReader != null) oKwicReader.close();
+      oKwicReader = null;
     }
   }
   
@@ -308,13 +345,13 @@ public class RequestHandlerDbInfo extends RequestHandler {
    * getGeneralPart --
    *    Retrieve information from the <General> part of the results database
    * 
-   * @param oDbIndex
+   * @param oHdr        - header of the database
+   * @param lFeatures   - names of its features
    * @return 
    */
-  private DataObject getGeneralPart(XmlResultDbase oDbIndex) {
+  private DataObject getGeneralPart(JSONObject oHdr, List<String> lFeatures) {
     try {
       // THe user wants to have all the information in the <General> section
-      JSONObject oHdr = oDbIndex.headerInfo();
       // Make sure certain parts are copied
       String sProjectName = ""; // Name of CRPX that created the DB
       String sCreated = "";     // Created date in sortable date/time
@@ -340,7 +377,6 @@ public class RequestHandlerDbInfo extends RequestHandler {
       oGeneral.put("Analysis", sAnalysis);
       oGeneral.put("QC", iQC);
       // Also add a list of features
-      List<String> lFeatures = oDbIndex.featureList();
       DataObjectList lFtList = new DataObjectList("ftlist");
       for (int i=0;i<lFeatures.size(); i++) { lFtList.add(lFeatures.get(i)); }
       oGeneral.put("Features", lFtList);
@@ -356,15 +392,11 @@ public class RequestHandlerDbInfo extends RequestHandler {
    * kwicPrepare
    *    Prepare getting Kwic results
    * 
-   * @param oDbIndex
+   * @param oHdr  - header of the database
    * @return 
    */
-  public boolean kwicPrepare(XmlResultDbase oDbIndex) {
-    JSONObject oHdr = null;
-    
+  public boolean kwicPrepare(JSONObject oHdr) {
     try {
-      // Get the header
-      oHdr = oDbIndex.headerInfo();
       // Get the directory where corpus files must be found
       this.sLngPart = oHdr.getString("Part");
       this.sLngName = oHdr.getString("Language");
@@ -408,21 +440,14 @@ public class RequestHandlerDbInfo extends RequestHandler {
         this.sCurrentFile = sFile;
         
         // Construct the target file name
-        String sOneSrcFilePart = FileUtil.findFileInDirectory(sCrpLngDir, sFile);
+        String sOneSrcFilePart = crpManager.getCorpusFileIndex().find(sCrpLngDir, sFile);
 
-        // Get a handle to this file
-        switch (crpThis.intProjType) {
-          case ProjPsdx:
-           objXmlAcc = new XmlAccessPsdx(crpThis, pdxThis, sOneSrcFilePart); break;
-          case ProjFolia:
-           objXmlAcc = new XmlAccessFolia(crpThis, pdxThis, sOneSrcFilePart); break;              
-          case ProjAlp:
-            break;
-          case ProjNegra:
-            break;
-          default:
-            break;
-        }
+        // Give the handle of the previous file back to the pool
+        crpManager.getXmlAccessPool().release(objXmlAcc);
+        objXmlAcc = null;
+        // Get a handle to this file (an open one from the pool, if possible)
+        objXmlAcc = crpManager.getXmlAccessPool().acquire(crpThis, pdxThis, 
+                crpThis.intProjType, sOneSrcFilePart);
       }
       
       // Return the object we created
@@ -452,7 +477,7 @@ public class RequestHandlerDbInfo extends RequestHandler {
         oMetaInfo = this.oCurrentMetaInfo;
       } else {
         // Get the full path of the filename
-        String sOneSrcFilePart = FileUtil.findFileInDirectory(sCrpLngDir, sFile);
+        String sOneSrcFilePart = crpManager.getCorpusFileIndex().find(sCrpLngDir, sFile);
         // Retrieve the metadata 
         oMetaInfo = this.crpManager.getMetaInfo(sLng, sPart, sOneSrcFilePart);
         this.oCurrentMetaInfo = oMetaInfo;
@@ -14,7 +14,6 @@ package nl.ru.crpx.server.requesthandlers;
 
 import javax.servlet.http.HttpServletRequest;
 import nl.ru.crpx.dataobject.DataObject;
-import nl.ru.crpx.dataobject.DataObjectList;
 import nl.ru.crpx.dataobject.DataObjectMapElement;
 import nl.ru.crpx.server.CrpPserver;
 import nl.ru.crpx.server.crp.CrpManager;
@@ -97,10 +96,8 @@ public class RequestHandlerDbSet extends RequestHandler {
       // Check if this has the .xml ending
       if (!sDbName.endsWith(".xml")) sDbName += ".xml";
       if (!bOverwrite) {
-        // Get a list of all this user's Result Databases satisfying the name condition
-        DataObjectList arDbList = (DataObjectList) crpManager.getDbList( sCurrentUserId, sDbName);
-        // Check if
-        if (!arDbList.isEmpty()) {
+        // Check if this user already has a Result Database with this name
+        if (crpManager.existsDb(sDbName, sCurrentUserId)) {
           return DataObject.errorObject("overwrite", 
             "An .xml file called ["+sDbName+"] is already present, and would be overwritten.");
         } 
@@ -109,6 +106,10 @@ public class RequestHandlerDbSet extends RequestHandler {
       // Save the Result Dbase to an appropriate location
       String sResDbase = RequestHandler.getDbFilename(sDbName, sCurrentUserId);
       FileUtil.writeFile(sResDbase, sDbText, "utf-8");
+      crpManager.getCatalog().refresh(sResDbase);
+      // Compute the KWIC lines and the columnar form in the background
+      crpManager.getKwicSidecar().schedule(sResDbase, sCurrentUserId);
+      crpManager.getResultColumnStore().schedule(sResDbase);
       
       // Content part
       DataObjectMapElement objContent = new DataObjectMapElement();
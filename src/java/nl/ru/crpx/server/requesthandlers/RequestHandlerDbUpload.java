@@ -136,7 +136,7 @@ public class RequestHandlerDbUpload extends RequestHandler {
       // Possibly check existence
       boolean bCheckedExists = false;
       if (!bOverwrite) {
-        bCheckedExists = (crpManager.getDbList( sCurrentUserId, sDbName) != null);
+        bCheckedExists = crpManager.existsDb(sDbName, sCurrentUserId);
       }
       
       // Overwrite protection: continue if we may overwrite, or else, if the db does not exist yet
@@ -147,7 +147,7 @@ public class RequestHandlerDbUpload extends RequestHandler {
         switch(sAction) {
           case "init":
             // Clear the list of files
-            oUserFile.Init();
+            oUserFile.Init(iTotal);
             // Give an appropriate response
             sCode = "initialized";
             sMsg = "The /crpp server is ready to receive a results database";
@@ -173,10 +173,20 @@ public class RequestHandlerDbUpload extends RequestHandler {
                 // Save the Result Dbase to an appropriate location
                 String sResDbase = RequestHandler.getDbFilename(sDbName, sCurrentUserId);
                 // We are ready, so combine the fragments
-                oUserFile.Write(sResDbase);
+                if (!oUserFile.Write(sResDbase)) {
+                  // Free the spool file: the client has to send the database again
+                  oUserFile.Clear();
+                  return DataObject.errorObject("dbupload",
+                          "The result dbase could not be stored at the server: "+sResDbase);
+                }
+                crpManager.getCatalog().refresh(sResDbase);
                 // =========== DEBUG ===================
                 errHandle.debug("dbupload written to: "+sResDbase);
                 // =====================================
+                // Compute the KWIC lines of the database in the background
+                crpManager.getKwicSidecar().schedule(sResDbase, sCurrentUserId);
+                // And make its columnar form for sorting, filtering and paging
+                crpManager.getResultColumnStore().schedule(sResDbase);
                 // Return correct information
                 sCode = "completed";
                 sMsg = "The result dbase has been stored at the server: "+sResDbase;
@@ -184,13 +194,13 @@ public class RequestHandlerDbUpload extends RequestHandler {
                 oUserFile.Clear();
               } else {
                 // =========== DEBUG ===================
-                errHandle.debug("dbupload chunk="+ iChunk+" progress="+oUserFile.chunk.size()+ "/"+oUserFile.total);
+                errHandle.debug("dbupload chunk="+ iChunk+" progress="+oUserFile.getReceived()+ "/"+oUserFile.total);
                 // =====================================
 
                 // We are not ready, so return a progress message
                 sCode = "working";
                 // Return progress information
-                objContent.put("read", oUserFile.chunk.size() );
+                objContent.put("read", oUserFile.getReceived() );
                 objContent.put("total", oUserFile.total);
               }
             }
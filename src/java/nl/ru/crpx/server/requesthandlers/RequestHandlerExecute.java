@@ -19,9 +19,10 @@ import javax.servlet.http.HttpServletRequest;
 import nl.ru.crpx.dataobject.DataObject;
 import nl.ru.crpx.dataobject.DataObjectMapElement;
 import nl.ru.crpx.search.Job;
-import nl.ru.crpx.search.QueryException;
 import nl.ru.crpx.server.CrpPserver;
 import nl.ru.crpx.server.crp.CrpManager;
+import nl.ru.crpx.server.crp.JobTableView;
+import nl.ru.crpx.server.util.JobWatcher;
 import nl.ru.crpx.tools.ErrHandle;
 import nl.ru.util.ByRef;
 import nl.ru.util.json.JSONObject;
@@ -39,6 +40,8 @@ public class RequestHandlerExecute extends RequestHandler {
   private static final Logger logger = Logger.getLogger(RequestHandlerDebug.class.getName());
   // =================== Local variables =======================================
   private CrpManager crpManager;
+  private Job waitJob = null;         // Job the client waits for (long-poll)
+  private String sWaitJobId = "";     // Id of that job
   
   // =================== Class initialisation
   public RequestHandlerExecute(CrpPserver servlet, HttpServletRequest request, String indexName) {
@@ -240,9 +243,47 @@ public class RequestHandlerExecute extends RequestHandler {
                   sThisJobId + "], finished=" + 
                   search.finished() + " status=" + search.getJobStatus() );
         }
+        // Remember where the table of this job is going to be (for /statusxq and /export)
+        JobTableView.register(prjThis, sThisJobId);
+      }
 
+      // Does the client want to wait until the job changes?
+      if (!search.finished() && isWaitRequested(jReq)) {
+        this.waitJob = search;
+        this.sWaitJobId = sThisJobId;
+        this.waitFor = JobWatcher.forJob(search);
       }
 
+      // Return the status or the result of the job
+      return getJobResponse(search, sThisJobId);
+    } catch (Exception ex) {
+      errHandle.DoError("Executing the query failed", ex, RequestHandlerExecute.class);
+      return null;
+    }
+  }  
+  
+  /**
+   * resume - the job we have been waiting for has changed (or the waiting 
+   *          time is over), so return its status or result now
+   * 
+   * @return 
+   */
+  @Override
+  public DataObject resume() {
+    if (waitJob == null) return super.resume();
+    return getJobResponse(waitJob, sWaitJobId);
+  }
+  
+  /**
+   * getJobResponse - Return the status of the job if it has not finished yet,
+   *                  or else return its results
+   * 
+   * @param search
+   * @param sThisJobId
+   * @return 
+   */
+  private DataObject getJobResponse(Job search, String sThisJobId) {
+    try {
       // If search is not done yet, indicate this to the user
       if (!search.finished()) {
         // Check if more information is available or not
@@ -288,12 +329,12 @@ public class RequestHandlerExecute extends RequestHandler {
       response.put("content", objContent);
       response.put("status", objStatus);
       return response;
-    } catch (QueryException | InterruptedException ex) {
-      errHandle.DoError("Executing the query failed", ex, RequestHandlerExecute.class);
+    } catch (Exception ex) {
+      errHandle.DoError("Getting the job response failed", ex, RequestHandlerExecute.class);
       return null;
     }
-  }  
-  
+  }
+
   /**
    * Remove any queries of the current user that are not equal to this
    *   new query and that are currently running
@@ -37,6 +37,8 @@ public class RequestHandlerExport  extends RequestHandler {
       debug(logger, "REQ export");
       // Get the JSON string argument we need to process, e.g:
       //   {  "userid": "erkomen", "jobid": "141", "export": "table" }
+      // Optionally restricted to part of the table, e.g:
+      //   {  "userid": "erkomen", "jobid": "141", "qc": 0, "hitstart": 100, "hitcount": 50 }
       sReqArgument = getReqString(request);
       debug(logger, "Considering request /export: " + sReqArgument);
       // Take apart the request object
@@ -72,7 +74,8 @@ public class RequestHandlerExport  extends RequestHandler {
           objContent.put("searchTime", search.executionTimeMillis());
           objContent.put("searchDone", search.finished());
           objContent.put("taskid", search.getJobTaskId());
-          objContent.put("table", search.getJobTable());
+          // The client may ask for part of the table
+          if (!putJobTable(objContent, search, jReq)) return null;
           // Take over SOME values from the JobProgress
           JSONObject oProg = search.getJobProgress();
           objContent.put("total", oProg.getInt("total"));       // Total number of files processed
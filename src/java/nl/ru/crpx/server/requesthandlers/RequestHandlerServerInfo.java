@@ -15,6 +15,7 @@ import nl.ru.crpx.dataobject.DataObjectList;
 import nl.ru.crpx.dataobject.DataObjectMapElement;
 import nl.ru.crpx.project.CrpInfo;
 import nl.ru.crpx.server.CrpPserver;
+import nl.ru.crpx.server.ServletUtil;
 import nl.ru.util.FileUtil;
 import java.util.logging.Logger;
 
@@ -44,6 +45,10 @@ public class RequestHandlerServerInfo extends RequestHandler {
     String sCorpora = "";
     // File fCrpInfo = new File ("/etc/corpora/crp-info.json");
     File fCrpInfo = new File (CrpInfo.sEtcCorpora + "/crp-info.json");
+    // The statistics of the server-side caches are only given on request
+    boolean bCaches = ServletUtil.getParameter(request, "caches", false);
+    // Without these statistics the response only depends on the indices and the file
+    if (!bCaches && checkFileNotModified(indices.toString(), fCrpInfo)) return null;
     if (fCrpInfo.exists()) sCorpora = (new FileUtil()).readFile(fCrpInfo);
     
     // Combine all of it
@@ -51,6 +56,27 @@ public class RequestHandlerServerInfo extends RequestHandler {
     objContent.put("indices", doIndices);
     objContent.put("corpora", sCorpora);
     
+    // Add the statistics of the server-side caches (/serverinfo?caches=true)
+    if (bCaches) {
+      DataObjectMapElement objCaches = new DataObjectMapElement();
+      objCaches.put("crp", servlet.getCrpManager().getCrpCacheStats());
+      objCaches.put("settings", servlet.getCrpManager().getSettingsStats());
+      objCaches.put("hits", servlet.getCrpManager().getHitsCache().getStats());
+      objCaches.put("xmlaccess", servlet.getCrpManager().getXmlAccessPool().getStats());
+      objCaches.put("corpusfiles", servlet.getCrpManager().getCorpusFileIndex().getStats());
+      objCaches.put("groupnames", servlet.getCrpManager().getGroupNameCache().getStats());
+      objCaches.put("xquery", servlet.getCrpManager().getXQueryCache().getStats());
+      objCaches.put("kwic", servlet.getCrpManager().getKwicSidecar().getStats());
+      objCaches.put("metaindex", servlet.getCrpManager().getMetaIndex().getStats());
+      objCaches.put("resultviews", servlet.getCrpManager().getResultViewCache().getStats());
+      objCaches.put("resultcolumns", servlet.getCrpManager().getResultColumnStore().getStats());
+      objCaches.put("textlists", servlet.getCrpManager().getTextListScanner().getStats());
+      objCaches.put("textlines", servlet.getCrpManager().getTextLineIndex().getStats());
+      objCaches.put("catalog", servlet.getCrpManager().getCatalog().getStats());
+      objCaches.put("renderpool", servlet.getRenderPool().getStats());
+      objContent.put("caches", objCaches);
+    }
+    
     // Prepare a status object to return
     DataObjectMapElement objStatus = new DataObjectMapElement();
     objStatus.put("code", "completed");
@@ -43,6 +43,7 @@ public class RequestHandlerSettings extends RequestHandler {
       debug(logger, "REQ Settings");
       // Get the JSON string argument we need to process, e.g:
       //   {  "userid": "erkomen" }
+      //   Optional: "version" - the ETag of the settings the client has
       // Note: if no user is given, then we should give all users and all crp's
       sReqArgument = getReqString(request);
       debug(logger, "Considering request /settings: " + sReqArgument);
@@ -63,6 +64,18 @@ public class RequestHandlerSettings extends RequestHandler {
         String sDbName = oDbase.getString("name");
         // Add the information that is being passed on
         crpManager.addUserSettingsDb(sCurrentUserId, sDbName, oDbase);
+      } else {
+        // The URL parameters (e.g. output format or jsonp) make a difference too
+        String sTag = crpManager.getUserSettingsETag(sCurrentUserId);
+        String sQuery = request.getQueryString();
+        if (sQuery != null)
+          sTag = sTag.substring(0, sTag.length() - 1) + "-" + Integer.toHexString(sQuery.hashCode()) + "\"";
+        // The client may also pass the version it has as argument
+        String sVersion = (jReq.has("version")) ? jReq.getString("version") : "";
+        if (checkNotModified(sTag, -1, sVersion)) {
+          // The client already has the current settings
+          return null;
+        }
       }
       
       // Get the settings.json for this user as DataObject
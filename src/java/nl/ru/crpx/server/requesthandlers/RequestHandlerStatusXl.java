@@ -11,6 +11,7 @@ import nl.ru.crpx.dataobject.DataObjectMapElement;
 import nl.ru.crpx.search.RunAny;
 import nl.ru.crpx.search.WorkManager;
 import nl.ru.crpx.server.CrpPserver;
+import nl.ru.crpx.server.util.JobWatcher;
 import nl.ru.util.json.JSONObject;
 import java.util.logging.Logger;
 
@@ -69,6 +70,12 @@ public class RequestHandlerStatusXl  extends RequestHandler {
       }
       // TODO: check if the indicated @userid has had anything to do with this job...
       
+      // Does the client want a stream of progress events?
+      if (isStreamRequested(jReq)) {
+        this.bEventStream = true;
+        if (!search.finished()) this.waitFor = JobWatcher.forRun(search);
+      }
+      
       // Action depends on the current status of the job
       if (search.finished()) {
         String sJobStatus = search.getJobStatus();
@@ -12,6 +12,7 @@ import nl.ru.crpx.dataobject.DataObject;
 import nl.ru.crpx.dataobject.DataObjectMapElement;
 import nl.ru.crpx.search.Job;
 import nl.ru.crpx.server.CrpPserver;
+import nl.ru.crpx.server.util.JobWatcher;
 import nl.ru.util.json.JSONObject;
 import java.util.logging.Logger;
 
@@ -76,6 +77,12 @@ public class RequestHandlerStatusXq  extends RequestHandler {
                 "Cannot find job #" + sStatusJobId + " for user [" + sStatusUserId + "]");
         }
         // TODO: check if the indicated @userid has had anything to do with this job...
+        
+        // Does the client want a stream of progress events?
+        if (isStreamRequested(jReq)) {
+          this.bEventStream = true;
+          if (!search.finished()) this.waitFor = JobWatcher.forJob(search);
+        }
 
         // Action depends on the current status of the job
         if (search.finished()) {
@@ -92,7 +99,8 @@ public class RequestHandlerStatusXq  extends RequestHandler {
             objContent.put("searchDone", search.finished());
             objContent.put("query", search.getJobQuery());        // The 'query' contains the original request parameters
             objContent.put("taskid", search.getJobTaskId());
-            objContent.put("table", search.getJobTable());        // PROBLEM: this table can become very large...
+            // The table can become very large: the client may ask for part of it
+            if (!putJobTable(objContent, search, jReq)) return null;
             // Take over SOME values from the JobProgress
             JSONObject oProg = search.getJobProgress();
             objContent.put("total", oProg.getInt("total"));       // Total number of files processed
@@ -100,6 +108,8 @@ public class RequestHandlerStatusXq  extends RequestHandler {
         } else {
           sCode = "working";
           sResult = "please wait";
+          // Does the client want to wait until the job changes?
+          if (isWaitRequested(jReq) && !bEventStream) this.waitFor = JobWatcher.forJob(search);
           JSONObject oProg = search.getJobProgress();
           String sStatusStart = oProg.has("start") ? oProg.getString("start") : "-";
           String sStatusFinish = oProg.has("finish") ? oProg.getString("finish") : "-";
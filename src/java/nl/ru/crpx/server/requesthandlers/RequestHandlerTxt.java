@@ -12,6 +12,7 @@
  */
 package nl.ru.crpx.server.requesthandlers;
 
+import java.io.File;
 import javax.servlet.http.HttpServletRequest;
 import nl.ru.crpx.dataobject.DataObject;
 import nl.ru.crpx.dataobject.DataObjectMapElement;
@@ -63,7 +64,7 @@ public class RequestHandlerTxt extends RequestHandler {
     String sConstId = "";             // Optional parameter
     DataObject objContent = null;
     int iStart = 0;
-    int iPageSize = 20;
+    int iPageSize = 0;                // Default: all sentences
     String[] arArgObl = {"userid","lng","ext","name"};
     int i;
 
@@ -81,6 +82,8 @@ public class RequestHandlerTxt extends RequestHandler {
       //      "type":   "syntax"            - Optional. If present: "grouping", "hits", "context", "msg", "syntax", "svg"
       //      "locs":   "fw.p.1.s.3"        - Optional. Sentence identifier
       //      "locw":   "fw.p.1.s.3.su.5"   - Optional. syntactic unit identifier
+      //      "start":  0                   - Optional. First sentence (from zero)
+      //      "count":  20                  - Optional. Number of sentences (default: all)
       //   }
       // Note: if no user is given, then we should give all users and all crp's
       debug(logger, "Considering request /txt: " + sReqArgument);
@@ -107,15 +110,23 @@ public class RequestHandlerTxt extends RequestHandler {
       if (jReq.has("type")) sActionType = jReq.getString("type");
       if (jReq.has("locs")) sSentId = jReq.getString("locs");
       if (jReq.has("locw")) sConstId = jReq.getString("locw");
+      if (jReq.has("start")) iStart = jReq.getInt("start");
+      if (jReq.has("count")) iPageSize = jReq.getInt("count");
       
       // Special case: strip the '.gz' from the text name
       sTextName = sTextName.replace(".gz", "");
       
+      // Does the client have this version of the text already?
+      String sVariant = sLng + "/" + sDir + "/" + sActionType + "/" + sSentId + "/" + sConstId +
+              "/" + iStart + "/" + iPageSize;
+      File fText = crpManager.getTextFile(sLng, sDir, sExt, sTextName);
+      if (checkFileNotModified(sVariant, fText)) return null;
+      
       // Action depends on the type
       switch(sActionType) {
         case "sentences":
           // Get iPageSize sentences from a text starting at iStart
-          objContent = crpManager.getText( sLng, sDir, sExt, sTextName, iStart, iPageSize);
+          objContent = crpManager.getText( sLng, sDir, sExt, sTextName, fText, iStart, iPageSize);
           if (objContent == null) {
             return DataObject.errorObject("INTERNAL_ERROR", "Txt failed on 'getText()' ");
           } else if (DataObject.isErrorObject(objContent)) {
@@ -13,14 +13,17 @@
 package nl.ru.crpx.server.requesthandlers;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import javax.servlet.http.HttpServletRequest;
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
-import net.sf.saxon.s9api.XQueryCompiler;
 import net.sf.saxon.s9api.XQueryEvaluator;
 import nl.ru.crpx.dataobject.DataFormat;
 import nl.ru.crpx.dataobject.DataObject;
@@ -31,16 +34,20 @@ import nl.ru.crpx.project.CorpusResearchProject;
 import nl.ru.crpx.project.CorpusResearchProject.ProjType;
 import nl.ru.crpx.server.CrpPserver;
 import nl.ru.crpx.server.crp.CrpManager;
+import nl.ru.crpx.server.crp.GroupNameCache;
+import nl.ru.crpx.server.crp.HitIndex;
+import nl.ru.crpx.server.crp.HitsFileCache.HitLocations;
+import nl.ru.crpx.server.crp.XmlAccessPool;
+import nl.ru.crpx.server.util.GroupCounter;
+import nl.ru.crpx.server.util.JsonStreamWriter;
+import nl.ru.crpx.server.util.RenderPool;
 import nl.ru.crpx.xq.CrpFile;
-import nl.ru.crpx.xq.Extensions;
 import nl.ru.util.FileUtil;
 import nl.ru.util.StringUtil;
 import nl.ru.util.json.JSONArray;
 import nl.ru.util.json.JSONObject;
 import nl.ru.xmltools.Parse;
 import nl.ru.xmltools.XmlAccess;
-import nl.ru.xmltools.XmlAccessFolia;
-import nl.ru.xmltools.XmlAccessPsdx;
 import nl.ru.xmltools.XmlDocument;
 import nl.ru.xmltools.XmlIndexTgReader;
 import java.util.logging.Logger;
@@ -81,8 +88,9 @@ public class RequestHandlerUpdate extends RequestHandler {
   private File objCurrentFile = null;       // File we are working on now
   private String loc_xpWords = "";          // Xpath expression to get to the words
   private ProjType iPrjType;                // Type of current project (psdx/folia...)
-  private Extensions ruExt = null;          // To make sure Extension functions work
   private static final QName loc_attr_LeafText = new QName("", "", "Text");
+  private JsonStreamWriter streamOut = null;  // Where to stream the hit details to (if streaming)
+  private boolean bStreamDone = false;        // Has the streamed response been completed?
 
   // =================== Initialisation of this class ==========================
   public RequestHandlerUpdate(CrpPserver servlet, HttpServletRequest request, String indexName) {
@@ -91,13 +99,44 @@ public class RequestHandlerUpdate extends RequestHandler {
     this.crpManager = servlet.getCrpManager();
   }
   
+  @Override
+  public boolean canStream() { return true; }
+  
+  /**
+   * handleStream
+   *    Handle the /update request, writing the hit details one by one to @out,
+   *    so that large pages (e.g. with svg and tree information) need not be
+   *    kept in memory completely
+   * 
+   * @param out
+   * @return 
+   * @throws java.io.IOException
+   */
+  @Override
+  public DataObject handleStream(JsonStreamWriter out) throws IOException {
+    this.streamOut = out;
+    DataObject oBack = handle();
+    // Did something go wrong after we started streaming the content?
+    if (out.isStarted() && !bStreamDone) {
+      DataObjectMapElement objStatus = new DataObjectMapElement();
+      objStatus.put("code", "error");
+      objStatus.put("message", (oBack == null) ? errHandle.getErrList().toString() : 
+              oBack.toString(DataFormat.JSON));
+      objStatus.put("userid", userId);
+      finishStream(objStatus);
+      return null;
+    }
+    return oBack;
+  }
+  
   @Override
   public DataObject handle() {
     String sSub = "";         // Sub category to be returned
     String sLngPart = "";     // Part of the corpus to be accessed
     String sGrpCode = "";     // Xquery code for a possible group calculation per file
     JSONArray arFiles = null; // List of file names separated by tabs
-    XmlAccess objXmlAcc;      // XML access to the file(chunk) we are working with
+    XmlAccess objXmlAcc = null; // XML access to the file(chunk) we are working with
+    XmlAccessPool oXmlPool = crpManager.getXmlAccessPool();
     Parse objParseXq = null;  // Object to parse Xquery
     
     try {
@@ -180,8 +219,8 @@ public class RequestHandlerUpdate extends RequestHandler {
       if (!fTableLoc.exists())
         return DataObject.errorObject("availability", 
               "The CRP with the indicated name has not yet been run. Use /exe to run it first.");
-      // Load the table
-      JSONArray arTable = new JSONArray((new FileUtil()).readFile(fTableLoc));
+      // The table itself is only loaded when it is needed
+      JSONArray arTable = null;
       
       // General initialisations
       objXmlAcc = null;      
@@ -202,25 +241,20 @@ public class RequestHandlerUpdate extends RequestHandler {
                   "A request is made to show a grouping, but no Xquery code is supplied.");
           // Initialisations
           objParseXq = new Parse(crpThis, errHandle);
-          if (ruExt == null) ruExt = new Extensions(crpThis);
-          // Get a compiler
-          XQueryCompiler objCompiler = objSaxon.newXQueryCompiler();
           // Add ru: namespace declaration
           sGrpCode = Parse.getDeclNmsp("ru") + "\n"+ sGrpCode;
-          // Create and compile an Xquery evaluator
-          XQueryEvaluator qMetaGroups = objParseXq.getEvaluator(objCompiler, sGrpCode);
+          // Get an evaluator for the (cached) compiled Xquery
+          XQueryEvaluator qMetaGroups = crpManager.getXQueryCache().getEvaluator(crpThis, sGrpCode);
           
           // Start creating a JSON array where we put the countings per group
           JSONArray arGroupCount = new JSONArray();
           JSONArray arGroupName = new JSONArray();
           
-          // Array to combine the results we are interested in
-          JSONArray arCombi = new JSONArray();
-          // List that contains the group labels
-          List<String> lstGroup = new ArrayList<>();
-          // Array of sub categories
-          List<String> lstSubCat = new ArrayList<>();
+          // Counts per sub category and group
+          GroupCounter oCounter = null;
 
+          // Load the table
+          arTable = new JSONArray((new FileUtil()).readFile(fTableLoc));
           // Get to the QC we are interested in
           int iQCnumber = iQC + 1;
           for (int i=0;i<arTable.length();i++) {
@@ -230,36 +264,42 @@ public class RequestHandlerUpdate extends RequestHandler {
               // We have found the right QC
               // (1) Get the result label
               String sResLabel = oQC.getString("result");
-              // (2) Get the names of the sub-categories
+              // (2) Get the names of the sub-categories: these are the rows
+              //     (the first row, with an empty name, is for all hits)
               JSONArray arSubCat = oQC.getJSONArray("subcats");
+              List<String> lstSubCat = new ArrayList<>();
               lstSubCat.add("");
+              int[] arSubRow = new int[arSubCat.length()];
               for (int k=0;k<arSubCat.length();k++) {
-                lstSubCat.add(arSubCat.getString(k));
+                // A sub category name that occurs twice shares its row
+                int iRow = lstSubCat.indexOf(arSubCat.getString(k));
+                if (iRow < 0) {
+                  iRow = lstSubCat.size();
+                  lstSubCat.add(arSubCat.getString(k));
+                }
+                arSubRow[k] = iRow;
               }
+              oCounter = new GroupCounter(lstSubCat);
               
-              // (3) Get the total number of hits per sub-category
-              JSONArray arSubCount = oQC.getJSONArray("counts");
-              // (4) Walk through the hits for the QC
+              // (3) Walk through the hits for the QC
               JSONArray arHits = oQC.getJSONArray("hits");
+              // Determine the group name each file belongs to according to the current grouping
+              Map<String, String> mapGroupName = getGroupNames(crpThis, sGrpCode, 
+                      objParseXq, qMetaGroups, sLngName, sLngPart, arHits);
               for (int j=0;j<arHits.length();j++) {
                 // Check out this QC/File combination
                 JSONObject oHit = arHits.getJSONObject(j);
                 // Get the file name
                 String sFile = oHit.getString("file");
-                // Determine the group name this file belongs to according to the current grouping
-                String sGroup = objParseXq.getGroupName(qMetaGroups, crpThis, sFile);
-                // Add the group label, if appropriate
-                if (lstGroup.indexOf(sGroup)<0) lstGroup.add(sGroup);
-                // Get the number of hits for this file
-                int iCount = oHit.getInt("count");
-                // Add the number of hits for this group
-                if (!addSubGroupCount(arCombi, iCount, sFile, "", sGroup ))
-                  return DataObject.errorObject("error", 
-                    "Problem adding counts per group/subcat");
+                int iFile = oCounter.getFileId(sFile);
+                // Determine the group this file belongs to according to the current grouping
+                int iGroup = oCounter.getGroupId(mapGroupName.get(sFile));
+                // Add the number of hits of this file to its group
+                oCounter.add(0, iGroup, iFile, oHit.getInt("count"));
                 // Now walk the sub-categories
                 JSONArray arSubs = oHit.getJSONArray("subs");
-                for (int k=0;k<arSubs.length();k++) {
-                  addSubGroupCount(arCombi, arSubs.getInt(k), sFile, arSubCat.getString(k), sGroup );
+                for (int k=0;k<arSubs.length() && k<arSubRow.length;k++) {
+                  oCounter.add(arSubRow[k], iGroup, iFile, arSubs.getInt(k));
                 }
               }
               
@@ -267,11 +307,9 @@ public class RequestHandlerUpdate extends RequestHandler {
               break;
             }
           }
-          // Sort the group labels
-          Collections.sort(lstGroup);
-          // Tranform the JSON array arCombi into dataobject arHitDetails
-          // Use the group labels from lstGroup
-          arHitDetails = transformSubGroupCount(arCombi, lstSubCat, lstGroup);
+          // Turn the counts into the table of sub categories and (sorted) groups
+          arHitDetails = (oCounter == null) ? 
+                  (new GroupCounter(new ArrayList<String>())).toDataObject() : oCounter.toDataObject();
           
           // Walk all the files in the table
           // TODO: process 
@@ -279,6 +317,12 @@ public class RequestHandlerUpdate extends RequestHandler {
         default:
           // Get the directory where corpus files must be found
           String sCrpLngDir = servlet.getSearchManager().getCorpusPartDir(sLngName, sLngPart);
+          // When streaming: start the response, so that hit details can follow
+          if (streamOut != null) {
+            streamOut.beginObject();
+            streamOut.name("indexName").value(indexName);
+            streamOut.name("content").beginArray();
+          }
           // Other action depends in the value of updstart
           if (iUpdStart < 0) {
             // This is database one-result fetching, using locs/locw
@@ -292,20 +336,9 @@ public class RequestHandlerUpdate extends RequestHandler {
             oHitDetails.put("locw", sLocw);
             // Create an Xml accesser for this particular type
             // Construct the target file name
-            String sOneSrcFilePart = FileUtil.findFileInDirectory(sCrpLngDir, sOneSrcFile);
-            
-            switch (crpThis.intProjType) {
-              case ProjPsdx:
-               objXmlAcc = new XmlAccessPsdx(crpThis, pdxThis, sOneSrcFilePart); break;
-              case ProjFolia:
-               objXmlAcc = new XmlAccessFolia(crpThis, pdxThis, sOneSrcFilePart); break;              
-              case ProjAlp:
-                break;
-              case ProjNegra:
-                break;
-              default:
-                break;
-            }
+            String sOneSrcFilePart = crpManager.getCorpusFileIndex().find(sCrpLngDir, sOneSrcFile);
+            // Take an open handle to this file from the pool (if possible)
+            objXmlAcc = oXmlPool.acquire(crpThis, pdxThis, crpThis.intProjType, sOneSrcFilePart);
             // Validate
             if (objXmlAcc == null)
               return DataObject.errorObject("incompatibility", 
@@ -328,10 +361,20 @@ public class RequestHandlerUpdate extends RequestHandler {
             oHitDetails.put("allT", oHitTree.get("all"));
             oHitDetails.put("hitT", oHitTree.get("hit"));
             // Add the acquired JSONObject with info about this line
-            arHitDetails.add(oHitDetails);
+            addHitDetails(arHitDetails, oHitDetails);
           } else {
             // Get a JSON Array that specifies the position where we can find the data
-            JSONArray arHitLocInfo = getHitFileInfo(crpThis, arTable, iQC, sSub, arFiles, iUpdStart, iUpdCount);
+            JSONArray arHitLocInfo;
+            HitIndex oHitIndex = (arFiles == null || arFiles.length() == 0) ? 
+                    HitIndex.get(fTableLoc, errHandle) : null;
+            if (oHitIndex != null) {
+              // Use the index on the table to locate the hits directly
+              arHitLocInfo = getHitFileInfo(crpThis, oHitIndex, iQC, sSub, iUpdStart, iUpdCount);
+            } else {
+              // A selection of files: walk the table
+              arTable = new JSONArray((new FileUtil()).readFile(fTableLoc));
+              arHitLocInfo = getHitFileInfo(crpThis, arTable, iQC, sSub, arFiles, iUpdStart, iUpdCount);
+            }
             // Validate what we receive back
             if (arHitLocInfo == null) {
               // Return an appropriate error message
@@ -340,119 +383,79 @@ public class RequestHandlerUpdate extends RequestHandler {
                             errHandle.getErrList().toString());
             }
 
-            String sLastFile = ""; String sOneSrcFilePart = "";
-            // Start gathering the results
-            for (int i=0;i<iUpdCount && i < arHitLocInfo.length(); i++) {
-              // Calculate the number we are looking for
-              int iHitNumber = iUpdStart + i;
-              // Start storing the details of this hit
-              DataObjectMapElement oHitDetails = new DataObjectMapElement();
-              //JSONObject oHitDetails = new JSONObject();
-              oHitDetails.put("n", iHitNumber);
-              // Get the entry from hitlocinfo
-              JSONObject oHitLocInfo = arHitLocInfo.getJSONObject(i);
-              String sOneSrcFile = oHitLocInfo.getString("file");
-              String sLocs = oHitLocInfo.getString("locs");
-              String sLocw = oHitLocInfo.getString("locw");
-              oHitDetails.put("file", sOneSrcFile);
-              oHitDetails.put("locs", sLocs);
-              oHitDetails.put("locw", sLocw);
-              if (oHitLocInfo.has("msg")) oHitDetails.put("msg", oHitLocInfo.getString("msg"));
-              // Do we have this file already?
-              if (sLastFile.isEmpty() || !sLastFile.equals(sOneSrcFile)) {
-                // Construct the target file name
-                sOneSrcFilePart = FileUtil.findFileInDirectory(sCrpLngDir, sOneSrcFile);
-                // CHeck what gets returned
-                if (sOneSrcFilePart.isEmpty()) {
-                  errHandle.DoError("REQ update: skipping file that cannot be found ["+sOneSrcFile+"]");
-                } else {
-                  sLastFile = sOneSrcFile;
-                  // Create an Xml accesser for this particular type
-                  switch (crpThis.intProjType) {
-                    case ProjPsdx:
-                     objXmlAcc = new XmlAccessPsdx(crpThis, pdxThis, sOneSrcFilePart); break;
-                    case ProjFolia:
-                     objXmlAcc = new XmlAccessFolia(crpThis, pdxThis, sOneSrcFilePart); break;              
-                    case ProjAlp:
-                      break;
-                    case ProjNegra:
-                      break;
-                    default:
-                      break;
-                  }
-                }
-              }
-              // Validate
-              if (objXmlAcc == null)
-                return DataObject.errorObject("incompatibility", 
-                    "The interface to the XML files of type ["+crpThis.getProjectType()+"] is not yet implemented");
-              // Get access to the XML sentence belonging to this @locs
-              // objXmlAc = getOneSentence(crpThis, pdxThis, sOneSrcFilePart, sLocs);
+            // Validate: can we access files of this type?
+            if (crpThis.intProjType != ProjType.ProjPsdx && crpThis.intProjType != ProjType.ProjFolia)
+              return DataObject.errorObject("incompatibility", 
+                  "The interface to the XML files of type ["+crpThis.getProjectType()+"] is not yet implemented");
 
-              // Convert [sUpdType] into an array
-              String[] arUpdType = {sUpdType};
-              if (sUpdType.contains("\\+"))
-                arUpdType = sUpdType.split("[+]");
-              else if (sUpdType.contains(" "))
-                arUpdType = sUpdType.split(" ");
-              else if (sUpdType.contains("\\|"))
-                arUpdType = sUpdType.split("[|]");
-              else if (sUpdType.contains("_"))
-                arUpdType = sUpdType.split("_");
+            // Convert [sUpdType] into an array
+            String[] arUpdType = {sUpdType};
+            if (sUpdType.contains("\\+"))
+              arUpdType = sUpdType.split("[+]");
+            else if (sUpdType.contains(" "))
+              arUpdType = sUpdType.split(" ");
+            else if (sUpdType.contains("\\|"))
+              arUpdType = sUpdType.split("[|]");
+            else if (sUpdType.contains("_"))
+              arUpdType = sUpdType.split("_");
 
-              // Get the information needed for /update
-              JSONObject oHitInfo = null;
-              for (int k=0;k<arUpdType.length;k++) {
-                switch(arUpdType[k].trim()) {
-                  case "hits":    // Per hit: file // forestId // ru:back() text
-                    oHitInfo = objXmlAcc.getHitLine(sLngName, sLocs, sLocw);
-                    oHitDetails.put("preH", oHitInfo.getString("pre"));
-                    oHitDetails.put("hitH", oHitInfo.getString("hit"));
-                    oHitDetails.put("folH", oHitInfo.getString("fol"));
-                    break;
-                  case "context": // Per hit the contexts: pre // clause // post
-                    oHitInfo = objXmlAcc.getHitContext(sLngName, sLocs, sLocw, 
-                            crpThis.getPrecNum(), crpThis.getFollNum());
-                    oHitDetails.put("preC", oHitInfo.getString("pre"));
-                    oHitDetails.put("hitC", oHitInfo.getString("hit"));
-                    oHitDetails.put("folC", oHitInfo.getString("fol"));
-                    break;
-                  case "syntax":  // Per hit: file // forestId // node syntax (psd-kind)
-                    DataObjectMapElement oHitSyntax = (DataObjectMapElement) objXmlAcc.getHitSyntax(sLngName, sLocs, sLocw);
-                    oHitDetails.put("allS", oHitSyntax.get("all"));
-                    oHitDetails.put("hitS", oHitSyntax.get("hit"));
-                    break;
-                  case "svg":     // Per hit: svg
-                    // Also get the svg
-                    DataObjectMapElement oHitSvg = (DataObjectMapElement) objXmlAcc.getHitSvg(sLngName, sLocs, sLocw);
-                    oHitDetails.put("allG", oHitSvg.get("all"));
-                    oHitDetails.put("hitG", oHitSvg.get("hit")); 
-                    break;
-                  case "tree":    // Per hit: file // forestId // hierarchical nodes + features
-                    DataObjectMapElement oHitTree = (DataObjectMapElement) objXmlAcc.getHitTree(sLngName, sLocs, sLocw);
-                    oHitDetails.put("allT", oHitTree.get("all"));
-                    oHitDetails.put("hitT", oHitTree.get("hit"));
-                    break;
-                  default:
-                    break;
-                }
+            // Divide the hits over the files they come from
+            int iHits = Math.min(iUpdCount, arHitLocInfo.length());
+            Map<String, List<Integer>> mapFileHits = new LinkedHashMap<>();
+            for (int i=0;i<iHits; i++) {
+              String sOneSrcFile = arHitLocInfo.getJSONObject(i).getString("file");
+              List<Integer> lstIdx = mapFileHits.get(sOneSrcFile);
+              if (lstIdx == null) {
+                lstIdx = new ArrayList<>();
+                mapFileHits.put(sOneSrcFile, lstIdx);
               }
-
-              // Add the acquired JSONObject with info about this line
-              arHitDetails.add(oHitDetails);
+              lstIdx.add(i);
             }
+            // The details of the hits in one file are gathered by one task;
+            //   the tasks of different files may run at the same time
+            final List<List<Integer>> lstFileIdx = new ArrayList<>();
+            List<Callable<DataObjectMapElement[]>> lstTask = new ArrayList<>();
+            for (Map.Entry<String, List<Integer>> oFile : mapFileHits.entrySet()) {
+              lstFileIdx.add(oFile.getValue());
+              lstTask.add(new FileHitsTask(crpThis, sCrpLngDir, sLngName, oFile.getKey(), 
+                      oFile.getValue(), arHitLocInfo, iUpdStart, arUpdType));
+            }
+            // Pass the details on in the order of the hits, as soon as the
+            //   files of all hits up to there are done
+            final DataObjectMapElement[] arOrdered = new DataObjectMapElement[iHits];
+            final int[] arNext = {0};
+            final DataObjectList arHitList = arHitDetails;
+            servlet.getRenderPool().invokeInOrder(lstTask, new RenderPool.Sink<DataObjectMapElement[]>() {
+              @Override
+              public void put(int iTask, DataObjectMapElement[] arDone) throws Exception {
+                List<Integer> lstIdx = lstFileIdx.get(iTask);
+                for (int k=0;k<lstIdx.size();k++) {
+                  arOrdered[lstIdx.get(k)] = arDone[k];
+                }
+                while (arNext[0] < arOrdered.length && arOrdered[arNext[0]] != null) {
+                  addHitDetails(arHitList, arOrdered[arNext[0]]);
+                  arOrdered[arNext[0]++] = null;
+                }
+              }
+            });
           }
           break;
       }
       
-      // Make sure XML access is closed properly when it is not needed anymore
-      if (objXmlAcc != null) objXmlAcc.close();
+      // Give the XML access back to the pool, so that it can be reused
+      oXmlPool.release(objXmlAcc);
+      objXmlAcc = null;
       
       // Prepare a status object to return
       DataObjectMapElement objStatus = new DataObjectMapElement();
       objStatus.put("code", "completed");
       objStatus.put("message", "See the information in the [content] section");
       objStatus.put("userid", userId);
+      // Has the content been streamed already?
+      if (streamOut != null && streamOut.isStarted()) {
+        finishStream(objStatus);
+        return null;
+      }
       // Prepare the total response: indexName + status object
       DataObjectMapElement response = new DataObjectMapElement();
       response.put("indexName", indexName);
@@ -462,160 +465,254 @@ public class RequestHandlerUpdate extends RequestHandler {
     } catch (Exception ex) {
       errHandle.DoError("Providing /update information failed", ex, RequestHandlerUpdate.class);
       return null;
+    } finally {
+      // Also give the XML access back when we leave early
+      oXmlPool.release(objXmlAcc);
     }
   }
   
   /**
-   * addSubGroupCount
-   *    Find or create the correct entry in arCount:
-   *      JSONObject there has the same @sSub and @sGroup
-   *    Add two bits of information there:
-   *    1) Counter is increased with @iAdd
-   *    2) the name @sFile is added to the JSONArray with files
+   * getGroupNames
+   *    Get the group name of each file in @arHits according to the grouping
+   *    Xquery @sGrpCode. Known group names come from the cache of the CRP 
+   *    manager; the others are calculated (in parallel when there are many)
    * 
-   * @param arCount
-   * @param iAdd
-   * @param sFile
-   * @param sSub
-   * @param sGroup 
+   * @param crpThis
+   * @param sGrpCode      - the grouping Xquery
+   * @param objParseXq    - parser to be used in this thread
+   * @param qMetaGroups   - compiled grouping Xquery to be used in this thread
+   * @param sLngName
+   * @param sLngPart
+   * @param arHits        - the [hits] of one QC in the table
+   * @return              - group name per file name
+   * @throws Exception 
    */
-  private boolean addSubGroupCount(JSONArray arCount, int iAdd, String sFile, String sSub, String sGroup) {
-    try {
-      // FInd the entry
-      for (int i=0;i<arCount.length();i++) {
-        // Get object here
-        JSONObject oThis = arCount.getJSONObject(i);
-        // Get the group and sub
-        String sThisGroup =  oThis.getString("group");
-        String sThisSub   = oThis.getString("sub");
-        // Check if this is the correct one
-//        if (!sSub.isEmpty() && !sThisSub.isEmpty() &&
-//            sThisSub.equals(sSub) && sThisGroup.equals(sGroup)) {
-        if (sThisSub.equals(sSub) && sThisGroup.equals(sGroup)) {
-          // Only add files if they have non-zero counts
-          if (iAdd == 0) {
-            // Do not add this one
-            return true;
+  private Map<String, String> getGroupNames(final CorpusResearchProject crpThis, final String sGrpCode,
+          Parse objParseXq, XQueryEvaluator qMetaGroups, String sLngName, String sLngPart, 
+          JSONArray arHits) throws Exception {
+    Map<String, String> mapBack = new HashMap<>();
+    final List<String> lstMiss = new ArrayList<>();
+    final List<String> lstPath = new ArrayList<>();
+    final List<Long> lstMtime = new ArrayList<>();
+    GroupNameCache oCache = crpManager.getGroupNameCache();
+    GroupNameCache.Query oQuery = oCache.getQuery(sGrpCode);
+    // The version of a file is its modification time
+    String sCrpLngDir = servlet.getSearchManager().getCorpusPartDir(sLngName, sLngPart);
+    for (int j=0;j<arHits.length();j++) {
+      String sFile = arHits.getJSONObject(j).getString("file");
+      if (mapBack.containsKey(sFile)) continue;
+      String sPath = crpManager.getCorpusFileIndex().find(sCrpLngDir, sFile);
+      // The cache is keyed on the file itself: the same name may occur in other corpora
+      File fPath = (sPath.isEmpty()) ? null : new File(sPath).getAbsoluteFile();
+      long lMtime = (fPath == null) ? 0 : fPath.lastModified();
+      // A file whose version cannot be told is not looked up (nor kept)
+      String sGroup = (lMtime <= 0) ? null : oCache.get(oQuery, fPath.getPath(), lMtime);
+      if (sGroup == null) {
+        lstMiss.add(sFile); lstMtime.add(lMtime);
+        lstPath.add((fPath == null) ? "" : fPath.getPath());
+        // Reserve the place of this file
+        mapBack.put(sFile, null);
+      } else {
+        mapBack.put(sFile, sGroup);
+      }
+    }
+    if (lstMiss.isEmpty()) return mapBack;
+    
+    // Calculate the missing group names
+    String[] arGroup = new String[lstMiss.size()];
+    final int iChunks = Math.min(servlet.getRenderPool().getMaxPerRequest(), lstMiss.size());
+    if (iChunks <= 1) {
+      for (int i=0;i<lstMiss.size();i++) {
+        arGroup[i] = objParseXq.getGroupName(qMetaGroups, crpThis, lstMiss.get(i));
+      }
+    } else {
+      // Each task takes every [iChunks]th file, using its own parser and evaluator
+      List<Callable<String[]>> lstTask = new ArrayList<>();
+      for (int c=0;c<iChunks;c++) {
+        final int iFirst = c;
+        lstTask.add(new Callable<String[]>() {
+          @Override
+          public String[] call() throws Exception {
+            Parse objParse = new Parse(crpThis, errHandle);
+            XQueryEvaluator qOwn = crpManager.getXQueryCache().getEvaluator(crpThis, sGrpCode);
+            String[] arPart = new String[lstMiss.size()];
+            for (int i=iFirst;i<lstMiss.size();i+=iChunks) {
+              arPart[i] = objParse.getGroupName(qOwn, crpThis, lstMiss.get(i));
+            }
+            return arPart;
           }
-          // Add the information here
-          JSONArray arFiles = oThis.getJSONArray("files");
-          arFiles.put(sFile);
-          oThis.put("files", arFiles);
-
-          int iCount = oThis.getInt("count");
-          iCount += iAdd;
-          oThis.put("count", iCount);
-          // Put object back into array
-          arCount.put(i, oThis);
-          // Return positively
-          return true;
-        }
+        });
+      }
+      List<String[]> lstDone = servlet.getRenderPool().invokeAll(lstTask);
+      for (int c=0;c<iChunks;c++) {
+        for (int i=c;i<lstMiss.size();i+=iChunks) arGroup[i] = lstDone.get(c)[i];
       }
-      // Entry was not found: create it
-      JSONObject oThis = new JSONObject();
-      oThis.put("group", sGroup);
-      oThis.put("sub", sSub);
-      JSONArray arFile = new JSONArray();
-      // Only actually add this file if Add is non-zero
-      if (iAdd > 0) arFile.put(sFile);
-      oThis.put("files", arFile);
-      oThis.put("count", iAdd);
-      // Add it to the array
-      arCount.put(oThis);
-      
-      // Return positively
-      return true;
-    } catch (Exception ex) {
-      errHandle.DoError("update/addSubGroupCount failed", ex, RequestHandlerUpdate.class);
-      return false;
     }
+    // Keep the new group names
+    for (int i=0;i<lstMiss.size();i++) {
+      mapBack.put(lstMiss.get(i), arGroup[i]);
+      if (arGroup[i] != null) oCache.put(oQuery, lstPath.get(i), lstMtime.get(i), arGroup[i]);
+    }
+    // Writing them to disk need not hold up the response
+    oCache.saveLater(oQuery);
+    return mapBack;
   }
   
   /**
-   * transformSubGroupCount
-   *    Transform JSONarray into DataObject List with group info
-   *    Use the group labels in [lstGroup]
-   * 
-   * @param arCombi
-   * @param arSubCat  - Names of sub categories
-   * @param lstGroup  - Names of groups
-   * @return 
+   * FileHitsTask
+   *    Gather the details of the hits within one file. Each task uses its 
+   *    own XmlAccess (and document builder), so that tasks for different 
+   *    files can run at the same time.
    */
-  private DataObjectList transformSubGroupCount(JSONArray arCombi, 
-          List<String> lstSubCat, List<String> lstGroup) {
-    DataObjectList arBack = new DataObjectList("counts");
-    
-    try {
-      // Add the list of group names
-      DataObjectMapElement elGrp = new DataObjectMapElement();
-      DataObjectList arGrp = new DataObjectList("list");
-      for (int i=0;i<lstGroup.size();i++) {
-        arGrp.add(lstGroup.get(i));
-      }
-      elGrp.put("groups", arGrp);
-      arBack.add(elGrp);
-      // Now create a table consisting of rows (subcats) and columns (groups)
-      for (int i=0;i<lstSubCat.size();i++) {
-        // Access sub category
-        String sSubCat = lstSubCat.get(i);
-        DataObjectMapElement oRow = new DataObjectMapElement();
-        oRow.put("sub", sSubCat);
-        // Create an array for the columns
-        DataObjectList arCol = new DataObjectList("cols");
-        // Walk all possible groups for this subcat-row
-        for (int j=0;j<lstGroup.size();j++) {
-          // Create an element that *could* contain content
-          DataObjectMapElement oCol = new DataObjectMapElement();
-          oCol.put("group", lstGroup.get(j));
-          oCol.put("count", 0);
-          // Add group to the array of columns
-          arCol.add(oCol);
+  private class FileHitsTask implements Callable<DataObjectMapElement[]> {
+    final CorpusResearchProject crpThis;
+    final String sCrpLngDir;          // Directory where the corpus files are
+    final String sLngName;            // Language
+    final String sFile;               // Name of the file with the hits
+    final List<Integer> lstIdx;       // Index of each hit in [arHitLocInfo]
+    final JSONArray arHitLocInfo;     // Location of all hits
+    final int iUpdStart;              // Number of the first hit
+    final String[] arUpdType;         // Kinds of information needed
+    FileHitsTask(CorpusResearchProject crpThis, String sCrpLngDir, String sLngName, 
+            String sFile, List<Integer> lstIdx, JSONArray arHitLocInfo, int iUpdStart, 
+            String[] arUpdType) {
+      this.crpThis = crpThis; this.sCrpLngDir = sCrpLngDir; this.sLngName = sLngName;
+      this.sFile = sFile; this.lstIdx = lstIdx; this.arHitLocInfo = arHitLocInfo;
+      this.iUpdStart = iUpdStart; this.arUpdType = arUpdType;
+    }
+    @Override
+    public DataObjectMapElement[] call() throws Exception {
+      DataObjectMapElement[] arBack = new DataObjectMapElement[lstIdx.size()];
+      // Construct the target file name
+      String sOneSrcFilePart = crpManager.getCorpusFileIndex().find(sCrpLngDir, sFile);
+      if (sOneSrcFilePart.isEmpty()) {
+        // The hits are passed on with their location and an error, without details
+        errHandle.DoError("REQ update: file cannot be found ["+sFile+"]");
+        for (int k=0;k<lstIdx.size();k++) {
+          int i = lstIdx.get(k);
+          arBack[k] = getHitDetails(null, crpThis, sLngName, 
+                  arHitLocInfo.getJSONObject(i), iUpdStart + i, arUpdType);
         }
-        // Add array of columns to the row object
-        oRow.put("groups", arCol);
-        // Add row to output array
-        arBack.add(oRow);
+        return arBack;
       }
-      // Walk all the *actually found* elements
-      for (int i=0;i<arCombi.length(); i++) {
-        // Access this element
-        JSONObject oThis = arCombi.getJSONObject(i);
-        // Find group and subcat
-        String sSubCat = oThis.getString("sub");
-        String sGroup = oThis.getString("group");
-        // Where should element be put?
-        int iRow = lstSubCat.indexOf(sSubCat);
-        int iCol = lstGroup.indexOf(sGroup);
-        // Get the right row
-        DataObjectMapElement oRow = (DataObjectMapElement) arBack.get(iRow+1);
-        // Get the right element within this row
-        DataObjectList arCols = (DataObjectList) oRow.get("groups");
-        DataObjectMapElement oCol = (DataObjectMapElement) arCols.get(iCol);
-        // Add items to this element
-        oCol.put("count",  oThis.getInt("count"));
-        // Get the array of file naem
-        JSONArray arFiles = oThis.getJSONArray("files");
-        DataObjectList arNew = new DataObjectList("files");
-        for (int k = 0 ; k< arFiles.length(); k++) {
-          arNew.add(arFiles.getString(k));
+      // Take an open Xml accesser for this file from the pool (if possible)
+      XmlAccessPool oXmlPool = crpManager.getXmlAccessPool();
+      Processor objProc = crpThis.getSaxProc();
+      XmlDocument pdxOwn = new XmlDocument(objProc.newDocumentBuilder(), objProc);
+      XmlAccess objAcc = oXmlPool.acquire(crpThis, pdxOwn, crpThis.intProjType, sOneSrcFilePart);
+      try {
+        for (int k=0;k<lstIdx.size();k++) {
+          int i = lstIdx.get(k);
+          arBack[k] = getHitDetails(objAcc, crpThis, sLngName, 
+                  arHitLocInfo.getJSONObject(i), iUpdStart + i, arUpdType);
         }
-        // Put the array of file names in the destination
-        oCol.put("files", arNew);
-        // Put the Column object back into the list
-        arCols.set(iCol, oCol);
-        // Put the array of groups back into the row object
-        oRow.put("groups", arCols);
-        arBack.set(iRow+1, oRow);
+      } finally {
+        oXmlPool.release(objAcc);
       }
-
-      // Return what has been made
-      return arBack;
-    } catch (Exception ex) {
-      errHandle.DoError("update/transformSubGroupCount failed", ex, RequestHandlerUpdate.class);
       return arBack;
     }
   }
   
+  /**
+   * getHitDetails
+   *    Get the information of kinds @arUpdType for one hit
+   * 
+   * @param objXmlAcc     - access to the file of this hit (null: it cannot be found)
+   * @param crpThis
+   * @param sLngName
+   * @param oHitLocInfo   - file, locs, locw and (optionally) msg of this hit
+   * @param iHitNumber    - number of this hit
+   * @param arUpdType
+   * @return 
+   */
+  private DataObjectMapElement getHitDetails(XmlAccess objXmlAcc, CorpusResearchProject crpThis, 
+          String sLngName, JSONObject oHitLocInfo, int iHitNumber, String[] arUpdType) throws Exception {
+    // Start storing the details of this hit
+    DataObjectMapElement oHitDetails = new DataObjectMapElement();
+    oHitDetails.put("n", iHitNumber);
+    String sLocs = oHitLocInfo.getString("locs");
+    String sLocw = oHitLocInfo.getString("locw");
+    oHitDetails.put("file", oHitLocInfo.getString("file"));
+    oHitDetails.put("locs", sLocs);
+    oHitDetails.put("locw", sLocw);
+    if (oHitLocInfo.has("msg")) oHitDetails.put("msg", oHitLocInfo.getString("msg"));
+    if (objXmlAcc == null) {
+      oHitDetails.put("error", "The file cannot be found");
+      return oHitDetails;
+    }
+
+    // Get the information needed for /update
+    JSONObject oHitInfo = null;
+    for (int k=0;k<arUpdType.length;k++) {
+      switch(arUpdType[k].trim()) {
+        case "hits":    // Per hit: file // forestId // ru:back() text
+          oHitInfo = objXmlAcc.getHitLine(sLngName, sLocs, sLocw);
+          oHitDetails.put("preH", oHitInfo.getString("pre"));
+          oHitDetails.put("hitH", oHitInfo.getString("hit"));
+          oHitDetails.put("folH", oHitInfo.getString("fol"));
+          break;
+        case "context": // Per hit the contexts: pre // clause // post
+          oHitInfo = objXmlAcc.getHitContext(sLngName, sLocs, sLocw, 
+                  crpThis.getPrecNum(), crpThis.getFollNum());
+          oHitDetails.put("preC", oHitInfo.getString("pre"));
+          oHitDetails.put("hitC", oHitInfo.getString("hit"));
+          oHitDetails.put("folC", oHitInfo.getString("fol"));
+          break;
+        case "syntax":  // Per hit: file // forestId // node syntax (psd-kind)
+          DataObjectMapElement oHitSyntax = (DataObjectMapElement) objXmlAcc.getHitSyntax(sLngName, sLocs, sLocw);
+          oHitDetails.put("allS", oHitSyntax.get("all"));
+          oHitDetails.put("hitS", oHitSyntax.get("hit"));
+          break;
+        case "svg":     // Per hit: svg
+          // Also get the svg
+          DataObjectMapElement oHitSvg = (DataObjectMapElement) objXmlAcc.getHitSvg(sLngName, sLocs, sLocw);
+          oHitDetails.put("allG", oHitSvg.get("all"));
+          oHitDetails.put("hitG", oHitSvg.get("hit")); 
+          break;
+        case "tree":    // Per hit: file // forestId // hierarchical nodes + features
+          DataObjectMapElement oHitTree = (DataObjectMapElement) objXmlAcc.getHitTree(sLngName, sLocs, sLocw);
+          oHitDetails.put("allT", oHitTree.get("all"));
+          oHitDetails.put("hitT", oHitTree.get("hit"));
+          break;
+        default:
+          break;
+      }
+    }
+    return oHitDetails;
+  }
+  
+  /**
+   * addHitDetails
+   *    Add the details of one hit to the list, or write them directly
+   *    to the output when the response is being streamed
+   * 
+   * @param arHitDetails
+   * @param oHitDetails
+   * @throws IOException 
+   */
+  private void addHitDetails(DataObjectList arHitDetails, DataObjectMapElement oHitDetails) throws IOException {
+    if (streamOut != null && streamOut.isStarted()) {
+      streamOut.rawValue(oHitDetails.toString(DataFormat.JSON));
+    } else {
+      arHitDetails.add(oHitDetails);
+    }
+  }
+  
+  /**
+   * finishStream
+   *    Close the streamed [content] array and add the status object
+   * 
+   * @param objStatus
+   * @throws IOException 
+   */
+  private void finishStream(DataObjectMapElement objStatus) throws IOException {
+    streamOut.endArray();
+    streamOut.name("status").rawValue(objStatus.toString(DataFormat.JSON));
+    streamOut.endObject();
+    streamOut.flush();
+    bStreamDone = true;
+  }
+  
   /*
   private JSONObject getHitFileInfo(CorpusResearchProject crpThis, JSONArray arTable, 
           int iQC, String sFile, String sLocs, String sLocw) {
@@ -649,6 +746,85 @@ public class RequestHandlerUpdate extends RequestHandler {
   }*/
   
   
+  /**
+   * getHitFileInfo
+   *    Get location information as specified by the parameters, using the 
+   *    index on the table to find the file and offset of each hit
+   * 
+   * @param crpThis
+   * @param oHitIndex
+   * @param iQC         - QC number (starting with 1)
+   * @param sSub        - sub category (or empty)
+   * @param iUpdStart   - first hit (starting with 1)
+   * @param iUpdCount   - number of hits
+   * @return 
+   */
+  private JSONArray getHitFileInfo(CorpusResearchProject crpThis, HitIndex oHitIndex, 
+          int iQC, String sSub, int iUpdStart, int iUpdCount) {
+    JSONArray arBack = new JSONArray();   // combines the results
+    HitLocations arRes = null;            // [results] within the hit-file/qc combi
+    String sHitFile = "";                 // Name of the file whose results we have
+    int iSubCat = -1;                     // Index of the subcat (if specified)
+    
+    try {
+      // Validate
+      if (iUpdStart < 1) return arBack;
+      // Do we need to have a sub-category number?
+      if (!sSub.isEmpty()) {
+        iSubCat = oHitIndex.getSubCat(iQC-1, sSub);
+        if (iSubCat<0) { errHandle.debug("getHitFileInfo: sSub="+sSub);return null;}
+      }
+      // Walk the hits that are requested
+      for (int iHit = iUpdStart - 1; iHit < iUpdStart - 1 + iUpdCount; iHit++) {
+        // Find the file and the offset within the file (binary search)
+        HitIndex.Hit oHit = oHitIndex.find(iQC-1, iSubCat, iHit);
+        if (oHit == null) break;
+        // Do we have the results of this file already?
+        if (!oHit.sFile.equals(sHitFile)) {
+          sHitFile = oHit.sFile;
+          arRes = getHitResults(crpThis, sHitFile, iQC, sSub);
+        }
+        // We can only continue if there are results in this file
+        if (arRes == null || oHit.iOffset >= arRes.size()) continue;
+        JSONObject oAdd = new JSONObject();
+        oAdd.put("file", oHit.sFile);
+        oAdd.put("qc", iQC);
+        oAdd.put("sub", sSub);
+        oAdd.put("locs", arRes.arLocs[oHit.iOffset]);
+        oAdd.put("locw", arRes.arLocw[oHit.iOffset]);
+        if (arRes.arMsg[oHit.iOffset] != null)
+          oAdd.put("msg", arRes.arMsg[oHit.iOffset]);
+        // Add this entry to the results
+        arBack.put(oAdd);
+      }
+      
+      // Return the result
+      return arBack;
+    } catch (Exception ex) {
+      errHandle.DoError("getHitFileInfo failed", ex, RequestHandlerUpdate.class);
+      return null;
+    }
+  }
+  
+  /**
+   * getHitResults
+   *    Get the [results] of QC @iQC (and sub category @sSub) from the .hits
+   *    file that belongs to @sFileName
+   *    The .hits files are parsed only once: they are kept in the cache of 
+   *    the CRP manager for as long as they do not change
+   * 
+   * @param crpThis
+   * @param sFileName
+   * @param iQC
+   * @param sSub
+   * @return          the results, or null if there are none
+   */
+  private HitLocations getHitResults(CorpusResearchProject crpThis, String sFileName, 
+          int iQC, String sSub) {
+    File fThis = new File(crpThis.getHitsDir() + "/" + sFileName + ".hits");
+    return crpManager.getHitsCache().get(fThis, iQC, sSub);
+  }
+  
   /**
    * getHitFileInfo
    *    Get location information as specified by the parameters
@@ -663,7 +839,7 @@ public class RequestHandlerUpdate extends RequestHandler {
   private JSONArray getHitFileInfo(CorpusResearchProject crpThis, JSONArray arTable, 
           int iQC, String sSub, JSONArray arFiles, int iUpdStart, int iUpdCount) {
     JSONArray arBack;     // combines the results
-    JSONArray arRes;      // array of [results] within the hit-file/qc combi
+    HitLocations arRes;   // [results] within the hit-file/qc combi
     String sHitFile;      // Name of hit-file
     int iUpdCurrent;      // Item we are looking for now
     int iUpdFinish;       // Last entry to be taken (starting with 0)
@@ -721,7 +897,6 @@ public class RequestHandlerUpdate extends RequestHandler {
         }
       }
       
-      int iLastK = 0;
       // Walk the list with hit and subcat counts for this QC
       for (int j=0;j<arQClist.length();j++) {
         boolean bHasHit = false;
@@ -759,61 +934,26 @@ public class RequestHandlerUpdate extends RequestHandler {
           String sLastPart = "/" + sFileName + ".hits";
           if (sHitFile.isEmpty() || !sHitFile.contains(sLastPart)) {
             sHitFile = crpThis.getHitsDir() + sLastPart;
-            // Validate existence
-            File fThis = new File(sHitFile);
-            /* OLD: the .hits file must exist
-            if (!fThis.exists()) { errHandle.debug("getHitFileInfo: non existing fThis="+sHitFile);return null;}
-            */
-            // What to do if this file exists or not: assume everything has been calculated
-            if (fThis.exists()) {
-              // Read the file into a JSON array
-              JSONObject oHitF = new JSONObject((new FileUtil()).readFile(fThis));
-              JSONArray arHitF = oHitF.getJSONArray("hits");
-              // Get to the results part of this QC combined with possible subcat
-              if (sSub.isEmpty()) {
-                // It is sufficient to get the "results" array from the indicated QC
-                arRes = ((JSONObject) arHitF.get(iQC-1)).getJSONArray("results");
-              } else {
-                // First get the "percat" array of the indicated QC
-                JSONArray arPerCat = ((JSONObject) arHitF.get(iQC-1)).getJSONArray("percat");
-                arRes = null;
-                // Walk this array looking for the correct subcat
-                for (int k=0;k<arPerCat.length();k++) {
-                  // Access this 'percat' element
-                  JSONObject oPerCat = arPerCat.getJSONObject(k);
-                  // Does this 'percat' element involve our requested sub-category?
-                  if (oPerCat.getString("cat").equals(sSub)) {
-                    // Found it!
-                    arRes = oPerCat.getJSONArray("results");
-                    // get out of the loop
-                    break;
-                  }
-                }
-              }
-              // Initialize the result index
-              // iResIdx = 0;
-              // Reset the 'lastk' variable
-              iLastK = 0;
-            } else {
-              // There really is no 'else' part: if there is no .hits file available,
-              //     then that means that there are no hits in this particular file
-              // So, we can just continue...
-            }
-
+            // Get the [results] from the (cached) .hits file
+            // If there is no .hits file available, then that means that there 
+            //   are no hits in this particular file
+            arRes = getHitResults(crpThis, sFileName, iQC, sSub);
           }
           // (2) validate: we can only continue if there are any results in this file
-          if (arRes != null && arRes.length()>0) {
+          if (arRes != null && iOffset < arRes.size()) {
             // (3) Move the result-index to the required iOffset
             // The result index is straight-forward the index of the [results] array
-            JSONObject oOneRes = arRes.getJSONObject(iOffset);
-            oAdd.put("locs", oOneRes.getString("locs"));
-            oAdd.put("locw", oOneRes.getString("locw"));
-            if (oOneRes.has("msg"))
-              oAdd.put("msg", oOneRes.getString("msg"));
+            oAdd.put("locs", arRes.arLocs[iOffset]);
+            oAdd.put("locw", arRes.arLocw[iOffset]);
+            if (arRes.arMsg[iOffset] != null)
+              oAdd.put("msg", arRes.arMsg[iOffset]);
             // Add this entry to the results
             arBack.put(oAdd);
             // Continue until we have received all that is needed
             iUpdCurrent++;
+          } else {
+            // No results in this file: skip its hits (otherwise we would loop forever)
+            iUpdCurrent = iEntryLast + 1;
           }
 
         }
@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2016 Radboud University Nijmegen
+ * All rights reserved.
+ *
+ * This software has been developed at the "Meertens Instituut"
+ *   for the CLARIN project "CorpusStudio-WebApplication".
+ * The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *   while working for the Radboud University Nijmegen.
+ * The program and the source can be freely used and re-distributed.
+ *
+ * @author Erwin R. Komen
+ */
+package nl.ru.crpx.server.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import nl.ru.crpx.dataobject.DataObjectList;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+
+/**
+ * GroupCounter -- Count hits per (sub category, group) combination
+ *
+ * Groups and files get a number when they are first seen, so that counting
+ * is a matter of array access: there is one counter per cell of the table
+ * of sub categories (rows) and groups (columns), and per cell a list of the
+ * numbers of the files that contributed hits.
+ *
+ * @author Erwin R. Komen
+ */
+public class GroupCounter {
+  // ================ Private variables ==============
+  private final List<String> lstSub;                // Names of the sub categories (rows)
+  private final List<String> lstGroup = new ArrayList<>();  // Names of the groups (columns)
+  private final Map<String, Integer> mapGroup = new HashMap<>();
+  private final List<String> lstFile = new ArrayList<>();   // Names of the files
+  private final Map<String, Integer> mapFile = new HashMap<>();
+  private int[][] arCount;                          // [row][column] hit count
+  private int[][][] arFiles;                        // [row][column] file numbers
+  private int[][] arFileSize;                       // [row][column] used part of arFiles
+
+  // ================ Class initialization ============
+  /**
+   * GroupCounter
+   *
+   * @param lstSub  - names of the sub categories (the rows of the table)
+   */
+  public GroupCounter(List<String> lstSub) {
+    this.lstSub = lstSub;
+    this.arCount = new int[lstSub.size()][8];
+    this.arFiles = new int[lstSub.size()][8][];
+    this.arFileSize = new int[lstSub.size()][8];
+  }
+
+  // ================ Public methods ==================
+  /**
+   * getGroupId -- the number of group @sGroup (a new one if it is new)
+   *
+   * @param sGroup
+   * @return
+   */
+  public int getGroupId(String sGroup) {
+    Integer iId = mapGroup.get(sGroup);
+    if (iId != null) return iId;
+    int iNew = lstGroup.size();
+    lstGroup.add(sGroup);
+    mapGroup.put(sGroup, iNew);
+    // Make room for the new column
+    if (arCount.length > 0 && iNew >= arCount[0].length) grow(iNew * 2);
+    return iNew;
+  }
+
+  /**
+   * getFileId -- the number of file @sFile (a new one if it is new)
+   *
+   * @param sFile
+   * @return
+   */
+  public int getFileId(String sFile) {
+    Integer iId = mapFile.get(sFile);
+    if (iId != null) return iId;
+    int iNew = lstFile.size();
+    lstFile.add(sFile);
+    mapFile.put(sFile, iNew);
+    return iNew;
+  }
+
+  /**
+   * add -- add @iCount hits of file @iFile to the cell of sub category
+   *        @iSub and group @iGroup; the file is only listed if it has hits
+   *
+   * @param iSub
+   * @param iGroup
+   * @param iFile
+   * @param iCount
+   */
+  public void add(int iSub, int iGroup, int iFile, int iCount) {
+    if (iSub < 0 || iSub >= lstSub.size()) return;
+    arCount[iSub][iGroup] += iCount;
+    if (iCount <= 0) return;
+    int[] arCell = arFiles[iSub][iGroup];
+    int iSize = arFileSize[iSub][iGroup];
+    if (arCell == null) {
+      arCell = new int[4];
+    } else if (iSize == arCell.length) {
+      arCell = Arrays.copyOf(arCell, iSize * 2);
+    }
+    arCell[iSize] = iFile;
+    arFiles[iSub][iGroup] = arCell;
+    arFileSize[iSub][iGroup] = iSize + 1;
+  }
+
+  /**
+   * toDataObject -- the table as list of "counts": first an element with
+   *                 the (sorted) group names, then one row per sub category
+   *                 with per group the count and (if there are any)
+   *                 the files
+   *
+   * @return
+   */
+  public DataObjectList toDataObject() {
+    DataObjectList arBack = new DataObjectList("counts");
+    // Sort the group labels
+    Integer[] arOrder = new Integer[lstGroup.size()];
+    for (int i = 0; i < arOrder.length; i++) arOrder[i] = i;
+    Arrays.sort(arOrder, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i1, Integer i2) {
+        return lstGroup.get(i1).compareTo(lstGroup.get(i2));
+      }
+    });
+    // Add the list of group names
+    DataObjectMapElement elGrp = new DataObjectMapElement();
+    DataObjectList arGrp = new DataObjectList("list");
+    for (Integer iGroup : arOrder) arGrp.add(lstGroup.get(iGroup));
+    elGrp.put("groups", arGrp);
+    arBack.add(elGrp);
+    // Now create a table consisting of rows (subcats) and columns (groups)
+    for (int iSub = 0; iSub < lstSub.size(); iSub++) {
+      DataObjectMapElement oRow = new DataObjectMapElement();
+      oRow.put("sub", lstSub.get(iSub));
+      DataObjectList arCol = new DataObjectList("cols");
+      for (Integer iGroup : arOrder) {
+        DataObjectMapElement oCol = new DataObjectMapElement();
+        oCol.put("group", lstGroup.get(iGroup));
+        oCol.put("count", arCount[iSub][iGroup]);
+        // Cells without files are left without a list
+        if (arFileSize[iSub][iGroup] > 0) {
+          DataObjectList arNew = new DataObjectList("files");
+          int[] arCell = arFiles[iSub][iGroup];
+          for (int k = 0; k < arFileSize[iSub][iGroup]; k++) {
+            arNew.add(lstFile.get(arCell[k]));
+          }
+          oCol.put("files", arNew);
+        }
+        arCol.add(oCol);
+      }
+      oRow.put("groups", arCol);
+      arBack.add(oRow);
+    }
+    return arBack;
+  }
+
+  // ================ Private methods =================
+  private void grow(int iCols) {
+    for (int iSub = 0; iSub < arCount.length; iSub++) {
+      arCount[iSub] = Arrays.copyOf(arCount[iSub], iCols);
+      arFiles[iSub] = Arrays.copyOf(arFiles[iSub], iCols);
+      arFileSize[iSub] = Arrays.copyOf(arFileSize[iSub], iCols);
+    }
+  }
+}
@@ -0,0 +1,285 @@
+/**
+ * Copyright (c) 2015 CLARIN-NL, (c) 2016 Radboud University Nijmegen
+ * All rights reserved.
+ *
+ * This software has been developed at the "Meertens Instituut"
+ *   for the CLARIN project "CorpusStudio-WebApplication".
+ *   Additions have been made in 2016 while working at the Radboud University Nijmegen
+ * The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *   while working for the Radboud University Nijmegen.
+ * The program and the source can be freely used and re-distributed.
+ *
+ * @author Erwin R. Komen
+ */
+package nl.ru.crpx.server.util;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import nl.ru.crpx.search.Job;
+import nl.ru.crpx.search.RunAny;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.json.JSONObject;
+
+/**
+ * JobWatcher -- Keep an eye on running jobs on behalf of requests that
+ *               are waiting (suspended) until the job changes state
+ *
+ * The jobs themselves do not offer callbacks, so one background thread
+ * periodically compares the state of each watched job with the state it
+ * had when the watch started. When the state changes, the job finishes or
+ * the maximum waiting time has passed, the listener is called (once).
+ * A streaming watch calls its listener on every change, until the job
+ * finishes.
+ *
+ * @author Erwin R. Komen
+ */
+public class JobWatcher {
+  // ========================= Constants =======================================
+  private static final long DEFAULT_POLL_MS = 250;      // Interval between checks
+  private static final long DEFAULT_MAX_WAIT_MS = 30000; // Maximum time a request waits
+  private static final long DEFAULT_MAX_STREAM_MS = 600000; // Maximum time of an event stream
+  private static final String[] PROGRESS_KEYS = {"start", "finish", "count", "total", "ready", "found"};
+  // ================ Private variables ==============
+  private final ErrHandle errHandle;
+  private final long lPollMs;                 // Interval between checks
+  private final long lMaxWaitMs;              // Maximum time a request waits
+  private final long lMaxStreamMs;            // Maximum time an event stream stays open
+  private final ConcurrentLinkedQueue<Watch> lWatch = new ConcurrentLinkedQueue<>();
+  private final ScheduledExecutorService oTimer;
+
+  /**
+   * Watchable -- something that has a state that can be watched
+   */
+  public interface Watchable {
+    /** @return true if the job has come to an end (no more changes follow) */
+    boolean isFinished();
+    /** @return a string that changes whenever the state of the job changes */
+    String getState();
+    /** @return the current progress information of the job (may be null) */
+    JSONObject getProgress();
+  }
+
+  /**
+   * Listener -- to be called when a watched job changes
+   */
+  public interface Listener {
+    /**
+     * onChange -- the job has changed, has finished, or the waiting time is over
+     *
+     * @param bLast     true if this is the last call for this watch
+     * @param bTimeout  true if the maximum waiting time has passed
+     */
+    void onChange(boolean bLast, boolean bTimeout);
+  }
+
+  /**
+   * Watch -- one request waiting for one job
+   */
+  public class Watch {
+    final Watchable oJob;
+    final Listener oListener;
+    final boolean bRepeat;        // Keep watching after a change (until finished)
+    volatile String sState;       // State at the start of the watch (or at the last change)
+    final long lDeadline;         // Moment we stop waiting
+    final AtomicBoolean bDone = new AtomicBoolean(false);
+    Watch(Watchable oJob, Listener oListener, long lWaitMs, boolean bRepeat) {
+      this.oJob = oJob;
+      this.oListener = oListener;
+      this.bRepeat = bRepeat;
+      this.sState = oJob.getState();
+      this.lDeadline = System.currentTimeMillis() + lWaitMs;
+    }
+    /**
+     * finish -- mark this watch as done
+     *
+     * @return true if this call did the marking (so the caller may act on it)
+     */
+    public boolean finish() {
+      if (!bDone.compareAndSet(false, true)) return false;
+      lWatch.remove(this);
+      return true;
+    }
+  }
+
+  // ================ Class initialization ============
+  public JobWatcher(JSONObject oConfig, ErrHandle oErr) {
+    long lPoll = DEFAULT_POLL_MS;
+    long lMax = DEFAULT_MAX_WAIT_MS;
+    long lStream = DEFAULT_MAX_STREAM_MS;
+
+    this.errHandle = oErr;
+    try {
+      // Get the settings from the "performance" section
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("longPoll")) {
+          JSONObject oPoll = oPerf.getJSONObject("longPoll");
+          if (oPoll.has("pollIntervalMs")) lPoll = oPoll.getInt("pollIntervalMs");
+          if (oPoll.has("maxWaitMs")) lMax = oPoll.getInt("maxWaitMs");
+          if (oPoll.has("maxStreamMs")) lStream = oPoll.getInt("maxStreamMs");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("JobWatcher: could not read configuration", ex, JobWatcher.class);
+    }
+    this.lPollMs = (lPoll <= 0) ? DEFAULT_POLL_MS : lPoll;
+    this.lMaxWaitMs = (lMax <= 0) ? DEFAULT_MAX_WAIT_MS : lMax;
+    this.lMaxStreamMs = (lStream <= 0) ? DEFAULT_MAX_STREAM_MS : lStream;
+    // One daemon thread does all the checking
+    this.oTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thr = new Thread(r, "crpp-jobwatcher");
+        thr.setDaemon(true);
+        return thr;
+      }
+    });
+    this.oTimer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() { check(); }
+    }, lPollMs, lPollMs, TimeUnit.MILLISECONDS);
+  }
+
+  // ================ Public methods ==================
+  public long getMaxWaitMs() { return lMaxWaitMs; }
+  public long getMaxStreamMs() { return lMaxStreamMs; }
+  public int size() { return lWatch.size(); }
+
+  /**
+   * watch -- start watching @oJob; @oListener is called once it changes
+   *
+   * @param oJob
+   * @param oListener
+   * @return          the watch, which can be finished by the caller
+   */
+  public Watch watch(Watchable oJob, Listener oListener) {
+    Watch oWatch = new Watch(oJob, oListener, lMaxWaitMs, false);
+    lWatch.add(oWatch);
+    return oWatch;
+  }
+
+  /**
+   * stream -- keep watching @oJob; @oListener is called on every change,
+   *           and one last time when the job finishes or the stream is
+   *           open for too long
+   *
+   * @param oJob
+   * @param oListener
+   * @return          the watch, which can be finished by the caller
+   */
+  public Watch stream(Watchable oJob, Listener oListener) {
+    Watch oWatch = new Watch(oJob, oListener, lMaxStreamMs, true);
+    lWatch.add(oWatch);
+    return oWatch;
+  }
+
+  /**
+   * stop -- stop the watcher thread, releasing all waiting requests
+   */
+  public void stop() {
+    try {
+      oTimer.shutdownNow();
+      for (Watch oWatch : lWatch) {
+        if (oWatch.finish()) oWatch.oListener.onChange(true, true);
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("JobWatcher/stop: ", ex, JobWatcher.class);
+    }
+  }
+
+  /**
+   * forJob -- make an Xq job watchable
+   *
+   * @param search
+   * @return
+   */
+  public static Watchable forJob(final Job search) {
+    return new Watchable() {
+      @Override
+      public boolean isFinished() { return search.finished(); }
+      @Override
+      public String getState() {
+        return search.finished() + "|" + search.getJobStatus() + "|" +
+                search.getJobProgress().toString();
+      }
+      @Override
+      public JSONObject getProgress() { return search.getJobProgress(); }
+    };
+  }
+
+  /**
+   * forRun -- make a Runnable job (e.g. RunTxtList) watchable
+   *
+   * @param search
+   * @return
+   */
+  public static Watchable forRun(final RunAny search) {
+    return new Watchable() {
+      @Override
+      public boolean isFinished() { return search.finished(); }
+      @Override
+      public String getState() {
+        JSONObject oCount = search.getJobCount();
+        return search.finished() + "|" + search.getJobStatus() + "|" +
+                ((oCount == null) ? "" : oCount.toString());
+      }
+      @Override
+      public JSONObject getProgress() { return search.getJobCount(); }
+    };
+  }
+
+  /**
+   * getProgressDelta -- get those progress values (start, finish, count,
+   *                     total, ready, found) that differ from the ones in
+   *                     @oLast; all of them if @oLast is null
+   *
+   * @param oLast
+   * @param oNow
+   * @return          object with the changed values (may be empty)
+   */
+  public static JSONObject getProgressDelta(JSONObject oLast, JSONObject oNow) {
+    JSONObject oDelta = new JSONObject();
+    if (oNow == null) return oDelta;
+    for (String sKey : PROGRESS_KEYS) {
+      if (!oNow.has(sKey)) continue;
+      String sNow = oNow.get(sKey).toString();
+      if (oLast == null || !oLast.has(sKey) || !oLast.get(sKey).toString().equals(sNow)) {
+        oDelta.put(sKey, oNow.get(sKey));
+      }
+    }
+    return oDelta;
+  }
+
+  // ================ Private methods =================
+  /**
+   * check -- walk all watches and call the listeners of those that changed
+   */
+  private void check() {
+    long lNow = System.currentTimeMillis();
+    for (Iterator<Watch> it = lWatch.iterator(); it.hasNext();) {
+      Watch oWatch = it.next();
+      try {
+        boolean bTimeout = (lNow >= oWatch.lDeadline);
+        boolean bFinished = oWatch.oJob.isFinished();
+        String sNow = oWatch.oJob.getState();
+        boolean bChanged = bFinished || !oWatch.sState.equals(sNow);
+        if (oWatch.bRepeat && bChanged && !bFinished && !bTimeout) {
+          // Streaming: report this change and keep on watching
+          oWatch.sState = sNow;
+          oWatch.oListener.onChange(false, false);
+        } else if ((bChanged || bTimeout) && oWatch.finish()) {
+          oWatch.oListener.onChange(true, bTimeout && !bChanged);
+        }
+      } catch (Exception ex) {
+        // Make sure one failing watch does not stop the others
+        errHandle.DoError("JobWatcher/check: ", ex, JobWatcher.class);
+        if (oWatch.finish()) oWatch.oListener.onChange(true, true);
+      }
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2015 CLARIN-NL, (c) 2016 Radboud University Nijmegen
+ * All rights reserved.
+ *
+ * This software has been developed at the "Meertens Instituut"
+ *   for the CLARIN project "CorpusStudio-WebApplication".
+ *   Additions have been made in 2016 while working at the Radboud University Nijmegen
+ * The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *   while working for the Radboud University Nijmegen.
+ * The program and the source can be freely used and re-distributed.
+ *
+ * @author Erwin R. Komen
+ */
+package nl.ru.crpx.server.util;
+
+import java.util.Iterator;
+import nl.ru.crpx.dataobject.DataObject;
+import nl.ru.crpx.dataobject.DataObjectList;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.util.json.JSONArray;
+import nl.ru.util.json.JSONObject;
+
+/**
+ * JsonConvert -- Turn JSON objects (e.g. as read from a .json file) into
+ *                the DataObject structure used for responses
+ *
+ * @author Erwin R. Komen
+ */
+public class JsonConvert {
+
+  /**
+   * toDataObject -- convert a JSONObject into a map element
+   *
+   * @param oJson
+   * @return
+   */
+  public static DataObjectMapElement toDataObject(JSONObject oJson) {
+    DataObjectMapElement oBack = new DataObjectMapElement();
+    Iterator keys = oJson.keys();
+    while (keys.hasNext()) {
+      String sKey = keys.next().toString();
+      Object oValue = oJson.get(sKey);
+      if (oValue instanceof JSONObject) {
+        oBack.put(sKey, toDataObject((JSONObject) oValue));
+      } else if (oValue instanceof JSONArray) {
+        oBack.put(sKey, toDataObject((JSONArray) oValue, sKey));
+      } else if (oValue instanceof Integer) {
+        oBack.put(sKey, ((Integer) oValue).intValue());
+      } else if (oValue instanceof Long) {
+        oBack.put(sKey, ((Long) oValue).longValue());
+      } else if (oValue instanceof Number) {
+        oBack.put(sKey, ((Number) oValue).doubleValue());
+      } else if (oValue instanceof Boolean) {
+        oBack.put(sKey, ((Boolean) oValue).booleanValue());
+      } else {
+        oBack.put(sKey, oValue.toString());
+      }
+    }
+    return oBack;
+  }
+
+  /**
+   * toDataObject -- convert a JSONArray into a list
+   *
+   * @param arJson
+   * @param sName   name of the list elements (for XML output)
+   * @return
+   */
+  public static DataObjectList toDataObject(JSONArray arJson, String sName) {
+    DataObjectList arBack = new DataObjectList(sName);
+    for (int i=0;i<arJson.length();i++) {
+      Object oValue = arJson.get(i);
+      if (oValue instanceof JSONObject) {
+        arBack.add(toDataObject((JSONObject) oValue));
+      } else if (oValue instanceof JSONArray) {
+        arBack.add((DataObject) toDataObject((JSONArray) oValue, sName));
+      } else if (oValue instanceof Integer) {
+        arBack.add(((Integer) oValue).intValue());
+      } else if (oValue instanceof Number) {
+        arBack.add(((Number) oValue).doubleValue());
+      } else {
+        arBack.add(oValue.toString());
+      }
+    }
+    return arBack;
+  }
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2015 CLARIN-NL, (c) 2016 Radboud University Nijmegen
+ * All rights reserved.
+ *
+ * This software has been developed at the "Meertens Instituut"
+ *   for the CLARIN project "CorpusStudio-WebApplication".
+ *   Additions have been made in 2016 while working at the Radboud University Nijmegen
+ * The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *   while working for the Radboud University Nijmegen.
+ * The program and the source can be freely used and re-distributed.
+ *
+ * @author Erwin R. Komen
+ */
+package nl.ru.crpx.server.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * JsonStreamWriter -- Write a JSON response element-by-element to a
+ *                     (buffered) writer, so that large lists need not be
+ *                     held in memory before they are sent to the client
+ *
+ * Elements that are already available as JSON text (e.g. the result of
+ * DataObject.toString(DataFormat.JSON)) can be added with rawValue().
+ * When pretty printing, every element goes on a line of its own, and
+ * such raw values are indented to match.
+ *
+ * @author Erwin R. Komen
+ */
+public class JsonStreamWriter {
+  // ================ Private variables ==============
+  private final Writer out;                 // Where we write to
+  private final Deque<Boolean> stFirst = new ArrayDeque<>(); // Per level: no element yet?
+  private boolean bAfterName = false;       // A name has just been written
+  private boolean bStarted = false;         // Has anything been written?
+  private final boolean bPretty;            // Indent the output?
+  // ================ Class initialization ============
+  public JsonStreamWriter(Writer out) {
+    this(out, false);
+  }
+  public JsonStreamWriter(Writer out, boolean bPretty) {
+    this.out = out;
+    this.bPretty = bPretty;
+  }
+
+  // ================ Public methods ==================
+  /**
+   * isStarted -- has anything been written to the output yet?
+   *
+   * @return
+   */
+  public boolean isStarted() { return bStarted; }
+
+  public JsonStreamWriter beginObject() throws IOException {
+    prefix(); out.write('{'); stFirst.push(true); return this;
+  }
+  public JsonStreamWriter endObject() throws IOException {
+    close(); out.write('}'); return this;
+  }
+  public JsonStreamWriter beginArray() throws IOException {
+    prefix(); out.write('['); stFirst.push(true); return this;
+  }
+  public JsonStreamWriter endArray() throws IOException {
+    close(); out.write(']'); return this;
+  }
+
+  /**
+   * name -- write the name of the next key/value pair in an object
+   *
+   * @param sName
+   * @return
+   * @throws IOException
+   */
+  public JsonStreamWriter name(String sName) throws IOException {
+    prefix(); quote(sName); out.write(bPretty ? ": " : ":");
+    bAfterName = true;
+    return this;
+  }
+
+  public JsonStreamWriter value(String sValue) throws IOException {
+    prefix();
+    if (sValue == null) out.write("null"); else quote(sValue);
+    return this;
+  }
+  public JsonStreamWriter value(long lValue) throws IOException {
+    prefix(); out.write(Long.toString(lValue)); return this;
+  }
+  public JsonStreamWriter value(boolean bValue) throws IOException {
+    prefix(); out.write(bValue ? "true" : "false"); return this;
+  }
+
+  /**
+   * rawValue -- write a value that already is valid JSON text
+   *
+   * @param sJson
+   * @return
+   * @throws IOException
+   */
+  public JsonStreamWriter rawValue(String sJson) throws IOException {
+    prefix();
+    if (bPretty) indentRaw(sJson); else out.write(sJson);
+    return this;
+  }
+
+  public void flush() throws IOException { out.flush(); }
+
+  // ================ Private methods =================
+  /**
+   * prefix -- write a comma if this is not the first element on this level
+   *
+   * @throws IOException
+   */
+  private void prefix() throws IOException {
+    bStarted = true;
+    if (bAfterName) {
+      // Value directly follows its name
+      bAfterName = false;
+      return;
+    }
+    if (!stFirst.isEmpty()) {
+      if (stFirst.peek()) {
+        stFirst.pop(); stFirst.push(false);
+      } else {
+        out.write(',');
+      }
+      if (bPretty) newLine(stFirst.size());
+    }
+  }
+
+  /**
+   * close -- leave the current level, putting the closing bracket on a
+   *          line of its own if the level has elements
+   *
+   * @throws IOException
+   */
+  private void close() throws IOException {
+    boolean bEmpty = stFirst.pop();
+    if (bPretty && !bEmpty) newLine(stFirst.size());
+  }
+
+  private void newLine(int iDepth) throws IOException {
+    out.write('\n');
+    for (int i=0;i<iDepth;i++) out.write("  ");
+  }
+
+  /**
+   * indentRaw -- write the JSON text @sJson with one element per line,
+   *              indented from the current level onwards
+   *
+   * @param sJson
+   * @throws IOException
+   */
+  private void indentRaw(String sJson) throws IOException {
+    int iDepth = stFirst.size();
+    boolean bInString = false;
+    int iLen = sJson.length();
+    for (int i=0;i<iLen;i++) {
+      char ch = sJson.charAt(i);
+      if (bInString) {
+        out.write(ch);
+        if (ch == '\\' && i+1 < iLen) {
+          out.write(sJson.charAt(++i));
+        } else if (ch == '"') {
+          bInString = false;
+        }
+        continue;
+      }
+      switch (ch) {
+        case '"': bInString = true; out.write(ch); break;
+        case ' ': case '\t': case '\n': case '\r': break;
+        case '{': case '[':
+          out.write(ch);
+          // Keep an empty object or array on one line
+          int iNext = i+1;
+          while (iNext < iLen && Character.isWhitespace(sJson.charAt(iNext))) iNext++;
+          if (iNext < iLen && (sJson.charAt(iNext) == '}' || sJson.charAt(iNext) == ']')) {
+            out.write(sJson.charAt(iNext));
+            i = iNext;
+          } else {
+            newLine(++iDepth);
+          }
+          break;
+        case '}': case ']': newLine(--iDepth); out.write(ch); break;
+        case ',': out.write(ch); newLine(iDepth); break;
+        case ':': out.write(": "); break;
+        default: out.write(ch);
+      }
+    }
+  }
+
+  /**
+   * quote -- write a JSON string literal, escaping where needed
+   *
+   * @param sText
+   * @throws IOException
+   */
+  private void quote(String sText) throws IOException {
+    out.write('"');
+    for (int i=0;i<sText.length();i++) {
+      char ch = sText.charAt(i);
+      switch (ch) {
+        case '"':  out.write("\\\""); break;
+        case '\\': out.write("\\\\"); break;
+        case '\n': out.write("\\n"); break;
+        case '\r': out.write("\\r"); break;
+        case '\t': out.write("\\t"); break;
+        case '\b': out.write("\\b"); break;
+        case '\f': out.write("\\f"); break;
+        default:
+          if (ch < 0x20 || ch == '\u2028' || ch == '\u2029') {
+            out.write(String.format("\\u%04x", (int) ch));
+          } else {
+            out.write(ch);
+          }
+      }
+    }
+    out.write('"');
+  }
+}
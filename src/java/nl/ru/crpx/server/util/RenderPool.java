@@ -0,0 +1,307 @@
+/**
+ * Copyright (c) 2016 Radboud University Nijmegen
+ * All rights reserved.
+ *
+ * This software has been developed at the "Meertens Instituut"
+ *   for the CLARIN project "CorpusStudio-WebApplication".
+ * The application is based on the "CorpusStudio" program written by Erwin R. Komen
+ *   while working for the Radboud University Nijmegen.
+ * The program and the source can be freely used and re-distributed.
+ *
+ * @author Erwin R. Komen
+ */
+package nl.ru.crpx.server.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.ru.crpx.dataobject.DataObjectMapElement;
+import nl.ru.crpx.tools.ErrHandle;
+import nl.ru.util.json.JSONObject;
+
+/**
+ * RenderPool -- Shared, bounded set of threads that requests can use to
+ *               do independent pieces of work (e.g. the hit details of
+ *               different files for /update) at the same time
+ *
+ * One request never uses more than "maxPerRequest" threads: the tasks of a
+ * request are put in a queue that is worked off by that many workers. The
+ * thread of the request itself is always one of the workers, so the work
+ * gets done even when all threads of the pool are busy. Workers that have
+ * not started by the time the request thread has taken the last task are
+ * cancelled: the request only waits for workers that are actually running.
+ * The results can be passed on in the order of the tasks as they come in
+ * (invokeInOrder), so that a request can send them while the others are
+ * still being worked on.
+ *
+ * @author Erwin R. Komen
+ */
+public class RenderPool {
+  // ========================= Constants =======================================
+  private static final int DEFAULT_MAX_PER_REQUEST = 4; // Threads one request may use
+  private static final int DEFAULT_QUEUE_SIZE = 64;     // Workers waiting for a thread
+  // ================ Private variables ==============
+  private final ErrHandle errHandle;
+  private final int iThreads;                 // Size of the pool
+  private final int iMaxPerRequest;           // Maximum number of workers per request
+  private final ThreadPoolExecutor oExecutor;
+  // ================ Statistics =====================
+  private final AtomicLong lRequests = new AtomicLong();
+  private final AtomicLong lTasks = new AtomicLong();
+  private final AtomicLong lRejected = new AtomicLong();
+  private final AtomicLong lCancelled = new AtomicLong();
+
+  /**
+   * Batch -- the tasks of one call of invokeInOrder, and their results
+   *          (guarded by the batch itself)
+   */
+  private static class Batch<T> {
+    final List<Callable<T>> lstTask;
+    final int iSize;
+    final Object[] arResult;
+    final boolean[] arDone;
+    final AtomicInteger iNext = new AtomicInteger();  // Next task to be taken
+    Exception exError = null;                         // First failure
+    Batch(List<Callable<T>> lstTask) {
+      this.lstTask = lstTask;
+      this.iSize = lstTask.size();
+      this.arResult = new Object[iSize];
+      this.arDone = new boolean[iSize];
+    }
+    // Do the next task, if there is one
+    boolean runNext() {
+      int i = iNext.getAndIncrement();
+      if (i >= iSize) return false;
+      Object oResult = null;
+      Exception exThis = null;
+      try {
+        oResult = lstTask.get(i).call();
+      } catch (Exception ex) {
+        exThis = ex;
+      } catch (Throwable ex) {
+        exThis = new ExecutionException(ex);
+      }
+      synchronized (this) {
+        arResult[i] = oResult;
+        arDone[i] = true;
+        if (exThis != null) fail(exThis);
+        notifyAll();
+      }
+      return true;
+    }
+    synchronized boolean isDone(int i) { return arDone[i]; }
+    synchronized T take(int i) {
+      @SuppressWarnings("unchecked")
+      T oResult = (T) arResult[i];
+      arResult[i] = null;
+      return oResult;
+    }
+    // Wait until task @i is done (or a task has failed)
+    synchronized void waitFor(int i) throws InterruptedException {
+      while (!arDone[i] && exError == null) wait();
+    }
+    synchronized void fail(Exception ex) {
+      if (exError == null) exError = ex;
+      // No need to do the remaining tasks
+      iNext.set(iSize);
+      notifyAll();
+    }
+    void stop() { iNext.set(iSize); }
+    synchronized void check() throws Exception {
+      if (exError != null) throw exError;
+    }
+  }
+
+  // ================ Class initialization ============
+  public RenderPool(JSONObject oConfig, ErrHandle oErr) {
+    int iPoolSize = 0;
+    int iPerRequest = DEFAULT_MAX_PER_REQUEST;
+    int iQueue = DEFAULT_QUEUE_SIZE;
+
+    this.errHandle = oErr;
+    try {
+      // Get the settings from the "performance" section
+      if (oConfig != null && oConfig.has("performance")) {
+        JSONObject oPerf = oConfig.getJSONObject("performance");
+        if (oPerf.has("renderPool")) {
+          JSONObject oPool = oPerf.getJSONObject("renderPool");
+          if (oPool.has("threads")) iPoolSize = oPool.getInt("threads");
+          if (oPool.has("maxPerRequest")) iPerRequest = oPool.getInt("maxPerRequest");
+          if (oPool.has("queueSize")) iQueue = oPool.getInt("queueSize");
+        }
+      }
+    } catch (Exception ex) {
+      errHandle.DoError("RenderPool: could not read configuration", ex, RenderPool.class);
+    }
+    // Zero threads means: as many as there are processors
+    this.iThreads = (iPoolSize <= 0) ? Runtime.getRuntime().availableProcessors() : iPoolSize;
+    this.iMaxPerRequest = Math.max(1, iPerRequest);
+    final AtomicInteger iThreadNum = new AtomicInteger();
+    this.oExecutor = new ThreadPoolExecutor(iThreads, iThreads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(Math.max(1, iQueue)), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thr = new Thread(r, "crpp-render-" + iThreadNum.incrementAndGet());
+        thr.setDaemon(true);
+        return thr;
+      }
+    });
+    // Idle threads need not stay around
+    this.oExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  // ================ Public methods ==================
+  public int getMaxPerRequest() { return iMaxPerRequest; }
+
+  /**
+   * Sink -- receives the results of invokeInOrder, one at a time
+   *
+   * @param <T>
+   */
+  public interface Sink<T> {
+    void put(int iTask, T oResult) throws Exception;
+  }
+
+  /**
+   * invokeAll -- perform all tasks in @lstTask, using at most
+   *              "maxPerRequest" threads (including the current one)
+   *
+   * @param <T>
+   * @param lstTask
+   * @return          the results, in the order of the tasks
+   * @throws Exception  the first exception thrown by a task
+   */
+  public <T> List<T> invokeAll(List<Callable<T>> lstTask) throws Exception {
+    final List<T> lstBack = new ArrayList<>(lstTask.size());
+    invokeInOrder(lstTask, new Sink<T>() {
+      @Override
+      public void put(int iTask, T oResult) { lstBack.add(oResult); }
+    });
+    return lstBack;
+  }
+
+  /**
+   * invokeInOrder -- perform all tasks in @lstTask, using at most
+   *              "maxPerRequest" threads (including the current one), and
+   *              give each result to @oSink as soon as it and the results
+   *              of all tasks before it are there. The sink is only called
+   *              by the current thread, in the order of the tasks; while
+   *              the next result is not there, this thread does a task too.
+   *
+   * @param <T>
+   * @param lstTask
+   * @param oSink
+   * @throws Exception  the first exception thrown by a task or by @oSink
+   */
+  public <T> void invokeInOrder(List<Callable<T>> lstTask, Sink<T> oSink) throws Exception {
+    final Batch<T> oBatch = new Batch<>(lstTask);
+    final int iSize = oBatch.iSize;
+    List<Future<?>> lstFuture = new ArrayList<>();
+    List<AtomicBoolean> lstStarted = new ArrayList<>();
+
+    lRequests.incrementAndGet();
+    lTasks.addAndGet(iSize);
+    // Each worker takes the next task until all have been taken
+    Runnable oWorker = new Runnable() {
+      @Override
+      public void run() {
+        while (oBatch.runNext()) { /* next task */ }
+      }
+    };
+    // Start the extra workers (the pool may be too busy to take them all)
+    int iWorkers = Math.min(iMaxPerRequest, iSize);
+    for (int i = 1; i < iWorkers; i++) {
+      // A worker only runs if it has not been cancelled before it started
+      final AtomicBoolean bStarted = new AtomicBoolean(false);
+      final Runnable oTask = oWorker;
+      try {
+        lstFuture.add(oExecutor.submit(new Runnable() {
+          @Override
+          public void run() {
+            if (bStarted.compareAndSet(false, true)) oTask.run();
+          }
+        }));
+        lstStarted.add(bStarted);
+      } catch (RejectedExecutionException ex) {
+        lRejected.incrementAndGet();
+        break;
+      }
+    }
+    try {
+      // This thread passes on the results in order, and works too
+      int iPut = 0;
+      while (iPut < iSize) {
+        // Stop at the first failure
+        oBatch.check();
+        if (oBatch.isDone(iPut)) {
+          oSink.put(iPut, oBatch.take(iPut));
+          iPut++;
+        } else if (!oBatch.runNext()) {
+          // All tasks have been taken: wait for the one that is needed
+          oBatch.waitFor(iPut);
+        }
+      }
+    } finally {
+      // Tasks that have not been taken are not needed anymore
+      oBatch.stop();
+      // Workers that have not started are not needed anymore either, and
+      // only the ones that are running need to be waited for
+      for (int i = 0; i < lstFuture.size(); i++) {
+        Future<?> oFuture = lstFuture.get(i);
+        try {
+          if (lstStarted.get(i).compareAndSet(false, true)) {
+            // This worker never started (and now never will)
+            oFuture.cancel(false);
+            lCancelled.incrementAndGet();
+            // Do not leave it in the queue of the pool
+            if (oFuture instanceof Runnable) oExecutor.remove((Runnable) oFuture);
+            continue;
+          }
+          oFuture.get();
+        } catch (ExecutionException ex) {
+          oBatch.fail(ex);
+        }
+      }
+    }
+    oBatch.check();
+  }
+
+  /**
+   * getStats -- statistics of this pool (for /serverinfo)
+   *
+   * @return
+   */
+  public DataObjectMapElement getStats() {
+    DataObjectMapElement oStats = new DataObjectMapElement();
+    oStats.put("threads", iThreads);
+    oStats.put("maxPerRequest", iMaxPerRequest);
+    oStats.put("active", oExecutor.getActiveCount());
+    oStats.put("queued", oExecutor.getQueue().size());
+    oStats.put("requests", lRequests.get());
+    oStats.put("tasks", lTasks.get());
+    oStats.put("rejected", lRejected.get());
+    oStats.put("cancelled", lCancelled.get());
+    return oStats;
+  }
+
+  /**
+   * stop -- stop the threads of the pool
+   */
+  public void stop() {
+    try {
+      oExecutor.shutdownNow();
+    } catch (Exception ex) {
+      errHandle.DoError("RenderPool/stop: ", ex, RenderPool.class);
+    }
+  }
+}
@@ -13,12 +13,13 @@
  */
 package nl.ru.crpx.server.util;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
 import nl.ru.crpx.project.CrpInfo;
 import nl.ru.crpx.tools.ErrHandle;
 
@@ -26,55 +27,86 @@ import nl.ru.crpx.tools.ErrHandle;
  * UserFile -- Holds all information pertaining to a file that is
  *             being uploaded in chunks
  * 
+ * The chunks are not kept in memory: each chunk is written to a spool file
+ * as soon as it arrives, and its offset and length in the spool file are
+ * registered under its chunk number. A bitmap keeps track of the chunks that
+ * have been received, so that completion is known right away. Write() copies
+ * the chunks from the spool file to the destination in the right order.
+ * 
  * NOTE:       This version of UserFile differs from the one in nl.ru.crpstudio.util
  * @author Erwin
  */
 public class UserFile {
   // ========================= Constants =======================================
   static String sProjectBase = CrpInfo.sEtcProject + "/"; // "/etc/project/"; // Base directory where user-spaces are stored
+  public static final long EXPIRE_MS = 30 * 60 * 1000;    // Idle uploads are removed after this time
   // ================ Private variables ==============
   private ErrHandle errHandle;
+  private File fSpool = null;         // Spool file holding the chunks received so far
+  private FileChannel chSpool = null; // Channel to write/read the spool file
+  private long[] arOffset;            // Offset of each chunk in the spool file
+  private int[] arLength;             // Length (in bytes) of each chunk in the spool file
+  private BitSet bsReceived;          // Chunks that have been received
+  private int iReceived = 0;          // Number of different chunks received
+  private volatile long lLastAccess;  // Time this upload was last used
   // ================ Public variables ===============
   public String userId;     // ID for the user of this file
   public String name;       // Name of this file
   public int total;         // Total number of expected chunks
   public boolean interrupt; // Interrupt signal
-  public List<FileChunk> chunk = new ArrayList<>();
   // ================ Class initialization ============
   public UserFile(String sUser, String sName, int iTotal, ErrHandle oErr) {
     this.userId = sUser;
     this.name = sName;
     this.errHandle = oErr;
-    this.total = iTotal;
     this.interrupt = false;
+    setTotal(iTotal);
   }
   // ================ signal interrupt ================
   public synchronized void Stop() { this.interrupt = true; }
-  public synchronized void Init() {
+  public synchronized void Init() { Init(this.total); }
+  public synchronized void Init(int iTotal) {
     this.interrupt = false;
-    this.chunk.clear();
+    Clear();
+    setTotal(iTotal);
   }
   
   // ================ Public methods ==================
   /**
-   * AddChunk -- Add one chunk to the list
+   * AddChunk -- Write one chunk to the spool file
    * 
    * @param sText
-   * @param iChunk
+   * @param iChunk  - number of this chunk (starting at 1)
    * @param iTotal
    * @return 
    */
-  public boolean AddChunk(String sText, int iChunk, int iTotal) {
+  public synchronized boolean AddChunk(String sText, int iChunk, int iTotal) {
     try {
-      // Create a new chunk
-      FileChunk oChunk = new FileChunk();
-      oChunk.number = iChunk;
-      oChunk.total = iTotal;
-      oChunk.fileName = this.name;
-      oChunk.text = sText;
-      synchronized(chunk) {
-        // Add this chunk to the list of chunks
-        this.chunk.add(oChunk);
+      touch();
+      // Validate
+      if (iChunk < 1 || iChunk > this.total) {
+        errHandle.debug("dbupload/AddChunk: chunk "+iChunk+" is out of range 1-"+this.total);
+        return false;
+      }
+      // Make sure there is a spool file
+      if (chSpool == null) {
+        fSpool = File.createTempFile("crpp-upload-", ".spool");
+        fSpool.deleteOnExit();
+        chSpool = new RandomAccessFile(fSpool, "rw").getChannel();
+      }
+      // Append the chunk to the spool file (a chunk sent again replaces the old one)
+      byte[] arBytes = sText.getBytes(StandardCharsets.UTF_8);
+      long lOffset = chSpool.size();
+      ByteBuffer bufThis = ByteBuffer.wrap(arBytes);
+      while (bufThis.hasRemaining()) {
+        chSpool.write(bufThis, lOffset + bufThis.position());
+      }
+      // Register where it is
+      arOffset[iChunk-1] = lOffset;
+      arLength[iChunk-1] = arBytes.length;
+      if (!bsReceived.get(iChunk-1)) {
+        bsReceived.set(iChunk-1);
+        iReceived++;
       }
       // Return positively
       return true;
@@ -85,86 +117,96 @@ public class UserFile {
   }
   
   /**
-   * Write -- Write all the chunks buffered to a file
+   * Write -- Write all the chunks from the spool file to a file
    * 
    * @param sFileName
-   * @return 
+   * @return            false if the file could not be written completely
    */
-  public boolean Write(String sFileName) {
+  public synchronized boolean Write(String sFileName) {
+    File file = new File(sFileName);
     try {
-      File file = new File(sFileName);
+      touch();
       try (FileOutputStream foThis = new FileOutputStream(file); 
-        OutputStreamWriter osThis = new OutputStreamWriter(foThis, "UTF-8"); 
-        BufferedWriter writer = new BufferedWriter(osThis)) {
+        FileChannel chOut = foThis.getChannel()) {
         // Loop through the chunks
         for (int i=0;i<this.total;i++) {
           // Check for interrupt
-          if (this.interrupt) {writer.close(); return true;}
-          // What is the chunk number?
-          int iChunk = i+1;
-          // Get the index of the element that has this chunk number
-          int iHas = -1;
-          for (int j=0;j<this.chunk.size();j++) {
-            if (this.chunk.get(j).number == iChunk) {
-              iHas = j;
-              break;
-            }
-          }
+          if (this.interrupt) return true;
           // Do we have it?
-          if (iHas>=0) {
-            // Access this chunk
-            FileChunk oThis = this.chunk.get(iHas);
-            // Write this chunk away
-            writer.write(oThis.text);
-            // =========== DEBUG ===================
-            // errHandle.debug("dbupload/Write chunk "+iChunk+" from location "+iHas);
-            // =====================================
+          if (bsReceived.get(i)) {
+            // Copy this chunk from the spool file
+            long lPos = arOffset[i];
+            long lEnd = lPos + arLength[i];
+            while (lPos < lEnd) {
+              lPos += chSpool.transferTo(lPos, lEnd - lPos, chOut);
+            }
           } else {
             // =========== DEBUG ===================
-            errHandle.debug("dbupload/Write cannot find chunk: "+iChunk);
+            errHandle.debug("dbupload/Write cannot find chunk: "+(i+1));
             // =====================================
           }
-          
         }
-        // Flush the remainder
-        writer.flush();
-        // And then close it myself
-        writer.close();
+        // Make sure it is on disk
+        chOut.force(false);
       }
       
       // Return positively
       return true;
     } catch (Exception ex) {
       errHandle.DoError("UserFile/Write: ", ex);
+      // Do not leave an incomplete database behind
+      if (file.exists() && !file.delete()) errHandle.debug("UserFile/Write: could not remove "+sFileName);
       return false;
     }    
   }
   
   /**
-   * IsReady -- Check if all the chunks have been read
+   * IsReady -- Check if all the chunks have been received
    * 
    * @return 
    */
-  public boolean IsReady() {
-    try {
-      // Check if the size of the list equals the total expected number
-      return (this.total == chunk.size());
-    } catch (Exception ex) {
-      errHandle.DoError("UserFile/IsReady: ", ex);
-      return false;
-    }   
+  public synchronized boolean IsReady() {
+    return (this.total == iReceived);
+  }
+  
+  /**
+   * getReceived -- Number of different chunks received so far
+   * 
+   * @return 
+   */
+  public synchronized int getReceived() {
+    return iReceived;
   }
   
   /**
-   * Clear -- Clear the current list of file chunks
+   * isExpired -- Has this upload not been used for too long?
    * 
+   * @param lNow
    * @return 
    */
+  public boolean isExpired(long lNow) {
+    return (lNow - lLastAccess > EXPIRE_MS);
+  }
+  
+  /**
+   * Clear -- Clear the chunks received so far and remove the spool file
+   * 
+   * @return  true if the spool file has been removed (or there was none)
+   */
   public synchronized boolean Clear() {
     try {
-      chunk.clear();
-      // Check if the size of the list equals the total expected number
-      return (this.total == chunk.size());
+      boolean bRemoved = true;
+      if (chSpool != null) {
+        chSpool.close();
+        chSpool = null;
+      }
+      if (fSpool != null) {
+        bRemoved = fSpool.delete();
+        if (!bRemoved) errHandle.debug("UserFile/Clear: could not remove "+fSpool.getAbsolutePath());
+        fSpool = null;
+      }
+      setTotal(this.total);
+      return bRemoved;
     } catch (Exception ex) {
       errHandle.DoError("UserFile/Clear: ", ex);
       return false;
@@ -177,14 +219,17 @@ public class UserFile {
    * @param i
    * @return 
    */
-  public String getChunk(int i) {
+  public synchronized String getChunk(int i) {
     try {
       // Validate
-      if (i > this.total) return "";
-      // Get the name of the chunk file
-      String sText = this.chunk.get(i-1).text;
+      if (i < 1 || i > this.total || !bsReceived.get(i-1)) return "";
+      // Read the chunk from the spool file
+      ByteBuffer bufThis = ByteBuffer.allocate(arLength[i-1]);
+      while (bufThis.hasRemaining()) {
+        if (chSpool.read(bufThis, arOffset[i-1] + bufThis.position()) < 0) break;
+      }
       // Return it
-      return sText;
+      return new String(bufThis.array(), 0, bufThis.position(), StandardCharsets.UTF_8);
     } catch (Exception ex) {
       errHandle.DoError("UserFile/getChunk: ", ex);
       return "";
@@ -192,16 +237,19 @@ public class UserFile {
   }
   
   // ================ Private methods =================
+  /**
+   * setTotal -- (re-)initialize the administration for @iTotal chunks
+   * 
+   * @param iTotal 
+   */
+  private void setTotal(int iTotal) {
+    this.total = Math.max(0, iTotal);
+    this.arOffset = new long[this.total];
+    this.arLength = new int[this.total];
+    this.bsReceived = new BitSet(this.total);
+    this.iReceived = 0;
+    touch();
+  }
   
-}
-/**
- * FileChunk -- one chunk in a file
- * 
- * @author Erwin
- */
-class FileChunk {
-  public int number;        // Number of this chunk
-  public int total;         // Total number of chunks
-  public String fileName;   // Name of the file this belongs to
-  public String text;       // Text of this chunk 
+  private void touch() { lLastAccess = System.currentTimeMillis(); }
 }